@@ -0,0 +1,301 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+
+/**
+ * The {@link FlightEvents} implemented with Java Flight Recorder. {@link FlightEvents} loads this
+ * class by name only if the JDK has Flight Recorder, which is why it is compiled apart from the
+ * main source set, which must not depend on {@code jdk.jfr}.
+ */
+class JfrFlightEvents implements FlightEvents.Recorder {
+
+  /** Whether any recording is running, and so whether events are worth creating at all. */
+  private static volatile boolean recording;
+
+  static {
+    FlightRecorder.addListener(
+        new FlightRecorderListener() {
+          @Override
+          public void recorderInitialized(FlightRecorder flightRecorder) {
+            updateRecording(flightRecorder);
+          }
+
+          @Override
+          public void recordingStateChanged(Recording changedRecording) {
+            updateRecording(FlightRecorder.getFlightRecorder());
+          }
+        });
+  }
+
+  private static void updateRecording(FlightRecorder flightRecorder) {
+    recording =
+        flightRecorder.getRecordings().stream()
+            .anyMatch(runningRecording -> runningRecording.getState() == RecordingState.RUNNING);
+  }
+
+  @Override
+  public boolean isRecording() {
+    return recording;
+  }
+
+  @Override
+  public FlightEvents.ClientCall startClientCall() {
+    return start(new ClientCall());
+  }
+
+  @Override
+  public FlightEvents.ServerDeserialize startServerDeserialize() {
+    return start(new ServerDeserialize());
+  }
+
+  @Override
+  public FlightEvents.ServerInvoke startServerInvoke() {
+    return start(new ServerInvoke());
+  }
+
+  @Override
+  public FlightEvents.ServerSerialize startServerSerialize() {
+    return start(new ServerSerialize());
+  }
+
+  @Override
+  public FlightEvents.ServerWrite startServerWrite() {
+    return start(new ServerWrite());
+  }
+
+  @Override
+  public FlightEvents.Deploy startDeploy() {
+    return start(new Deploy());
+  }
+
+  private static <E extends Event> E start(E event) {
+    event.begin();
+    return event;
+  }
+
+  /** A call to another {@link Microservice}, from sending the request to reading the response. */
+  @Name("oomicroservice.ClientCall")
+  @Label("Client Call")
+  @Description("A call to another microservice. Covers only sending for calls made inside async.")
+  @Category({"OOMicroservice", "RPC"})
+  @Enabled(false)
+  @StackTrace(false)
+  static class ClientCall extends Event implements FlightEvents.ClientCall {
+
+    @Label("Service")
+    String service;
+
+    @Label("Method")
+    String method;
+
+    @Label("Request Bytes")
+    @DataAmount
+    long requestBytes;
+
+    @Label("Response Bytes")
+    @DataAmount
+    long responseBytes;
+
+    @Label("Async")
+    boolean async;
+
+    @Label("Failed")
+    boolean failed;
+
+    @Override
+    public void commit(
+        String service,
+        String method,
+        long requestBytes,
+        long responseBytes,
+        boolean async,
+        boolean failed) {
+      if (shouldCommit()) {
+        this.service = service;
+        this.method = method;
+        this.requestBytes = requestBytes;
+        this.responseBytes = responseBytes;
+        this.async = async;
+        this.failed = failed;
+        commit();
+      }
+    }
+  }
+
+  /** Deserializing a served call. */
+  @Name("oomicroservice.ServerDeserialize")
+  @Label("Server Deserialize")
+  @Category({"OOMicroservice", "RPC"})
+  @Enabled(false)
+  @StackTrace(false)
+  static class ServerDeserialize extends Event implements FlightEvents.ServerDeserialize {
+
+    @Label("Service")
+    String service;
+
+    @Label("Method")
+    @Description("The called method, or null if the call could not be deserialized")
+    String method;
+
+    @Label("Request Bytes")
+    @DataAmount
+    long requestBytes;
+
+    @Override
+    public void commit(String service, String method, long requestBytes) {
+      if (shouldCommit()) {
+        this.service = service;
+        this.method = method;
+        this.requestBytes = requestBytes;
+        commit();
+      }
+    }
+  }
+
+  /** Dispatching a served call to its method and running it. */
+  @Name("oomicroservice.ServerInvoke")
+  @Label("Server Invoke")
+  @Category({"OOMicroservice", "RPC"})
+  @Enabled(false)
+  @StackTrace(false)
+  static class ServerInvoke extends Event implements FlightEvents.ServerInvoke {
+
+    @Label("Service")
+    String service;
+
+    @Label("Method")
+    String method;
+
+    @Label("Failed")
+    boolean failed;
+
+    @Override
+    public void commit(String service, String method, boolean failed) {
+      if (shouldCommit()) {
+        this.service = service;
+        this.method = method;
+        this.failed = failed;
+        commit();
+      }
+    }
+  }
+
+  /** Serializing the return value of a served call. */
+  @Name("oomicroservice.ServerSerialize")
+  @Label("Server Serialize")
+  @Category({"OOMicroservice", "RPC"})
+  @Enabled(false)
+  @StackTrace(false)
+  static class ServerSerialize extends Event implements FlightEvents.ServerSerialize {
+
+    @Label("Service")
+    String service;
+
+    @Label("Method")
+    String method;
+
+    @Label("Response Bytes")
+    @DataAmount
+    long responseBytes;
+
+    @Override
+    public void commit(String service, String method, long responseBytes) {
+      if (shouldCommit()) {
+        this.service = service;
+        this.method = method;
+        this.responseBytes = responseBytes;
+        commit();
+      }
+    }
+  }
+
+  /** Writing the response to a served call to its connection. */
+  @Name("oomicroservice.ServerWrite")
+  @Label("Server Write")
+  @Description("Writing a response frame. The NIO engine may finish writing it later.")
+  @Category({"OOMicroservice", "RPC"})
+  @Enabled(false)
+  @StackTrace(false)
+  static class ServerWrite extends Event implements FlightEvents.ServerWrite {
+
+    @Label("Service")
+    String service;
+
+    @Label("Response Bytes")
+    @DataAmount
+    long responseBytes;
+
+    @Override
+    public void commit(String service, long responseBytes) {
+      if (shouldCommit()) {
+        this.service = service;
+        this.responseBytes = responseBytes;
+        commit();
+      }
+    }
+  }
+
+  /** A phase of deploying the services to Kubernetes. */
+  @Name("oomicroservice.Deploy")
+  @Label("Deploy")
+  @Category({"OOMicroservice", "Deploy"})
+  @Enabled(false)
+  @StackTrace(false)
+  static class Deploy extends Event implements FlightEvents.Deploy {
+
+    @Label("Group")
+    @Description("The co-location group, or null for the image all the groups share")
+    String group;
+
+    @Label("Phase")
+    @Description("resolveClasspath, containerize, or kubectl")
+    String phase;
+
+    @Label("Target")
+    @Description("The container image or Kubernetes deployment")
+    String target;
+
+    @Label("Bytes")
+    @Description("The size of the classpath files, when containerizing")
+    @DataAmount
+    long bytes;
+
+    @Override
+    public void commit(String group, String phase, String target, long bytes) {
+      if (shouldCommit()) {
+        this.group = group;
+        this.phase = phase;
+        this.target = target;
+        this.bytes = bytes;
+        commit();
+      }
+    }
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+/** A {@link Microservice} with cheap methods, so that benchmarks measure the framework itself. */
+public class BenchmarkService extends Microservice {
+
+  public void noop() {}
+
+  public int add(int a, int b) {
+    return a + b;
+  }
+
+  public String echo(String message) {
+    return message;
+  }
+
+  public String first(String a, String b, String c, String d) {
+    return a;
+  }
+}
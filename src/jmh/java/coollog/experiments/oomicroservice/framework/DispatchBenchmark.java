@@ -0,0 +1,119 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import coollog.experiments.oomicroservice.framework.ServiceOptions.WireFormat;
+import coollog.experiments.oomicroservice.framework.WireProtocol.Frame;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the server side of a call: decoding a request, dispatching it to the {@link
+ * Microservice}, and encoding the response, without any I/O.
+ *
+ * <p>The request frames are reused and the response buffers are released, so the {@code
+ * gc.alloc.rate.norm} reported by the GC profiler is what the framework allocates per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DispatchBenchmark {
+
+  @Param({"TEXT", "BINARY"})
+  private WireFormat wireFormat;
+
+  private RequestHandler requestHandler;
+  private MethodInvocationSerializer serializer;
+  private Frame noopRequest;
+  private Frame addRequest;
+  private Frame echoRequest;
+  private byte[] textRequest;
+
+  @Setup
+  public void setUp() throws NoSuchMethodException {
+    MethodTable methodTable = MethodTable.of(BenchmarkService.class);
+    requestHandler =
+        new MicroserviceRequestHandler<>(BenchmarkService.class, new BenchmarkService(), false);
+    serializer = WireProtocol.getSerializer(WireProtocol.getPreamble(wireFormat));
+
+    noopRequest =
+        new Frame(
+            0,
+            (byte) 0,
+            serializer.serialize(
+                methodTable.get(BenchmarkService.class.getMethod("noop")), new Object[0]));
+    addRequest =
+        new Frame(
+            0,
+            (byte) 0,
+            serializer.serialize(
+                methodTable.get(BenchmarkService.class.getMethod("add", int.class, int.class)),
+                new Object[] {1, 2}));
+    echoRequest =
+        new Frame(
+            0,
+            (byte) 0,
+            serializer.serialize(
+                methodTable.get(BenchmarkService.class.getMethod("echo", String.class)),
+                new Object[] {"hello"}));
+    textRequest = "echo\nhello\n".getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public int noop() {
+    return handleFrame(noopRequest);
+  }
+
+  @Benchmark
+  public int add() {
+    return handleFrame(addRequest);
+  }
+
+  @Benchmark
+  public int echo() {
+    return handleFrame(echoRequest);
+  }
+
+  /** A one-shot text request, as sent by {@code echo | nc}. */
+  @Benchmark
+  public byte[] legacyTextEcho() throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    requestHandler.handleText(new ByteArrayInputStream(textRequest), outputStream);
+    return outputStream.toByteArray();
+  }
+
+  /** Handles {@code request} as a server engine would, and returns the response length. */
+  private int handleFrame(Frame request) {
+    request.getPayload().rewind();
+    ByteBuffer responseFrame = requestHandler.handleFrame(serializer, request);
+    int responseLength = responseFrame.remaining();
+    BufferPool.release(responseFrame);
+    return responseLength;
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the overhead of calling through a {@link ServiceRegistry#proxy} compared with calling
+ * the {@link Microservice} directly. The proxy's handler runs the original method locally, so only
+ * the interception itself is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProxyBenchmark {
+
+  private BenchmarkService direct;
+  private BenchmarkService proxied;
+  private MethodTable methodTable;
+  private BenchmarkService lookedUp;
+
+  private int a = 1;
+  private int b = 2;
+
+  @Setup
+  public void setUp() {
+    direct = new BenchmarkService();
+    proxied =
+        ServiceRegistry.proxy(
+            BenchmarkService.class,
+            (self, thisMethod, proceed, args) -> proceed.invoke(self, args));
+
+    // Also looks up the MethodTable entry, as MicroserviceMethodHandler does for each call.
+    methodTable = MethodTable.of(BenchmarkService.class);
+    lookedUp =
+        ServiceRegistry.proxy(
+            BenchmarkService.class,
+            (self, thisMethod, proceed, args) -> {
+              methodTable.get(thisMethod);
+              return proceed.invoke(self, args);
+            });
+  }
+
+  @Benchmark
+  public int direct() {
+    return direct.add(a, b);
+  }
+
+  @Benchmark
+  public int proxied() {
+    return proxied.add(a, b);
+  }
+
+  @Benchmark
+  public int proxiedWithMethodTableLookup() {
+    return lookedUp.add(a, b);
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import coollog.experiments.oomicroservice.framework.ServiceOptions.ServerEngineType;
+import coollog.experiments.oomicroservice.framework.ServiceOptions.WireFormat;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures full remote calls over loopback: the proxy, the connection pool, the wire protocol, the
+ * server engine, and dispatch. The {@link BenchmarkService} is served by a {@link LocalCluster} in
+ * the benchmark process.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RoundTripBenchmark {
+
+  @Param({"WORKER_POOL", "NIO"})
+  private ServerEngineType serverEngine;
+
+  @Param({"TEXT", "BINARY"})
+  private WireFormat wireFormat;
+
+  private BenchmarkService benchmarkService;
+
+  @Setup
+  public void setUp() throws IOException {
+    ServiceRegistry.register(
+        BenchmarkService.class,
+        "benchmarkservice",
+        BenchmarkService::new,
+        ServiceOptions.builder().setServerEngine(serverEngine).setWireFormat(wireFormat).build());
+    LocalCluster.start();
+    benchmarkService = ServiceRegistry.get(BenchmarkService.class);
+  }
+
+  @Benchmark
+  public String echoString() {
+    return benchmarkService.echo("hello");
+  }
+
+  @Benchmark
+  public int addInt() {
+    return benchmarkService.add(1, 2);
+  }
+
+  @Benchmark
+  public void callVoid() {
+    benchmarkService.noop();
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import com.google.common.base.Strings;
+import coollog.experiments.oomicroservice.framework.MethodTable.RemoteMethod;
+import coollog.experiments.oomicroservice.framework.ServiceOptions.WireFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Measures encoding and decoding a method call with each {@link MethodInvocationSerializer}. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SerializerBenchmark {
+
+  @Param({"TEXT", "BINARY"})
+  private WireFormat wireFormat;
+
+  /**
+   * Picks {@link BenchmarkService#noop}, {@link BenchmarkService#echo}, or {@link
+   * BenchmarkService#first}.
+   */
+  @Param({"0", "1", "4"})
+  private int argCount;
+
+  @Param({"8", "1024"})
+  private int argLength;
+
+  private MethodTable methodTable;
+  private MethodInvocationSerializer serializer;
+  private RemoteMethod remoteMethod;
+  private Object[] args;
+  private ByteBuffer serialized;
+
+  @Setup
+  public void setUp() throws NoSuchMethodException {
+    methodTable = MethodTable.of(BenchmarkService.class);
+    serializer = WireProtocol.getSerializer(WireProtocol.getPreamble(wireFormat));
+
+    Class<?>[] parameterTypes = new Class<?>[argCount];
+    Arrays.fill(parameterTypes, String.class);
+    String methodName = argCount == 0 ? "noop" : argCount == 1 ? "echo" : "first";
+    remoteMethod = methodTable.get(BenchmarkService.class.getMethod(methodName, parameterTypes));
+
+    args = new Object[argCount];
+    Arrays.fill(args, Strings.repeat("x", argLength));
+    serialized = serializer.serialize(remoteMethod, args);
+  }
+
+  @Benchmark
+  public ByteBuffer serialize() {
+    return serializer.serialize(remoteMethod, args);
+  }
+
+  @Benchmark
+  public MethodInvocation deserialize() throws IOException {
+    return serializer.deserialize(serialized.duplicate(), methodTable);
+  }
+}
@@ -18,6 +18,7 @@ package coollog.experiments.oomicroservice.command;
 
 import com.google.common.base.Joiner;
 import com.google.common.io.CharStreams;
+import coollog.experiments.oomicroservice.framework.Logger;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -27,6 +28,8 @@ import java.nio.charset.StandardCharsets;
 /** Runs a command. */
 public class Command {
 
+  private static final Logger LOGGER = Logger.get("command");
+
   /**
    * Runs {@code command}.
    *
@@ -35,7 +38,7 @@ public class Command {
    * @throws InterruptedException if the process is interrupted
    */
   public static void runCommand(String... command) throws IOException, InterruptedException {
-    System.err.println("Running '" + Joiner.on(" ").join(command) + "':");
+    LOGGER.info("Running", "command", Joiner.on(" ").join(command));
 
     Process process = new ProcessBuilder(command).start();
 
@@ -45,7 +48,7 @@ public class Command {
         BufferedReader stdoutBufferedReader = new BufferedReader(stdoutReader)) {
       stdoutBufferedReader
           .lines()
-          .forEach(line -> System.err.println("[" + command[0] + "] " + line));
+          .forEach(line -> LOGGER.info("Output", "command", command[0], "line", line));
     }
 
     int exitCode = process.waitFor();
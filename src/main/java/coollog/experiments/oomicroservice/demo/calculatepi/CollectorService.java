@@ -16,10 +16,16 @@
 
 package coollog.experiments.oomicroservice.demo.calculatepi;
 
+import coollog.experiments.oomicroservice.framework.Combinable;
+import coollog.experiments.oomicroservice.framework.Logger;
 import coollog.experiments.oomicroservice.framework.Microservice;
+import coollog.experiments.oomicroservice.framework.OneWay;
 
 public class CollectorService extends Microservice {
 
+  /** Logs the estimate at most once a second, since it is updated on every batch of trials. */
+  private static final Logger LOGGER = Logger.get("pi", 1);
+
   private long hits = 0;
   private long total = 0;
 
@@ -27,18 +33,30 @@ public class CollectorService extends Microservice {
     service(PiService.class).start();
   }
 
+  @Combinable(into = "addHits")
   public void hit() {
-    hits++;
-    total++;
-    log();
+    addHits(1);
   }
 
+  @Combinable(into = "addMisses")
   public void miss() {
-    total++;
+    addMisses(1);
+  }
+
+  @OneWay
+  public synchronized void addHits(long count) {
+    hits += count;
+    total += count;
+    log();
+  }
+
+  @OneWay
+  public synchronized void addMisses(long count) {
+    total += count;
     log();
   }
 
   private void log() {
-    System.out.println("Pi=" + (hits * 4.0 / total));
+    LOGGER.info("Estimated", "pi", hits * 4.0 / total, "trials", total);
   }
 }
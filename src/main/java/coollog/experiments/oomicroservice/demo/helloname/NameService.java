@@ -16,12 +16,16 @@
 
 package coollog.experiments.oomicroservice.demo.helloname;
 
+import coollog.experiments.oomicroservice.framework.Cacheable;
 import coollog.experiments.oomicroservice.framework.Microservice;
+import coollog.experiments.oomicroservice.framework.SingleFlight;
 
 public class NameService extends Microservice {
 
   private static String NAME = "Serverless Fan";
 
+  @Cacheable
+  @SingleFlight
   public String getName() {
     return NAME;
   }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Turns a blocking call on a {@link Microservice} proxy into a {@link CompletableFuture}.
+ *
+ * <p>While {@link #call} runs the caller's lambda, {@link MicroserviceMethodHandler} sends the
+ * remote call without waiting for the response, hands the pending result to {@link #capture}, and
+ * returns a placeholder value to the lambda.
+ */
+class AsyncCalls {
+
+  /** Holds the pending result of the remote call made inside {@link #call}. */
+  private static class Capture {
+
+    private CompletableFuture<?> future;
+  }
+
+  private static final ThreadLocal<Capture> currentCapture = new ThreadLocal<>();
+
+  /**
+   * Runs {@code remoteCall} and returns the pending result of the remote call it makes.
+   *
+   * @param remoteCall makes a single call on a {@link Microservice} proxy
+   * @param <R> the return type of the remote call
+   * @return a future for the result of the remote call, or an already completed future if {@code
+   *     remoteCall} did not make a remote call
+   */
+  @SuppressWarnings("unchecked")
+  static <R> CompletableFuture<R> call(Supplier<R> remoteCall) {
+    Capture previousCapture = currentCapture.get();
+    Capture capture = new Capture();
+    currentCapture.set(capture);
+    R localResult;
+    try {
+      localResult = remoteCall.get();
+
+    } finally {
+      currentCapture.set(previousCapture);
+    }
+
+    if (capture.future == null) {
+      return CompletableFuture.completedFuture(localResult);
+    }
+    return (CompletableFuture<R>) capture.future;
+  }
+
+  /**
+   * Checks whether a remote call on this thread should be captured instead of waited on.
+   *
+   * @return {@code true} if running inside {@link #call}
+   */
+  static boolean isCapturing() {
+    return currentCapture.get() != null;
+  }
+
+  /**
+   * Captures the pending result of a remote call made inside {@link #call}.
+   *
+   * @param future the pending result
+   * @throws IllegalStateException if a remote call was already captured
+   */
+  static void capture(CompletableFuture<?> future) {
+    Capture capture = currentCapture.get();
+    if (capture.future != null) {
+      throw new IllegalStateException("async() supports only a single remote call");
+    }
+    capture.future = future;
+  }
+
+  private AsyncCalls() {}
+}
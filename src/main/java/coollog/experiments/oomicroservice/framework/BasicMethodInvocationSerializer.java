@@ -1,5 +1,5 @@
 /*
- * Copyright 2018 Google Inc.
+ * Copyright 2019 Google LLC. All rights reserved.
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not
  * use this file except in compliance with the License. You may obtain a copy of
@@ -16,34 +16,45 @@
 
 package coollog.experiments.oomicroservice.framework;
 
+import coollog.experiments.oomicroservice.framework.MethodTable.RemoteMethod;
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * A very basic implementation of {@link MethodInvocationSerializer}. It basically just serializes
- * the method name and arguments with new lines in-between and {@code $} as the sentinel.
+ * the method name and arguments with new lines in-between and {@code $} as the sentinel. Return
+ * values are serialized with {@link String#valueOf}. An overloaded method is named by its signature
+ * (see {@link MethodTable#find}).
  */
 class BasicMethodInvocationSerializer implements MethodInvocationSerializer {
 
   private static final String SENTINEL = "$";
 
+  /** An upper bound on the length of an {@code int}, {@code long}, {@code double}, or boolean. */
+  private static final int MAX_PRIMITIVE_TEXT_LENGTH = 32;
+
   @Override
-  public String serialize(Method method, Object[] args) {
+  public ByteBuffer serialize(RemoteMethod remoteMethod, Object[] args) {
     StringBuilder serialized = new StringBuilder();
-    serialized.append(method.getName());
+    serialized.append(
+        remoteMethod.isAmbiguous()
+            ? remoteMethod.getSignature()
+            : remoteMethod.getMethod().getName());
     serialized.append('\n');
 
-    for (Object arg : args) {
-      if (arg.getClass().equals(Class.class)) {
-        serialized.append(((Class) arg).getName());
-      } else {
-        serialized.append(arg);
+    for (int argIndex = 0; argIndex < args.length; argIndex++) {
+      if (args[argIndex] == null) {
+        throw new IllegalArgumentException("The text format does not support null arguments");
+      }
+      String arg = remoteMethod.getParameterCodec(argIndex).toText(args[argIndex]);
+      if (arg.indexOf('\n') != -1) {
+        throw new IllegalArgumentException("The text format does not support multi-line arguments");
       }
+      serialized.append(arg);
       serialized.append('\n');
     }
 
@@ -51,17 +62,84 @@ class BasicMethodInvocationSerializer implements MethodInvocationSerializer {
     serialized.append(SENTINEL);
     serialized.append('\n');
 
-    return serialized.toString();
+    return ByteBuffer.wrap(serialized.toString().getBytes(StandardCharsets.UTF_8));
   }
 
-  @Override
-  public MethodInvocation deserialize(InputStream inputStream) throws IOException {
-    // Not wrapped in try-with-resource because the inputStream should not be closed afterwards.
-    BufferedReader inputReader = new BufferedReader(new InputStreamReader(inputStream));
+  /** Gets the length of the line that starts at {@code lineStart}, not counting its line break. */
+  private static int getLineLength(ByteBuffer buffer, int lineStart) {
+    int index = lineStart;
+    while (index < buffer.limit() && buffer.get(index) != '\n' && buffer.get(index) != '\r') {
+      index++;
+    }
+    return index - lineStart;
+  }
+
+  /** Gets the start of the line after the one that starts at {@code lineStart}. */
+  private static int getNextLineStart(ByteBuffer buffer, int lineStart) {
+    int index = lineStart;
+    while (index < buffer.limit() && buffer.get(index) != '\n') {
+      index++;
+    }
+    return Math.min(index + 1, buffer.limit());
+  }
 
+  /** Checks whether the arguments end at the line that starts at {@code lineStart}. */
+  private static boolean isEndOfArgs(ByteBuffer buffer, int lineStart) {
+    return lineStart == buffer.limit()
+        || (getLineLength(buffer, lineStart) == SENTINEL.length()
+            && buffer.get(lineStart) == SENTINEL.charAt(0));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Scans the lines in place, once to count the arguments and once to decode them.
+   */
+  @Override
+  public MethodInvocation deserialize(ByteBuffer buffer, MethodTable methodTable)
+      throws IOException {
     // Reads the method name (first line).
-    String methodName = inputReader.readLine();
+    int lineStart = buffer.position();
+    if (lineStart == buffer.limit()) {
+      throw new IOException("Method call is missing its method name");
+    }
+    String methodName = ValueCodec.getUtf8(buffer, lineStart, getLineLength(buffer, lineStart));
+    int argsStart = getNextLineStart(buffer, lineStart);
 
+    // Counts the arguments (all lines after first, up to the sentinel).
+    int argCount = 0;
+    for (lineStart = argsStart;
+        !isEndOfArgs(buffer, lineStart);
+        lineStart = getNextLineStart(buffer, lineStart)) {
+      argCount++;
+    }
+    buffer.position(getNextLineStart(buffer, lineStart));
+
+    RemoteMethod remoteMethod = methodTable.find(methodName, argCount);
+
+    // Converts the raw string args to typed arguments.
+    MethodInvocation methodInvocation = MethodInvocation.reuse(remoteMethod);
+    Object[] typedArgs = methodInvocation.getArgs();
+    lineStart = argsStart;
+    for (int argIndex = 0; argIndex < argCount; argIndex++) {
+      String arg = ValueCodec.getUtf8(buffer, lineStart, getLineLength(buffer, lineStart));
+      typedArgs[argIndex] = remoteMethod.getParameterCodec(argIndex).fromText(arg);
+      lineStart = getNextLineStart(buffer, lineStart);
+    }
+    return methodInvocation;
+  }
+
+  /**
+   * Deserializes a serialized method call whose method name has already been read.
+   *
+   * @param methodName the method name, which is the first line of the serialized method call
+   * @param inputReader reads the rest of the serialized method call
+   * @param methodTable the {@link MethodTable} of the called {@link Microservice}
+   * @return the {@link MethodInvocation}
+   * @throws IOException if an I/O exception occurs
+   */
+  MethodInvocation deserialize(
+      String methodName, BufferedReader inputReader, MethodTable methodTable) throws IOException {
     // Reads the arguments (all lines after first).
     List<String> args = new ArrayList<>();
     String arg = inputReader.readLine();
@@ -70,6 +148,34 @@ class BasicMethodInvocationSerializer implements MethodInvocationSerializer {
       arg = inputReader.readLine();
     }
 
-    return new MethodInvocation(methodName, args);
+    RemoteMethod remoteMethod = methodTable.find(methodName, args.size());
+
+    // Converts the raw string args to typed arguments.
+    Object[] typedArgs = new Object[args.size()];
+    for (int argIndex = 0; argIndex < args.size(); argIndex++) {
+      typedArgs[argIndex] = remoteMethod.getParameterCodec(argIndex).fromText(args.get(argIndex));
+    }
+
+    return new MethodInvocation(remoteMethod, typedArgs);
+  }
+
+  @Override
+  public int getMaxResultLength(RemoteMethod remoteMethod, Object result) {
+    if (result instanceof Number || result instanceof Boolean) {
+      return MAX_PRIMITIVE_TEXT_LENGTH;
+    }
+    // A char takes at most 3 bytes in UTF-8.
+    return 3 * String.valueOf(result).length();
+  }
+
+  @Override
+  public void serializeResult(RemoteMethod remoteMethod, Object result, ByteBuffer buffer) {
+    ValueCodec.putUtf8(buffer, String.valueOf(result));
+  }
+
+  @Override
+  public Object deserializeResult(RemoteMethod remoteMethod, ByteBuffer buffer) {
+    // Converts result to correct return type.
+    return remoteMethod.getReturnCodec().fromText(StandardCharsets.UTF_8.decode(buffer).toString());
   }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import coollog.experiments.oomicroservice.framework.MethodTable.RemoteMethod;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A compact binary implementation of {@link MethodInvocationSerializer}. A method call is
+ * serialized as:
+ *
+ * <pre>
+ *   int32  method ID (see {@link MethodTable})
+ *   byte   argument count
+ *   field  argument (repeated)
+ * </pre>
+ *
+ * <p>Each field is a type tag followed by the value in its native encoding: 4 bytes for {@code
+ * int}, 8 bytes for {@code long} and {@code double}, 1 byte for {@code boolean}, and a 4-byte
+ * length followed by the bytes for {@code byte[]}, {@code String} (UTF-8), and {@code Class} (its
+ * name). A return value is serialized as a single field.
+ */
+class BinaryMethodInvocationSerializer implements MethodInvocationSerializer {
+
+  /** Tags a {@code null} field. */
+  static final byte NULL_TAG = 0;
+
+  static final int MAX_ARGS = 255;
+
+  private static void putField(ByteBuffer buffer, ValueCodec valueCodec, Object value) {
+    if (value == null) {
+      buffer.put(NULL_TAG);
+      return;
+    }
+    buffer.put(valueCodec.getTag());
+    valueCodec.write(buffer, value);
+  }
+
+  private static Object getField(ByteBuffer buffer, ValueCodec valueCodec) {
+    byte tag = buffer.get();
+    if (tag == NULL_TAG) {
+      return null;
+    }
+    if (tag != valueCodec.getTag()) {
+      throw new IllegalArgumentException(
+          "Expected a field of type " + valueCodec + ", got tag " + tag);
+    }
+    return valueCodec.read(buffer);
+  }
+
+  @Override
+  public ByteBuffer serialize(RemoteMethod remoteMethod, Object[] args) {
+    if (args.length > MAX_ARGS) {
+      throw new UnsupportedOperationException(
+          "Method " + remoteMethod.getMethod().getName() + " has more than " + MAX_ARGS + " args");
+    }
+
+    int maxLength = Integer.BYTES + 1;
+    for (int argIndex = 0; argIndex < args.length; argIndex++) {
+      maxLength += 1;
+      if (args[argIndex] != null) {
+        maxLength += remoteMethod.getParameterCodec(argIndex).getMaxLength(args[argIndex]);
+      }
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(maxLength);
+    buffer.putInt(remoteMethod.getId());
+    buffer.put((byte) args.length);
+    for (int argIndex = 0; argIndex < args.length; argIndex++) {
+      putField(buffer, remoteMethod.getParameterCodec(argIndex), args[argIndex]);
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  @Override
+  public MethodInvocation deserialize(ByteBuffer buffer, MethodTable methodTable)
+      throws IOException {
+    try {
+      RemoteMethod remoteMethod = methodTable.get(buffer.getInt());
+
+      int argCount = buffer.get() & 0xFF;
+      if (remoteMethod.getParameterCount() != argCount) {
+        throw new IllegalArgumentException(
+            "Method "
+                + remoteMethod.getMethod().getName()
+                + " has "
+                + remoteMethod.getParameterCount()
+                + " args, but received "
+                + argCount);
+      }
+
+      MethodInvocation methodInvocation = MethodInvocation.reuse(remoteMethod);
+      Object[] args = methodInvocation.getArgs();
+      for (int argIndex = 0; argIndex < argCount; argIndex++) {
+        args[argIndex] = getField(buffer, remoteMethod.getParameterCodec(argIndex));
+      }
+      return methodInvocation;
+
+    } catch (BufferUnderflowException ex) {
+      throw new IOException("Truncated method call", ex);
+    }
+  }
+
+  @Override
+  public int getMaxResultLength(RemoteMethod remoteMethod, Object result) {
+    return 1 + (result == null ? 0 : remoteMethod.getReturnCodec().getMaxLength(result));
+  }
+
+  @Override
+  public void serializeResult(RemoteMethod remoteMethod, Object result, ByteBuffer buffer) {
+    putField(buffer, remoteMethod.getReturnCodec(), result);
+  }
+
+  @Override
+  public Object deserializeResult(RemoteMethod remoteMethod, ByteBuffer buffer) throws IOException {
+    try {
+      Object result = getField(buffer, remoteMethod.getReturnCodec());
+      Class<?> returnType = remoteMethod.getMethod().getReturnType();
+      if (result == null && returnType.isPrimitive() && returnType != Void.TYPE) {
+        throw new IOException("Received null for return type " + returnType);
+      }
+      return result;
+
+    } catch (BufferUnderflowException ex) {
+      throw new IOException("Truncated return value", ex);
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Turns a blocking call on a {@link Microservice} proxy into a call to every replica of every shard
+ * of that {@link Microservice}, and reduces their results.
+ *
+ * <p>While {@link #call} runs the caller's lambda, {@link MicroserviceMethodHandler} sends the
+ * remote call to every replica without waiting for the responses, hands their pending results to
+ * {@link #capture}, and returns a placeholder value to the lambda, just like {@link AsyncCalls}.
+ */
+class BroadcastCalls {
+
+  /** Holds the pending results of the remote calls made inside {@link #call}. */
+  private static class Capture {
+
+    private List<CompletableFuture<?>> futures;
+  }
+
+  /** Reduces the results of the captured calls as they arrive. */
+  private static class Gathering<R, A> {
+
+    private final Reducer<? super R, A> reducer;
+    private final CountDownLatch remaining;
+
+    /** Guarded by {@code this}. */
+    private A accumulated;
+
+    /**
+     * Guarded by {@code this}. Set once the caller stops waiting, after which results are ignored.
+     */
+    private boolean closed;
+
+    /** Guarded by {@code this}. */
+    private Throwable failure;
+
+    private Gathering(Reducer<? super R, A> reducer, int count) {
+      this.reducer = reducer;
+      remaining = new CountDownLatch(count);
+      accumulated = reducer.initial();
+    }
+
+    private void onComplete(R result, Throwable ex) {
+      synchronized (this) {
+        if (!closed) {
+          if (ex == null) {
+            accumulated = reducer.accumulate(accumulated, result);
+          } else if (failure == null) {
+            failure = ex instanceof CompletionException ? ex.getCause() : ex;
+          }
+        }
+      }
+      remaining.countDown();
+    }
+  }
+
+  private static final ThreadLocal<Capture> currentCapture = new ThreadLocal<>();
+
+  /**
+   * Runs {@code remoteCall} and reduces the results of the remote calls it makes.
+   *
+   * @param remoteCall makes a single call on a {@link Microservice} proxy
+   * @param reducer reduces the results as they arrive
+   * @param timeoutNanos how long to wait for the results, or a negative number to wait for all of
+   *     them
+   * @param <R> the return type of the remote call
+   * @param <A> the type of the reduced result
+   * @return the reduced results. With a timeout, only the results that arrived in time are reduced,
+   *     and the calls that failed are left out.
+   */
+  @SuppressWarnings("unchecked")
+  static <R, A> A call(Supplier<R> remoteCall, Reducer<? super R, A> reducer, long timeoutNanos) {
+    Capture previousCapture = currentCapture.get();
+    Capture capture = new Capture();
+    currentCapture.set(capture);
+    R localResult;
+    try {
+      localResult = remoteCall.get();
+
+    } finally {
+      currentCapture.set(previousCapture);
+    }
+
+    if (capture.futures == null) {
+      return reducer.accumulate(reducer.initial(), localResult);
+    }
+
+    Gathering<R, A> gathering = new Gathering<>(reducer, capture.futures.size());
+    for (CompletableFuture<?> future : capture.futures) {
+      ((CompletableFuture<R>) future).whenComplete(gathering::onComplete);
+    }
+
+    boolean gathered;
+    try {
+      if (timeoutNanos < 0) {
+        gathering.remaining.await();
+        gathered = true;
+      } else {
+        gathered = gathering.remaining.await(timeoutNanos, TimeUnit.NANOSECONDS);
+      }
+
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw rethrow(new InterruptedIOException("Interrupted while waiting for broadcast results"));
+
+    } finally {
+      synchronized (gathering) {
+        gathering.closed = true;
+      }
+    }
+
+    if (!gathered) {
+      // Cancels the calls that are still in flight, since their results would be ignored.
+      for (CompletableFuture<?> future : capture.futures) {
+        future.cancel(false);
+      }
+    }
+
+    synchronized (gathering) {
+      if (timeoutNanos < 0 && gathering.failure != null) {
+        throw rethrow(gathering.failure);
+      }
+      return gathering.accumulated;
+    }
+  }
+
+  /**
+   * Checks whether a remote call on this thread should be sent to every replica instead of waited
+   * on.
+   *
+   * @return {@code true} if running inside {@link #call}
+   */
+  static boolean isCapturing() {
+    return currentCapture.get() != null;
+  }
+
+  /**
+   * Captures the pending results of a remote call made inside {@link #call}.
+   *
+   * @param futures the pending result from each replica
+   * @throws IllegalStateException if a remote call was already captured
+   */
+  static void capture(List<CompletableFuture<?>> futures) {
+    Capture capture = currentCapture.get();
+    if (capture.futures != null) {
+      throw new IllegalStateException("broadcast() supports only a single remote call");
+    }
+    capture.futures = futures;
+  }
+
+  /**
+   * Rethrows {@code throwable} as is, even if it is a checked exception, just like a blocking call
+   * on a proxy does.
+   */
+  @SuppressWarnings("unchecked")
+  private static <E extends Throwable> RuntimeException rethrow(Throwable throwable) throws E {
+    throw (E) throwable;
+  }
+
+  private BroadcastCalls() {}
+}
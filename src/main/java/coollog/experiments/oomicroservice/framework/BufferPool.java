@@ -0,0 +1,237 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import com.google.common.collect.ImmutableList;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pools the {@link ByteBuffer}s that the servers read requests into and write responses from, so
+ * that serving a call does not allocate them. Buffers are pooled in power-of-two size classes, each
+ * of which keeps at most {@link #MAX_POOLED_BYTES_PER_CLASS} bytes of free buffers. Buffers larger
+ * than {@link #MAX_POOLED_CAPACITY} are ordinary heap buffers that are not pooled.
+ *
+ * <p>Direct buffers are for channels, which would otherwise copy heap buffers into direct ones of
+ * their own. Streams read and write byte arrays, so heap buffers are pooled apart for them, which
+ * they can use without copying.
+ *
+ * <p>Also keeps scratch arrays for each thread, for copying between direct buffers and streams,
+ * which the servers avoid, and for decoding strings.
+ */
+class BufferPool {
+
+  private static final int MIN_POOLED_CAPACITY = 256;
+  private static final int MAX_POOLED_CAPACITY = 64 * 1024;
+  private static final int MAX_POOLED_BYTES_PER_CLASS = 1024 * 1024;
+
+  /** The length of the scratch arrays of each thread, unless a longer one is asked for. */
+  private static final int SCRATCH_ARRAY_LENGTH = 8 * 1024;
+
+  /** The free direct buffers of each size class, from {@link #MIN_POOLED_CAPACITY} up. */
+  private static final ImmutableList<ArrayBlockingQueue<ByteBuffer>> freeDirectBuffers =
+      newFreeBuffers();
+
+  /** The free heap buffers of each size class, from {@link #MIN_POOLED_CAPACITY} up. */
+  private static final ImmutableList<ArrayBlockingQueue<ByteBuffer>> freeHeapBuffers =
+      newFreeBuffers();
+
+  private static final ThreadLocal<byte[]> scratchArray =
+      ThreadLocal.withInitial(() -> new byte[SCRATCH_ARRAY_LENGTH]);
+  private static final ThreadLocal<char[]> scratchChars =
+      ThreadLocal.withInitial(() -> new char[SCRATCH_ARRAY_LENGTH]);
+
+  private static ImmutableList<ArrayBlockingQueue<ByteBuffer>> newFreeBuffers() {
+    ImmutableList.Builder<ArrayBlockingQueue<ByteBuffer>> freeBuffers = ImmutableList.builder();
+    for (int sizeClass = 0; sizeClass <= getSizeClass(MAX_POOLED_CAPACITY); sizeClass++) {
+      freeBuffers.add(
+          new ArrayBlockingQueue<>(MAX_POOLED_BYTES_PER_CLASS / getCapacity(sizeClass)));
+    }
+    return freeBuffers.build();
+  }
+
+  private static int getSizeClass(int capacity) {
+    int roundedCapacity = Math.max(MIN_POOLED_CAPACITY, capacity);
+    return 32
+        - Integer.numberOfLeadingZeros(roundedCapacity - 1)
+        - Integer.numberOfTrailingZeros(MIN_POOLED_CAPACITY);
+  }
+
+  private static int getCapacity(int sizeClass) {
+    return MIN_POOLED_CAPACITY << sizeClass;
+  }
+
+  /**
+   * Takes a direct buffer from the pool, for a channel.
+   *
+   * @param minCapacity the number of bytes needed
+   * @return a cleared buffer with at least {@code minCapacity} bytes remaining
+   * @see #acquire(int, boolean)
+   */
+  static ByteBuffer acquire(int minCapacity) {
+    return acquire(minCapacity, true);
+  }
+
+  /**
+   * Takes a buffer from the pool, or allocates one if none is free. The buffer must be handed back
+   * with {@link #release} once it is no longer used, and not used after that.
+   *
+   * @param minCapacity the number of bytes needed
+   * @param direct whether to take a direct buffer, for a channel, or a heap buffer, for a stream
+   * @return a cleared buffer with at least {@code minCapacity} bytes remaining
+   */
+  static ByteBuffer acquire(int minCapacity, boolean direct) {
+    if (minCapacity > MAX_POOLED_CAPACITY) {
+      return ByteBuffer.allocate(minCapacity);
+    }
+    int sizeClass = getSizeClass(minCapacity);
+    ByteBuffer buffer = (direct ? freeDirectBuffers : freeHeapBuffers).get(sizeClass).poll();
+    if (buffer != null) {
+      return buffer;
+    }
+    return direct
+        ? ByteBuffer.allocateDirect(getCapacity(sizeClass))
+        : ByteBuffer.allocate(getCapacity(sizeClass));
+  }
+
+  /**
+   * Hands a buffer from {@link #acquire} back to the pool. Does nothing for buffers that are not
+   * the size of a size class, such as large ones, so that callers can release a buffer without
+   * knowing whether it came from the pool.
+   *
+   * @param buffer the buffer, which must not be a slice or duplicate
+   */
+  static void release(ByteBuffer buffer) {
+    int capacity = buffer.capacity();
+    if (capacity > MAX_POOLED_CAPACITY || capacity != getCapacity(getSizeClass(capacity))) {
+      return;
+    }
+    buffer.clear();
+    // Drops the buffer if its size class is full, leaving it to the garbage collector.
+    (buffer.isDirect() ? freeDirectBuffers : freeHeapBuffers)
+        .get(getSizeClass(capacity))
+        .offer(buffer);
+  }
+
+  /**
+   * Makes sure that {@code length} more bytes fit in {@code buffer}, by moving its content to a
+   * larger buffer of the same kind if needed.
+   *
+   * @param buffer a buffer from {@link #acquire}, positioned where the next bytes go
+   * @param length the number of bytes about to be written
+   * @return {@code buffer}, or the larger buffer at the same position if {@code buffer} was
+   *     released
+   */
+  static ByteBuffer ensureRemaining(ByteBuffer buffer, int length) {
+    if (buffer.remaining() >= length) {
+      return buffer;
+    }
+    ByteBuffer largerBuffer =
+        acquire(Math.max(2 * buffer.capacity(), buffer.position() + length), buffer.isDirect());
+    buffer.flip();
+    largerBuffer.put(buffer);
+    release(buffer);
+    return largerBuffer;
+  }
+
+  /**
+   * Gets the scratch char array of this thread. Its content is only valid until the next call on
+   * the same thread.
+   *
+   * @param minLength the number of chars needed
+   * @return an array of at least {@code minLength} chars
+   */
+  static char[] getScratchChars(int minLength) {
+    char[] chars = scratchChars.get();
+    if (chars.length < minLength) {
+      chars = new char[minLength];
+      scratchChars.set(chars);
+    }
+    return chars;
+  }
+
+  /**
+   * Reads exactly enough bytes from a stream to fill the rest of a buffer.
+   *
+   * @param inputStream the stream to read from
+   * @param buffer the buffer to fill up to its limit
+   * @throws IOException if an I/O exception occurs or the stream ends first
+   */
+  static void readFully(InputStream inputStream, ByteBuffer buffer) throws IOException {
+    if (buffer.hasArray()) {
+      readFully(
+          inputStream,
+          buffer.array(),
+          buffer.arrayOffset() + buffer.position(),
+          buffer.remaining());
+      buffer.position(buffer.limit());
+      return;
+    }
+    byte[] array = scratchArray.get();
+    while (buffer.hasRemaining()) {
+      int length = Math.min(array.length, buffer.remaining());
+      readFully(inputStream, array, 0, length);
+      buffer.put(array, 0, length);
+    }
+  }
+
+  private static void readFully(InputStream inputStream, byte[] array, int offset, int length)
+      throws IOException {
+    while (length > 0) {
+      int readLength = inputStream.read(array, offset, length);
+      if (readLength == -1) {
+        throw new EOFException();
+      }
+      offset += readLength;
+      length -= readLength;
+    }
+  }
+
+  /**
+   * Writes the remaining bytes of a buffer to a stream, and leaves the position of the buffer as
+   * is.
+   *
+   * @param outputStream the stream to write to
+   * @param buffer the buffer to write
+   * @throws IOException if an I/O exception occurs
+   */
+  static void write(OutputStream outputStream, ByteBuffer buffer) throws IOException {
+    if (buffer.hasArray()) {
+      outputStream.write(
+          buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      return;
+    }
+    byte[] array = scratchArray.get();
+    int position = buffer.position();
+    try {
+      while (buffer.hasRemaining()) {
+        int length = Math.min(array.length, buffer.remaining());
+        buffer.get(array, 0, length);
+        outputStream.write(array, 0, length);
+      }
+
+    } finally {
+      buffer.position(position);
+    }
+  }
+
+  private BufferPool() {}
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Marks a method of a {@link Microservice} whose results can be cached by the caller, such as a
+ * lookup that returns the same value for the same arguments. Each calling process caches the
+ * results by their serialized arguments, for up to {@link #ttl} and up to {@link #maxEntries}
+ * results, evicting the least recently used results first. The method must not return {@code void}.
+ * A {@code null} result is not cached.
+ *
+ * <p>The {@link Microservice} can drop the cached results early with {@link
+ * Microservice#invalidateCachedResults}. This only reaches the callers that are connected at the
+ * time, so the {@link #ttl} still bounds how stale a result can be.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Cacheable {
+
+  /** How long a result is cached, in {@link #unit}s. */
+  long ttl() default 60;
+
+  TimeUnit unit() default TimeUnit.SECONDS;
+
+  /** The most results cached for the method by each calling process. */
+  long maxEntries() default 1000;
+}
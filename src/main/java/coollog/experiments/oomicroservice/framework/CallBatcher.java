@@ -0,0 +1,178 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups calls to a single microservice into batch frames. A batch is sent once it holds {@code
+ * maxBatchSize} calls, or once its first call has waited for {@code lingerNanos}, whichever comes
+ * first. A burst of calls then costs one write and one read instead of one of each per call.
+ */
+class CallBatcher {
+
+  /** Shared by all batchers to send the batches whose linger time is up. */
+  private static final ScheduledExecutorService LINGER_EXECUTOR_SERVICE =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("call-batcher").setDaemon(true).build());
+
+  /** The calls waiting to be sent together. */
+  private static class Batch {
+
+    private final List<ByteBuffer> requestPayloads = new ArrayList<>();
+    private final List<CompletableFuture<ByteBuffer>> responseFutures = new ArrayList<>();
+  }
+
+  private final ReplicaBalancer replicaBalancer;
+  private final int maxBatchSize;
+  private final long lingerNanos;
+
+  /** Guarded by {@code this}. */
+  private Batch pendingBatch = new Batch();
+
+  /** Sends {@link #pendingBatch} once its linger time is up. Guarded by {@code this}. */
+  private ScheduledFuture<?> lingerTimer;
+
+  /**
+   * Creates a new {@link CallBatcher}.
+   *
+   * @param replicaBalancer sends each batch to a replica of the microservice
+   * @param maxBatchSize the most calls to send in a single batch
+   * @param lingerNanos how long a call may wait for other calls to join its batch
+   */
+  CallBatcher(ReplicaBalancer replicaBalancer, int maxBatchSize, long lingerNanos) {
+    this.replicaBalancer = replicaBalancer;
+    this.maxBatchSize = maxBatchSize;
+    this.lingerNanos = lingerNanos;
+  }
+
+  /**
+   * Adds a call to the pending batch.
+   *
+   * @param requestPayload the request payload
+   * @return a future for the response payload
+   */
+  CompletableFuture<ByteBuffer> call(ByteBuffer requestPayload) {
+    CompletableFuture<ByteBuffer> responseFuture = new CompletableFuture<>();
+    Batch fullBatch = null;
+    synchronized (this) {
+      pendingBatch.requestPayloads.add(requestPayload);
+      pendingBatch.responseFutures.add(responseFuture);
+
+      if (pendingBatch.requestPayloads.size() >= maxBatchSize) {
+        fullBatch = takePendingBatch();
+
+      } else if (pendingBatch.requestPayloads.size() == 1) {
+        lingerTimer =
+            LINGER_EXECUTOR_SERVICE.schedule(
+                this::sendPendingBatch, lingerNanos, TimeUnit.NANOSECONDS);
+      }
+    }
+
+    if (fullBatch != null) {
+      send(fullBatch);
+    }
+    return responseFuture;
+  }
+
+  /** Sends the pending batch, if any. */
+  private void sendPendingBatch() {
+    Batch batch;
+    synchronized (this) {
+      if (pendingBatch.requestPayloads.isEmpty()) {
+        return;
+      }
+      batch = takePendingBatch();
+    }
+    send(batch);
+  }
+
+  /** Must be called while holding the lock on {@code this}. */
+  private Batch takePendingBatch() {
+    Batch batch = pendingBatch;
+    pendingBatch = new Batch();
+    if (lingerTimer != null) {
+      lingerTimer.cancel(false);
+      lingerTimer = null;
+    }
+    return batch;
+  }
+
+  private void send(Batch batch) {
+    if (batch.requestPayloads.size() == 1) {
+      CompletableFuture<ByteBuffer> responseFuture = batch.responseFutures.get(0);
+      replicaBalancer
+          .callAsync((byte) 0, batch.requestPayloads.get(0))
+          .whenComplete(
+              (responsePayload, throwable) -> {
+                if (throwable != null) {
+                  responseFuture.completeExceptionally(throwable);
+                } else {
+                  responseFuture.complete(responsePayload);
+                }
+              });
+      return;
+    }
+
+    replicaBalancer
+        .callAsync(WireProtocol.FLAG_BATCH, WireProtocol.batchPayload(batch.requestPayloads))
+        .whenComplete(
+            (batchResponsePayload, throwable) -> {
+              if (throwable != null) {
+                failAll(batch, throwable);
+                return;
+              }
+
+              List<ByteBuffer> responsePayloads;
+              try {
+                responsePayloads = WireProtocol.splitBatchPayload(batchResponsePayload);
+                if (responsePayloads.size() != batch.responseFutures.size()) {
+                  throw new IOException(
+                      "Expected "
+                          + batch.responseFutures.size()
+                          + " responses in batch from "
+                          + replicaBalancer.getHost()
+                          + ", but got "
+                          + responsePayloads.size());
+                }
+
+              } catch (IOException ex) {
+                failAll(batch, ex);
+                return;
+              }
+
+              for (int callIndex = 0; callIndex < responsePayloads.size(); callIndex++) {
+                batch.responseFutures.get(callIndex).complete(responsePayloads.get(callIndex));
+              }
+            });
+  }
+
+  private static void failAll(Batch batch, Throwable throwable) {
+    for (CompletableFuture<ByteBuffer> responseFuture : batch.responseFutures) {
+      responseFuture.completeExceptionally(throwable);
+    }
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a {@code void} method of a {@link Microservice} whose calls can be added up by the caller
+ * before they are sent, such as an increment. The method must take either no arguments, in which
+ * case each call adds {@code 1}, or a single {@code int} or {@code long}, in which case each call
+ * adds its argument.
+ *
+ * <p>Instead of sending each call, the caller adds it to a running total and sends the total in a
+ * single call to the {@link #into} method, either periodically or once enough calls have been added
+ * up. Only use this for methods where the order of calls does not matter and where calling {@link
+ * #into} with the total has the same effect as the calls themselves.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Combinable {
+
+  /**
+   * The name of the method that receives the total, which must return {@code void} and take a
+   * single {@code long}. Defaults to the annotated method itself.
+   */
+  String into() default "";
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import coollog.experiments.oomicroservice.framework.MethodTable.RemoteMethod;
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adds up the calls to a {@link Combinable} method made by this process so that they can be sent as
+ * a single call with their total. Adding a call only touches striped counters, so callers on many
+ * threads do not contend with each other.
+ */
+class Combiner {
+
+  private static final Logger LOGGER = Logger.get("client");
+
+  /** Sends the total of the combined calls. */
+  @FunctionalInterface
+  interface TotalSender {
+
+    /**
+     * Sends {@code total} to {@code combineTarget}.
+     *
+     * @param combineTarget the method that receives the total
+     * @param total the total of the combined calls
+     * @throws IOException if the call fails
+     */
+    void send(RemoteMethod combineTarget, long total) throws IOException;
+  }
+
+  private final RemoteMethod combineTarget;
+  private final long flushThreshold;
+
+  private final LongAdder total = new LongAdder();
+  private final LongAdder callCount = new LongAdder();
+
+  /**
+   * The parts of {@link #total} and {@link #callCount} that were already sent. Only written while
+   * holding the lock on {@code this}.
+   */
+  private volatile long flushedTotal;
+
+  private volatile long flushedCallCount;
+
+  /**
+   * Creates a new {@link Combiner}.
+   *
+   * @param combineTarget the method that receives the total
+   * @param flushThreshold how many calls to add up before they should be sent
+   */
+  Combiner(RemoteMethod combineTarget, long flushThreshold) {
+    this.combineTarget = combineTarget;
+    this.flushThreshold = flushThreshold;
+  }
+
+  /**
+   * Adds a call.
+   *
+   * @param args the arguments of the call: none, or a single {@link Integer} or {@link Long}
+   * @return {@code true} if enough calls have been added up that they should be sent
+   */
+  boolean add(Object[] args) {
+    total.add(args.length == 0 ? 1 : ((Number) args[0]).longValue());
+    callCount.increment();
+    return callCount.sum() - flushedCallCount >= flushThreshold;
+  }
+
+  /**
+   * Sends the calls added since the last flush, if any, as a single call with their total. If
+   * sending fails, the calls are kept for the next flush.
+   *
+   * @param totalSender sends the total
+   */
+  synchronized void flush(TotalSender totalSender) {
+    // Reads the counters instead of resetting them so that no concurrently added call is lost.
+    long currentCallCount = callCount.sum();
+    long currentTotal = total.sum();
+    long unflushedCallCount = currentCallCount - flushedCallCount;
+    long unflushedTotal = currentTotal - flushedTotal;
+    if (unflushedCallCount == 0 && unflushedTotal == 0) {
+      return;
+    }
+
+    try {
+      totalSender.send(combineTarget, unflushedTotal);
+      flushedCallCount = currentCallCount;
+      flushedTotal = currentTotal;
+
+    } catch (IOException | RuntimeException ex) {
+      LOGGER.warn(
+          "Failed to send combined calls",
+          "calls",
+          unflushedCallCount,
+          "method",
+          combineTarget.getSignature(),
+          "exception",
+          ex);
+    }
+  }
+}
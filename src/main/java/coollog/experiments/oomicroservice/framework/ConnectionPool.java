@@ -0,0 +1,831 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import coollog.experiments.oomicroservice.framework.WireProtocol.Frame;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Pools persistent, multiplexed connections to other microservices.
+ *
+ * <p>Each request on a connection is tagged with a request ID, so many requests can be in flight on
+ * one connection at once and their responses may arrive in any order. A reader thread per
+ * connection completes the pending requests as their responses arrive, and notices right away when
+ * the other side closes the connection. A connection is checked before it is reused, and a request
+ * that could not be written because its connection turned out to be closed is sent once more on a
+ * new connection.
+ *
+ * <p>A call fails with a {@link RemoteInvocationException} if its response does not arrive within
+ * its timeout, and its request is cancelled.
+ *
+ * <p>A new connection to a host is only opened once every open connection to that host has at least
+ * {@code maxInFlightPerConnection} requests in flight, up to {@code maxConnectionsPerHost}
+ * connections. Connections with nothing in flight are closed once they have been idle for longer
+ * than {@code idleTimeoutMillis}, and a host is forgotten once it has no connections left.
+ */
+class ConnectionPool {
+
+  /**
+   * A response that is still on its way. Cancelling it cancels the request, which drops the
+   * response if it still arrives. Runs as the timer that fails it once its call times out.
+   */
+  private static class PendingResponse extends CompletableFuture<ByteBuffer> implements Runnable {
+
+    private final MultiplexedConnection connection;
+    private final int requestId;
+    private final long timeoutNanos;
+
+    /** Fails the response once the call times out, or {@code null} until it is scheduled. */
+    private volatile ScheduledFuture<?> timeoutTimer;
+
+    private PendingResponse(MultiplexedConnection connection, int requestId, long timeoutNanos) {
+      this.connection = connection;
+      this.requestId = requestId;
+      this.timeoutNanos = timeoutNanos;
+    }
+
+    /** Starts the timer once the request is written. */
+    private void startTimeoutTimer() {
+      timeoutTimer = TIMEOUT_EXECUTOR_SERVICE.schedule(this, timeoutNanos, TimeUnit.NANOSECONDS);
+      if (isDone()) {
+        // The response may have arrived before the timer was set.
+        stopTimeoutTimer();
+      }
+    }
+
+    private void stopTimeoutTimer() {
+      ScheduledFuture<?> timeoutTimer = this.timeoutTimer;
+      if (timeoutTimer != null) {
+        timeoutTimer.cancel(false);
+      }
+    }
+
+    /**
+     * Fails the response and cancels the request, since the call timed out. Runs on the timer
+     * thread, which every call shares, so leaves sending the cancel frame to {@link
+     * MultiplexedConnection#cancel}, which does not block.
+     */
+    @Override
+    public void run() {
+      boolean timedOut =
+          completeExceptionally(
+              new RemoteInvocationException(
+                  "No response from "
+                      + connection.hostPool.host
+                      + " within "
+                      + TimeUnit.NANOSECONDS.toMillis(timeoutNanos)
+                      + " ms"));
+      if (timedOut) {
+        connection.cancel(requestId);
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean cancelled = super.cancel(mayInterruptIfRunning);
+      if (cancelled) {
+        stopTimeoutTimer();
+        connection.cancel(requestId);
+      }
+      return cancelled;
+    }
+  }
+
+  /** A persistent connection that speaks {@link WireProtocol}. */
+  private static class MultiplexedConnection {
+
+    private final HostPool hostPool;
+    private final Socket socket;
+    private final DataInputStream inputStream;
+    private final DataOutputStream outputStream;
+
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final Map<Integer, PendingResponse> pendingResponses = new ConcurrentHashMap<>();
+
+    /** The requests to send cancel frames for, which {@link #sendCancels} sends. */
+    private final Queue<Integer> cancelledRequestIds = new ConcurrentLinkedQueue<>();
+
+    /** Whether {@link #sendCancels} is running, so that only one runs per connection. */
+    private final AtomicBoolean sendingCancels = new AtomicBoolean();
+
+    private volatile long lastUsedNanos = System.nanoTime();
+    private volatile boolean closed = false;
+
+    /** Why the connection was closed, set before {@link #closed}. */
+    private volatile IOException closeCause;
+
+    private MultiplexedConnection(HostPool hostPool, int connectTimeoutMillis) throws IOException {
+      this.hostPool = hostPool;
+      socket = new Socket();
+      try {
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        socket.connect(hostPool.resolve(), connectTimeoutMillis);
+        inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        outputStream.writeByte(hostPool.preamble);
+
+      } catch (IOException ex) {
+        socket.close();
+        throw ex;
+      }
+    }
+
+    /**
+     * Sends a request frame, unless the connection turns out to be closed before the frame is
+     * written.
+     *
+     * @param flags the flags of the request frame
+     * @param requestPayload the request payload
+     * @param timeoutNanos how long to wait for the response
+     * @return a future for the response payload, which fails if the connection fails first, or with
+     *     a {@link RemoteInvocationException} if no response arrives within {@code timeoutNanos}.
+     *     {@code null} if the connection is closed, in which case the other side never ran the
+     *     request.
+     */
+    private CompletableFuture<ByteBuffer> trySend(
+        byte flags, ByteBuffer requestPayload, long timeoutNanos) {
+      int requestId = nextRequestId.getAndIncrement();
+      PendingResponse responseFuture = new PendingResponse(this, requestId, timeoutNanos);
+      pendingResponses.put(requestId, responseFuture);
+      if (closed) {
+        // The connection may have closed before the pending response was added.
+        pendingResponses.remove(requestId);
+        return null;
+      }
+
+      try {
+        synchronized (outputStream) {
+          WireProtocol.writeFrame(outputStream, new Frame(requestId, flags, requestPayload));
+          outputStream.flush();
+        }
+
+      } catch (IOException ex) {
+        // The other side never runs a frame that was cut short.
+        pendingResponses.remove(requestId);
+        close(ex);
+        return null;
+      }
+      responseFuture.startTimeoutTimer();
+      return responseFuture;
+    }
+
+    /**
+     * Stops waiting for the response to a request, and asks the other side to skip the request if
+     * it has not started on it yet. The cancel frame is sent on {@link #CANCEL_EXECUTOR_SERVICE},
+     * so that a full send buffer never blocks the caller.
+     *
+     * @param requestId the ID of the request
+     */
+    private void cancel(int requestId) {
+      if (pendingResponses.remove(requestId) == null || closed) {
+        return;
+      }
+      cancelledRequestIds.add(requestId);
+      if (sendingCancels.compareAndSet(false, true)) {
+        CANCEL_EXECUTOR_SERVICE.execute(this::sendCancels);
+      }
+    }
+
+    /** Sends a cancel frame for each request in {@link #cancelledRequestIds}, with one flush. */
+    private void sendCancels() {
+      do {
+        try {
+          synchronized (outputStream) {
+            Integer requestId;
+            while ((requestId = cancelledRequestIds.poll()) != null) {
+              if (!closed) {
+                WireProtocol.writeFrame(
+                    outputStream,
+                    new Frame(requestId, WireProtocol.FLAG_CANCEL, WireProtocol.EMPTY_PAYLOAD));
+              }
+            }
+            if (!closed) {
+              outputStream.flush();
+            }
+          }
+
+        } catch (IOException ex) {
+          cancelledRequestIds.clear();
+          close(ex);
+        }
+        sendingCancels.set(false);
+        // A request may have been cancelled after the queue was found empty.
+      } while (!cancelledRequestIds.isEmpty() && sendingCancels.compareAndSet(false, true));
+    }
+
+    /**
+     * Sends one-way calls in a single frame, batched if there is more than one, unless the
+     * connection turns out to be closed before the frame is written.
+     *
+     * @param requestPayloads the request payloads
+     * @return {@code true} if the frame was written, or {@code false} if the connection is closed,
+     *     in which case the other side never ran the calls
+     */
+    private boolean trySendOneWay(List<ByteBuffer> requestPayloads) {
+      if (closed) {
+        return false;
+      }
+      Frame request =
+          requestPayloads.size() == 1
+              ? new Frame(
+                  nextRequestId.getAndIncrement(),
+                  WireProtocol.FLAG_ONE_WAY,
+                  requestPayloads.get(0))
+              : new Frame(
+                  nextRequestId.getAndIncrement(),
+                  (byte) (WireProtocol.FLAG_ONE_WAY | WireProtocol.FLAG_BATCH),
+                  WireProtocol.batchPayload(requestPayloads));
+      try {
+        synchronized (outputStream) {
+          WireProtocol.writeFrame(outputStream, request);
+          outputStream.flush();
+        }
+        return true;
+
+      } catch (IOException ex) {
+        close(ex);
+        return false;
+      }
+    }
+
+    /**
+     * Reads response frames until the connection closes, and hands pushed frames to the {@link
+     * PushListener}. Runs on the reader thread.
+     */
+    private void readResponses() {
+      try {
+        Frame response;
+        while ((response = WireProtocol.readFrame(inputStream)) != null) {
+          lastUsedNanos = System.nanoTime();
+          if (response.hasFlag(WireProtocol.FLAG_PUSH)) {
+            hostPool.onPush(response);
+            continue;
+          }
+          PendingResponse responseFuture = pendingResponses.remove(response.getRequestId());
+          if (responseFuture != null) {
+            responseFuture.complete(response.getPayload());
+            responseFuture.stopTimeoutTimer();
+          }
+        }
+        close(new IOException("Connection closed by " + hostPool.host));
+
+      } catch (IOException ex) {
+        close(ex);
+      }
+    }
+
+    private int getInFlightCount() {
+      return pendingResponses.size();
+    }
+
+    /** Checks that the connection can still be used, as far as can be told without reading. */
+    private boolean isHealthy() {
+      return !closed
+          && !socket.isClosed()
+          && !socket.isInputShutdown()
+          && !socket.isOutputShutdown();
+    }
+
+    private boolean isIdleLongerThan(long idleTimeoutNanos) {
+      return getInFlightCount() == 0 && System.nanoTime() - lastUsedNanos > idleTimeoutNanos;
+    }
+
+    /** Closes the connection and fails every pending response with {@code cause}. */
+    private void close(IOException cause) {
+      closeCause = cause;
+      closed = true;
+      hostPool.remove(this);
+      try {
+        socket.close();
+
+      } catch (IOException ex) {
+        // Ignores exceptions on close.
+      }
+      failPendingResponses(cause);
+    }
+
+    private void failPendingResponses(IOException cause) {
+      for (Integer requestId : pendingResponses.keySet()) {
+        PendingResponse responseFuture = pendingResponses.remove(requestId);
+        if (responseFuture != null) {
+          responseFuture.completeExceptionally(cause);
+          responseFuture.stopTimeoutTimer();
+        }
+      }
+    }
+  }
+
+  /** The connections to a single endpoint. */
+  private class HostPool {
+
+    /** The key of this pool in {@link #hostPools}. */
+    private final String key;
+
+    private final String host;
+    private final int port;
+
+    /** The address of a single replica of {@link #host}, or {@code null} to resolve the host. */
+    private final InetSocketAddress address;
+
+    private final byte preamble;
+
+    /** Guarded by {@code this}. */
+    private final List<MultiplexedConnection> connections = new ArrayList<>();
+
+    /**
+     * The connection being opened, or {@code null} if none is. Guarded by {@code this}, though the
+     * connection is opened without holding the lock.
+     */
+    private CompletableFuture<MultiplexedConnection> openingConnection;
+
+    /** How many calls are using this pool, which keeps it from being removed from the map. */
+    private final AtomicInteger useCount = new AtomicInteger();
+
+    private HostPool(String key, String host, int port, InetSocketAddress address, byte preamble) {
+      this.key = key;
+      this.host = host;
+      this.port = port;
+      this.address = address;
+      this.preamble = preamble;
+    }
+
+    private InetSocketAddress resolve() {
+      return address != null ? address : ServiceRegistry.resolve(host, port);
+    }
+
+    private void onPush(Frame frame) {
+      pushListener.onPush(host, frame);
+    }
+
+    /**
+     * Sends a request on a pooled connection. If the connection turns out to be closed before the
+     * request is written, such as by the other side while it was idle, sends the request once more
+     * on a new connection. A request that was written is not sent again, since the other side may
+     * have run it.
+     *
+     * @param flags the flags of the request frame
+     * @param requestPayload the request payload
+     * @param timeoutNanos how long to wait for the response
+     * @return a future for the response payload
+     * @throws IOException if no connection could be opened, or the request could not be written
+     */
+    private CompletableFuture<ByteBuffer> call(
+        byte flags, ByteBuffer requestPayload, long timeoutNanos) throws IOException {
+      CompletableFuture<ByteBuffer> responseFuture =
+          pickConnection().trySend(flags, requestPayload, timeoutNanos);
+      if (responseFuture != null) {
+        return responseFuture;
+      }
+      MultiplexedConnection connection = openConnection();
+      responseFuture = connection.trySend(flags, requestPayload, timeoutNanos);
+      if (responseFuture == null) {
+        throw new IOException("Could not send a request to " + host, connection.closeCause);
+      }
+      return responseFuture;
+    }
+
+    /**
+     * Sends one-way requests on a pooled connection, and once more on a new connection if the
+     * pooled one turns out to be closed before they are written.
+     *
+     * @param requestPayloads the request payloads
+     * @throws IOException if no connection could be opened, or the requests could not be written
+     */
+    private void sendOneWay(List<ByteBuffer> requestPayloads) throws IOException {
+      if (pickConnection().trySendOneWay(requestPayloads)) {
+        return;
+      }
+      MultiplexedConnection connection = openConnection();
+      if (!connection.trySendOneWay(requestPayloads)) {
+        throw new IOException("Could not send one-way calls to " + host, connection.closeCause);
+      }
+    }
+
+    /**
+     * Picks the least loaded healthy connection, opening a new one if all are busy. Closes any
+     * connection found to be unhealthy. Uses a busy connection rather than wait while another one
+     * is being opened.
+     */
+    private MultiplexedConnection pickConnection() throws IOException {
+      synchronized (this) {
+        MultiplexedConnection leastLoadedConnection = null;
+        for (MultiplexedConnection connection : new ArrayList<>(connections)) {
+          if (!connection.isHealthy()) {
+            connection.close(new IOException("Connection to " + host + " is no longer usable"));
+            continue;
+          }
+          if (leastLoadedConnection == null
+              || connection.getInFlightCount() < leastLoadedConnection.getInFlightCount()) {
+            leastLoadedConnection = connection;
+          }
+        }
+
+        if (leastLoadedConnection != null
+            && (leastLoadedConnection.getInFlightCount() < maxInFlightPerConnection
+                || connections.size() >= maxConnectionsPerHost
+                || openingConnection != null)) {
+          leastLoadedConnection.lastUsedNanos = System.nanoTime();
+          return leastLoadedConnection;
+        }
+      }
+      return openConnection();
+    }
+
+    /**
+     * Opens a new connection and adds it to the pool, or waits for the one that is already being
+     * opened. Connects without holding the lock, so that a slow connect does not hold up callers
+     * that can use the connections already open.
+     */
+    private MultiplexedConnection openConnection() throws IOException {
+      CompletableFuture<MultiplexedConnection> connectionFuture;
+      boolean opening = false;
+      synchronized (this) {
+        if (openingConnection == null) {
+          openingConnection = new CompletableFuture<>();
+          opening = true;
+        }
+        connectionFuture = openingConnection;
+      }
+      if (!opening) {
+        return awaitConnection(connectionFuture);
+      }
+
+      try {
+        MultiplexedConnection connection = new MultiplexedConnection(this, connectTimeoutMillis);
+        synchronized (this) {
+          connections.add(connection);
+          openingConnection = null;
+        }
+        readerThreadFactory.newThread(connection::readResponses).start();
+        connectionFuture.complete(connection);
+        return connection;
+
+      } catch (IOException | RuntimeException ex) {
+        synchronized (this) {
+          openingConnection = null;
+        }
+        connectionFuture.completeExceptionally(ex);
+        throw ex;
+      }
+    }
+
+    /** Waits for a connection that another caller is opening. */
+    private MultiplexedConnection awaitConnection(
+        CompletableFuture<MultiplexedConnection> connectionFuture) throws IOException {
+      try {
+        return connectionFuture.get();
+
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while connecting to " + host);
+
+      } catch (ExecutionException ex) {
+        throw new IOException("Could not connect to " + host, ex.getCause());
+      }
+    }
+
+    private synchronized void remove(MultiplexedConnection connection) {
+      connections.remove(connection);
+    }
+
+    private synchronized void evictIdleConnections() {
+      for (MultiplexedConnection connection : new ArrayList<>(connections)) {
+        if (connection.isIdleLongerThan(idleTimeoutNanos)) {
+          connection.close(new IOException("Connection to " + host + " was idle for too long"));
+        }
+      }
+    }
+
+    /** Checks whether the pool has no connections and no calls using it, so it can be removed. */
+    private synchronized boolean isUnused() {
+      return useCount.get() == 0 && connections.isEmpty() && openingConnection == null;
+    }
+
+    /** Stops using the pool, after {@link #acquireHostPool}. */
+    private void release() {
+      useCount.decrementAndGet();
+    }
+  }
+
+  static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 16;
+  static final int DEFAULT_MAX_IN_FLIGHT_PER_CONNECTION = 16;
+  static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30_000;
+  static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10_000;
+
+  /**
+   * Shared by all pools to send cancel frames, which may block on a full send buffer. Holds at most
+   * one thread per connection.
+   */
+  private static final ExecutorService CANCEL_EXECUTOR_SERVICE =
+      Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder().setNameFormat("call-canceller-%d").setDaemon(true).build());
+
+  /** Shared by all pools to fail the calls that time out. */
+  private static final ScheduledThreadPoolExecutor TIMEOUT_EXECUTOR_SERVICE =
+      newTimeoutExecutorService();
+
+  private static ScheduledThreadPoolExecutor newTimeoutExecutorService() {
+    ScheduledThreadPoolExecutor timeoutExecutorService =
+        new ScheduledThreadPoolExecutor(
+            1, new ThreadFactoryBuilder().setNameFormat("call-timer").setDaemon(true).build());
+    // Drops the timers of calls that were answered in time, rather than keeping them until they
+    // would have fired.
+    timeoutExecutorService.setRemoveOnCancelPolicy(true);
+    return timeoutExecutorService;
+  }
+
+  /** Receives the frames that hosts push on their own rather than in response to a request. */
+  @FunctionalInterface
+  interface PushListener {
+
+    /**
+     * Handles a pushed frame. Runs on the reader thread of the connection, so must not block.
+     *
+     * @param host the host that pushed the frame
+     * @param frame the {@link WireProtocol#FLAG_PUSH} frame
+     */
+    void onPush(String host, Frame frame);
+  }
+
+  private volatile PushListener pushListener = (host, frame) -> {};
+
+  private final int maxConnectionsPerHost;
+  private final int maxInFlightPerConnection;
+  private final long idleTimeoutNanos;
+  private final int connectTimeoutMillis;
+
+  /** Maps from {@code host:port/preamble} to the pool of connections for that endpoint. */
+  private final ConcurrentMap<String, HostPool> hostPools = new ConcurrentHashMap<>();
+
+  private final ThreadFactory readerThreadFactory =
+      new ThreadFactoryBuilder().setNameFormat("connection-reader-%d").setDaemon(true).build();
+
+  private final ScheduledExecutorService evictionExecutorService =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder()
+              .setNameFormat("connection-pool-evictor")
+              .setDaemon(true)
+              .build());
+
+  ConnectionPool() {
+    this(
+        DEFAULT_MAX_CONNECTIONS_PER_HOST,
+        DEFAULT_MAX_IN_FLIGHT_PER_CONNECTION,
+        DEFAULT_IDLE_TIMEOUT_MILLIS,
+        DEFAULT_CONNECT_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Creates a new {@link ConnectionPool}.
+   *
+   * @param maxConnectionsPerHost the maximum number of open connections per host
+   * @param maxInFlightPerConnection how many requests may be in flight on every connection to a
+   *     host before another connection is opened
+   * @param idleTimeoutMillis how long a connection may stay idle before it is closed
+   * @param connectTimeoutMillis the timeout for opening a new connection
+   */
+  ConnectionPool(
+      int maxConnectionsPerHost,
+      int maxInFlightPerConnection,
+      long idleTimeoutMillis,
+      int connectTimeoutMillis) {
+    this.maxConnectionsPerHost = maxConnectionsPerHost;
+    this.maxInFlightPerConnection = maxInFlightPerConnection;
+    this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    this.connectTimeoutMillis = connectTimeoutMillis;
+
+    long evictionPeriodMillis = Math.max(1, idleTimeoutMillis / 2);
+    evictionExecutorService.scheduleWithFixedDelay(
+        this::evictIdleConnections,
+        evictionPeriodMillis,
+        evictionPeriodMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  void setPushListener(PushListener pushListener) {
+    this.pushListener = pushListener;
+  }
+
+  /**
+   * Sends a request to {@code host} without waiting for the response.
+   *
+   * @param host the host to call
+   * @param port the port to call
+   * @param preamble the preamble byte that negotiates the {@link MethodInvocationSerializer}
+   * @param flags the flags of the request frame
+   * @param requestPayload the request payload
+   * @param timeoutNanos how long to wait for the response before failing the call with a {@link
+   *     RemoteInvocationException} and cancelling the request
+   * @return a future for the response payload. Completes on a connection reader thread, so
+   *     dependent stages should not block.
+   */
+  CompletableFuture<ByteBuffer> callAsync(
+      String host,
+      int port,
+      byte preamble,
+      byte flags,
+      ByteBuffer requestPayload,
+      long timeoutNanos) {
+    HostPool hostPool = acquireHostPool(host, port, preamble);
+    try {
+      return hostPool.call(flags, requestPayload, timeoutNanos);
+
+    } catch (IOException ex) {
+      CompletableFuture<ByteBuffer> failedFuture = new CompletableFuture<>();
+      failedFuture.completeExceptionally(ex);
+      return failedFuture;
+
+    } finally {
+      hostPool.release();
+    }
+  }
+
+  /**
+   * Sends a request to a single replica of {@code host} without waiting for the response.
+   *
+   * @param host the host to call
+   * @param address the address of the replica to call
+   * @param preamble the preamble byte that negotiates the {@link MethodInvocationSerializer}
+   * @param flags the flags of the request frame
+   * @param requestPayload the request payload
+   * @param timeoutNanos how long to wait for the response before failing the call with a {@link
+   *     RemoteInvocationException} and cancelling the request
+   * @return a future for the response payload. Completes on a connection reader thread, so
+   *     dependent stages should not block.
+   */
+  CompletableFuture<ByteBuffer> callAsync(
+      String host,
+      InetSocketAddress address,
+      byte preamble,
+      byte flags,
+      ByteBuffer requestPayload,
+      long timeoutNanos) {
+    HostPool hostPool = acquireHostPool(host, address, preamble);
+    try {
+      return hostPool.call(flags, requestPayload, timeoutNanos);
+
+    } catch (IOException ex) {
+      CompletableFuture<ByteBuffer> failedFuture = new CompletableFuture<>();
+      failedFuture.completeExceptionally(ex);
+      return failedFuture;
+
+    } finally {
+      hostPool.release();
+    }
+  }
+
+  /**
+   * Waits for a response from {@link #callAsync}.
+   *
+   * @param responseFuture the future for the response payload
+   * @param host the host that was called
+   * @return the response payload
+   * @throws IOException if the call failed
+   * @throws RemoteInvocationException if the call timed out
+   */
+  static ByteBuffer awaitResponse(CompletableFuture<ByteBuffer> responseFuture, String host)
+      throws IOException {
+    try {
+      return responseFuture.get();
+
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a response from " + host);
+
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw (IOException) ex.getCause();
+      }
+      if (ex.getCause() instanceof RemoteInvocationException) {
+        throw (RemoteInvocationException) ex.getCause();
+      }
+      throw new IOException(ex.getCause());
+    }
+  }
+
+  /**
+   * Sends one-way requests to {@code host}, which are not answered. More than one request is sent
+   * as a single batch.
+   *
+   * @param host the host to call
+   * @param port the port to call
+   * @param preamble the preamble byte that negotiates the {@link MethodInvocationSerializer}
+   * @param requestPayloads the request payloads, written with a single flush
+   * @throws IOException if an I/O exception occurs
+   */
+  void sendOneWay(String host, int port, byte preamble, List<ByteBuffer> requestPayloads)
+      throws IOException {
+    HostPool hostPool = acquireHostPool(host, port, preamble);
+    try {
+      hostPool.sendOneWay(requestPayloads);
+
+    } finally {
+      hostPool.release();
+    }
+  }
+
+  /**
+   * Sends one-way requests to a single replica of {@code host}, which are not answered. More than
+   * one request is sent as a single batch.
+   *
+   * @param host the host to call
+   * @param address the address of the replica to call
+   * @param preamble the preamble byte that negotiates the {@link MethodInvocationSerializer}
+   * @param requestPayloads the request payloads, written with a single flush
+   * @throws IOException if an I/O exception occurs
+   */
+  void sendOneWay(
+      String host, InetSocketAddress address, byte preamble, List<ByteBuffer> requestPayloads)
+      throws IOException {
+    HostPool hostPool = acquireHostPool(host, address, preamble);
+    try {
+      hostPool.sendOneWay(requestPayloads);
+
+    } finally {
+      hostPool.release();
+    }
+  }
+
+  private HostPool acquireHostPool(String host, int port, byte preamble) {
+    return acquireHostPool(
+        host + ":" + port + "/" + preamble, key -> new HostPool(key, host, port, null, preamble));
+  }
+
+  private HostPool acquireHostPool(String host, InetSocketAddress address, byte preamble) {
+    return acquireHostPool(
+        host + "@" + address + "/" + preamble,
+        key -> new HostPool(key, host, address.getPort(), address, preamble));
+  }
+
+  /**
+   * Gets the pool for an endpoint and marks it in use until {@link HostPool#release}, so that it is
+   * not removed while a call is still opening its first connection.
+   */
+  private HostPool acquireHostPool(String key, Function<String, HostPool> hostPoolFactory) {
+    return hostPools.compute(
+        key,
+        (ignored, hostPool) -> {
+          if (hostPool == null) {
+            hostPool = hostPoolFactory.apply(key);
+          }
+          hostPool.useCount.incrementAndGet();
+          return hostPool;
+        });
+  }
+
+  /**
+   * Closes connections that have been idle for too long, and removes the pools left without any
+   * connections, such as those for replicas that have gone away.
+   */
+  private void evictIdleConnections() {
+    for (HostPool hostPool : hostPools.values()) {
+      hostPool.evictIdleConnections();
+      hostPools.computeIfPresent(
+          hostPool.key,
+          (key, currentHostPool) -> currentHostPool.isUnused() ? null : currentHostPool);
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import coollog.experiments.oomicroservice.framework.WireProtocol.Frame;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A {@link RequestHandler} that lets a {@link ServerEngine} start serving before the {@link
+ * Microservice} instance it serves exists. Each request waits until the instance is constructed, so
+ * constructors may call microservices that are still being constructed themselves.
+ */
+class DeferredRequestHandler implements RequestHandler {
+
+  private final String serviceName;
+  private final CompletableFuture<RequestHandler> requestHandlerFuture;
+
+  /**
+   * Creates a new {@link DeferredRequestHandler}.
+   *
+   * @param serviceName the name of the served {@link Microservice}, as used in diagnostics
+   * @param requestHandlerFuture completes with the {@link RequestHandler} once the instance is
+   *     constructed
+   */
+  DeferredRequestHandler(
+      String serviceName, CompletableFuture<RequestHandler> requestHandlerFuture) {
+    this.serviceName = serviceName;
+    this.requestHandlerFuture = requestHandlerFuture;
+  }
+
+  @Override
+  public String getServiceName() {
+    return serviceName;
+  }
+
+  @Override
+  public ByteBuffer handleFrame(MethodInvocationSerializer serializer, Frame request) {
+    return getRequestHandler().handleFrame(serializer, request);
+  }
+
+  @Override
+  public void onConnectionOpened(PushChannel pushChannel) {
+    getRequestHandler().onConnectionOpened(pushChannel);
+  }
+
+  @Override
+  public void onConnectionClosed(PushChannel pushChannel) {
+    getRequestHandler().onConnectionClosed(pushChannel);
+  }
+
+  @Override
+  public void handleText(InputStream inputStream, OutputStream outputStream) throws IOException {
+    getRequestHandler().handleText(inputStream, outputStream);
+  }
+
+  /**
+   * Waits until the served {@link Microservice} is constructed.
+   *
+   * @return the {@link RequestHandler} that serves it
+   * @throws IllegalStateException if constructing the {@link Microservice} failed
+   */
+  private RequestHandler getRequestHandler() {
+    try {
+      return requestHandlerFuture.join();
+
+    } catch (CompletionException ex) {
+      throw new IllegalStateException(serviceName + " failed to start", ex.getCause());
+    }
+  }
+}
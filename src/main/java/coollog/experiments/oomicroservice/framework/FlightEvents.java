@@ -0,0 +1,183 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+/**
+ * Java Flight Recorder events for the phases of calls and deployments, so that recordings can line
+ * up GC pauses and lock contention with the calls they hold up.
+ *
+ * <p>The events are disabled by default, which makes them close to free. The {@code
+ * oomicroservice.jfc} settings file in the resources enables them, either for a recording of its
+ * own or alongside another recording, which then also includes them.
+ *
+ * <p>Each event is started with its {@code start} method before its phase and committed with its
+ * {@code commit} method after it, which only fills in the fields if the event is enabled. Since a
+ * disabled event is not always optimized away, {@code start} only creates one while a recording is
+ * running, and otherwise returns a shared instance that does nothing.
+ *
+ * <p>This class does not depend on Flight Recorder itself, so that it runs on JDK 8 builds without
+ * it. The events are implemented by {@code JfrFlightEvents}, which is compiled in the {@code jfr}
+ * source set and loaded only if the JDK has Flight Recorder. Otherwise every event does nothing.
+ */
+class FlightEvents {
+
+  /** Starts the events, and tracks whether any recording is running. */
+  interface Recorder {
+
+    boolean isRecording();
+
+    ClientCall startClientCall();
+
+    ServerDeserialize startServerDeserialize();
+
+    ServerInvoke startServerInvoke();
+
+    ServerSerialize startServerSerialize();
+
+    ServerWrite startServerWrite();
+
+    Deploy startDeploy();
+  }
+
+  private static final String RECORDER_CLASS_NAME =
+      "coollog.experiments.oomicroservice.framework.JfrFlightEvents";
+
+  /** The Flight Recorder events, or {@code null} if this JDK does not have Flight Recorder. */
+  private static final Recorder RECORDER = loadRecorder();
+
+  private static Recorder loadRecorder() {
+    try {
+      return Class.forName(RECORDER_CLASS_NAME)
+          .asSubclass(Recorder.class)
+          .getDeclaredConstructor()
+          .newInstance();
+    } catch (ReflectiveOperationException | LinkageError | RuntimeException ex) {
+      // Either the jfr source set is not on the classpath, or jdk.jfr is not in this JDK.
+      return null;
+    }
+  }
+
+  /**
+   * Checks whether a recording is running, which the events must be created for to be recorded.
+   *
+   * @return {@code true} if a recording is running
+   */
+  static boolean isRecording() {
+    return RECORDER != null && RECORDER.isRecording();
+  }
+
+  /** A call to another {@link Microservice}, from sending the request to reading the response. */
+  interface ClientCall {
+
+    /** Stands in for the event while no recording is running. */
+    ClientCall NOT_RECORDING = (service, method, requestBytes, responseBytes, async, failed) -> {};
+
+    /** Creates and begins the event if a recording is running. */
+    static ClientCall start() {
+      return isRecording() ? RECORDER.startClientCall() : NOT_RECORDING;
+    }
+
+    void commit(
+        String service,
+        String method,
+        long requestBytes,
+        long responseBytes,
+        boolean async,
+        boolean failed);
+  }
+
+  /** Deserializing a served call. */
+  interface ServerDeserialize {
+
+    /** Stands in for the event while no recording is running. */
+    ServerDeserialize NOT_RECORDING = (service, method, requestBytes) -> {};
+
+    /** Creates and begins the event if a recording is running. */
+    static ServerDeserialize start() {
+      return isRecording() ? RECORDER.startServerDeserialize() : NOT_RECORDING;
+    }
+
+    void commit(String service, String method, long requestBytes);
+  }
+
+  /** Dispatching a served call to its method and running it. */
+  interface ServerInvoke {
+
+    /** Stands in for the event while no recording is running. */
+    ServerInvoke NOT_RECORDING = (service, method, failed) -> {};
+
+    /** Creates and begins the event if a recording is running. */
+    static ServerInvoke start() {
+      return isRecording() ? RECORDER.startServerInvoke() : NOT_RECORDING;
+    }
+
+    void commit(String service, String method, boolean failed);
+  }
+
+  /** Serializing the return value of a served call. */
+  interface ServerSerialize {
+
+    /** Stands in for the event while no recording is running. */
+    ServerSerialize NOT_RECORDING = (service, method, responseBytes) -> {};
+
+    /** Creates and begins the event if a recording is running. */
+    static ServerSerialize start() {
+      return isRecording() ? RECORDER.startServerSerialize() : NOT_RECORDING;
+    }
+
+    void commit(String service, String method, long responseBytes);
+  }
+
+  /** Writing the response to a served call to its connection. */
+  interface ServerWrite {
+
+    /** Stands in for the event while no recording is running. */
+    ServerWrite NOT_RECORDING = (service, responseBytes) -> {};
+
+    /** Creates and begins the event if a recording is running. */
+    static ServerWrite start() {
+      return isRecording() ? RECORDER.startServerWrite() : NOT_RECORDING;
+    }
+
+    void commit(String service, long responseBytes);
+  }
+
+  /** A phase of deploying the services to Kubernetes. */
+  interface Deploy {
+
+    /** Stands in for the event while no recording is running. */
+    Deploy NOT_RECORDING = (group, phase, target, bytes) -> {};
+
+    /** Creates and begins the event if a recording is running. */
+    static Deploy start() {
+      return isRecording() ? RECORDER.startDeploy() : NOT_RECORDING;
+    }
+
+    void commit(String group, String phase, String target, long bytes);
+
+    /**
+     * Checks whether the event is enabled, so that its fields are worth computing.
+     *
+     * @return {@code true} if the event will be recorded
+     */
+    default boolean isEnabled() {
+      return false;
+    }
+  }
+
+  private FlightEvents() {}
+}
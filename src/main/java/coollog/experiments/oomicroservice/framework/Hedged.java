@@ -0,0 +1,47 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Marks an idempotent method of a {@link Microservice} whose calls can be hedged. If a call has not
+ * been answered after {@link #delay}, the same call is also sent to another replica, and whichever
+ * answers first is used. The other request is then cancelled. Only applies to {@link Microservice}s
+ * registered with more than one {@link ServiceOptions.Builder#setReplicas replica}.
+ *
+ * <p>Hedges are limited to about one for every ten hedgeable calls across the whole process, so
+ * that they do not pile more load onto replicas that are already struggling.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Hedged {
+
+  /**
+   * How long to wait for an answer before hedging, in {@link #unit}s. Defaults to {@code 0}, which
+   * waits for the 95th percentile of the latencies of the recent calls to the method.
+   */
+  long delay() default 0;
+
+  TimeUnit unit() default TimeUnit.MILLISECONDS;
+}
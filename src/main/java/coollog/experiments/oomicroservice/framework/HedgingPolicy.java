@@ -0,0 +1,133 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides when to hedge the calls to a {@link Hedged} method, and holds the budget that limits the
+ * hedges of every method in this process.
+ */
+class HedgingPolicy {
+
+  /** The number of recent latencies that the 95th percentile is taken over. */
+  private static final int LATENCY_WINDOW_SIZE = 256;
+
+  /** The number of latencies recorded before the 95th percentile is first used. */
+  private static final int MIN_LATENCY_SAMPLES = 32;
+
+  /** How many latencies are recorded between updates of the 95th percentile. */
+  private static final int PERCENTILE_UPDATE_INTERVAL = 32;
+
+  /** Budget tokens earned by each hedgeable call. */
+  private static final long TOKENS_PER_CALL = 1;
+
+  /** Budget tokens spent by each hedge, which allows one hedge for every ten hedgeable calls. */
+  private static final long TOKENS_PER_HEDGE = 10;
+
+  /** The most budget tokens that can be saved up, which allows a burst of ten hedges. */
+  private static final long MAX_TOKENS = 10 * TOKENS_PER_HEDGE;
+
+  /** The hedge budget shared by every {@link Hedged} method. */
+  private static final AtomicLong budgetTokens = new AtomicLong(MAX_TOKENS);
+
+  /**
+   * Creates a {@link HedgingPolicy} for a method.
+   *
+   * @param hedged the {@link Hedged} annotation of the method
+   * @return the {@link HedgingPolicy}
+   */
+  static HedgingPolicy of(Hedged hedged) {
+    return new HedgingPolicy(hedged.delay() > 0 ? hedged.unit().toNanos(hedged.delay()) : 0);
+  }
+
+  /** Counts a hedgeable call toward the hedge budget. */
+  static void depositBudget() {
+    // Skips the write once the budget is full, so that calls in a healthy process stay cheap.
+    if (budgetTokens.get() < MAX_TOKENS) {
+      budgetTokens.addAndGet(TOKENS_PER_CALL);
+    }
+  }
+
+  /**
+   * Takes a hedge from the hedge budget.
+   *
+   * @return {@code true} if the budget allows another hedge
+   */
+  static boolean tryWithdrawBudget() {
+    long tokens;
+    do {
+      tokens = budgetTokens.get();
+      if (tokens < TOKENS_PER_HEDGE) {
+        return false;
+      }
+    } while (!budgetTokens.compareAndSet(tokens, tokens - TOKENS_PER_HEDGE));
+    return true;
+  }
+
+  /** The configured delay, or {@code 0} to use {@link #percentileDelayNanos}. */
+  private final long fixedDelayNanos;
+
+  /** The recent latencies, as a ring buffer. */
+  private final AtomicLongArray latencyWindowNanos = new AtomicLongArray(LATENCY_WINDOW_SIZE);
+
+  /** The number of latencies recorded so far. A {@code long}, so that it never wraps around. */
+  private final AtomicLong latencyCount = new AtomicLong();
+
+  /** The 95th percentile of the recent latencies, or {@code -1} if there are not enough yet. */
+  private volatile long percentileDelayNanos = -1;
+
+  private HedgingPolicy(long fixedDelayNanos) {
+    this.fixedDelayNanos = fixedDelayNanos;
+  }
+
+  /**
+   * Gets how long to wait for an answer before hedging a call.
+   *
+   * @return the delay, or {@code -1} if the call should not be hedged yet
+   */
+  long getDelayNanos() {
+    return fixedDelayNanos > 0 ? fixedDelayNanos : percentileDelayNanos;
+  }
+
+  /**
+   * Records the latency of a call that was answered without a hedge.
+   *
+   * @param latencyNanos the latency
+   */
+  void recordLatency(long latencyNanos) {
+    if (fixedDelayNanos > 0) {
+      return;
+    }
+    long count = latencyCount.incrementAndGet();
+    latencyWindowNanos.set((int) ((count - 1) % LATENCY_WINDOW_SIZE), latencyNanos);
+    if (count >= MIN_LATENCY_SAMPLES && count % PERCENTILE_UPDATE_INTERVAL == 0) {
+      updatePercentile((int) Math.min(count, LATENCY_WINDOW_SIZE));
+    }
+  }
+
+  private void updatePercentile(int sampleCount) {
+    long[] samples = new long[sampleCount];
+    for (int index = 0; index < sampleCount; index++) {
+      samples[index] = latencyWindowNanos.get(index);
+    }
+    Arrays.sort(samples);
+    percentileDelayNanos = samples[(int) Math.ceil(sampleCount * 0.95) - 1];
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations with a bucket per power of two nanoseconds, from about a
+ * microsecond to about a minute. Recording a duration does not allocate, so it can stay on for
+ * every call.
+ */
+class Histogram {
+
+  /** The first bucket counts the durations of at most {@code 2^MIN_EXPONENT} nanoseconds. */
+  private static final int MIN_EXPONENT = 10;
+
+  /** The last bucket counts the durations that are longer than every other bucket. */
+  static final int BUCKET_COUNT = 28;
+
+  /**
+   * Gets the bucket that counts {@code nanos}.
+   *
+   * @param nanos the duration
+   * @return the index of the bucket
+   */
+  private static int getBucket(long nanos) {
+    // Rounds up to the next power of two.
+    int exponent = Long.SIZE - Long.numberOfLeadingZeros(Math.max(nanos, 1) - 1);
+    return Math.min(Math.max(exponent - MIN_EXPONENT, 0), BUCKET_COUNT - 1);
+  }
+
+  /**
+   * Gets the longest duration that a bucket counts.
+   *
+   * @param bucket the index of the bucket
+   * @return the upper bound in nanoseconds, or {@link Long#MAX_VALUE} for the last bucket
+   */
+  static long getUpperBoundNanos(int bucket) {
+    return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << (bucket + MIN_EXPONENT);
+  }
+
+  private final AtomicLongArray bucketCounts = new AtomicLongArray(BUCKET_COUNT);
+  private final LongAdder sumNanos = new LongAdder();
+
+  /**
+   * Records a duration.
+   *
+   * @param nanos the duration
+   */
+  void record(long nanos) {
+    bucketCounts.incrementAndGet(getBucket(nanos));
+    sumNanos.add(nanos);
+  }
+
+  /**
+   * Gets the number of durations that a bucket has counted.
+   *
+   * @param bucket the index of the bucket
+   * @return the number of durations
+   */
+  long getBucketCount(int bucket) {
+    return bucketCounts.get(bucket);
+  }
+
+  long getCount() {
+    long count = 0;
+    for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+      count += bucketCounts.get(bucket);
+    }
+    return count;
+  }
+
+  long getSumNanos() {
+    return sumNanos.sum();
+  }
+
+  /**
+   * Estimates a percentile of the recorded durations.
+   *
+   * @param percentile the percentile, between {@code 0} and {@code 100}
+   * @return the upper bound of the bucket that holds the percentile, or {@code 0} if nothing has
+   *     been recorded
+   */
+  long getPercentileNanos(double percentile) {
+    long count = getCount();
+    if (count == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(count * percentile / 100);
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKET_COUNT - 1; bucket++) {
+      seen += bucketCounts.get(bucket);
+      if (seen >= rank) {
+        return getUpperBoundNanos(bucket);
+      }
+    }
+    return getUpperBoundNanos(BUCKET_COUNT - 1);
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import coollog.experiments.oomicroservice.framework.ServiceRegistry.RegisteredMicroservice;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Runs every registered {@link Microservice} in this process, each on its own loopback port. Calls
+ * between them still go through the connection pool, the wire protocol, and the server engines, so
+ * a whole application can be run, tested, and benchmarked on one machine without a Kubernetes
+ * cluster.
+ *
+ * <p>A {@link Microservice} with more than one shard or replica is served on a port per replica of
+ * each shard, each with its own instance, so that calls to it are routed and balanced like they
+ * would be on a cluster.
+ */
+class LocalCluster {
+
+  private static final Logger LOGGER = Logger.get("server");
+
+  /** A replica of a shard of a {@link Microservice}, bound to its port. */
+  private static class LocalServer {
+
+    private final Class<? extends Microservice> microserviceClass;
+    private final String name;
+    private final InetSocketAddress address;
+    private final ServerEngine serverEngine;
+
+    private LocalServer(
+        Class<? extends Microservice> microserviceClass,
+        String name,
+        InetSocketAddress address,
+        ServerEngine serverEngine) {
+      this.microserviceClass = microserviceClass;
+      this.name = name;
+      this.address = address;
+      this.serverEngine = serverEngine;
+    }
+  }
+
+  /**
+   * Starts serving every replica of every shard of every registered {@link Microservice} on a free
+   * loopback port. Every replica starts serving before any instance is constructed, so constructors
+   * may call the other microservices. Returns once every instance is constructed; they keep being
+   * served on their own threads.
+   *
+   * @return the port of the first replica of the first shard of each {@link Microservice}, by host
+   * @throws IOException if an I/O exception occurs
+   * @throws RuntimeException if constructing any instance fails
+   */
+  static Map<String, Integer> start() throws IOException {
+    InetAddress loopbackAddress = InetAddress.getLoopbackAddress();
+
+    // Binds every replica first, so that each knows the addresses of the others.
+    Map<String, Integer> ports = new LinkedHashMap<>();
+    List<LocalServer> localServers = new ArrayList<>();
+    for (RegisteredMicroservice<?> registeredMicroservice :
+        ServiceRegistry.getRegisteredMicroservices()) {
+      Class<? extends Microservice> microserviceClass = registeredMicroservice.getClazz();
+      int shardCount = registeredMicroservice.getShards();
+      int replicaCount = registeredMicroservice.getReplicas();
+      for (int shard = 0; shard < shardCount; shard++) {
+        List<InetSocketAddress> replicaAddresses = new ArrayList<>();
+        for (int replica = 0; replica < replicaCount; replica++) {
+          ServerEngine serverEngine =
+              ServerEngine.create(ServiceRegistry.getOptions(microserviceClass));
+          InetSocketAddress address =
+              new InetSocketAddress(
+                  loopbackAddress, serverEngine.bind(new InetSocketAddress(loopbackAddress, 0)));
+          replicaAddresses.add(address);
+          localServers.add(
+              new LocalServer(
+                  microserviceClass,
+                  microserviceClass.getName()
+                      + (shardCount > 1 ? " shard " + shard : "")
+                      + (replicaCount > 1 ? " replica " + replica : ""),
+                  address,
+                  serverEngine));
+        }
+        ServiceRegistry.setLocalEndpoints(
+            Shards.getHost(registeredMicroservice.getHost(), shard, shardCount), replicaAddresses);
+      }
+      ports.put(
+          registeredMicroservice.getHost(),
+          ServiceRegistry.getLocalEndpoints(
+                  Shards.getHost(registeredMicroservice.getHost(), 0, shardCount))
+              .get(0)
+              .getPort());
+    }
+
+    Set<Class<? extends Microservice>> servedClasses = new HashSet<>();
+    List<CompletableFuture<RequestHandler>> requestHandlerFutures = new ArrayList<>();
+    for (LocalServer localServer : localServers) {
+      LOGGER.info(
+          "Serving",
+          "service",
+          localServer.name,
+          "address",
+          loopbackAddress.getHostAddress() + ":" + localServer.address.getPort());
+      // Serves the first replica with the instance of this process, and the others with their own.
+      if (servedClasses.add(localServer.microserviceClass)) {
+        requestHandlerFutures.add(
+            ServiceRunner.serveInBackground(
+                localServer.serverEngine, localServer.microserviceClass));
+      } else {
+        requestHandlerFutures.add(
+            ServiceRunner.serveReplicaInBackground(
+                localServer.serverEngine, localServer.microserviceClass));
+      }
+    }
+    ServiceRunner.awaitConstructed(requestHandlerFutures);
+
+    return ports;
+  }
+
+  private LocalCluster() {}
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import com.google.common.base.Defaults;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javassist.util.proxy.MethodHandler;
+
+/**
+ * Proxies a method invocation on a {@link Microservice} in the same co-location group by calling
+ * the local instance directly, without serializing anything.
+ */
+class LocalMethodHandler<T extends Microservice> implements MethodHandler {
+
+  /**
+   * Runs the local calls made inside {@link Microservice#async} or {@link Microservice#broadcast}.
+   */
+  private static final ExecutorService ASYNC_EXECUTOR_SERVICE =
+      Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder().setNameFormat("local-call-%d").setDaemon(true).build());
+
+  private final Class<T> clazz;
+
+  /** The name of the local microservice in the spans of traced calls. */
+  private final String serviceName;
+
+  /** The local instance, fetched on the first call so that constructors may call each other. */
+  private volatile T instance;
+
+  LocalMethodHandler(Class<T> clazz) {
+    this.clazz = clazz;
+    serviceName = Tracing.getServiceName(clazz);
+  }
+
+  @Override
+  public Object invoke(Object self, Method thisMethod, Method proceed, Object[] args)
+      throws Throwable {
+    T target = getInstance();
+    Span span = Tracing.startLocalSpan(thisMethod.getName(), serviceName);
+    // Carries the trace of the caller over to the thread that runs the call.
+    Span callSpan = span != null ? span : Tracing.getCurrentSpan();
+
+    if (AsyncCalls.isCapturing()) {
+      // Runs the call on another thread, which also keeps the capture from leaking into any calls
+      // that the target makes.
+      AsyncCalls.capture(
+          CompletableFuture.supplyAsync(
+              () -> {
+                try {
+                  return invokeLocally(target, thisMethod, args, callSpan, span);
+
+                } catch (Throwable ex) {
+                  throw new CompletionException(ex);
+                }
+              },
+              ASYNC_EXECUTOR_SERVICE));
+      return Defaults.defaultValue(thisMethod.getReturnType());
+    }
+
+    if (BroadcastCalls.isCapturing()) {
+      // Keeps the capture from leaking into any calls that the target makes.
+      BroadcastCalls.capture(
+          Collections.singletonList(
+              CompletableFuture.supplyAsync(
+                  () -> {
+                    try {
+                      return invokeLocally(target, thisMethod, args, callSpan, span);
+
+                    } catch (Throwable ex) {
+                      throw new CompletionException(ex);
+                    }
+                  },
+                  ASYNC_EXECUTOR_SERVICE)));
+      return Defaults.defaultValue(thisMethod.getReturnType());
+    }
+
+    return invokeLocally(target, thisMethod, args, callSpan, span);
+  }
+
+  private T getInstance() throws Exception {
+    if (instance == null) {
+      instance = ServiceRegistry.getLocalInstance(clazz);
+    }
+    return instance;
+  }
+
+  /**
+   * Calls {@code method} on {@code target}, rethrowing whatever it throws.
+   *
+   * @param target the local instance
+   * @param method the method to call
+   * @param args the arguments
+   * @param callSpan the span that the calls made by {@code method} belong to, or {@code null} if
+   *     none
+   * @param span the {@link Span} to finish once the call is done, or {@code null} if none
+   * @return the return value
+   * @throws Throwable whatever {@code method} throws
+   */
+  private static Object invokeLocally(
+      Object target, Method method, Object[] args, Span callSpan, Span span) throws Throwable {
+    Span previousSpan = Tracing.enter(callSpan);
+    boolean failed = true;
+    try {
+      Object result = method.invoke(target, args);
+      failed = false;
+      return result;
+
+    } catch (InvocationTargetException ex) {
+      throw ex.getCause();
+
+    } finally {
+      Tracing.exit(previousSpan);
+      if (span != null) {
+        span.finish(failed);
+      }
+    }
+  }
+}
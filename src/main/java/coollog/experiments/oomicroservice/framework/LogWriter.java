@@ -0,0 +1,243 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+import coollog.experiments.oomicroservice.framework.Logger.Level;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Queues the messages of every {@link Logger} in a lock-free ring buffer and writes them to {@code
+ * System.err} on a background thread, so that logging threads never wait on the output stream or on
+ * each other.
+ */
+class LogWriter {
+
+  /** A queued message. */
+  private static class Record {
+
+    private final long timeMillis = System.currentTimeMillis();
+    private final Level level;
+    private final String category;
+    private final String message;
+    private final Object[] fields;
+    private final long suppressed;
+    private final String threadName = Thread.currentThread().getName();
+
+    private Record(Level level, String category, String message, Object[] fields, long suppressed) {
+      this.level = level;
+      this.category = category;
+      this.message = message;
+      this.fields = fields;
+      this.suppressed = suppressed;
+    }
+  }
+
+  /** The number of messages that can be queued. Must be a power of two. */
+  private static final int CAPACITY = 1 << 14;
+
+  /** How long the writer thread sleeps at most when there is nothing to write. */
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private static final AtomicReferenceArray<Record> slots = new AtomicReferenceArray<>(CAPACITY);
+
+  /** The sequence number of the next message to queue. */
+  private static final AtomicLong tail = new AtomicLong();
+
+  /** The sequence number of the next message to write. Only advanced by the writer. */
+  private static final AtomicLong head = new AtomicLong();
+
+  /** The messages dropped because the buffer was full, since the last one written. */
+  private static final LongAdder droppedCount = new LongAdder();
+
+  private static final Thread writerThread = new Thread(LogWriter::writeForever, "log-writer");
+
+  /** Whether the writer thread is parked, waiting to be woken up by a new message. */
+  private static volatile boolean writerParked;
+
+  /** The characters that a field value is quoted for. */
+  private static final CharMatcher QUOTED_CHARACTERS =
+      CharMatcher.whitespace().or(CharMatcher.anyOf("\"="));
+
+  private static final Writer writer =
+      new BufferedWriter(new OutputStreamWriter(System.err, StandardCharsets.UTF_8));
+
+  static {
+    writerThread.setDaemon(true);
+    writerThread.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(LogWriter::flush));
+  }
+
+  /**
+   * Queues a message, or drops it if the buffer is full.
+   *
+   * @param level the level of the message
+   * @param category the category of the {@link Logger}
+   * @param message the message
+   * @param fields alternating field names and values
+   * @param suppressed the messages dropped by the rate limit of the {@link Logger}
+   */
+  static void enqueue(
+      Level level, String category, String message, Object[] fields, long suppressed) {
+    // Creates the record first, so that a claimed slot is always filled.
+    Record record = new Record(level, category, message, fields, suppressed);
+    long sequence;
+    do {
+      sequence = tail.get();
+      if (sequence - head.get() >= CAPACITY) {
+        droppedCount.increment();
+        return;
+      }
+    } while (!tail.compareAndSet(sequence, sequence + 1));
+    slots.set((int) (sequence & (CAPACITY - 1)), record);
+
+    if (writerParked) {
+      LockSupport.unpark(writerThread);
+    }
+  }
+
+  /** Writes the queued messages and flushes them. Safe to call from any thread. */
+  static synchronized void flush() {
+    try {
+      if (writeQueued()) {
+        writer.flush();
+      }
+
+    } catch (IOException ex) {
+      // System.err does not throw.
+    }
+  }
+
+  private static void writeForever() {
+    while (true) {
+      flush();
+
+      writerParked = true;
+      // Checks again after announcing the park, so that a message queued meanwhile is not missed.
+      if (head.get() == tail.get()) {
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+      }
+      writerParked = false;
+    }
+  }
+
+  /**
+   * Writes the queued messages, up to the first one that is claimed but not yet queued.
+   *
+   * @return {@code true} if anything was written
+   * @throws IOException if an I/O exception occurs
+   */
+  private static boolean writeQueued() throws IOException {
+    boolean written = false;
+    long dropped = droppedCount.sumThenReset();
+    if (dropped > 0) {
+      writer.write(
+          Instant.now()
+              + " WARN log Dropped messages because the buffer was full dropped="
+              + dropped
+              + '\n');
+      written = true;
+    }
+
+    while (head.get() != tail.get()) {
+      int index = (int) (head.get() & (CAPACITY - 1));
+      Record record = slots.get(index);
+      if (record == null) {
+        // The message is being queued, so waits for it.
+        Uninterruptibles.sleepUninterruptibly(1, TimeUnit.MICROSECONDS);
+        continue;
+      }
+      slots.set(index, null);
+      head.incrementAndGet();
+      try {
+        write(record);
+
+      } catch (RuntimeException ex) {
+        writer.write(
+            Instant.ofEpochMilli(record.timeMillis)
+                + " ERROR log Could not format message message=\""
+                + record.message
+                + "\" exception=\""
+                + ex
+                + "\"\n");
+      }
+      written = true;
+    }
+    return written;
+  }
+
+  private static void write(Record record) throws IOException {
+    StringBuilder line = new StringBuilder();
+    line.append(Instant.ofEpochMilli(record.timeMillis))
+        .append(' ')
+        .append(record.level)
+        .append(' ')
+        .append(record.category)
+        .append(' ')
+        .append(record.message);
+    for (int fieldIndex = 0; fieldIndex + 1 < record.fields.length; fieldIndex += 2) {
+      appendField(line, String.valueOf(record.fields[fieldIndex]), record.fields[fieldIndex + 1]);
+    }
+    if (record.suppressed > 0) {
+      appendField(line, "suppressed", record.suppressed);
+    }
+    if (record.level.compareTo(Level.WARN) >= 0) {
+      appendField(line, "thread", record.threadName);
+    }
+    line.append('\n');
+    writer.write(line.toString());
+  }
+
+  /**
+   * Appends {@code name=value}, quoting the value if it has spaces, quotes, or line breaks. A
+   * {@link Throwable} value is written as its stack trace, with its line breaks escaped.
+   */
+  private static void appendField(StringBuilder line, String name, Object value) {
+    String valueString =
+        value instanceof Throwable
+            ? CharMatcher.whitespace()
+                .trimTrailingFrom(Throwables.getStackTraceAsString((Throwable) value))
+            : String.valueOf(value);
+    line.append(' ').append(name).append('=');
+    if (valueString.isEmpty() || QUOTED_CHARACTERS.matchesAnyOf(valueString)) {
+      line.append('"')
+          .append(
+              valueString
+                  .replace("\\", "\\\\")
+                  .replace("\"", "\\\"")
+                  .replace("\n", "\\n")
+                  .replace("\r", "\\r"))
+          .append('"');
+    } else {
+      line.append(valueString);
+    }
+  }
+
+  private LogWriter() {}
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import com.google.common.base.Splitter;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Logs structured messages by category without holding up the calling thread. Messages are queued
+ * in a lock-free ring buffer and written to {@code System.err} by a background thread, and are
+ * dropped rather than waited on if the buffer is full.
+ *
+ * <p>Each message has fields given as alternating names and values, which are formatted on the
+ * background thread, so values should not be changed after they are logged:
+ *
+ * <pre>{@code
+ * LOGGER.info("Serving", "service", serviceName, "address", address);
+ * }</pre>
+ *
+ * <p>The {@code LOG_LEVEL} environment variable sets the lowest level that is logged, {@code INFO}
+ * by default. The {@code LOG_LEVELS} environment variable sets the level of particular categories,
+ * such as {@code call=DEBUG,server=WARN}.
+ */
+public class Logger {
+
+  /** How important a message is. */
+  public enum Level {
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR,
+
+    /** Logs nothing, when set as the level of a category. */
+    OFF
+  }
+
+  private static final ConcurrentMap<String, Logger> loggers = new ConcurrentHashMap<>();
+
+  private static final Level DEFAULT_LEVEL = parseLevel(System.getenv("LOG_LEVEL"), Level.INFO);
+
+  private static final Map<String, Level> categoryLevels =
+      parseCategoryLevels(System.getenv("LOG_LEVELS"));
+
+  /**
+   * Gets the {@link Logger} for a category.
+   *
+   * @param category the category, such as {@code server}
+   * @return the {@link Logger}
+   */
+  public static Logger get(String category) {
+    return get(category, 0);
+  }
+
+  /**
+   * Gets the {@link Logger} for a category that is logged at most {@code maxPerSecond} times a
+   * second, such as for messages logged on every call. The messages over the limit are counted, and
+   * the count is logged with the next message in the {@code suppressed} field.
+   *
+   * @param category the category, such as {@code call}
+   * @param maxPerSecond the most messages to log each second, or {@code 0} for no limit
+   * @return the {@link Logger}. Its limit is the one it was first gotten with.
+   */
+  public static Logger get(String category, int maxPerSecond) {
+    return loggers.computeIfAbsent(category, newCategory -> new Logger(newCategory, maxPerSecond));
+  }
+
+  private static Level parseLevel(String level, Level defaultLevel) {
+    if (level == null || level.isEmpty()) {
+      return defaultLevel;
+    }
+    try {
+      return Level.valueOf(level.trim().toUpperCase(Locale.ROOT));
+
+    } catch (IllegalArgumentException ex) {
+      throw new IllegalArgumentException("Invalid log level: " + level, ex);
+    }
+  }
+
+  private static Map<String, Level> parseCategoryLevels(String categoryLevels) {
+    Map<String, Level> levels = new HashMap<>();
+    if (categoryLevels == null) {
+      return levels;
+    }
+    Map<String, String> levelNames =
+        Splitter.on(',')
+            .omitEmptyStrings()
+            .trimResults()
+            .withKeyValueSeparator('=')
+            .split(categoryLevels);
+    for (Map.Entry<String, String> levelName : levelNames.entrySet()) {
+      levels.put(levelName.getKey(), parseLevel(levelName.getValue(), DEFAULT_LEVEL));
+    }
+    return levels;
+  }
+
+  private final String category;
+
+  /** The lowest level logged. */
+  private final Level level;
+
+  private final int maxPerSecond;
+
+  /** The second of {@link System#nanoTime} that {@link #countInSecond} counts messages in. */
+  private volatile long currentSecond;
+
+  private final AtomicInteger countInSecond = new AtomicInteger();
+
+  /** The messages dropped by the rate limit since the last one logged. */
+  private final LongAdder suppressedCount = new LongAdder();
+
+  private Logger(String category, int maxPerSecond) {
+    this.category = category;
+    this.level = categoryLevels.getOrDefault(category, DEFAULT_LEVEL);
+    this.maxPerSecond = maxPerSecond;
+  }
+
+  /**
+   * Checks whether messages at {@code level} are logged, to skip building costly fields otherwise.
+   *
+   * @param level the level
+   * @return {@code true} if messages at {@code level} are logged
+   */
+  public boolean isEnabled(Level level) {
+    return level.compareTo(this.level) >= 0 && level != Level.OFF;
+  }
+
+  /**
+   * Logs a message for debugging.
+   *
+   * @param message the message
+   * @param fields alternating field names and values
+   */
+  public void debug(String message, Object... fields) {
+    log(Level.DEBUG, message, fields);
+  }
+
+  /**
+   * Logs a message about normal operation.
+   *
+   * @param message the message
+   * @param fields alternating field names and values
+   */
+  public void info(String message, Object... fields) {
+    log(Level.INFO, message, fields);
+  }
+
+  /**
+   * Logs a message about a problem that was recovered from.
+   *
+   * @param message the message
+   * @param fields alternating field names and values
+   */
+  public void warn(String message, Object... fields) {
+    log(Level.WARN, message, fields);
+  }
+
+  /**
+   * Logs a message about a failure.
+   *
+   * @param message the message
+   * @param fields alternating field names and values
+   */
+  public void error(String message, Object... fields) {
+    log(Level.ERROR, message, fields);
+  }
+
+  /**
+   * Logs a message.
+   *
+   * @param level the level of the message
+   * @param message the message
+   * @param fields alternating field names and values
+   */
+  public void log(Level level, String message, Object... fields) {
+    if (!isEnabled(level)) {
+      return;
+    }
+    long suppressed = 0;
+    if (maxPerSecond > 0) {
+      if (!tryAcquire()) {
+        suppressedCount.increment();
+        return;
+      }
+      suppressed = suppressedCount.sumThenReset();
+    }
+    LogWriter.enqueue(level, category, message, fields, suppressed);
+  }
+
+  /** Counts a message against the rate limit, and checks whether it is under it. */
+  private boolean tryAcquire() {
+    long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+    if (second != currentSecond) {
+      // Racing threads may each reset the count, which only lets a few extra messages through.
+      currentSecond = second;
+      countInSecond.set(0);
+    }
+    return countInSecond.incrementAndGet() <= maxPerSecond;
+  }
+}
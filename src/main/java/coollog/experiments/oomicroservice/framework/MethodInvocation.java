@@ -1,5 +1,5 @@
 /*
- * Copyright 2018 Google Inc.
+ * Copyright 2019 Google LLC. All rights reserved.
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not
  * use this file except in compliance with the License. You may obtain a copy of
@@ -16,24 +16,66 @@
 
 package coollog.experiments.oomicroservice.framework;
 
-import java.util.List;
+import coollog.experiments.oomicroservice.framework.MethodTable.RemoteMethod;
+import java.util.Arrays;
 
-/** Represents an invocation of a method (method name and arguments). */
+/**
+ * Represents an invocation of a method (method and typed arguments).
+ *
+ * <p>Each server thread decodes the calls it handles into a single reused instance (see {@link
+ * #reuse}), whose argument arrays are kept by length, so that decoding a call allocates nothing but
+ * the argument values themselves.
+ */
 class MethodInvocation {
 
-  private final String methodName;
-  private final List<String> args;
+  private static final ThreadLocal<MethodInvocation> threadInvocation =
+      ThreadLocal.withInitial(() -> new MethodInvocation(null, null));
+
+  /**
+   * Gets the reused {@link MethodInvocation} of this thread, set to call {@code remoteMethod}. It
+   * is only valid until the next call on the same thread, so must not be kept.
+   *
+   * @param remoteMethod the method to call
+   * @return the {@link MethodInvocation}, whose arguments are to be filled in
+   */
+  static MethodInvocation reuse(RemoteMethod remoteMethod) {
+    int parameterCount = remoteMethod.getParameterCount();
+    if (parameterCount > BinaryMethodInvocationSerializer.MAX_ARGS) {
+      return new MethodInvocation(remoteMethod, new Object[parameterCount]);
+    }
+    MethodInvocation methodInvocation = threadInvocation.get();
+    if (methodInvocation.argArrays == null) {
+      methodInvocation.argArrays = new Object[BinaryMethodInvocationSerializer.MAX_ARGS + 1][];
+    }
+    if (methodInvocation.argArrays[parameterCount] == null) {
+      methodInvocation.argArrays[parameterCount] = new Object[parameterCount];
+    }
+    methodInvocation.remoteMethod = remoteMethod;
+    methodInvocation.args = methodInvocation.argArrays[parameterCount];
+    return methodInvocation;
+  }
+
+  private RemoteMethod remoteMethod;
+  private Object[] args;
+
+  /** The argument arrays of a reused instance, indexed by length. */
+  private Object[][] argArrays;
 
-  MethodInvocation(String methodName, List<String> args) {
-    this.methodName = methodName;
+  MethodInvocation(RemoteMethod remoteMethod, Object[] args) {
+    this.remoteMethod = remoteMethod;
     this.args = args;
   }
 
-  String getMethodName() {
-    return methodName;
+  RemoteMethod getRemoteMethod() {
+    return remoteMethod;
   }
 
-  List<String> getArgs() {
+  Object[] getArgs() {
     return args;
   }
+
+  /** Drops the references to the arguments once the call has started, so they can be collected. */
+  void clearArgs() {
+    Arrays.fill(args, null);
+  }
 }
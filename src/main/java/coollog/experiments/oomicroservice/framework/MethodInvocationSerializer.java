@@ -1,5 +1,5 @@
 /*
- * Copyright 2018 Google Inc.
+ * Copyright 2019 Google LLC. All rights reserved.
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not
  * use this file except in compliance with the License. You may obtain a copy of
@@ -16,31 +16,61 @@
 
 package coollog.experiments.oomicroservice.framework;
 
+import coollog.experiments.oomicroservice.framework.MethodTable.RemoteMethod;
 import java.io.IOException;
-import java.io.InputStream;
-import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 
 /**
- * Serialize/deserialize a method invocation (method name and arguments). This is to allow for a
- * method call to be sent over the network.
+ * Serialize/deserialize a method invocation (method and arguments) and its return value. This is to
+ * allow for a method call to be sent over the network.
  */
 interface MethodInvocationSerializer {
 
   /**
-   * Serialize the method call to {@code method} with arguments {@code args}.
+   * Serialize the method call to {@code remoteMethod} with arguments {@code args}.
    *
-   * @param method the method
+   * @param remoteMethod the method
    * @param args the arguments
-   * @return the serialized method call
+   * @return the serialized method call, ready to be read
    */
-  String serialize(Method method, Object[] args);
+  ByteBuffer serialize(RemoteMethod remoteMethod, Object[] args);
 
   /**
-   * Deserializes a serialized method call.
+   * Deserializes a serialized method call in place, from a heap or direct buffer.
    *
-   * @param inputStream the {@link InputStream} containing the serialized method call
-   * @return the {@link MethodInvocation}
-   * @throws IOException if an I/O exception occurs
+   * @param buffer the buffer containing the serialized method call
+   * @param methodTable the {@link MethodTable} of the called {@link Microservice}
+   * @return the {@link MethodInvocation}, which may be the reused one of this thread (see {@link
+   *     MethodInvocation#reuse})
+   * @throws IOException if the serialized method call is malformed
    */
-  MethodInvocation deserialize(InputStream inputStream) throws IOException;
+  MethodInvocation deserialize(ByteBuffer buffer, MethodTable methodTable) throws IOException;
+
+  /**
+   * Gets an upper bound on the number of bytes {@link #serializeResult} takes for a return value.
+   *
+   * @param remoteMethod the called method
+   * @param result the return value
+   * @return the maximum number of bytes
+   */
+  int getMaxResultLength(RemoteMethod remoteMethod, Object result);
+
+  /**
+   * Serializes the return value of a method call straight into a buffer.
+   *
+   * @param remoteMethod the called method
+   * @param result the return value
+   * @param buffer the buffer to write to, with at least {@link #getMaxResultLength} bytes remaining
+   */
+  void serializeResult(RemoteMethod remoteMethod, Object result, ByteBuffer buffer);
+
+  /**
+   * Deserializes the return value of a method call.
+   *
+   * @param remoteMethod the called method
+   * @param buffer the buffer containing the serialized return value
+   * @return the return value
+   * @throws IOException if the serialized return value is malformed
+   */
+  Object deserializeResult(RemoteMethod remoteMethod, ByteBuffer buffer) throws IOException;
 }
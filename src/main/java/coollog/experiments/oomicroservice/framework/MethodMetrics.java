@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of the calls to a single remote method, on either the calling or the serving side.
+ * Every counter is lock-free and recording a call does not allocate.
+ */
+class MethodMetrics {
+
+  private final LongAdder calls = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final Histogram queueTime = new Histogram();
+  private final Histogram executionTime = new Histogram();
+
+  /**
+   * Records a call.
+   *
+   * @param queueNanos how long the call waited before it started, or {@code -1} if unknown
+   * @param executionNanos how long the call took once it started
+   * @param bytesIn the size of the payload received for the call
+   * @param bytesOut the size of the payload sent for the call
+   * @param failed whether or not the call failed
+   */
+  void record(long queueNanos, long executionNanos, int bytesIn, int bytesOut, boolean failed) {
+    calls.increment();
+    if (failed) {
+      errors.increment();
+    }
+    this.bytesIn.add(bytesIn);
+    this.bytesOut.add(bytesOut);
+    if (queueNanos >= 0) {
+      queueTime.record(queueNanos);
+    }
+    executionTime.record(executionNanos);
+  }
+
+  long getCalls() {
+    return calls.sum();
+  }
+
+  long getErrors() {
+    return errors.sum();
+  }
+
+  long getBytesIn() {
+    return bytesIn.sum();
+  }
+
+  long getBytesOut() {
+    return bytesOut.sum();
+  }
+
+  Histogram getQueueTime() {
+    return queueTime;
+  }
+
+  Histogram getExecutionTime() {
+    return executionTime;
+  }
+}
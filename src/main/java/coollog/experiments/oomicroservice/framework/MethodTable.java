@@ -0,0 +1,395 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * The methods of a {@link Microservice} class that can be called remotely, numbered so that both
+ * ends of a connection agree on the ID of each method.
+ *
+ * <p>The remote methods are the public instance methods declared by the class or by any of its
+ * superclasses below {@link Microservice}. They are ordered by signature, so the IDs only depend on
+ * the class itself.
+ */
+class MethodTable {
+
+  /** A method that can be called remotely. */
+  static class RemoteMethod {
+
+    private final int id;
+    private final Method method;
+    private final String signature;
+
+    /** The codec for each parameter, or {@code null} for an unsupported parameter type. */
+    private final ValueCodec[] parameterCodecs;
+
+    /** The codec for the return value, or {@code null} for an unsupported return type. */
+    private final ValueCodec returnCodec;
+
+    /** Whether or not the method is annotated with {@link OneWay}. */
+    private final boolean oneWay;
+
+    /** How the results are cached by the caller, or {@code null} if they are not cached. */
+    private final Cacheable cacheable;
+
+    /** Whether or not the method is annotated with {@link SingleFlight}. */
+    private final boolean singleFlight;
+
+    /** How calls to the method are hedged, or {@code null} if they are not hedged. */
+    private final Hedged hedged;
+
+    /** The index of the {@link ShardKey} parameter, or {@code -1} if there is none. */
+    private final int shardKeyIndex;
+
+    /** Whether or not the method is annotated with {@link Broadcast}. */
+    private final boolean broadcast;
+
+    /**
+     * The method that receives the total of calls to this method if it is {@link Combinable}, or
+     * {@code null} otherwise.
+     */
+    private RemoteMethod combineTarget;
+
+    /** Whether or not another remote method has the same name and number of parameters. */
+    private boolean ambiguous = false;
+
+    private RemoteMethod(int id, Method method) {
+      this.id = id;
+      if (Metrics.METHOD_NAME.equals(method.getName())) {
+        throw new IllegalArgumentException("Method name " + method.getName() + " is reserved");
+      }
+      this.method = method;
+      signature = MethodTable.getSignature(method);
+      parameterCodecs =
+          Arrays.stream(method.getParameterTypes()).map(ValueCodec::of).toArray(ValueCodec[]::new);
+      returnCodec = ValueCodec.of(method.getReturnType());
+
+      oneWay = method.isAnnotationPresent(OneWay.class);
+      if (oneWay && method.getReturnType() != void.class) {
+        throw new IllegalArgumentException(
+            "One-way method " + method.getName() + " must return void");
+      }
+
+      cacheable = method.getAnnotation(Cacheable.class);
+      if (cacheable != null && method.getReturnType() == void.class) {
+        throw new IllegalArgumentException(
+            "Cacheable method " + method.getName() + " must not return void");
+      }
+
+      singleFlight = method.isAnnotationPresent(SingleFlight.class);
+      hedged = method.getAnnotation(Hedged.class);
+
+      int shardKeyIndex = -1;
+      Annotation[][] parameterAnnotations = method.getParameterAnnotations();
+      for (int parameterIndex = 0; parameterIndex < parameterAnnotations.length; parameterIndex++) {
+        for (Annotation annotation : parameterAnnotations[parameterIndex]) {
+          if (annotation instanceof ShardKey) {
+            if (shardKeyIndex != -1) {
+              throw new IllegalArgumentException(
+                  "Method " + method.getName() + " must not have more than one shard key");
+            }
+            shardKeyIndex = parameterIndex;
+          }
+        }
+      }
+      this.shardKeyIndex = shardKeyIndex;
+
+      broadcast = method.isAnnotationPresent(Broadcast.class);
+      if (broadcast && (method.getReturnType() != void.class || shardKeyIndex != -1)) {
+        throw new IllegalArgumentException(
+            "Broadcast method " + method.getName() + " must return void and have no shard key");
+      }
+    }
+
+    int getId() {
+      return id;
+    }
+
+    Method getMethod() {
+      return method;
+    }
+
+    String getSignature() {
+      return signature;
+    }
+
+    int getParameterCount() {
+      return parameterCodecs.length;
+    }
+
+    /**
+     * Gets the codec for a parameter.
+     *
+     * @param parameterIndex the index of the parameter
+     * @return the {@link ValueCodec}
+     */
+    ValueCodec getParameterCodec(int parameterIndex) {
+      ValueCodec parameterCodec = parameterCodecs[parameterIndex];
+      if (parameterCodec == null) {
+        throw new IllegalArgumentException(
+            "Unsupported argument type " + method.getParameterTypes()[parameterIndex]);
+      }
+      return parameterCodec;
+    }
+
+    ValueCodec getReturnCodec() {
+      if (returnCodec == null) {
+        throw new UnsupportedOperationException(
+            "Method "
+                + method.getName()
+                + " has unsupported return type "
+                + method.getReturnType());
+      }
+      return returnCodec;
+    }
+
+    boolean isOneWay() {
+      return oneWay;
+    }
+
+    Cacheable getCacheable() {
+      return cacheable;
+    }
+
+    boolean isSingleFlight() {
+      return singleFlight;
+    }
+
+    Hedged getHedged() {
+      return hedged;
+    }
+
+    int getShardKeyIndex() {
+      return shardKeyIndex;
+    }
+
+    boolean isBroadcast() {
+      return broadcast;
+    }
+
+    RemoteMethod getCombineTarget() {
+      return combineTarget;
+    }
+
+    /**
+     * Whether or not the method must be named by its signature rather than its name in the text
+     * format because it is overloaded with the same number of parameters.
+     */
+    boolean isAmbiguous() {
+      return ambiguous;
+    }
+  }
+
+  private static final ClassValue<MethodTable> methodTables =
+      new ClassValue<MethodTable>() {
+        @Override
+        protected MethodTable computeValue(Class<?> microserviceClass) {
+          return new MethodTable(microserviceClass);
+        }
+      };
+
+  /**
+   * Gets the {@link MethodTable} for {@code microserviceClass}. The table is built once per class.
+   *
+   * @param microserviceClass the {@link Microservice} class
+   * @return the {@link MethodTable}
+   */
+  static MethodTable of(Class<? extends Microservice> microserviceClass) {
+    return methodTables.get(microserviceClass);
+  }
+
+  /**
+   * Gets the signature of {@code method}, such as {@code add(int,java.lang.String)}.
+   *
+   * @param method the method
+   * @return the signature
+   */
+  static String getSignature(Method method) {
+    return Arrays.stream(method.getParameterTypes())
+        .map(Class::getName)
+        .collect(Collectors.joining(",", method.getName() + "(", ")"));
+  }
+
+  /**
+   * Whether or not {@code method} can be called remotely.
+   *
+   * @param method the method
+   * @return {@code true} if {@code method} is a remote method
+   */
+  static boolean isRemote(Method method) {
+    return Modifier.isPublic(method.getModifiers())
+        && !Modifier.isStatic(method.getModifiers())
+        && !method.isBridge()
+        && !method.isSynthetic()
+        && Microservice.class.isAssignableFrom(method.getDeclaringClass())
+        && method.getDeclaringClass() != Microservice.class;
+  }
+
+  private final Class<?> microserviceClass;
+
+  /** The remote methods, indexed by ID. */
+  private final RemoteMethod[] remoteMethods;
+
+  private final Map<Method, RemoteMethod> remoteMethodsByMethod = new HashMap<>();
+  private final Map<String, RemoteMethod> remoteMethodsBySignature = new HashMap<>();
+
+  /** Maps from {@code name/parameterCount} to the remote method(s) with that name and count. */
+  private final Map<String, RemoteMethod> remoteMethodsByNameAndCount = new HashMap<>();
+
+  private MethodTable(Class<?> microserviceClass) {
+    this.microserviceClass = microserviceClass;
+
+    Method[] methods =
+        Arrays.stream(microserviceClass.getMethods())
+            .filter(MethodTable::isRemote)
+            .sorted(Comparator.comparing(MethodTable::getSignature))
+            .toArray(Method[]::new);
+    remoteMethods = new RemoteMethod[methods.length];
+    for (int methodId = 0; methodId < methods.length; methodId++) {
+      remoteMethods[methodId] = new RemoteMethod(methodId, methods[methodId]);
+      RemoteMethod remoteMethod = remoteMethods[methodId];
+      remoteMethodsByMethod.put(remoteMethod.method, remoteMethod);
+      remoteMethodsBySignature.put(remoteMethod.signature, remoteMethod);
+
+      RemoteMethod overload =
+          remoteMethodsByNameAndCount.putIfAbsent(
+              remoteMethod.method.getName() + "/" + remoteMethod.getParameterCount(), remoteMethod);
+      if (overload != null) {
+        overload.ambiguous = true;
+        remoteMethod.ambiguous = true;
+      }
+    }
+
+    for (RemoteMethod remoteMethod : remoteMethods) {
+      Combinable combinable = remoteMethod.method.getAnnotation(Combinable.class);
+      if (combinable != null) {
+        remoteMethod.combineTarget = getCombineTarget(remoteMethod, combinable);
+      }
+    }
+  }
+
+  /**
+   * Gets the method that receives the total of calls to a {@link Combinable} method.
+   *
+   * @param remoteMethod the {@link Combinable} method
+   * @param combinable its annotation
+   * @return the method to call with the total
+   * @throws IllegalArgumentException if either method does not have a supported signature
+   */
+  private RemoteMethod getCombineTarget(RemoteMethod remoteMethod, Combinable combinable) {
+    Method method = remoteMethod.method;
+    Class<?>[] parameterTypes = method.getParameterTypes();
+    if (method.getReturnType() != void.class
+        || parameterTypes.length > 1
+        || (parameterTypes.length == 1
+            && parameterTypes[0] != int.class
+            && parameterTypes[0] != long.class)) {
+      throw new IllegalArgumentException(
+          "Combinable method "
+              + remoteMethod.signature
+              + " must return void and take no arguments or a single int or long");
+    }
+
+    String targetName = combinable.into().isEmpty() ? method.getName() : combinable.into();
+    RemoteMethod combineTarget = remoteMethodsBySignature.get(targetName + "(long)");
+    if (combineTarget == null || combineTarget.method.getReturnType() != void.class) {
+      throw new IllegalArgumentException(
+          "Combinable method "
+              + remoteMethod.signature
+              + " needs a method "
+              + targetName
+              + "(long) that returns void");
+    }
+    return combineTarget;
+  }
+
+  /**
+   * Gets the number of remote methods. The method IDs range from {@code 0} to this count.
+   *
+   * @return the number of remote methods
+   */
+  int size() {
+    return remoteMethods.length;
+  }
+
+  /**
+   * Gets the remote method with ID {@code methodId}.
+   *
+   * @param methodId the method ID
+   * @return the {@link RemoteMethod}
+   */
+  RemoteMethod get(int methodId) {
+    if (methodId < 0 || methodId >= remoteMethods.length) {
+      throw new UnsupportedOperationException(
+          "Method ID " + methodId + " not found on " + microserviceClass.getName());
+    }
+    return remoteMethods[methodId];
+  }
+
+  /**
+   * Gets the remote method with the same signature as {@code method}.
+   *
+   * @param method the method, which may be declared by a superclass
+   * @return the {@link RemoteMethod}
+   */
+  RemoteMethod get(Method method) {
+    RemoteMethod remoteMethod = remoteMethodsByMethod.get(method);
+    if (remoteMethod != null) {
+      return remoteMethod;
+    }
+
+    // Falls back to the signature for a method declared elsewhere, such as on an interface.
+    remoteMethod = remoteMethodsBySignature.get(getSignature(method));
+    if (remoteMethod == null) {
+      throw new UnsupportedOperationException(
+          "Method " + getSignature(method) + " cannot be called remotely");
+    }
+    return remoteMethod;
+  }
+
+  /**
+   * Finds a remote method by signature (such as {@code add(int,int)}), or by name and number of
+   * parameters if the name does not have overloads with the same number of parameters.
+   *
+   * @param methodNameOrSignature the method name or signature
+   * @param parameterCount the number of parameters
+   * @return the matching {@link RemoteMethod}
+   */
+  RemoteMethod find(String methodNameOrSignature, int parameterCount) {
+    RemoteMethod remoteMethod = remoteMethodsBySignature.get(methodNameOrSignature);
+    if (remoteMethod == null) {
+      remoteMethod = remoteMethodsByNameAndCount.get(methodNameOrSignature + "/" + parameterCount);
+      if (remoteMethod != null && remoteMethod.ambiguous) {
+        throw new IllegalArgumentException(
+            "Method " + methodNameOrSignature + " is overloaded; call it by signature instead");
+      }
+    }
+    if (remoteMethod == null || remoteMethod.getParameterCount() != parameterCount) {
+      throw new UnsupportedOperationException(
+          "Method " + methodNameOrSignature + " with " + parameterCount + " args not found");
+    }
+    return remoteMethod;
+  }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import coollog.experiments.oomicroservice.framework.MethodTable.RemoteMethod;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+/**
+ * Keeps the {@link MethodMetrics} of every remote method called or served by this process, and
+ * formats them for the built-in {@link #METHOD_NAME} method and for Prometheus.
+ */
+class Metrics {
+
+  /**
+   * The reserved name of the built-in method that every {@link Microservice} serves its metrics
+   * with.
+   */
+  static final String METHOD_NAME = "__metrics";
+
+  /** Prefixes the name of each metric for Prometheus. */
+  private static final String PROMETHEUS_PREFIX = "oomicroservice_";
+
+  /** Which side of a call the metrics are recorded on. */
+  enum Side {
+
+    /**
+     * The calling side. Records the whole round trip of each call as its execution time, and no
+     * queue time.
+     */
+    CLIENT,
+
+    /**
+     * The serving side. Records the time each call waited from when its request was read until it
+     * started as its queue time.
+     */
+    SERVER
+  }
+
+  /** The metrics of every method of a {@link Microservice}, on one side. */
+  private static class ServiceMetrics {
+
+    private final Side side;
+    private final Class<? extends Microservice> microserviceClass;
+    private final MethodTable methodTable;
+    private final MethodMetrics[] methodMetrics;
+
+    private ServiceMetrics(
+        Side side, Class<? extends Microservice> microserviceClass, MethodTable methodTable) {
+      this.side = side;
+      this.microserviceClass = microserviceClass;
+      this.methodTable = methodTable;
+      methodMetrics = new MethodMetrics[methodTable.size()];
+      for (int methodId = 0; methodId < methodMetrics.length; methodId++) {
+        methodMetrics[methodId] = new MethodMetrics();
+      }
+    }
+  }
+
+  /** The metrics of this process, by side and {@link Microservice} class name. */
+  private static final Map<String, ServiceMetrics> serviceMetricsMap =
+      new ConcurrentSkipListMap<>();
+
+  /**
+   * Gets the {@link MethodMetrics} of every method of a {@link Microservice}, creating them if
+   * needed. Every caller or server of the same {@link Microservice} on the same side shares them.
+   *
+   * @param side the side of the calls
+   * @param microserviceClass the {@link Microservice} class
+   * @param methodTable the {@link MethodTable} of {@code microserviceClass}
+   * @return the {@link MethodMetrics}, indexed by method ID
+   */
+  static MethodMetrics[] get(
+      Side side, Class<? extends Microservice> microserviceClass, MethodTable methodTable) {
+    return serviceMetricsMap.computeIfAbsent(
+            side.name().toLowerCase() + " " + microserviceClass.getName(),
+            ignored -> new ServiceMetrics(side, microserviceClass, methodTable))
+        .methodMetrics;
+  }
+
+  /**
+   * Formats the metrics of every method that has been called, a line per method and side.
+   *
+   * @return the formatted metrics
+   */
+  static String format() {
+    StringBuilder formatted = new StringBuilder();
+    for (ServiceMetrics serviceMetrics : serviceMetricsMap.values()) {
+      for (int methodId = 0; methodId < serviceMetrics.methodMetrics.length; methodId++) {
+        MethodMetrics methodMetrics = serviceMetrics.methodMetrics[methodId];
+        if (methodMetrics.getCalls() == 0) {
+          continue;
+        }
+        formatted
+            .append(serviceMetrics.side.name().toLowerCase())
+            .append(' ')
+            .append(serviceMetrics.microserviceClass.getName())
+            .append('#')
+            .append(getMethodName(serviceMetrics.methodTable.get(methodId)))
+            .append(" calls=")
+            .append(methodMetrics.getCalls())
+            .append(" errors=")
+            .append(methodMetrics.getErrors())
+            .append(" bytes_in=")
+            .append(methodMetrics.getBytesIn())
+            .append(" bytes_out=")
+            .append(methodMetrics.getBytesOut());
+        if (methodMetrics.getQueueTime().getCount() > 0) {
+          appendPercentiles(formatted, "queue", methodMetrics.getQueueTime());
+        }
+        appendPercentiles(formatted, "execution", methodMetrics.getExecutionTime());
+        formatted.append('\n');
+      }
+    }
+    return formatted.toString();
+  }
+
+  private static void appendPercentiles(StringBuilder formatted, String name, Histogram histogram) {
+    for (int percentile : new int[] {50, 99}) {
+      formatted
+          .append(' ')
+          .append(name)
+          .append("_p")
+          .append(percentile)
+          .append("_us=")
+          .append(TimeUnit.NANOSECONDS.toMicros(histogram.getPercentileNanos(percentile)));
+    }
+  }
+
+  /**
+   * Formats the metrics of every method that has been called in the Prometheus text exposition
+   * format.
+   *
+   * @return the formatted metrics
+   */
+  static String formatPrometheus() {
+    StringBuilder formatted = new StringBuilder();
+    appendPrometheusCounter(
+        formatted, "calls_total", "Remote method calls.", MethodMetrics::getCalls);
+    appendPrometheusCounter(
+        formatted, "errors_total", "Remote method calls that failed.", MethodMetrics::getErrors);
+    appendPrometheusCounter(
+        formatted, "received_bytes_total", "Payload bytes received.", MethodMetrics::getBytesIn);
+    appendPrometheusCounter(
+        formatted, "sent_bytes_total", "Payload bytes sent.", MethodMetrics::getBytesOut);
+    appendPrometheusHistogram(
+        formatted, "queue_seconds", "Time from reading a request until it started.", true);
+    appendPrometheusHistogram(
+        formatted,
+        "execution_seconds",
+        "Time taken by a call once started, or the round trip on the client side.",
+        false);
+    return formatted.toString();
+  }
+
+  /**
+   * Appends a counter of every method.
+   *
+   * @param formatted the formatted metrics to append to
+   * @param name the name of the counter, without the prefix
+   * @param help the description of the counter
+   * @param counter gets the counter from the {@link MethodMetrics}
+   */
+  private static void appendPrometheusCounter(
+      StringBuilder formatted, String name, String help, ToLongFunction<MethodMetrics> counter) {
+    appendPrometheusHeader(formatted, name, help, "counter");
+    for (ServiceMetrics serviceMetrics : serviceMetricsMap.values()) {
+      for (int methodId = 0; methodId < serviceMetrics.methodMetrics.length; methodId++) {
+        if (serviceMetrics.methodMetrics[methodId].getCalls() == 0) {
+          continue;
+        }
+        formatted.append(PROMETHEUS_PREFIX).append(name);
+        appendPrometheusLabels(formatted, serviceMetrics, methodId, null);
+        formatted
+            .append(' ')
+            .append(counter.applyAsLong(serviceMetrics.methodMetrics[methodId]))
+            .append('\n');
+      }
+    }
+  }
+
+  /**
+   * Appends a histogram of every method.
+   *
+   * @param formatted the formatted metrics to append to
+   * @param name the name of the histogram, without the prefix
+   * @param help the description of the histogram
+   * @param queueTime whether to append the queue time or the execution time
+   */
+  private static void appendPrometheusHistogram(
+      StringBuilder formatted, String name, String help, boolean queueTime) {
+    appendPrometheusHeader(formatted, name, help, "histogram");
+    for (ServiceMetrics serviceMetrics : serviceMetricsMap.values()) {
+      if (queueTime && serviceMetrics.side == Side.CLIENT) {
+        continue;
+      }
+      for (int methodId = 0; methodId < serviceMetrics.methodMetrics.length; methodId++) {
+        MethodMetrics methodMetrics = serviceMetrics.methodMetrics[methodId];
+        if (methodMetrics.getCalls() == 0) {
+          continue;
+        }
+        Histogram histogram =
+            queueTime ? methodMetrics.getQueueTime() : methodMetrics.getExecutionTime();
+        long cumulativeCount = 0;
+        for (int bucket = 0; bucket < Histogram.BUCKET_COUNT; bucket++) {
+          cumulativeCount += histogram.getBucketCount(bucket);
+          long upperBoundNanos = Histogram.getUpperBoundNanos(bucket);
+          formatted.append(PROMETHEUS_PREFIX).append(name).append("_bucket");
+          appendPrometheusLabels(
+              formatted,
+              serviceMetrics,
+              methodId,
+              upperBoundNanos == Long.MAX_VALUE ? "+Inf" : toSeconds(upperBoundNanos));
+          formatted.append(' ').append(cumulativeCount).append('\n');
+        }
+        formatted.append(PROMETHEUS_PREFIX).append(name).append("_sum");
+        appendPrometheusLabels(formatted, serviceMetrics, methodId, null);
+        formatted.append(' ').append(toSeconds(histogram.getSumNanos())).append('\n');
+        formatted.append(PROMETHEUS_PREFIX).append(name).append("_count");
+        appendPrometheusLabels(formatted, serviceMetrics, methodId, null);
+        formatted.append(' ').append(cumulativeCount).append('\n');
+      }
+    }
+  }
+
+  private static void appendPrometheusHeader(
+      StringBuilder formatted, String name, String help, String type) {
+    formatted
+        .append("# HELP ")
+        .append(PROMETHEUS_PREFIX)
+        .append(name)
+        .append(' ')
+        .append(help)
+        .append("\n# TYPE ")
+        .append(PROMETHEUS_PREFIX)
+        .append(name)
+        .append(' ')
+        .append(type)
+        .append('\n');
+  }
+
+  /**
+   * Appends the labels that identify a method.
+   *
+   * @param formatted the formatted metrics to append to
+   * @param serviceMetrics the metrics of the {@link Microservice}
+   * @param methodId the ID of the method
+   * @param upperBound the {@code le} label of a histogram bucket, or {@code null} if not a bucket
+   */
+  private static void appendPrometheusLabels(
+      StringBuilder formatted, ServiceMetrics serviceMetrics, int methodId, String upperBound) {
+    formatted
+        .append("{side=\"")
+        .append(serviceMetrics.side.name().toLowerCase())
+        .append("\",service=\"")
+        .append(serviceMetrics.microserviceClass.getName())
+        .append("\",method=\"")
+        .append(getMethodName(serviceMetrics.methodTable.get(methodId)))
+        .append('"');
+    if (upperBound != null) {
+      formatted.append(",le=\"").append(upperBound).append('"');
+    }
+    formatted.append('}');
+  }
+
+  /** Names a method by its signature if its name alone is ambiguous. */
+  private static String getMethodName(RemoteMethod remoteMethod) {
+    return remoteMethod.isAmbiguous()
+        ? remoteMethod.getSignature()
+        : remoteMethod.getMethod().getName();
+  }
+
+  private static String toSeconds(long nanos) {
+    return Double.toString(nanos / 1e9);
+  }
+
+  private Metrics() {}
+}
@@ -16,9 +16,25 @@
 
 package coollog.experiments.oomicroservice.framework;
 
+import com.google.common.cache.CacheStats;
+import coollog.experiments.oomicroservice.framework.WireProtocol.Frame;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
 /** Implement for each microservice. */
 public abstract class Microservice {
 
+  /**
+   * The framed connections of the processes calling this {@link Microservice}, to push cache
+   * invalidations to. Is {@code null} in proxies, which are created without calling constructors.
+   */
+  private final Set<PushChannel> callerChannels = ConcurrentHashMap.newKeySet();
+
   /**
    * Use this to call a method on another {@link Microservice}.
    *
@@ -29,4 +45,120 @@ public abstract class Microservice {
   protected static <T extends Microservice> T service(Class<T> microserviceClass) {
     return ServiceRegistry.get(microserviceClass);
   }
+
+  /**
+   * Use this to call a method on another {@link Microservice} without waiting for it to return.
+   *
+   * <p>For example: {@code async(() -> service(NameService.class).getName())}. {@code remoteCall}
+   * should make exactly one call on a {@link Microservice}, and should not use its return value.
+   *
+   * @param remoteCall makes a single call on another {@link Microservice}
+   * @param <R> the return type of the call
+   * @return a future for the return value. Fails with a {@link RemoteInvocationException} if the
+   *     method threw on the other {@link Microservice}, or an {@link java.io.IOException} if the
+   *     call could not be made.
+   */
+  protected static <R> CompletableFuture<R> async(Supplier<R> remoteCall) {
+    return AsyncCalls.call(remoteCall);
+  }
+
+  /**
+   * Use this to call a {@code void} method on another {@link Microservice} without waiting for it
+   * to return.
+   *
+   * @param remoteCall makes a single call on another {@link Microservice}
+   * @return a future that completes once the method has returned
+   * @see #async(Supplier)
+   */
+  protected static CompletableFuture<Void> async(Runnable remoteCall) {
+    return AsyncCalls.call(
+        () -> {
+          remoteCall.run();
+          return null;
+        });
+  }
+
+  /**
+   * Use this to call a method on every replica of every shard of another {@link Microservice} at
+   * the same time, and reduce their results as they arrive.
+   *
+   * <p>For example: {@code broadcast(() -> service(PiService.class).getTrials(), Reducer.of(0L,
+   * Long::sum))}. {@code remoteCall} should make exactly one call on a {@link Microservice}, and
+   * should not use its return value. A call with a {@link ShardKey} goes to every replica of the
+   * shard that owns the key.
+   *
+   * @param remoteCall makes a single call on another {@link Microservice}
+   * @param reducer reduces the results
+   * @param <R> the return type of the call
+   * @param <A> the type of the reduced result
+   * @return the reduced results of every replica. Throws a {@link RemoteInvocationException} if the
+   *     method threw on any replica, or an {@link java.io.IOException} if a call could not be made.
+   */
+  protected static <R, A> A broadcast(Supplier<R> remoteCall, Reducer<? super R, A> reducer) {
+    return BroadcastCalls.call(remoteCall, reducer, -1);
+  }
+
+  /**
+   * Use this to call a method on every replica of every shard of another {@link Microservice} at
+   * the same time, and reduce the results that arrive within {@code timeout}.
+   *
+   * <p>The replicas that fail or do not answer in time are left out of the reduced results, and
+   * their calls are cancelled.
+   *
+   * @param remoteCall makes a single call on another {@link Microservice}
+   * @param reducer reduces the results
+   * @param timeout how long to wait for the results
+   * @param unit the unit of {@code timeout}
+   * @param <R> the return type of the call
+   * @param <A> the type of the reduced result
+   * @return the reduced results of the replicas that answered in time
+   * @see #broadcast(Supplier, Reducer)
+   */
+  protected static <R, A> A broadcast(
+      Supplier<R> remoteCall, Reducer<? super R, A> reducer, long timeout, TimeUnit unit) {
+    return BroadcastCalls.call(remoteCall, reducer, unit.toNanos(timeout));
+  }
+
+  /**
+   * Use this to tell the processes calling this {@link Microservice} that the results they cached
+   * for a {@link Cacheable} method are stale. Only reaches the processes that are connected.
+   *
+   * @param methodName the name of the {@link Cacheable} method
+   */
+  protected final void invalidateCachedResults(String methodName) {
+    if (callerChannels == null) {
+      return;
+    }
+    ByteBuffer payload = StandardCharsets.UTF_8.encode(methodName);
+    for (PushChannel callerChannel : callerChannels) {
+      callerChannel.push(new Frame(0, WireProtocol.FLAG_PUSH, payload.duplicate()));
+    }
+  }
+
+  /**
+   * Use this to tell the processes calling this {@link Microservice} that every result they cached
+   * for it is stale.
+   */
+  protected final void invalidateCachedResults() {
+    invalidateCachedResults("");
+  }
+
+  /**
+   * Use this to get the statistics of the results cached by this process for the {@link Cacheable}
+   * methods of another {@link Microservice}.
+   *
+   * @param microserviceClass the class of the other {@link Microservice}
+   * @return the hits, misses, and evictions, added up over every {@link Cacheable} method
+   */
+  protected static CacheStats cacheStats(Class<? extends Microservice> microserviceClass) {
+    return ServiceRegistry.getCacheStats(microserviceClass);
+  }
+
+  void addCallerChannel(PushChannel callerChannel) {
+    callerChannels.add(callerChannel);
+  }
+
+  void removeCallerChannel(PushChannel callerChannel) {
+    callerChannels.remove(callerChannel);
+  }
 }
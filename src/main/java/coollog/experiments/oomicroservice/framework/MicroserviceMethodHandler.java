@@ -16,88 +16,800 @@
 
 package coollog.experiments.oomicroservice.framework;
 
-import com.google.common.io.CharStreams;
-import java.io.*;
+import com.google.common.base.Defaults;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import coollog.experiments.oomicroservice.framework.MethodTable.RemoteMethod;
+import java.io.IOException;
 import java.lang.reflect.Method;
 import java.net.ConnectException;
-import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javassist.util.proxy.MethodHandler;
 
 /** Proxies a method invocation on another microservice. */
 class MicroserviceMethodHandler<T extends Microservice> implements MethodHandler {
 
-  private static final MethodInvocationSerializer METHOD_INVOCATION_SERIALIZER =
-      new BasicMethodInvocationSerializer();
+  /** Logs every call, so is rate-limited. */
+  private static final Logger CALL_LOGGER = Logger.get("call", 10);
+
+  private static final Logger LOGGER = Logger.get("client");
+
+  /** Shared by all handlers so that a single evictor thread manages every idle connection. */
+  private static final ConnectionPool CONNECTION_POOL = new ConnectionPool();
+
+  /** Maps from a host to its handler, to route the cache invalidations that the host pushes. */
+  private static final Map<String, MicroserviceMethodHandler<?>> handlersByHost =
+      new ConcurrentHashMap<>();
+
+  static {
+    CONNECTION_POOL.setPushListener(
+        (host, frame) -> {
+          MicroserviceMethodHandler<?> handler = handlersByHost.get(host);
+          if (handler != null) {
+            handler.invalidateCachedResults(
+                StandardCharsets.UTF_8.decode(frame.getPayload()).toString());
+          }
+        });
+  }
+
+  /** Shared by all handlers to send the totals of {@link Combinable} methods. */
+  private static final ScheduledExecutorService COMBINER_EXECUTOR_SERVICE =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("combiner-flusher").setDaemon(true).build());
+
+  /** How long to wait at shutdown for the final totals of {@link Combinable} methods to be sent. */
+  private static final long SHUTDOWN_FLUSH_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
 
   // TODO: The class and host should be unified and stored in the service registry.
   private final Class<T> clazz;
   private final String host;
+  private final MethodTable methodTable;
+  private final byte preamble;
+  private final MethodInvocationSerializer methodInvocationSerializer;
+
+  /** Whether or not each method is one-way, indexed by method ID. */
+  private final boolean[] oneWayMethods;
+
+  /** The number of shards of the target microservice. */
+  private final int shardCount;
+
+  /** Sends the calls to the replicas of each shard of the target microservice, by shard. */
+  private final ReplicaBalancer[] replicaBalancers;
+
+  /** Sends the one-way calls to each shard, or {@code null} if there are no one-way methods. */
+  private final OneWaySender[] oneWaySenders;
+
+  /** Groups the calls to each shard into batches, or {@code null} if batching is off. */
+  private final CallBatcher[] callBatchers;
+
+  /** Adds up the calls to each {@link Combinable} method, indexed by method ID. */
+  private final Combiner[] combiners;
+
+  /**
+   * Caches the serialized results of each {@link Cacheable} method by serialized call, indexed by
+   * method ID.
+   */
+  private final List<Cache<ByteBuffer, ByteBuffer>> resultCaches;
+
+  /** Decides when to hedge the calls to each {@link Hedged} method, indexed by method ID. */
+  private final HedgingPolicy[] hedgingPolicies;
+
+  /** The metrics of the calls to each method, indexed by method ID. */
+  private final MethodMetrics[] methodMetrics;
+
+  /** The name of the target microservice in the spans of traced calls and in flight events. */
+  private final String serviceName;
+
+  /** Maps from a serialized {@link SingleFlight} call to its pending response payload. */
+  private final Map<ByteBuffer, CompletableFuture<ByteBuffer>> inFlightCalls =
+      new ConcurrentHashMap<>();
+
+  /** Whether or not a flush of the {@link #combiners} was requested and has not started yet. */
+  private final AtomicBoolean combinerFlushRequested = new AtomicBoolean();
 
   /**
    * Creates a new {@link MicroserviceMethodHandler}.
    *
    * @param clazz the target {@link Microservice} class
    * @param host the host name of the target microservice
+   * @param serviceOptions the {@link ServiceOptions} the target microservice was registered with
+   * @throws IllegalArgumentException if a method made one-way by {@code serviceOptions} does not
+   *     exist or does not return {@code void}
    */
-  MicroserviceMethodHandler(Class<T> clazz, String host) {
+  MicroserviceMethodHandler(Class<T> clazz, String host, ServiceOptions serviceOptions) {
     this.clazz = clazz;
     this.host = host;
+    this.methodTable = MethodTable.of(clazz);
+    this.preamble = WireProtocol.getPreamble(serviceOptions.getWireFormat());
+    this.methodInvocationSerializer = WireProtocol.getSerializer(preamble);
+
+    oneWayMethods = new boolean[methodTable.size()];
+    Set<String> oneWayMethodNames = new HashSet<>(serviceOptions.getOneWayMethods());
+    boolean hasOneWayMethods = false;
+    for (int methodId = 0; methodId < oneWayMethods.length; methodId++) {
+      RemoteMethod remoteMethod = methodTable.get(methodId);
+      String methodName = remoteMethod.getMethod().getName();
+      if (serviceOptions.getOneWayMethods().contains(methodName)) {
+        if (remoteMethod.getMethod().getReturnType() != void.class) {
+          throw new IllegalArgumentException("One-way method " + methodName + " must return void");
+        }
+        oneWayMethodNames.remove(methodName);
+        oneWayMethods[methodId] = true;
+      }
+      oneWayMethods[methodId] |= remoteMethod.isOneWay();
+      hasOneWayMethods |= oneWayMethods[methodId];
+    }
+    if (!oneWayMethodNames.isEmpty()) {
+      throw new IllegalArgumentException(
+          "No such one-way methods on " + clazz.getName() + ": " + oneWayMethodNames);
+    }
+
+    shardCount = serviceOptions.getShards();
+    replicaBalancers = new ReplicaBalancer[shardCount];
+    oneWaySenders = hasOneWayMethods ? new OneWaySender[shardCount] : null;
+    callBatchers = serviceOptions.getMaxBatchSize() > 1 ? new CallBatcher[shardCount] : null;
+    for (int shard = 0; shard < shardCount; shard++) {
+      String shardHost = Shards.getHost(host, shard, shardCount);
+      replicaBalancers[shard] =
+          new ReplicaBalancer(
+              CONNECTION_POOL,
+              clazz,
+              shardHost,
+              preamble,
+              serviceOptions.getReplicas(),
+              serviceOptions.getCallTimeoutNanos());
+      if (oneWaySenders != null) {
+        oneWaySenders[shard] =
+            new OneWaySender(
+                replicaBalancers[shard],
+                serviceOptions.getOneWayQueueCapacity(),
+                serviceOptions.getOneWayOverflowPolicy());
+      }
+      if (callBatchers != null) {
+        callBatchers[shard] =
+            new CallBatcher(
+                replicaBalancers[shard],
+                serviceOptions.getMaxBatchSize(),
+                serviceOptions.getBatchLingerNanos());
+      }
+      handlersByHost.put(shardHost, this);
+    }
+
+    combiners = new Combiner[methodTable.size()];
+    boolean hasCombiners = false;
+    for (int methodId = 0; methodId < combiners.length; methodId++) {
+      RemoteMethod combineTarget = methodTable.get(methodId).getCombineTarget();
+      if (combineTarget != null) {
+        combiners[methodId] =
+            new Combiner(combineTarget, serviceOptions.getCombinerFlushThreshold());
+        hasCombiners = true;
+      }
+    }
+    resultCaches = newResultCaches(methodTable);
+    methodMetrics = Metrics.get(Metrics.Side.CLIENT, clazz, methodTable);
+    serviceName = Tracing.getServiceName(clazz);
+    hedgingPolicies = new HedgingPolicy[methodTable.size()];
+    for (int methodId = 0; methodId < hedgingPolicies.length; methodId++) {
+      Hedged hedged = methodTable.get(methodId).getHedged();
+      if (hedged != null) {
+        hedgingPolicies[methodId] = HedgingPolicy.of(hedged);
+      }
+    }
+    if (hasCombiners) {
+      COMBINER_EXECUTOR_SERVICE.scheduleWithFixedDelay(
+          this::flushCombiners,
+          serviceOptions.getCombinerFlushIntervalNanos(),
+          serviceOptions.getCombinerFlushIntervalNanos(),
+          TimeUnit.NANOSECONDS);
+      // Sends whatever is left when the process exits.
+      Runtime.getRuntime().addShutdownHook(new Thread(this::flushCombinersAtShutdown));
+    }
+  }
+
+  private static List<Cache<ByteBuffer, ByteBuffer>> newResultCaches(MethodTable methodTable) {
+    List<Cache<ByteBuffer, ByteBuffer>> resultCaches = new ArrayList<>(methodTable.size());
+    for (int methodId = 0; methodId < methodTable.size(); methodId++) {
+      Cacheable cacheable = methodTable.get(methodId).getCacheable();
+      resultCaches.add(
+          cacheable == null
+              ? null
+              : CacheBuilder.newBuilder()
+                  .maximumSize(cacheable.maxEntries())
+                  .expireAfterWrite(cacheable.ttl(), cacheable.unit())
+                  .recordStats()
+                  .build());
+    }
+    return resultCaches;
   }
 
   @Override
   public Object invoke(Object self, Method thisMethod, Method proceed, Object[] args)
       throws IOException {
-    //    if (thisMethod.getReturnType() != String.class) {
-    //      throw new IllegalArgumentException(
-    //          "Method " + thisMethod.getName() + " has non-String return type");
-    //    }
+    if (CALL_LOGGER.isEnabled(Logger.Level.DEBUG)) {
+      CALL_LOGGER.debug(
+          "Invoking proxied method", "class", clazz.getName(), "method", thisMethod.getName());
+    }
 
-    System.err.println("Invoking proxied method : " + clazz.getName() + "#" + thisMethod.getName());
+    return invoke(methodTable.get(thisMethod), args);
+  }
 
-    // Sends the TCP request.
-    try (Socket clientSocket = new Socket(host, 80);
-        OutputStream outputStream = clientSocket.getOutputStream();
-        OutputStreamWriter outputStreamWriter =
-            new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
-        BufferedWriter outputWriter = new BufferedWriter(outputStreamWriter);
-        InputStream inputStream = clientSocket.getInputStream();
-        InputStreamReader inputStreamReader =
-            new InputStreamReader(inputStream, StandardCharsets.UTF_8)) {
-      // Sends the serialized method call.
-      System.err.println("CALL " + host + "." + thisMethod.getName());
-      outputWriter.write(METHOD_INVOCATION_SERIALIZER.serialize(thisMethod, args));
-      outputWriter.flush();
+  /**
+   * Invokes a method on the target microservice.
+   *
+   * @param remoteMethod the method to invoke
+   * @param args the arguments
+   * @return the return value, or a placeholder if called inside {@link Microservice#async} or
+   *     {@link Microservice#broadcast}
+   * @throws IOException if the call could not be made
+   */
+  Object invoke(RemoteMethod remoteMethod, Object[] args) throws IOException {
+    Combiner combiner = combiners[remoteMethod.getId()];
+    if (combiner != null) {
+      // Adds up the call to be sent later.
+      if (combiner.add(args) && combinerFlushRequested.compareAndSet(false, true)) {
+        COMBINER_EXECUTOR_SERVICE.execute(this::flushCombiners);
+      }
+      if (AsyncCalls.isCapturing()) {
+        AsyncCalls.capture(CompletableFuture.completedFuture(null));
+      }
+      return null;
+    }
 
-      // Gets the response.
-      String response = CharStreams.toString(inputStreamReader);
-      //      System.err.println("GOT " + response);
+    return call(remoteMethod, args);
+  }
 
-      // Converts response to correct return type.
-      if (thisMethod.getReturnType().equals(String.class)) {
-        return response;
+  /**
+   * Calls a method on the target microservice.
+   *
+   * @param remoteMethod the method to call
+   * @param args the arguments
+   * @return the return value, or a placeholder if called inside {@link Microservice#async} or
+   *     {@link Microservice#broadcast}
+   * @throws IOException if the call could not be made
+   */
+  private Object call(RemoteMethod remoteMethod, Object[] args) throws IOException {
+    ByteBuffer requestPayload = methodInvocationSerializer.serialize(remoteMethod, args);
+    if (BroadcastCalls.isCapturing()) {
+      scatter(
+          remoteMethod,
+          remoteMethod.getShardKeyIndex() == -1 ? -1 : getShard(remoteMethod, args),
+          requestPayload);
+      return Defaults.defaultValue(remoteMethod.getMethod().getReturnType());
+    }
+    if (shardCount > 1 && remoteMethod.isBroadcast()) {
+      broadcast(remoteMethod, requestPayload);
+      return null;
+    }
+
+    ByteBuffer responseBody = send(remoteMethod, getShard(remoteMethod, args), requestPayload);
+    if (responseBody == null) {
+      return Defaults.defaultValue(remoteMethod.getMethod().getReturnType());
+    }
+    return methodInvocationSerializer.deserializeResult(remoteMethod, responseBody);
+  }
+
+  /**
+   * Sends a serialized method call to the target microservice.
+   *
+   * @param remoteMethod the method to call
+   * @param requestPayload the call serialized with {@link #getMethodInvocationSerializer}
+   * @return the serialized return value, or {@code null} if there is none to wait for because the
+   *     method is one-way or the call was made inside {@link Microservice#async} or {@link
+   *     Microservice#broadcast}
+   * @throws IOException if the call could not be made
+   * @throws RemoteInvocationException if the method failed on the target microservice
+   */
+  ByteBuffer send(RemoteMethod remoteMethod, ByteBuffer requestPayload) throws IOException {
+    if (BroadcastCalls.isCapturing()) {
+      scatter(remoteMethod, -1, requestPayload);
+      return null;
+    }
+    return send(remoteMethod, 0, requestPayload);
+  }
+
+  /**
+   * Whether or not {@link #send(RemoteMethod, ByteBuffer)} may still read the request payload of a
+   * call to {@code remoteMethod} after it returns, because the call is queued, batched, hedged, or
+   * made inside {@link Microservice#broadcast}. Otherwise the request payload is written before
+   * {@link #send(RemoteMethod, ByteBuffer)} returns, and the caller may reuse it.
+   *
+   * @param remoteMethod the method to call
+   * @return {@code true} if the request payload must not change after it is sent
+   */
+  boolean retainsRequestPayload(RemoteMethod remoteMethod) {
+    int methodId = remoteMethod.getId();
+    return oneWayMethods[methodId]
+        || hedgingPolicies[methodId] != null
+        || callBatchers != null
+        || BroadcastCalls.isCapturing();
+  }
+
+  /**
+   * Gets the shard that a call goes to.
+   *
+   * @param remoteMethod the method to call
+   * @param args the arguments
+   * @return the shard that owns the {@link ShardKey} argument, or the first shard if there is none
+   */
+  private int getShard(RemoteMethod remoteMethod, Object[] args) {
+    int shardKeyIndex = remoteMethod.getShardKeyIndex();
+    return shardCount == 1 || shardKeyIndex == -1
+        ? 0
+        : Shards.getShard(args[shardKeyIndex], shardCount);
+  }
+
+  /**
+   * Sends a serialized method call to a shard of the target microservice.
+   *
+   * @param remoteMethod the method to call
+   * @param shard the shard to call
+   * @param requestPayload the call serialized with {@link #getMethodInvocationSerializer}
+   * @return the serialized return value, or {@code null} if there is none to wait for because the
+   *     method is one-way or the call was made inside {@link Microservice#async}
+   * @throws IOException if the call could not be made
+   * @throws RemoteInvocationException if the method failed on the target microservice
+   */
+  private ByteBuffer send(RemoteMethod remoteMethod, int shard, ByteBuffer requestPayload)
+      throws IOException {
+    FlightEvents.ClientCall clientCallEvent = FlightEvents.ClientCall.start();
+    int requestBytes = requestPayload.remaining();
+    ByteBuffer responseBody = null;
+    boolean failed = true;
+    try {
+      responseBody = sendToShard(remoteMethod, shard, requestPayload);
+      failed = false;
+      return responseBody;
+
+    } finally {
+      clientCallEvent.commit(
+          serviceName,
+          remoteMethod.getMethod().getName(),
+          requestBytes,
+          responseBody == null ? 0 : responseBody.remaining(),
+          AsyncCalls.isCapturing(),
+          failed);
+    }
+  }
+
+  /**
+   * Sends a serialized method call to a shard of the target microservice, without recording a
+   * {@link FlightEvents.ClientCall}.
+   *
+   * @param remoteMethod the method to call
+   * @param shard the shard to call
+   * @param requestPayload the call serialized with {@link #getMethodInvocationSerializer}
+   * @return the serialized return value, or {@code null} if there is none to wait for because the
+   *     method is one-way or the call was made inside {@link Microservice#async}
+   * @throws IOException if the call could not be made
+   * @throws RemoteInvocationException if the method failed on the target microservice
+   */
+  private ByteBuffer sendToShard(RemoteMethod remoteMethod, int shard, ByteBuffer requestPayload)
+      throws IOException {
+    Cache<ByteBuffer, ByteBuffer> resultCache = resultCaches.get(remoteMethod.getId());
+    boolean singleFlight = remoteMethod.isSingleFlight() && !oneWayMethods[remoteMethod.getId()];
+    ByteBuffer callKey = null;
+    if (resultCache != null || singleFlight) {
+      // Copies the serialized call since the connection pool owns the request payload.
+      callKey = ByteBuffer.allocate(requestPayload.remaining());
+      callKey.put(requestPayload.duplicate()).flip();
+    }
 
-      } else if (thisMethod.getReturnType().equals(Integer.TYPE)) {
-        return Integer.valueOf(response);
+    if (resultCache != null) {
+      ByteBuffer cachedResponseBody = resultCache.getIfPresent(callKey);
+      if (cachedResponseBody != null) {
+        if (AsyncCalls.isCapturing()) {
+          AsyncCalls.capture(
+              CompletableFuture.completedFuture(
+                  methodInvocationSerializer.deserializeResult(
+                      remoteMethod, cachedResponseBody.duplicate())));
+          return null;
+        }
+        return cachedResponseBody.duplicate();
+      }
+    }
 
-      } else if (thisMethod.getReturnType().equals(Void.TYPE)) {
-        return null;
+    if (oneWayMethods[remoteMethod.getId()]) {
+      // Queues the call and returns without waiting for a response.
+      if (CALL_LOGGER.isEnabled(Logger.Level.DEBUG)) {
+        CALL_LOGGER.debug(
+            "Queuing one-way call", "host", host, "method", remoteMethod.getMethod().getName());
+      }
+      oneWaySenders[shard].send(requestPayload);
+      if (AsyncCalls.isCapturing()) {
+        AsyncCalls.capture(CompletableFuture.completedFuture(null));
       }
+      return null;
+    }
+
+    CompletableFuture<ByteBuffer> responseFuture =
+        singleFlight
+            ? joinInFlightCall(remoteMethod, shard, callKey, requestPayload)
+            : sendRequest(remoteMethod, shard, requestPayload);
+
+    ByteBuffer finalCallKey = callKey;
+    if (AsyncCalls.isCapturing()) {
+      // Hands the pending result to Microservice#async.
+      AsyncCalls.capture(
+          responseFuture.thenApplyAsync(
+              responsePayload -> {
+                try {
+                  ByteBuffer responseBody = getResponseBody(remoteMethod, responsePayload);
+                  cacheResponseBody(remoteMethod, resultCache, finalCallKey, responseBody);
+                  return methodInvocationSerializer.deserializeResult(remoteMethod, responseBody);
 
-      // TODO: Add more supported return types.
+                } catch (IOException ex) {
+                  throw new CompletionException(ex);
+                }
+              }));
+      return null;
+    }
+
+    ByteBuffer responsePayload = awaitResponse(responseFuture, shard);
+    ByteBuffer responseBody = getResponseBody(remoteMethod, responsePayload);
+    cacheResponseBody(remoteMethod, resultCache, callKey, responseBody);
+    return responseBody;
+  }
 
+  /**
+   * Sends a serialized {@link Broadcast} method call to every shard of the target microservice.
+   *
+   * @param remoteMethod the method to call
+   * @param requestPayload the call serialized with {@link #getMethodInvocationSerializer}
+   * @throws IOException if the call could not be made to a shard
+   * @throws RemoteInvocationException if the method failed on a shard
+   */
+  private void broadcast(RemoteMethod remoteMethod, ByteBuffer requestPayload) throws IOException {
+    if (oneWayMethods[remoteMethod.getId()]) {
+      for (int shard = 0; shard < shardCount; shard++) {
+        oneWaySenders[shard].send(requestPayload.duplicate());
+      }
+      if (AsyncCalls.isCapturing()) {
+        AsyncCalls.capture(CompletableFuture.completedFuture(null));
+      }
+      return;
+    }
+
+    // Sends to every shard before waiting for any of them.
+    List<CompletableFuture<ByteBuffer>> responseFutures = new ArrayList<>();
+    for (int shard = 0; shard < shardCount; shard++) {
+      responseFutures.add(sendRequest(remoteMethod, shard, requestPayload.duplicate()));
+    }
+
+    if (AsyncCalls.isCapturing()) {
+      AsyncCalls.capture(
+          CompletableFuture.allOf(responseFutures.toArray(new CompletableFuture<?>[0]))
+              .thenApply(
+                  ignored -> {
+                    for (CompletableFuture<ByteBuffer> responseFuture : responseFutures) {
+                      getResponseBody(remoteMethod, responseFuture.join());
+                    }
+                    return null;
+                  }));
+      return;
+    }
+
+    for (int shard = 0; shard < shardCount; shard++) {
+      getResponseBody(remoteMethod, awaitResponse(responseFutures.get(shard), shard));
+    }
+  }
+
+  /**
+   * Sends a serialized method call made inside {@link Microservice#broadcast} to every replica of
+   * the shards it may go to, and hands their pending results to {@link BroadcastCalls}. The call
+   * skips the result cache, single-flight, batching, and hedging, since it needs a fresh result
+   * from every replica. It is not traced.
+   *
+   * @param remoteMethod the method to call
+   * @param shard the shard that owns the {@link ShardKey} argument, or {@code -1} to call every
+   *     shard
+   * @param requestPayload the call serialized with {@link #getMethodInvocationSerializer}
+   * @throws UnsupportedOperationException if the method is one-way, and so has no results
+   */
+  private void scatter(RemoteMethod remoteMethod, int shard, ByteBuffer requestPayload) {
+    if (oneWayMethods[remoteMethod.getId()]) {
       throw new UnsupportedOperationException(
-          "Method "
-              + thisMethod.getName()
-              + " has unsupported return type "
-              + thisMethod.getReturnType());
+          "broadcast() does not support @OneWay method " + remoteMethod.getMethod().getName());
+    }
+
+    List<CompletableFuture<?>> resultFutures = new ArrayList<>();
+    int firstShard = shard == -1 ? 0 : shard;
+    int lastShard = shard == -1 ? shardCount - 1 : shard;
+    for (int currentShard = firstShard; currentShard <= lastShard; currentShard++) {
+      for (CompletableFuture<ByteBuffer> responseFuture :
+          replicaBalancers[currentShard].callEveryReplica(requestPayload)) {
+        CompletableFuture<Object> resultFuture =
+            recordCall(remoteMethod, requestPayload.remaining(), null, responseFuture)
+                .thenApplyAsync(
+                    responsePayload -> {
+                      try {
+                        return methodInvocationSerializer.deserializeResult(
+                            remoteMethod, getResponseBody(remoteMethod, responsePayload));
+
+                      } catch (IOException ex) {
+                        throw new CompletionException(ex);
+                      }
+                    });
+        // Cancels the request if the caller stops waiting for its result.
+        resultFuture.whenComplete(
+            (result, ex) -> {
+              if (ex instanceof CancellationException) {
+                responseFuture.cancel(false);
+              }
+            });
+        resultFutures.add(resultFuture);
+      }
+    }
+    BroadcastCalls.capture(resultFutures);
+  }
+
+  /**
+   * Waits for a response from a shard.
+   *
+   * @param responseFuture the pending response payload
+   * @param shard the shard that was called
+   * @return the response payload
+   * @throws IOException if the call failed
+   */
+  private ByteBuffer awaitResponse(CompletableFuture<ByteBuffer> responseFuture, int shard)
+      throws IOException {
+    String shardHost = replicaBalancers[shard].getHost();
+    try {
+      return ConnectionPool.awaitResponse(responseFuture, shardHost);
 
     } catch (ConnectException ex) {
-      System.err.println("Could not connect to " + host);
+      LOGGER.warn("Could not connect", "host", shardHost);
       throw ex;
     }
   }
 
+  /**
+   * Sends a request to a replica of a shard over a pooled connection, or as part of a batch if
+   * batching is on. Calls to a {@link Hedged} method and traced calls are not batched.
+   *
+   * @param remoteMethod the method to call
+   * @param shard the shard to call
+   * @param requestPayload the serialized method call
+   * @return the pending response payload
+   */
+  private CompletableFuture<ByteBuffer> sendRequest(
+      RemoteMethod remoteMethod, int shard, ByteBuffer requestPayload) {
+    // Sends the serialized method call over a pooled connection.
+    if (CALL_LOGGER.isEnabled(Logger.Level.DEBUG)) {
+      CALL_LOGGER.debug("Sending call", "host", host, "method", remoteMethod.getMethod().getName());
+    }
+    int requestBytes = requestPayload.remaining();
+    byte flags = 0;
+    Span span = Tracing.startClientSpan(remoteMethod.getMethod().getName(), serviceName);
+    if (span != null) {
+      requestPayload = WireProtocol.tracedPayload(span, requestPayload);
+      flags = WireProtocol.FLAG_TRACED;
+    }
+    HedgingPolicy hedgingPolicy = hedgingPolicies[remoteMethod.getId()];
+    CompletableFuture<ByteBuffer> responseFuture;
+    if (hedgingPolicy != null) {
+      responseFuture = replicaBalancers[shard].callHedged(flags, requestPayload, hedgingPolicy);
+    } else if (callBatchers != null && span == null) {
+      responseFuture = callBatchers[shard].call(requestPayload);
+    } else {
+      responseFuture = replicaBalancers[shard].callAsync(flags, requestPayload);
+    }
+    return recordCall(remoteMethod, requestBytes, span, responseFuture);
+  }
+
+  /**
+   * Records the {@link MethodMetrics} of a call once its response arrives, and finishes its {@link
+   * Span} if it is traced.
+   *
+   * @param remoteMethod the method that was called
+   * @param requestBytes the size of the request payload
+   * @param span the client {@link Span} of the call, or {@code null} if it is not traced
+   * @param responseFuture the pending response payload
+   * @return a future for the response payload that completes once the call is recorded, so that the
+   *     response payload is not read while it is
+   */
+  private CompletableFuture<ByteBuffer> recordCall(
+      RemoteMethod remoteMethod,
+      int requestBytes,
+      Span span,
+      CompletableFuture<ByteBuffer> responseFuture) {
+    MethodMetrics metrics = methodMetrics[remoteMethod.getId()];
+    long startNanos = System.nanoTime();
+    return responseFuture.whenComplete(
+        (responsePayload, ex) -> {
+          boolean failed =
+              responsePayload == null
+                  || responsePayload.get(responsePayload.position()) != WireProtocol.STATUS_OK;
+          metrics.record(
+              -1,
+              System.nanoTime() - startNanos,
+              responsePayload == null ? 0 : responsePayload.remaining(),
+              requestBytes,
+              failed);
+          if (span != null) {
+            span.finish(failed);
+          }
+        });
+  }
+
+  /**
+   * Waits for the same {@link SingleFlight} call if it is already in flight, or sends it otherwise.
+   *
+   * @param remoteMethod the method to call
+   * @param shard the shard to call
+   * @param callKey a copy of the serialized method call
+   * @param requestPayload the serialized method call
+   * @return the pending response payload, which is not shared with the other waiters
+   */
+  private CompletableFuture<ByteBuffer> joinInFlightCall(
+      RemoteMethod remoteMethod, int shard, ByteBuffer callKey, ByteBuffer requestPayload) {
+    CompletableFuture<ByteBuffer> inFlightCall = new CompletableFuture<>();
+    CompletableFuture<ByteBuffer> existingInFlightCall =
+        inFlightCalls.putIfAbsent(callKey, inFlightCall);
+    if (existingInFlightCall != null) {
+      inFlightCall = existingInFlightCall;
+
+    } else {
+      CompletableFuture<ByteBuffer> sharedInFlightCall = inFlightCall;
+      sendRequest(remoteMethod, shard, requestPayload)
+          .whenComplete(
+              (responsePayload, ex) -> {
+                // Stops sharing the call before it completes, so later calls send a new request.
+                inFlightCalls.remove(callKey, sharedInFlightCall);
+                if (ex != null) {
+                  sharedInFlightCall.completeExceptionally(ex);
+                } else {
+                  sharedInFlightCall.complete(responsePayload);
+                }
+              });
+    }
+    // Each waiter reads the response payload with its own position.
+    return inFlightCall.thenApply(ByteBuffer::duplicate);
+  }
+
+  /**
+   * Caches a serialized return value, unless it is {@code null}.
+   *
+   * @param remoteMethod the method that was called
+   * @param resultCache the cache for the method, or {@code null} if it is not {@link Cacheable}
+   * @param cacheKey the serialized method call
+   * @param responseBody the serialized return value
+   * @throws IOException if the serialized return value is malformed
+   */
+  private void cacheResponseBody(
+      RemoteMethod remoteMethod,
+      Cache<ByteBuffer, ByteBuffer> resultCache,
+      ByteBuffer cacheKey,
+      ByteBuffer responseBody)
+      throws IOException {
+    if (resultCache != null
+        && methodInvocationSerializer.deserializeResult(remoteMethod, responseBody.duplicate())
+            != null) {
+      resultCache.put(cacheKey, responseBody.duplicate());
+    }
+  }
+
+  /**
+   * Drops cached results, such as when the target microservice pushes an invalidation.
+   *
+   * @param methodName the name of the {@link Cacheable} method whose results to drop, or empty to
+   *     drop every cached result
+   */
+  void invalidateCachedResults(String methodName) {
+    for (int methodId = 0; methodId < resultCaches.size(); methodId++) {
+      Cache<ByteBuffer, ByteBuffer> resultCache = resultCaches.get(methodId);
+      if (resultCache != null
+          && (methodName.isEmpty()
+              || methodTable.get(methodId).getMethod().getName().equals(methodName))) {
+        resultCache.invalidateAll();
+      }
+    }
+  }
+
+  /**
+   * Gets the statistics of the results cached for every {@link Cacheable} method.
+   *
+   * @return the {@link CacheStats}, added up over every {@link Cacheable} method
+   */
+  CacheStats getCacheStats() {
+    CacheStats cacheStats = new CacheStats(0, 0, 0, 0, 0, 0);
+    for (Cache<ByteBuffer, ByteBuffer> resultCache : resultCaches) {
+      if (resultCache != null) {
+        cacheStats = cacheStats.plus(resultCache.stats());
+      }
+    }
+    return cacheStats;
+  }
+
+  /** Sends the calls added up for each {@link Combinable} method. */
+  private void flushCombiners() {
+    combinerFlushRequested.set(false);
+    for (Combiner combiner : combiners) {
+      if (combiner != null) {
+        combiner.flush((combineTarget, total) -> call(combineTarget, new Object[] {total}));
+      }
+    }
+  }
+
+  /**
+   * Sends the calls added up for each {@link Combinable} method, and waits for a bounded time until
+   * the ones to one-way methods are written, since they are only queued and the process is about to
+   * exit.
+   */
+  private void flushCombinersAtShutdown() {
+    flushCombiners();
+    if (oneWaySenders != null) {
+      long deadlineNanos = System.nanoTime() + SHUTDOWN_FLUSH_TIMEOUT_NANOS;
+      for (OneWaySender oneWaySender : oneWaySenders) {
+        oneWaySender.drain(deadlineNanos - System.nanoTime());
+      }
+    }
+  }
+
+  /**
+   * Gets the serialized return value from a response payload.
+   *
+   * @param remoteMethod the method that was called
+   * @param responsePayload the response payload
+   * @return the serialized return value
+   * @throws RemoteInvocationException if the method failed on the target microservice
+   */
+  private ByteBuffer getResponseBody(RemoteMethod remoteMethod, ByteBuffer responsePayload) {
+    if (responsePayload.get() != WireProtocol.STATUS_OK) {
+      throw new RemoteInvocationException(
+          clazz.getName()
+              + "#"
+              + remoteMethod.getMethod().getName()
+              + " failed: "
+              + StandardCharsets.UTF_8.decode(responsePayload));
+    }
+    return responsePayload;
+  }
+
+  /**
+   * Whether or not calls to {@code remoteMethod} are added up rather than sent one by one.
+   *
+   * @param remoteMethod the method
+   * @return {@code true} if {@code remoteMethod} is {@link Combinable}
+   */
+  boolean isCombined(RemoteMethod remoteMethod) {
+    return combiners[remoteMethod.getId()] != null;
+  }
+
+  /**
+   * Whether or not the shard that calls to {@code remoteMethod} go to depends on their arguments.
+   *
+   * @param remoteMethod the method
+   * @return {@code true} if the target microservice is sharded and {@code remoteMethod} has a
+   *     {@link ShardKey} or is a {@link Broadcast}
+   */
+  boolean isRoutedByArguments(RemoteMethod remoteMethod) {
+    return shardCount > 1 && (remoteMethod.getShardKeyIndex() != -1 || remoteMethod.isBroadcast());
+  }
+
+  MethodTable getMethodTable() {
+    return methodTable;
+  }
+
+  MethodInvocationSerializer getMethodInvocationSerializer() {
+    return methodInvocationSerializer;
+  }
+
   Class<T> getClazz() {
     return clazz;
   }
@@ -0,0 +1,439 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import coollog.experiments.oomicroservice.framework.MethodTable.RemoteMethod;
+import coollog.experiments.oomicroservice.framework.WireProtocol.Frame;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Forwards remote method calls to the running {@link Microservice}.
+ *
+ * <p>A dispatch table is built once when the handler is created: each method ID in the {@link
+ * MethodTable} maps to a {@link MethodHandle} that is already bound to the served instance, so
+ * dispatching a request is an array lookup and a direct call.
+ */
+class MicroserviceRequestHandler<T extends Microservice> implements RequestHandler {
+
+  /** Logs every call, so is rate-limited. */
+  private static final Logger CALL_LOGGER = Logger.get("call", 10);
+
+  /** The path that Prometheus scrapes the metrics from. */
+  private static final String PROMETHEUS_PATH = "/metrics";
+
+  /** Starts the first line of an HTTP {@code GET} request. */
+  private static final String HTTP_GET = "GET ";
+
+  /**
+   * Creates a {@link MethodHandle} that calls {@code method} on {@code serviceInstance} with its
+   * arguments spread from an {@code Object[]} and returns the (boxed) return value as an {@code
+   * Object}.
+   */
+  private static MethodHandle createInvoker(Method method, Object serviceInstance) {
+    try {
+      // Allows calls to public methods of non-public classes.
+      method.setAccessible(true);
+
+      return MethodHandles.lookup()
+          .unreflect(method)
+          .bindTo(serviceInstance)
+          .asSpreader(Object[].class, method.getParameterCount())
+          .asType(MethodType.methodType(Object.class, Object[].class));
+
+    } catch (IllegalAccessException ex) {
+      throw new IllegalArgumentException("Method " + method.getName() + " is not accessible", ex);
+    }
+  }
+
+  private final MethodTable methodTable;
+  private final T serviceInstance;
+  private final boolean prometheusEndpoint;
+
+  /** The dispatch table, indexed by method ID. */
+  private final MethodHandle[] invokers;
+
+  /** The metrics of the served calls, indexed by method ID. */
+  private final MethodMetrics[] methodMetrics;
+
+  /** The name of the served microservice in the spans of traced calls and in flight events. */
+  private final String serviceName;
+
+  /**
+   * Creates a new {@link MicroserviceRequestHandler}.
+   *
+   * @param microserviceClass the registered {@link Microservice} class
+   * @param serviceInstance the {@link Microservice} instance to serve
+   * @param prometheusEndpoint whether or not to serve the metrics of this process to HTTP {@code
+   *     GET} requests for {@link #PROMETHEUS_PATH}
+   */
+  MicroserviceRequestHandler(
+      Class<T> microserviceClass, T serviceInstance, boolean prometheusEndpoint) {
+    methodTable = MethodTable.of(microserviceClass);
+    this.serviceInstance = serviceInstance;
+    this.prometheusEndpoint = prometheusEndpoint;
+    invokers = new MethodHandle[methodTable.size()];
+    for (int methodId = 0; methodId < invokers.length; methodId++) {
+      invokers[methodId] = createInvoker(methodTable.get(methodId).getMethod(), serviceInstance);
+    }
+    methodMetrics = Metrics.get(Metrics.Side.SERVER, microserviceClass, methodTable);
+    serviceName = Tracing.getServiceName(microserviceClass);
+  }
+
+  @Override
+  public String getServiceName() {
+    return serviceName;
+  }
+
+  @Override
+  public void onConnectionOpened(PushChannel pushChannel) {
+    serviceInstance.addCallerChannel(pushChannel);
+  }
+
+  @Override
+  public void onConnectionClosed(PushChannel pushChannel) {
+    serviceInstance.removeCallerChannel(pushChannel);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Decodes the calls in place from the request payload, and encodes their results straight into
+   * a pooled response buffer, so that a call allocates little more than its arguments and return
+   * value.
+   */
+  @Override
+  public ByteBuffer handleFrame(MethodInvocationSerializer serializer, Frame request) {
+    Span span = null;
+    if (request.hasFlag(WireProtocol.FLAG_TRACED)) {
+      try {
+        span = WireProtocol.readTraceHeader(request.getPayload(), serviceName);
+
+      } catch (IOException ex) {
+        return WireProtocol.errorResponseFrame(request, ex.toString());
+      }
+    }
+
+    // Calls made while serving an untraced request are not traced either.
+    Span previousSpan = Tracing.enter(span == null ? Tracing.UNSAMPLED : span);
+    try {
+      return handleCalls(serializer, request, span);
+
+    } finally {
+      Tracing.exit(previousSpan);
+    }
+  }
+
+  /**
+   * Handles the method calls in a request frame.
+   *
+   * @param serializer the {@link MethodInvocationSerializer} negotiated for the connection
+   * @param request the request frame, positioned after its trace header if it has one
+   * @param span the server {@link Span} of the request, or {@code null} if it is not traced
+   * @return the encoded response frame, or {@code null} if the request is one-way
+   */
+  private ByteBuffer handleCalls(MethodInvocationSerializer serializer, Frame request, Span span) {
+    // The response goes into the same kind of buffer as the request, direct for a channel and heap
+    // for a stream, so that the engine writes it without copying.
+    ByteBuffer requestPayload = request.getPayload();
+    boolean batch = request.hasFlag(WireProtocol.FLAG_BATCH);
+    ByteBuffer response;
+    if (batch) {
+      // Runs the batched calls in order, reading each entry in place.
+      int entryCount;
+      try {
+        entryCount = WireProtocol.checkBatchPayload(requestPayload);
+
+      } catch (IOException ex) {
+        return WireProtocol.errorResponseFrame(request, ex.toString());
+      }
+      requestPayload.getInt();
+      response = WireProtocol.startFrame(requestPayload.remaining(), requestPayload.isDirect());
+      response.putInt(entryCount);
+      int payloadLimit = requestPayload.limit();
+      for (int entryIndex = 0; entryIndex < entryCount; entryIndex++) {
+        int entryEnd = requestPayload.getInt() + requestPayload.position();
+        requestPayload.limit(entryEnd);
+
+        // Leaves room for the length of the response entry, and fills it in afterwards.
+        response = BufferPool.ensureRemaining(response, Integer.BYTES);
+        int entryStart = response.position() + Integer.BYTES;
+        response.position(entryStart);
+        response =
+            handleCall(serializer, requestPayload, request.getCreatedNanos(), null, response);
+        response.putInt(entryStart - Integer.BYTES, response.position() - entryStart);
+
+        requestPayload.limit(payloadLimit);
+        requestPayload.position(entryEnd);
+      }
+
+    } else {
+      response = WireProtocol.startFrame(requestPayload.remaining(), requestPayload.isDirect());
+      response = handleCall(serializer, requestPayload, request.getCreatedNanos(), span, response);
+    }
+
+    if (request.hasFlag(WireProtocol.FLAG_ONE_WAY)) {
+      logOneWayFailures(response, batch);
+      BufferPool.release(response);
+      return null;
+    }
+    return WireProtocol.finishFrame(response, request.getRequestId(), (byte) 0);
+  }
+
+  /**
+   * Handles a single serialized method call, and records its {@link MethodMetrics}.
+   *
+   * @param serializer the {@link MethodInvocationSerializer} negotiated for the connection
+   * @param requestPayload the serialized method call
+   * @param receivedNanos when the request that carries the call was read
+   * @param span the server {@link Span} to finish once the call is done, or {@code null} if none
+   * @param response the response buffer to write the response payload to, which reports a failed
+   *     method call rather than throwing
+   * @return {@code response}, or the larger buffer it was moved to, positioned after the response
+   *     payload
+   */
+  private ByteBuffer handleCall(
+      MethodInvocationSerializer serializer,
+      ByteBuffer requestPayload,
+      long receivedNanos,
+      Span span,
+      ByteBuffer response) {
+    int requestBytes = requestPayload.remaining();
+    int responseStart = response.position();
+    long startNanos = System.nanoTime();
+    FlightEvents.ServerDeserialize deserializeEvent = FlightEvents.ServerDeserialize.start();
+    MethodInvocation methodInvocation;
+    try {
+      methodInvocation = serializer.deserialize(requestPayload, methodTable);
+
+    } catch (IOException | RuntimeException ex) {
+      deserializeEvent.commit(serviceName, null, requestBytes);
+      if (span != null) {
+        span.finish(true);
+      }
+      return putError(response, ex);
+    }
+    // Keeps the called method, since the reused invocation may be overwritten during the call.
+    RemoteMethod remoteMethod = methodInvocation.getRemoteMethod();
+    String methodName = remoteMethod.getMethod().getName();
+    deserializeEvent.commit(serviceName, methodName, requestBytes);
+    if (span != null) {
+      span.setName(methodName);
+    }
+
+    boolean failed = false;
+    FlightEvents.ServerInvoke invokeEvent = FlightEvents.ServerInvoke.start();
+    try {
+      Object result = invoke(methodInvocation);
+      invokeEvent.commit(serviceName, methodName, false);
+
+      FlightEvents.ServerSerialize serializeEvent = FlightEvents.ServerSerialize.start();
+      int maxResultLength = serializer.getMaxResultLength(remoteMethod, result);
+      response = BufferPool.ensureRemaining(response, 1 + maxResultLength);
+      response.put(WireProtocol.STATUS_OK);
+      serializer.serializeResult(remoteMethod, result, response);
+      serializeEvent.commit(serviceName, methodName, response.position() - responseStart);
+
+    } catch (InvocationTargetException ex) {
+      invokeEvent.commit(serviceName, methodName, true);
+      failed = true;
+      response.position(responseStart);
+      response = putError(response, ex.getCause());
+
+    } catch (RuntimeException ex) {
+      failed = true;
+      response.position(responseStart);
+      response = putError(response, ex);
+    }
+
+    methodMetrics[remoteMethod.getId()].record(
+        startNanos - receivedNanos,
+        System.nanoTime() - startNanos,
+        requestBytes,
+        response.position() - responseStart,
+        failed);
+    if (span != null) {
+      span.finish(failed);
+    }
+    return response;
+  }
+
+  /**
+   * Logs the failed calls of a one-way request, since there is no one to report them to.
+   *
+   * @param response the response buffer, positioned after the response payload
+   * @param batch whether the response payload is a batch
+   */
+  private void logOneWayFailures(ByteBuffer response, boolean batch) {
+    if (!batch) {
+      logOneWayFailure(response, WireProtocol.HEADER_LENGTH, response.position());
+      return;
+    }
+    int entryCount = response.getInt(WireProtocol.HEADER_LENGTH);
+    int entryStart = WireProtocol.HEADER_LENGTH + Integer.BYTES;
+    for (int entryIndex = 0; entryIndex < entryCount; entryIndex++) {
+      int entryEnd = entryStart + Integer.BYTES + response.getInt(entryStart);
+      logOneWayFailure(response, entryStart + Integer.BYTES, entryEnd);
+      entryStart = entryEnd;
+    }
+  }
+
+  private void logOneWayFailure(ByteBuffer response, int payloadStart, int payloadEnd) {
+    if (response.get(payloadStart) != WireProtocol.STATUS_OK) {
+      CALL_LOGGER.warn(
+          "One-way call failed",
+          "service",
+          serviceName,
+          "error",
+          ValueCodec.getUtf8(response, payloadStart + 1, payloadEnd - payloadStart - 1));
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Also serves the metrics of this process to the built-in {@link Metrics#METHOD_NAME} method,
+   * and to HTTP {@code GET} requests for {@link #PROMETHEUS_PATH} if the Prometheus endpoint is on.
+   */
+  @Override
+  public void handleText(InputStream inputStream, OutputStream outputStream) throws IOException {
+    // Not wrapped in try-with-resource because the inputStream should not be closed afterwards.
+    BufferedReader inputReader =
+        new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+    String methodName = inputReader.readLine();
+    if (Metrics.METHOD_NAME.equals(methodName)) {
+      outputStream.write(Metrics.format().getBytes(StandardCharsets.UTF_8));
+      return;
+    }
+    if (methodName != null && methodName.startsWith(HTTP_GET)) {
+      serveHttp(methodName, inputReader, outputStream);
+      return;
+    }
+
+    // Deserializes the remote method call.
+    long startNanos = System.nanoTime();
+    MethodInvocation methodInvocation =
+        WireProtocol.TEXT_SERIALIZER.deserialize(methodName, inputReader, methodTable);
+    MethodMetrics metrics = methodMetrics[methodInvocation.getRemoteMethod().getId()];
+
+    // A text request comes from outside the framework, so may start a trace.
+    Span span =
+        Tracing.startRootServerSpan(
+            methodInvocation.getRemoteMethod().getMethod().getName(), serviceName);
+    Span previousSpan = Tracing.enter(span == null ? Tracing.UNSAMPLED : span);
+    String invokedMethodName = methodInvocation.getRemoteMethod().getMethod().getName();
+    FlightEvents.ServerInvoke invokeEvent = FlightEvents.ServerInvoke.start();
+    try {
+      Object result = invoke(methodInvocation);
+      invokeEvent.commit(serviceName, invokedMethodName, false);
+      byte[] output = String.valueOf(result).getBytes(StandardCharsets.UTF_8);
+      metrics.record(-1, System.nanoTime() - startNanos, 0, output.length, false);
+      if (span != null) {
+        span.finish(false);
+      }
+      outputStream.write(output);
+
+    } catch (InvocationTargetException ex) {
+      invokeEvent.commit(serviceName, invokedMethodName, true);
+      metrics.record(-1, System.nanoTime() - startNanos, 0, 0, true);
+      if (span != null) {
+        span.finish(true);
+      }
+      throw new IOException("Method " + invokedMethodName + " failed", ex.getCause());
+
+    } finally {
+      Tracing.exit(previousSpan);
+    }
+  }
+
+  /**
+   * Answers an HTTP {@code GET} request, such as a Prometheus scrape.
+   *
+   * @param requestLine the first line of the HTTP request
+   * @param inputReader reads the rest of the HTTP request
+   * @param outputStream the {@link OutputStream} of the incoming connection
+   * @throws IOException if an I/O exception occurs
+   */
+  private void serveHttp(String requestLine, BufferedReader inputReader, OutputStream outputStream)
+      throws IOException {
+    // Skips the headers, up to the empty line that ends them.
+    String header = inputReader.readLine();
+    while (header != null && !header.isEmpty()) {
+      header = inputReader.readLine();
+    }
+
+    String path = requestLine.substring(HTTP_GET.length()).split(" ", 2)[0];
+    boolean found = prometheusEndpoint && PROMETHEUS_PATH.equals(path);
+    byte[] body =
+        (found ? Metrics.formatPrometheus() : "Not found\n").getBytes(StandardCharsets.UTF_8);
+    String headers =
+        (found ? "HTTP/1.1 200 OK\r\n" : "HTTP/1.1 404 Not Found\r\n")
+            + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+            + "Content-Length: "
+            + body.length
+            + "\r\nConnection: close\r\n\r\n";
+    outputStream.write(headers.getBytes(StandardCharsets.US_ASCII));
+    outputStream.write(body);
+  }
+
+  /**
+   * Writes an error response payload.
+   *
+   * @param response the response buffer to write to
+   * @param throwable the reason the call failed
+   * @return {@code response}, or the larger buffer it was moved to, positioned after the response
+   *     payload
+   */
+  private static ByteBuffer putError(ByteBuffer response, Throwable throwable) {
+    String message = String.valueOf(throwable);
+    // A char takes at most 3 bytes in UTF-8.
+    response = BufferPool.ensureRemaining(response, 1 + 3 * message.length());
+    response.put(WireProtocol.STATUS_ERROR);
+    ValueCodec.putUtf8(response, message);
+    return response;
+  }
+
+  /**
+   * Invokes a deserialized remote method call on the served {@link Microservice}.
+   *
+   * @param methodInvocation the deserialized method call
+   * @return the return value of the invoked method
+   * @throws InvocationTargetException if the invoked method fails
+   */
+  private Object invoke(MethodInvocation methodInvocation) throws InvocationTargetException {
+    MethodHandle invoker = invokers[methodInvocation.getRemoteMethod().getId()];
+    try {
+      return (Object) invoker.invokeExact(methodInvocation.getArgs());
+
+    } catch (Throwable throwable) {
+      throw new InvocationTargetException(throwable);
+
+    } finally {
+      methodInvocation.clearArgs();
+    }
+  }
+}
@@ -0,0 +1,502 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import coollog.experiments.oomicroservice.framework.WireProtocol.Frame;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ServerEngine} that multiplexes connections over non-blocking selector event loops.
+ *
+ * <p>The event loops only read and write bytes. Each complete request frame is handed to a bounded
+ * worker pool, so a slow method call never stalls the other connections on the same event loop. If
+ * the pool is full, a call is answered with an error, while a one-way call, which has no response
+ * to report that with, is held back and its connection stops reading until a worker frees up. Text
+ * requests sent without the framed protocol are rare, so their connections are handed over to a
+ * worker thread in blocking mode. A request that is cancelled before it starts is skipped.
+ */
+class NioServerEngine implements ServerEngine {
+
+  private static final Logger LOGGER = Logger.get("server");
+
+  /** A selector thread that owns a set of connections. */
+  private class EventLoop implements Runnable {
+
+    private final Selector selector;
+
+    /** Tasks from other threads to run on this event loop. */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /** The connections with a deferred request, retried every {@link #DEFERRED_RETRY_MILLIS}. */
+    private final Queue<Connection> deferredConnections = new ArrayDeque<>();
+
+    private EventLoop() throws IOException {
+      selector = Selector.open();
+    }
+
+    /** Runs {@code task} on this event loop. */
+    private void execute(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    @Override
+    @SuppressWarnings("InfiniteLoopStatement")
+    public void run() {
+      while (true) {
+        try {
+          selector.select(deferredConnections.isEmpty() ? 0 : DEFERRED_RETRY_MILLIS);
+
+          Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+          while (selectedKeys.hasNext()) {
+            SelectionKey selectionKey = selectedKeys.next();
+            selectedKeys.remove();
+            ((Connection) selectionKey.attachment()).onReady();
+          }
+
+          Runnable task;
+          while ((task = tasks.poll()) != null) {
+            task.run();
+          }
+
+          for (int retries = deferredConnections.size(); retries > 0; retries--) {
+            deferredConnections.poll().dispatchDeferredRequest();
+          }
+
+        } catch (IOException | RuntimeException ex) {
+          LOGGER.error("Event loop failed", "exception", ex);
+        }
+      }
+    }
+  }
+
+  /** The state of a single connection. Only accessed from its {@link EventLoop}. */
+  private class Connection {
+
+    private final EventLoop eventLoop;
+    private final SocketChannel socketChannel;
+    private final SelectionKey selectionKey;
+    private final RequestHandler requestHandler;
+
+    /** A direct buffer from the {@link BufferPool}, or {@code null} once the connection closes. */
+    private ByteBuffer readBuffer = BufferPool.acquire(INITIAL_READ_BUFFER_SIZE);
+
+    /** Encoded frames to write, which are released to the {@link BufferPool} once written. */
+    private final Deque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+
+    /** The serializer negotiated by the preamble byte, or {@code null} before it is read. */
+    private MethodInvocationSerializer serializer;
+
+    /** Pushes frames on this connection once it is framed, or {@code null} before then. */
+    private PushChannel pushChannel;
+
+    /** The IDs of the requests that have not started yet, so that they can be cancelled. */
+    private final Set<Integer> pendingRequestIds = ConcurrentHashMap.newKeySet();
+
+    /**
+     * A one-way request that the worker pool rejected, or {@code null} if there is none. No more
+     * requests are read from the connection until it is handed to a worker.
+     */
+    private Frame deferredRequest;
+
+    private Connection(
+        EventLoop eventLoop, SocketChannel socketChannel, RequestHandler requestHandler)
+        throws IOException {
+      this.eventLoop = eventLoop;
+      this.socketChannel = socketChannel;
+      this.requestHandler = requestHandler;
+      selectionKey = socketChannel.register(eventLoop.selector, SelectionKey.OP_READ, this);
+    }
+
+    private void onReady() {
+      try {
+        if (selectionKey.isValid() && selectionKey.isWritable()) {
+          flushPendingWrites();
+        }
+        if (selectionKey.isValid() && selectionKey.isReadable()) {
+          readRequests();
+        }
+
+      } catch (IOException | RuntimeException ex) {
+        LOGGER.warn("Failed to serve connection", "exception", ex);
+        close();
+      }
+    }
+
+    /** Reads whatever is available and dispatches every complete request frame. */
+    private void readRequests() throws IOException {
+      if (socketChannel.read(readBuffer) == -1) {
+        close();
+        return;
+      }
+      readBuffer.flip();
+
+      if (serializer == null) {
+        if (!readBuffer.hasRemaining()) {
+          readBuffer.compact();
+          return;
+        }
+        serializer = WireProtocol.getSerializer(readBuffer.get(readBuffer.position()));
+        if (serializer == null) {
+          handOffTextRequest();
+          return;
+        }
+        readBuffer.get();
+        pushChannel = frame -> eventLoop.execute(() -> write(WireProtocol.encodeFrame(frame)));
+        requestHandler.onConnectionOpened(pushChannel);
+      }
+      dispatchBufferedRequests();
+    }
+
+    /**
+     * Dispatches every complete request frame in the flipped {@link #readBuffer}, up to a deferred
+     * one, and then makes room in the buffer for more.
+     */
+    private void dispatchBufferedRequests() throws IOException {
+      Frame request;
+      while (deferredRequest == null && (request = WireProtocol.decodeFrame(readBuffer)) != null) {
+        dispatch(request);
+      }
+
+      // Grows the buffer if the next frame does not fit.
+      if (readBuffer.remaining() >= WireProtocol.HEADER_LENGTH
+          && WireProtocol.frameLength(readBuffer) > readBuffer.capacity()) {
+        ByteBuffer largerReadBuffer = BufferPool.acquire(WireProtocol.frameLength(readBuffer));
+        largerReadBuffer.put(readBuffer);
+        BufferPool.release(readBuffer);
+        readBuffer = largerReadBuffer;
+
+      } else {
+        readBuffer.compact();
+      }
+      updateInterestOps();
+    }
+
+    /**
+     * Handles {@code request} on a worker thread and writes the response back on this loop, unless
+     * the request is one-way. Releases the request frame once done with it.
+     */
+    private void dispatch(Frame request) {
+      if (request.hasFlag(WireProtocol.FLAG_CANCEL)) {
+        pendingRequestIds.remove(request.getRequestId());
+        request.release();
+        return;
+      }
+      if (trySubmit(request)) {
+        return;
+      }
+
+      if (request.hasFlag(WireProtocol.FLAG_ONE_WAY)) {
+        // One-way calls have no response to report overload with, so this stops reading until a
+        // worker frees up, which pushes back on the caller without stalling the event loop.
+        deferredRequest = request;
+        eventLoop.deferredConnections.add(this);
+        return;
+      }
+      try {
+        write(WireProtocol.errorResponseFrame(request, "Server overloaded"));
+
+      } finally {
+        request.release();
+      }
+    }
+
+    /**
+     * Hands {@code request} to a worker thread.
+     *
+     * @return {@code false} if the worker pool is full
+     */
+    private boolean trySubmit(Frame request) {
+      pendingRequestIds.add(request.getRequestId());
+      try {
+        workerExecutorService.execute(() -> handleRequest(request));
+        return true;
+
+      } catch (RejectedExecutionException ex) {
+        pendingRequestIds.remove(request.getRequestId());
+        return false;
+      }
+    }
+
+    /** Runs on a worker thread. */
+    private void handleRequest(Frame request) {
+      if (!pendingRequestIds.remove(request.getRequestId())) {
+        request.release();
+        return;
+      }
+      ByteBuffer responseFrame;
+      try {
+        responseFrame = requestHandler.handleFrame(serializer, request);
+
+      } finally {
+        request.release();
+      }
+      if (responseFrame != null) {
+        eventLoop.execute(
+            () -> {
+              FlightEvents.ServerWrite writeEvent = FlightEvents.ServerWrite.start();
+              int responseBytes = responseFrame.remaining() - WireProtocol.HEADER_LENGTH;
+              write(responseFrame);
+              writeEvent.commit(requestHandler.getServiceName(), responseBytes);
+            });
+      }
+    }
+
+    /**
+     * Tries to hand the deferred request to a worker again, and reads on if it is taken. Otherwise
+     * queues the connection to try again after {@link #DEFERRED_RETRY_MILLIS}.
+     */
+    private void dispatchDeferredRequest() {
+      if (deferredRequest == null || readBuffer == null) {
+        return;
+      }
+      if (!trySubmit(deferredRequest)) {
+        eventLoop.deferredConnections.add(this);
+        return;
+      }
+      deferredRequest = null;
+
+      try {
+        readBuffer.flip();
+        dispatchBufferedRequests();
+
+      } catch (IOException | RuntimeException ex) {
+        LOGGER.warn("Failed to serve connection", "exception", ex);
+        close();
+      }
+    }
+
+    /**
+     * Writes an encoded frame, or queues it to be written once the connection is writable. Takes
+     * over {@code encodedFrame}, and releases it to the {@link BufferPool} once written.
+     */
+    private void write(ByteBuffer encodedFrame) {
+      if (!socketChannel.isOpen()) {
+        BufferPool.release(encodedFrame);
+        return;
+      }
+      pendingWrites.add(encodedFrame);
+      try {
+        flushPendingWrites();
+
+      } catch (IOException ex) {
+        LOGGER.warn("Failed to write response", "exception", ex);
+        close();
+      }
+    }
+
+    /** Writes as much as possible without blocking, and waits for writability for the rest. */
+    private void flushPendingWrites() throws IOException {
+      while (!pendingWrites.isEmpty()) {
+        ByteBuffer pendingWrite = pendingWrites.peek();
+        socketChannel.write(pendingWrite);
+        if (pendingWrite.hasRemaining()) {
+          break;
+        }
+        BufferPool.release(pendingWrites.poll());
+      }
+      updateInterestOps();
+    }
+
+    /** Reads unless a request is deferred, and waits for writability while writes are pending. */
+    private void updateInterestOps() {
+      if (selectionKey.isValid()) {
+        selectionKey.interestOps(
+            (deferredRequest == null ? SelectionKey.OP_READ : 0)
+                | (pendingWrites.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+      }
+    }
+
+    /**
+     * Switches the connection to blocking mode and serves the text request on a worker thread,
+     * replaying the bytes already read.
+     */
+    private void handOffTextRequest() {
+      byte[] alreadyRead = new byte[readBuffer.remaining()];
+      readBuffer.get(alreadyRead);
+      selectionKey.cancel();
+
+      // The channel stays registered until the selector next selects, so switches modes after that.
+      eventLoop.execute(
+          () -> {
+            try {
+              eventLoop.selector.selectNow();
+              socketChannel.configureBlocking(true);
+              workerExecutorService.execute(() -> serveTextRequest(alreadyRead));
+
+            } catch (IOException | RejectedExecutionException ex) {
+              LOGGER.warn("Failed to serve text request", "exception", ex);
+              close();
+            }
+          });
+    }
+
+    private void serveTextRequest(byte[] alreadyRead) {
+      // Uses a pushback stream since a SequenceInputStream would close the channel at its end.
+      try (PushbackInputStream inputStream =
+              new PushbackInputStream(
+                  Channels.newInputStream(socketChannel), Math.max(1, alreadyRead.length)) {
+                @Override
+                public int read(byte[] bytes, int offset, int length) throws IOException {
+                  // Returns the replayed bytes on their own, since reading on could block for
+                  // bytes that a request that does not end the stream, like HTTP, never sends.
+                  if (pos < buf.length && length > 0) {
+                    int replayedLength = Math.min(length, buf.length - pos);
+                    System.arraycopy(buf, pos, bytes, offset, replayedLength);
+                    pos += replayedLength;
+                    return replayedLength;
+                  }
+                  return super.read(bytes, offset, length);
+                }
+              };
+          OutputStream outputStream = Channels.newOutputStream(socketChannel)) {
+        inputStream.unread(alreadyRead);
+        requestHandler.handleText(inputStream, outputStream);
+
+      } catch (IOException | RuntimeException ex) {
+        LOGGER.warn("Failed to serve text request", "exception", ex);
+      } finally {
+        close();
+      }
+    }
+
+    private void close() {
+      if (pushChannel != null) {
+        requestHandler.onConnectionClosed(pushChannel);
+        pushChannel = null;
+      }
+      if (readBuffer != null) {
+        BufferPool.release(readBuffer);
+        readBuffer = null;
+      }
+      if (deferredRequest != null) {
+        deferredRequest.release();
+        deferredRequest = null;
+      }
+      ByteBuffer pendingWrite;
+      while ((pendingWrite = pendingWrites.poll()) != null) {
+        BufferPool.release(pendingWrite);
+      }
+      selectionKey.cancel();
+      try {
+        socketChannel.close();
+
+      } catch (IOException ex) {
+        // Ignores exceptions on close.
+      }
+    }
+  }
+
+  private static final int INITIAL_READ_BUFFER_SIZE = 16 * 1024;
+
+  /** How often a connection with a deferred request tries to hand it to a worker again. */
+  private static final long DEFERRED_RETRY_MILLIS = 1;
+
+  private final int eventLoopThreads;
+  private final ExecutorService workerExecutorService;
+
+  private ServerSocketChannel serverSocketChannel;
+
+  /**
+   * Creates a new {@link NioServerEngine}.
+   *
+   * @param eventLoopThreads the number of selector event loop threads
+   * @param workerThreads the number of threads that run method calls
+   * @param maxQueuedRequests the number of requests that may wait for a worker thread
+   */
+  NioServerEngine(int eventLoopThreads, int workerThreads, int maxQueuedRequests) {
+    this.eventLoopThreads = eventLoopThreads;
+    BlockingQueue<Runnable> queue =
+        maxQueuedRequests == 0
+            ? new SynchronousQueue<>()
+            : new ArrayBlockingQueue<>(maxQueuedRequests);
+    workerExecutorService =
+        new ThreadPoolExecutor(
+            workerThreads,
+            workerThreads,
+            0,
+            TimeUnit.MILLISECONDS,
+            queue,
+            new ThreadFactoryBuilder().setNameFormat("worker-%d").setDaemon(true).build());
+  }
+
+  @Override
+  public int bind(InetSocketAddress address) throws IOException {
+    serverSocketChannel = ServerSocketChannel.open();
+    serverSocketChannel.bind(address);
+    return serverSocketChannel.socket().getLocalPort();
+  }
+
+  @Override
+  @SuppressWarnings("InfiniteLoopStatement")
+  public void serve(RequestHandler requestHandler) throws IOException {
+    Preconditions.checkState(serverSocketChannel != null, "bind must be called before serve");
+    ThreadFactory eventLoopThreadFactory =
+        new ThreadFactoryBuilder().setNameFormat("event-loop-%d").setDaemon(true).build();
+    EventLoop[] eventLoops = new EventLoop[eventLoopThreads];
+    for (int eventLoopIndex = 0; eventLoopIndex < eventLoopThreads; eventLoopIndex++) {
+      eventLoops[eventLoopIndex] = new EventLoop();
+      eventLoopThreadFactory.newThread(eventLoops[eventLoopIndex]).start();
+    }
+
+    // Accepts on this thread and spreads the connections across the event loops.
+    try (ServerSocketChannel serverSocketChannel = this.serverSocketChannel) {
+      for (int connectionIndex = 0; ; connectionIndex++) {
+        SocketChannel socketChannel = serverSocketChannel.accept();
+        socketChannel.configureBlocking(false);
+        socketChannel.socket().setTcpNoDelay(true);
+
+        EventLoop eventLoop = eventLoops[Math.floorMod(connectionIndex, eventLoopThreads)];
+        eventLoop.execute(
+            () -> {
+              try {
+                new Connection(eventLoop, socketChannel, requestHandler);
+
+              } catch (IOException ex) {
+                LOGGER.warn("Failed to register connection", "exception", ex);
+              }
+            });
+      }
+    }
+  }
+}
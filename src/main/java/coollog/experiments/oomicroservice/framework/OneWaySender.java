@@ -0,0 +1,186 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import coollog.experiments.oomicroservice.framework.ServiceOptions.OverflowPolicy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends one-way calls to a single microservice from a bounded queue on a background thread. Calls
+ * that queue up while the sender thread is writing are sent together in a single batch frame.
+ */
+class OneWaySender {
+
+  private static final Logger LOGGER = Logger.get("client");
+  private static final Logger CALL_LOGGER = Logger.get("call", 10);
+
+  /** The most calls sent in a single batch frame. */
+  private static final int MAX_CALLS_PER_BATCH = 256;
+
+  private final ReplicaBalancer replicaBalancer;
+  private final String host;
+  private final BlockingQueue<ByteBuffer> sendQueue;
+  private final OverflowPolicy overflowPolicy;
+
+  private final Thread senderThread;
+  private final AtomicBoolean senderThreadStarted = new AtomicBoolean();
+  private final AtomicLong droppedCount = new AtomicLong();
+
+  /** The calls queued or being written. */
+  private final AtomicInteger unsentCount = new AtomicInteger();
+
+  /** The thread waiting in {@link #drain}, if any, woken after each batch. */
+  private volatile Thread drainingThread;
+
+  /**
+   * Creates a new {@link OneWaySender}. The sender thread starts on the first call.
+   *
+   * @param replicaBalancer sends the calls to a replica of the microservice
+   * @param queueCapacity how many calls may wait to be sent
+   * @param overflowPolicy what to do with calls made while the queue is full
+   */
+  OneWaySender(ReplicaBalancer replicaBalancer, int queueCapacity, OverflowPolicy overflowPolicy) {
+    this.replicaBalancer = replicaBalancer;
+    this.host = replicaBalancer.getHost();
+    this.sendQueue = new ArrayBlockingQueue<>(queueCapacity);
+    this.overflowPolicy = overflowPolicy;
+
+    senderThread = new Thread(this::sendQueuedCalls, "one-way-sender-" + host);
+    senderThread.setDaemon(true);
+  }
+
+  /**
+   * Queues a one-way call to be sent.
+   *
+   * @param requestPayload the request payload
+   * @throws InterruptedIOException if interrupted while waiting for room in the queue
+   * @throws RejectedExecutionException if the queue is full and the {@link OverflowPolicy} is
+   *     {@link OverflowPolicy#FAIL}
+   */
+  void send(ByteBuffer requestPayload) throws InterruptedIOException {
+    if (!senderThreadStarted.get() && senderThreadStarted.compareAndSet(false, true)) {
+      senderThread.start();
+    }
+
+    // Counts the call before queueing it, so that the sender thread never counts it down first.
+    unsentCount.incrementAndGet();
+    switch (overflowPolicy) {
+      case BLOCK:
+        try {
+          sendQueue.put(requestPayload);
+
+        } catch (InterruptedException ex) {
+          unsentCount.decrementAndGet();
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while queueing a call to " + host);
+        }
+        break;
+
+      case DROP:
+        if (!sendQueue.offer(requestPayload)) {
+          unsentCount.decrementAndGet();
+          // Logs each drop, with the total so far since the rate limit may skip some lines.
+          CALL_LOGGER.warn(
+              "Dropped one-way call", "host", host, "dropped", droppedCount.incrementAndGet());
+        }
+        break;
+
+      case FAIL:
+        if (!sendQueue.offer(requestPayload)) {
+          unsentCount.decrementAndGet();
+          throw new RejectedExecutionException("Too many queued one-way calls to " + host);
+        }
+        break;
+
+      default:
+        throw new IllegalStateException("Unknown overflow policy " + overflowPolicy);
+    }
+  }
+
+  /**
+   * Waits until every queued call has been written, for at most {@code timeoutNanos}. The sender
+   * thread is a daemon, so this lets a shutdown hook send calls queued just before the process
+   * exits. Only one thread may wait at a time.
+   *
+   * @param timeoutNanos the longest time to wait, in nanoseconds
+   * @return {@code true} if every queued call was written, or {@code false} if the wait timed out
+   */
+  boolean drain(long timeoutNanos) {
+    long deadlineNanos = System.nanoTime() + timeoutNanos;
+    drainingThread = Thread.currentThread();
+    try {
+      while (unsentCount.get() > 0) {
+        long remainingNanos = deadlineNanos - System.nanoTime();
+        if (remainingNanos <= 0) {
+          LOGGER.warn(
+              "Gave up waiting for one-way calls", "host", host, "unsent", unsentCount.get());
+          return false;
+        }
+        LockSupport.parkNanos(this, remainingNanos);
+      }
+      return true;
+
+    } finally {
+      drainingThread = null;
+    }
+  }
+
+  @SuppressWarnings("InfiniteLoopStatement")
+  private void sendQueuedCalls() {
+    List<ByteBuffer> requestPayloads = new ArrayList<>();
+    while (true) {
+      try {
+        requestPayloads.add(sendQueue.take());
+        sendQueue.drainTo(requestPayloads, MAX_CALLS_PER_BATCH - 1);
+        replicaBalancer.sendOneWay(requestPayloads);
+
+      } catch (InterruptedException ex) {
+        // Keeps running for as long as the process runs.
+
+      } catch (IOException | RuntimeException ex) {
+        // Keeps the thread alive, since nothing else would send the calls queued after these.
+        LOGGER.warn(
+            "Failed to send one-way calls",
+            "calls",
+            requestPayloads.size(),
+            "host",
+            host,
+            "exception",
+            ex);
+
+      } finally {
+        unsentCount.addAndGet(-requestPayloads.size());
+        requestPayloads.clear();
+        Thread waitingThread = drainingThread;
+        if (waitingThread != null) {
+          LockSupport.unpark(waitingThread);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import coollog.experiments.oomicroservice.framework.WireProtocol.Frame;
+
+/**
+ * Sends {@link WireProtocol#FLAG_PUSH} frames to a caller over its framed connection, on the
+ * server's own initiative. Must be safe to call concurrently.
+ */
+@FunctionalInterface
+interface PushChannel {
+
+  /**
+   * Sends a frame without waiting for it to be written. A failure to write is only logged, since it
+   * also closes the connection.
+   *
+   * @param frame the frame
+   */
+  void push(Frame frame);
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+
+/**
+ * Reduces the results of a call made with {@link Microservice#broadcast} as they arrive.
+ *
+ * <p>For example, {@code Reducer.of(0L, Long::sum)} adds up the results of a method that returns a
+ * {@code long}, and {@code Reducer.toList()} collects them in the order they arrive.
+ *
+ * @param <R> the return type of the called method
+ * @param <A> the type of the reduced result
+ */
+public interface Reducer<R, A> {
+
+  /**
+   * Creates a {@link Reducer} that starts with {@code initial} and reduces each result into it with
+   * {@code accumulator}.
+   *
+   * @param initial the reduced result if no results arrive. Should not be mutable, since it is
+   *     shared by every call; implement {@link #initial} instead to start with a mutable result.
+   * @param accumulator reduces a result into the results reduced so far
+   * @param <R> the return type of the called method
+   * @param <A> the type of the reduced result
+   * @return the {@link Reducer}
+   */
+  static <R, A> Reducer<R, A> of(A initial, BiFunction<A, ? super R, A> accumulator) {
+    return new Reducer<R, A>() {
+      @Override
+      public A initial() {
+        return initial;
+      }
+
+      @Override
+      public A accumulate(A accumulated, R result) {
+        return accumulator.apply(accumulated, result);
+      }
+    };
+  }
+
+  /**
+   * Creates a {@link Reducer} that combines the results with {@code operator}, such as {@code
+   * Integer::sum} or {@code Math::max}.
+   *
+   * @param operator combines two results
+   * @param <R> the return type of the called method
+   * @return the {@link Reducer}, which reduces to {@code null} if no results arrive
+   */
+  static <R> Reducer<R, R> of(BinaryOperator<R> operator) {
+    return of(
+        (R) null,
+        (accumulated, result) ->
+            accumulated == null ? result : operator.apply(accumulated, result));
+  }
+
+  /**
+   * Creates a {@link Reducer} that collects the results in the order they arrive.
+   *
+   * @param <R> the return type of the called method
+   * @return the {@link Reducer}
+   */
+  static <R> Reducer<R, List<R>> toList() {
+    return new Reducer<R, List<R>>() {
+      @Override
+      public List<R> initial() {
+        return new ArrayList<>();
+      }
+
+      @Override
+      public List<R> accumulate(List<R> accumulated, R result) {
+        accumulated.add(result);
+        return accumulated;
+      }
+    };
+  }
+
+  /**
+   * Creates the reduced result for a new call, before any results have arrived.
+   *
+   * @return the initial reduced result
+   */
+  A initial();
+
+  /**
+   * Reduces a result into the results reduced so far. Called once for each result, as it arrives,
+   * but never concurrently for the same call.
+   *
+   * @param accumulated the results reduced so far
+   * @param result the result that arrived
+   * @return the new reduced result
+   */
+  A accumulate(A accumulated, R result);
+}
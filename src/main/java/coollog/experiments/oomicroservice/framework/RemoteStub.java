@@ -0,0 +1,32 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+/**
+ * Implemented by the client stubs generated for each {@link Microservice} at build time. A stub for
+ * {@code FooService} is named {@code FooService_RemoteStub}, extends {@code FooService}, and is
+ * used by {@link Microservice#service} in place of a proxy created at runtime. Not for direct use.
+ */
+public interface RemoteStub {
+
+  /**
+   * Connects the stub to the {@link Microservice} it calls. Called once, before any other method.
+   *
+   * @param stubCaller makes the calls
+   */
+  void initRemoteStub(StubCaller stubCaller);
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends the calls to a single microservice over a {@link ConnectionPool}, spreading them across its
+ * replicas if it has more than one.
+ *
+ * <p>Each call goes to the better of two replicas picked at random, where a replica is better if it
+ * has fewer calls in flight and a lower moving average of its latency. This keeps slow or busy
+ * replicas from piling up calls without every caller having to agree on which replica is least
+ * loaded.
+ *
+ * <p>The replicas are found through the headless Kubernetes service named {@link
+ * #getReplicasServiceName}, or through the ports they are served at in a {@link LocalCluster}, and
+ * are looked up again every {@link #REFRESH_INTERVAL_NANOS}. If no replicas can be found, calls go
+ * through the regular Kubernetes service instead.
+ */
+class ReplicaBalancer {
+
+  private static final Logger LOGGER = Logger.get("client");
+
+  /** How often the replicas are looked up again. */
+  private static final long REFRESH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+  /** How much each new latency sample moves the moving average. */
+  private static final double LATENCY_EWMA_WEIGHT = 0.2;
+
+  /** Counted as the latency of a call that failed, so that a failing replica is avoided. */
+  private static final long FAILURE_LATENCY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  /** Appended to a host to get the name of its headless Kubernetes service. */
+  private static final String REPLICAS_SERVICE_SUFFIX = "-replicas";
+
+  /** Shared by all balancers to send hedges once their delay is up. */
+  private static final ScheduledExecutorService HEDGE_EXECUTOR_SERVICE =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("hedger").setDaemon(true).build());
+
+  /** Shared by all balancers to look up replicas without blocking calls. */
+  private static final ExecutorService REFRESH_EXECUTOR_SERVICE =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder().setNameFormat("replica-resolver").setDaemon(true).build());
+
+  /** The load on a single replica. */
+  private static class Replica {
+
+    private final InetSocketAddress address;
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+
+    /** Guarded by {@code this}. */
+    private double latencyEwmaNanos;
+
+    private Replica(InetSocketAddress address) {
+      this.address = address;
+    }
+
+    private synchronized void recordLatency(long latencyNanos) {
+      latencyEwmaNanos =
+          latencyEwmaNanos == 0
+              ? latencyNanos
+              : latencyEwmaNanos + LATENCY_EWMA_WEIGHT * (latencyNanos - latencyEwmaNanos);
+    }
+
+    /** Gets the cost of sending another call to this replica. Lower is better. */
+    private synchronized double getCost() {
+      // Adds one to each so that new replicas and idle replicas are still compared by the other.
+      return (latencyEwmaNanos + 1) * (inFlightCount.get() + 1);
+    }
+  }
+
+  /**
+   * Gets the name of the headless Kubernetes service that resolves to every replica of {@code
+   * host}.
+   *
+   * @param host the host of a {@link Microservice}
+   * @return the name of the headless service
+   */
+  static String getReplicasServiceName(String host) {
+    return host + REPLICAS_SERVICE_SUFFIX;
+  }
+
+  private final ConnectionPool connectionPool;
+  private final Class<? extends Microservice> microserviceClass;
+  private final String host;
+  private final byte preamble;
+  private final boolean balanced;
+  private final long callTimeoutNanos;
+
+  /** The current replicas. Replaced as a whole when the replicas are looked up again. */
+  private volatile List<Replica> replicas = Collections.emptyList();
+
+  private volatile long lastRefreshNanos;
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+
+  /**
+   * Creates a new {@link ReplicaBalancer}.
+   *
+   * @param connectionPool the {@link ConnectionPool} to send over
+   * @param microserviceClass the {@link Microservice} class to call
+   * @param host the host to call
+   * @param preamble the preamble byte that negotiates the {@link MethodInvocationSerializer}
+   * @param replicas the number of replicas the microservice is deployed with. With just one, every
+   *     call goes through its Kubernetes service.
+   * @param callTimeoutNanos how long each request waits for its response
+   */
+  ReplicaBalancer(
+      ConnectionPool connectionPool,
+      Class<? extends Microservice> microserviceClass,
+      String host,
+      byte preamble,
+      int replicas,
+      long callTimeoutNanos) {
+    this.connectionPool = connectionPool;
+    this.microserviceClass = microserviceClass;
+    this.host = host;
+    this.preamble = preamble;
+    this.balanced = replicas > 1;
+    this.callTimeoutNanos = callTimeoutNanos;
+  }
+
+  String getHost() {
+    return host;
+  }
+
+  /**
+   * Sends a request to a replica without waiting for the response.
+   *
+   * @param flags the flags of the request frame
+   * @param requestPayload the request payload
+   * @return a future for the response payload. Completes on a connection reader thread, so
+   *     dependent stages should not block.
+   */
+  CompletableFuture<ByteBuffer> callAsync(byte flags, ByteBuffer requestPayload) {
+    Replica replica = pickReplica(null);
+    if (replica == null) {
+      return connectionPool.callAsync(
+          host, ServiceRunner.SERVICE_PORT, preamble, flags, requestPayload, callTimeoutNanos);
+    }
+    return callAsync(replica, flags, requestPayload);
+  }
+
+  /**
+   * Sends a request to a replica without waiting for the response, and sends it to another replica
+   * as well if the first has not answered once the {@link HedgingPolicy} says to. Whichever request
+   * is answered first is used, and the other is cancelled.
+   *
+   * @param flags the flags of the request frame
+   * @param requestPayload the request payload
+   * @param hedgingPolicy the {@link HedgingPolicy} of the called method
+   * @return a future for the response payload. Completes on a connection reader thread, so
+   *     dependent stages should not block.
+   */
+  CompletableFuture<ByteBuffer> callHedged(
+      byte flags, ByteBuffer requestPayload, HedgingPolicy hedgingPolicy) {
+    HedgingPolicy.depositBudget();
+    Replica primaryReplica = pickReplica(null);
+    if (primaryReplica == null) {
+      return connectionPool.callAsync(
+          host, ServiceRunner.SERVICE_PORT, preamble, flags, requestPayload, callTimeoutNanos);
+    }
+
+    long startNanos = System.nanoTime();
+    CompletableFuture<ByteBuffer> primaryFuture = callAsync(primaryReplica, flags, requestPayload);
+    long delayNanos = hedgingPolicy.getDelayNanos();
+    if (delayNanos < 0) {
+      // Learns the latencies of the method before hedging any calls to it.
+      primaryFuture.thenRun(() -> hedgingPolicy.recordLatency(System.nanoTime() - startNanos));
+      return primaryFuture;
+    }
+
+    CompletableFuture<ByteBuffer> responseFuture = new CompletableFuture<>();
+    AtomicReference<CompletableFuture<ByteBuffer>> hedgeFutureReference = new AtomicReference<>();
+    ScheduledFuture<?> hedgeTimer =
+        HEDGE_EXECUTOR_SERVICE.schedule(
+            () -> {
+              if (primaryFuture.isDone()) {
+                return;
+              }
+              Replica hedgeReplica = pickReplica(primaryReplica);
+              if (hedgeReplica == null || !HedgingPolicy.tryWithdrawBudget()) {
+                return;
+              }
+              CompletableFuture<ByteBuffer> hedgeFuture =
+                  callAsync(hedgeReplica, flags, requestPayload);
+              hedgeFutureReference.set(hedgeFuture);
+              hedgeFuture.whenComplete(
+                  (responsePayload, ex) -> {
+                    if (ex == null) {
+                      responseFuture.complete(responsePayload);
+                      primaryFuture.cancel(false);
+                    } else if (primaryFuture.isCompletedExceptionally()) {
+                      responseFuture.completeExceptionally(ex);
+                    }
+                  });
+            },
+            delayNanos,
+            TimeUnit.NANOSECONDS);
+
+    primaryFuture.whenComplete(
+        (responsePayload, ex) -> {
+          if (ex == null) {
+            // Completes the call first, so that nothing after it can keep the response back.
+            responseFuture.complete(responsePayload);
+            hedgeTimer.cancel(false);
+            CompletableFuture<ByteBuffer> hedgeFuture = hedgeFutureReference.get();
+            if (hedgeFuture != null) {
+              hedgeFuture.cancel(false);
+            }
+            hedgingPolicy.recordLatency(System.nanoTime() - startNanos);
+            return;
+          }
+
+          // Waits for the hedge if there is one, or fails if it failed too.
+          CompletableFuture<ByteBuffer> hedgeFuture = hedgeFutureReference.get();
+          if (hedgeFuture == null || hedgeFuture.isCompletedExceptionally()) {
+            if (!(ex instanceof CancellationException)) {
+              hedgeTimer.cancel(false);
+              responseFuture.completeExceptionally(ex);
+            }
+          }
+        });
+    return responseFuture;
+  }
+
+  /**
+   * Sends a request to every replica without waiting for the responses.
+   *
+   * @param requestPayload the request payload, which is not modified
+   * @return a future for the response payload of each replica, which cancels its request if
+   *     cancelled. Completes on a connection reader thread, so dependent stages should not block.
+   */
+  List<CompletableFuture<ByteBuffer>> callEveryReplica(ByteBuffer requestPayload) {
+    if (pickReplica(null) == null) {
+      return Collections.singletonList(
+          connectionPool.callAsync(
+              host,
+              ServiceRunner.SERVICE_PORT,
+              preamble,
+              (byte) 0,
+              requestPayload.duplicate(),
+              callTimeoutNanos));
+    }
+
+    List<CompletableFuture<ByteBuffer>> responseFutures = new ArrayList<>();
+    for (Replica replica : replicas) {
+      responseFutures.add(callAsync(replica, (byte) 0, requestPayload.duplicate()));
+    }
+    return responseFutures;
+  }
+
+  /**
+   * Sends a request to {@code replica}, keeping track of its load.
+   *
+   * @param replica the replica to call
+   * @param flags the flags of the request frame
+   * @param requestPayload the request payload
+   * @return a future for the response payload, which cancels the request if cancelled
+   */
+  private CompletableFuture<ByteBuffer> callAsync(
+      Replica replica, byte flags, ByteBuffer requestPayload) {
+    replica.inFlightCount.incrementAndGet();
+    long startNanos = System.nanoTime();
+    CompletableFuture<ByteBuffer> responseFuture =
+        connectionPool.callAsync(
+            host, replica.address, preamble, flags, requestPayload, callTimeoutNanos);
+    responseFuture.whenComplete(
+        (responsePayload, ex) -> {
+          replica.inFlightCount.decrementAndGet();
+          // A cancelled request lost to a hedge, so was at least as slow as it took to cancel.
+          replica.recordLatency(
+              ex != null && !(ex instanceof CancellationException)
+                  ? Math.max(FAILURE_LATENCY_NANOS, System.nanoTime() - startNanos)
+                  : System.nanoTime() - startNanos);
+        });
+    return responseFuture;
+  }
+
+  /**
+   * Sends one-way requests to a replica, which are not answered. More than one request is sent as a
+   * single batch.
+   *
+   * @param requestPayloads the request payloads, written with a single flush
+   * @throws IOException if an I/O exception occurs
+   */
+  void sendOneWay(List<ByteBuffer> requestPayloads) throws IOException {
+    Replica replica = pickReplica(null);
+    if (replica == null) {
+      connectionPool.sendOneWay(host, ServiceRunner.SERVICE_PORT, preamble, requestPayloads);
+      return;
+    }
+    connectionPool.sendOneWay(host, replica.address, preamble, requestPayloads);
+  }
+
+  /**
+   * Picks the better of two random replicas.
+   *
+   * @param excludedReplica a replica not to pick, or {@code null}
+   * @return the replica, or {@code null} to call through the Kubernetes service, or if there is no
+   *     other replica than {@code excludedReplica}
+   */
+  private Replica pickReplica(Replica excludedReplica) {
+    if (!balanced) {
+      return null;
+    }
+    if (System.nanoTime() - lastRefreshNanos > REFRESH_INTERVAL_NANOS
+        && refreshing.compareAndSet(false, true)) {
+      if (replicas.isEmpty()) {
+        // Waits for the first lookup, since there is nothing to pick from yet.
+        refresh();
+      } else {
+        REFRESH_EXECUTOR_SERVICE.execute(this::refresh);
+      }
+    }
+
+    List<Replica> replicas = this.replicas;
+    if (excludedReplica != null) {
+      replicas = new ArrayList<>(replicas);
+      replicas.remove(excludedReplica);
+    }
+    switch (replicas.size()) {
+      case 0:
+        return null;
+
+      case 1:
+        return replicas.get(0);
+
+      default:
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int firstIndex = random.nextInt(replicas.size());
+        int secondIndex = random.nextInt(replicas.size() - 1);
+        if (secondIndex >= firstIndex) {
+          secondIndex++;
+        }
+        Replica first = replicas.get(firstIndex);
+        Replica second = replicas.get(secondIndex);
+        return first.getCost() <= second.getCost() ? first : second;
+    }
+  }
+
+  /** Looks up the replicas, keeping the load of the ones that are still there. */
+  private void refresh() {
+    try {
+      List<InetSocketAddress> addresses = lookUpReplicas();
+      Map<InetSocketAddress, Replica> currentReplicas = new HashMap<>();
+      for (Replica replica : replicas) {
+        currentReplicas.put(replica.address, replica);
+      }
+      List<Replica> newReplicas = new ArrayList<>();
+      for (InetSocketAddress address : addresses) {
+        newReplicas.add(currentReplicas.getOrDefault(address, new Replica(address)));
+      }
+      replicas = newReplicas;
+
+    } catch (UnknownHostException ex) {
+      // Keeps the current replicas, or calls through the Kubernetes service if there are none.
+      LOGGER.warn("Could not look up replicas", "host", host, "exception", ex);
+
+    } finally {
+      lastRefreshNanos = System.nanoTime();
+      refreshing.set(false);
+    }
+  }
+
+  /**
+   * Looks up the address of each replica.
+   *
+   * @return the addresses
+   * @throws UnknownHostException if the headless Kubernetes service could not be resolved
+   */
+  private List<InetSocketAddress> lookUpReplicas() throws UnknownHostException {
+    List<InetSocketAddress> localEndpoints = ServiceRegistry.getLocalEndpoints(host);
+    if (localEndpoints != null) {
+      return localEndpoints;
+    }
+
+    int port = ServiceRegistry.getReplicaPort(microserviceClass);
+    List<InetSocketAddress> addresses = new ArrayList<>();
+    for (InetAddress address : InetAddress.getAllByName(getReplicasServiceName(host))) {
+      addresses.add(new InetSocketAddress(address, port));
+    }
+    return addresses;
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import coollog.experiments.oomicroservice.framework.WireProtocol.Frame;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/** Handles the requests received by a {@link ServerEngine}. Must be safe to call concurrently. */
+interface RequestHandler {
+
+  /**
+   * Gets the name of the served {@link Microservice}, as used in diagnostics.
+   *
+   * @return the name of the served {@link Microservice}
+   */
+  String getServiceName();
+
+  /**
+   * Handles a {@link WireProtocol} request frame. The caller still owns {@code request}, and may
+   * release it once this returns.
+   *
+   * @param serializer the {@link MethodInvocationSerializer} negotiated for the connection
+   * @param request the request frame
+   * @return the encoded response frame, which reports failed method calls rather than throwing, or
+   *     {@code null} if the request is {@link WireProtocol#FLAG_ONE_WAY one-way}. The caller must
+   *     hand it back with {@link BufferPool#release} once written
+   */
+  ByteBuffer handleFrame(MethodInvocationSerializer serializer, Frame request);
+
+  /**
+   * Called when a framed connection starts, before any of its requests are handled.
+   *
+   * @param pushChannel pushes frames to the caller on the connection
+   */
+  void onConnectionOpened(PushChannel pushChannel);
+
+  /**
+   * Called when a framed connection closes.
+   *
+   * @param pushChannel the {@link PushChannel} passed to {@link #onConnectionOpened}
+   */
+  void onConnectionClosed(PushChannel pushChannel);
+
+  /**
+   * Handles a single text request sent without the framed protocol.
+   *
+   * @param inputStream the {@link InputStream} for the incoming connection
+   * @param outputStream the {@link OutputStream} of the incoming connection
+   * @throws IOException if an I/O exception occurs or the method call fails
+   */
+  void handleText(InputStream inputStream, OutputStream outputStream) throws IOException;
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/** Accepts connections on an address and feeds the requests on them to a {@link RequestHandler}. */
+interface ServerEngine {
+
+  /**
+   * Creates the {@link ServerEngine} selected by {@code serviceOptions}.
+   *
+   * @param serviceOptions the {@link ServiceOptions} of the served {@link Microservice}
+   * @return a new {@link ServerEngine}
+   */
+  static ServerEngine create(ServiceOptions serviceOptions) {
+    switch (serviceOptions.getServerEngineType()) {
+      case WORKER_POOL:
+        return new WorkerPoolServerEngine(
+            serviceOptions.getWorkerThreads(), serviceOptions.getMaxQueuedTasks());
+
+      case NIO:
+        return new NioServerEngine(
+            serviceOptions.getEventLoopThreads(),
+            serviceOptions.getWorkerThreads(),
+            serviceOptions.getMaxQueuedTasks());
+
+      default:
+        throw new IllegalArgumentException(
+            "Unknown server engine " + serviceOptions.getServerEngineType());
+    }
+  }
+
+  /**
+   * Starts listening for connections on {@code address}. Must be called before {@link #serve}.
+   *
+   * @param address the address to listen on. Port {@code 0} picks a free port.
+   * @return the port listened on
+   * @throws IOException if an I/O exception occurs
+   */
+  int bind(InetSocketAddress address) throws IOException;
+
+  /**
+   * Serves connections on the bound address. Does not return unless the server fails.
+   *
+   * @param requestHandler handles the incoming requests
+   * @throws IOException if an I/O exception occurs
+   */
+  void serve(RequestHandler requestHandler) throws IOException;
+}
@@ -21,23 +21,33 @@ import com.google.cloud.tools.jib.image.DescriptorDigest;
 import com.google.cloud.tools.jib.image.ImageReference;
 import com.google.cloud.tools.jib.image.InvalidImageReferenceException;
 import com.google.common.base.Verify;
+import coollog.experiments.oomicroservice.framework.ServiceRegistry.RegisteredMicroservice;
 import coollog.experiments.oomicroservice.framework.deployer.KubectlDeployer;
 import coollog.experiments.oomicroservice.packager.ClasspathResolver;
 import coollog.experiments.oomicroservice.packager.ContainerBuilder;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 /** Containerizes and deploys services to Kubernetes. */
 public class ServiceDeployer {
 
+  private static final Logger LOGGER = Logger.get("deploy");
+
   /**
    * Set the {@code IMAGE_PREFIX} environment variable to the image repository you would like to use
    * to store the container images.
@@ -52,7 +62,8 @@ public class ServiceDeployer {
   }
 
   /**
-   * Containerizes and deploys the services to Kubernetes.
+   * Containerizes and deploys the services to Kubernetes. All the services share one container
+   * image, which each deployment runs with the args that pick the services it serves.
    *
    * @param mainClass the main class to run the services with. This main class is run with the name
    *     of the {@link Microservice} class to serve.
@@ -61,79 +72,172 @@ public class ServiceDeployer {
    */
   public static void deploy(Class<? extends ServiceRunner> mainClass)
       throws InterruptedException, ExecutionException {
-    // Gets the registered services to deploy.
-    List<ServiceRegistry.RegisteredMicroservice<?>> registeredMicroservices =
-        ServiceRegistry.getRegisteredMicroservices();
+    // Gets the registered services to deploy, by co-location group.
+    Map<String, List<RegisteredMicroservice<?>>> groups = ServiceRegistry.getGroups();
 
     ServiceDeployer serviceDeployer = new ServiceDeployer(mainClass.getName());
-    for (ServiceRegistry.RegisteredMicroservice<?> registeredMicroservice :
-        registeredMicroservices) {
-      // Queues up the deployment pipeline for each service. Each service is deployed to run
-      serviceDeployer.addDeployment(
-          IMAGE_REPOSITORY, registeredMicroservice.getClazz(), registeredMicroservice.getHost());
-    }
-    serviceDeployer.deployAll();
+    serviceDeployer.deployAll(IMAGE_REPOSITORY, groups);
   }
 
   private final ExecutorService executorService = Executors.newCachedThreadPool();
   private final String mainClass;
-  private final List<Callable<Void>> deploymentCallables = new ArrayList<>();
 
   private ServiceDeployer(String mainClass) {
     this.mainClass = mainClass;
   }
 
-  private void addDeployment(
-      String imageRepository, Class<? extends Microservice> clazz, String host) {
-    deploymentCallables.add(
-        () -> {
-          deploy(imageRepository, clazz, host);
-          return null;
-        });
-  }
+  private void deployAll(
+      String imageRepository, Map<String, List<RegisteredMicroservice<?>>> groups)
+      throws ExecutionException, InterruptedException {
+    try {
+      // Builds the one image every group runs before deploying any of them.
+      ImageReference imageReferenceWithDigest =
+          executorService.submit(() -> containerize(imageRepository)).get();
 
-  private void deployAll() throws ExecutionException, InterruptedException {
-    List<Future<Void>> futures = executorService.invokeAll(deploymentCallables);
-    for (Future<Void> future : futures) {
-      Verify.verify(future.isDone());
-      future.get();
+      List<Callable<Void>> deploymentCallables = new ArrayList<>();
+      for (Map.Entry<String, List<RegisteredMicroservice<?>>> group : groups.entrySet()) {
+        // Queues up the deployment for each group. Each group is deployed as one pod.
+        deploymentCallables.add(
+            () -> {
+              deploy(imageReferenceWithDigest, group.getKey(), group.getValue());
+              return null;
+            });
+      }
+      List<Future<Void>> futures = executorService.invokeAll(deploymentCallables);
+      for (Future<Void> future : futures) {
+        Verify.verify(future.isDone());
+        future.get();
+      }
+
+    } finally {
+      shutdown();
     }
-    shutdown();
   }
 
   /**
-   * Containerizes the microservice with image reference prefix {@code imageRepository} and deploys
-   * to Kubernetes.
+   * Containerizes all the services into one image with image reference prefix {@code
+   * imageRepository}. The image runs the main class with no args of its own, so each deployment
+   * passes the args that pick the services to serve.
    *
    * @param imageRepository the image reference prefix (including slash)
-   * @param clazz the {@link Microservice} class
-   * @param host the hostname to serve the microservice as
+   * @return the reference to the built image, tagged with its digest
    * @throws IOException if an I/O exception occurs
    * @throws InvalidImageReferenceException if the generated image reference is invalid
-   * @throws InterruptedException if the deployment is interrupted
-   * @throws ExecutionException if the deployment execution throws an exception
+   * @throws InterruptedException if the containerization is interrupted
+   * @throws ExecutionException if the containerization execution throws an exception
    * @throws CacheDirectoryCreationException if the Jib cache directory could not be created
    */
-  private void deploy(String imageRepository, Class<? extends Microservice> clazz, String host)
+  private ImageReference containerize(String imageRepository)
       throws IOException, InvalidImageReferenceException, InterruptedException, ExecutionException,
           CacheDirectoryCreationException {
     // Gets all the files to package.
+    FlightEvents.Deploy resolveEvent = FlightEvents.Deploy.start();
     List<Path> classpathFiles = ClasspathResolver.getClasspathFiles();
+    resolveEvent.commit(null, "resolveClasspath", null, 0);
 
-    // Packages the files into a container.
-    String imageReference = imageRepository + host;
-    System.out.println("Containerizing " + imageReference);
+    // Packages the files into a container, named after the main class it runs.
+    String imageReference = imageRepository + getImageName(mainClass);
+    LOGGER.info("Containerizing", "image", imageReference);
+    FlightEvents.Deploy containerizeEvent = FlightEvents.Deploy.start();
     DescriptorDigest containerDigest =
         ContainerBuilder.containerize(
-            classpathFiles, imageReference, mainClass, clazz.getName(), executorService);
-    System.out.println("Containerized " + imageReference);
-
-    // Runs the container on kubernetes.
-    ImageReference imageReferenceWithDigest =
-        ImageReference.parse(imageReference).withTag(containerDigest.toString());
-    System.out.println("Deploying " + imageReferenceWithDigest);
-    KubectlDeployer.deploy(host, imageReferenceWithDigest.toString());
-    System.out.println("Deployed " + imageReferenceWithDigest);
+            classpathFiles, imageReference, mainClass, Collections.emptyList(), executorService);
+    containerizeEvent.commit(
+        null,
+        "containerize",
+        imageReference,
+        containerizeEvent.isEnabled() ? getTotalSize(classpathFiles) : 0);
+    LOGGER.info("Containerized", "image", imageReference);
+
+    return ImageReference.parse(imageReference).withTag(containerDigest.toString());
+  }
+
+  /**
+   * Deploys the co-location group to Kubernetes, running the shared image with the args that serve
+   * the group.
+   *
+   * @param imageReferenceWithDigest the shared image, tagged with its digest
+   * @param group the name of the co-location group
+   * @param members the {@link Microservice}s in the group, as listed by {@link
+   *     ServiceRegistry#getGroups}
+   * @throws IOException if a {@code kubectl} command fails
+   * @throws InterruptedException if the deployment is interrupted
+   */
+  private static void deploy(
+      ImageReference imageReferenceWithDigest,
+      String group,
+      List<RegisteredMicroservice<?>> members)
+      throws IOException, InterruptedException {
+    // Runs a lone microservice by its class name, and a larger group by its group name.
+    List<String> args =
+        members.size() == 1
+            ? Collections.singletonList(members.get(0).getClazz().getName())
+            : Arrays.asList(ServiceRunner.GROUP_FLAG, group);
+    LOGGER.info("Deploying", "group", group, "image", imageReferenceWithDigest);
+
+    // Deploys each shard of a sharded microservice as its own pods, behind its own services.
+    int shards = members.get(0).getShards();
+    for (int shard = 0; shard < shards; shard++) {
+      // Exposes each microservice in the group as its own Kubernetes service, and each replicated
+      // microservice also as a headless service to balance calls across the replicas with.
+      Map<String, Integer> servicePorts = new LinkedHashMap<>();
+      Map<String, Integer> headlessServicePorts = new LinkedHashMap<>();
+      int replicas = 1;
+      for (int memberIndex = 0; memberIndex < members.size(); memberIndex++) {
+        RegisteredMicroservice<?> member = members.get(memberIndex);
+        String host = Shards.getHost(member.getHost(), shard, shards);
+        servicePorts.put(host, ServiceRunner.getGroupMemberPort(memberIndex));
+        if (member.getReplicas() > 1) {
+          headlessServicePorts.put(
+              ReplicaBalancer.getReplicasServiceName(host),
+              ServiceRunner.getGroupMemberPort(memberIndex));
+        }
+        replicas = Math.max(replicas, member.getReplicas());
+      }
+
+      FlightEvents.Deploy kubectlEvent = FlightEvents.Deploy.start();
+      String deploymentName = Shards.getHost(group, shard, shards);
+      KubectlDeployer.deploy(
+          deploymentName,
+          imageReferenceWithDigest.toString(),
+          servicePorts,
+          replicas,
+          headlessServicePorts,
+          args);
+      kubectlEvent.commit(group, "kubectl", deploymentName, 0);
+    }
+    LOGGER.info("Deployed", "group", group);
+  }
+
+  /**
+   * Gets the image name for the main class, which image references allow only lowercase in.
+   *
+   * @param mainClass the name of the main class
+   * @return the image name
+   */
+  private static String getImageName(String mainClass) {
+    return mainClass.toLowerCase(Locale.ROOT).replace('$', '-');
+  }
+
+  /**
+   * Adds up the sizes of the files to package, including the files in directories.
+   *
+   * @param files the files and directories
+   * @return the total size in bytes
+   * @throws IOException if an I/O exception occurs
+   */
+  private static long getTotalSize(List<Path> files) throws IOException {
+    long totalSize = 0;
+    for (Path file : files) {
+      try (Stream<Path> walkedFiles = Files.walk(file)) {
+        for (Path walkedFile : (Iterable<Path>) walkedFiles::iterator) {
+          if (Files.isRegularFile(walkedFile)) {
+            totalSize += Files.size(walkedFile);
+          }
+        }
+      }
+    }
+    return totalSize;
   }
 
   private void shutdown() {
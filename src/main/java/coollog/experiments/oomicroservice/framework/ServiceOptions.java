@@ -0,0 +1,467 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Options for how a registered {@link Microservice} is served and called. Create with {@link
+ * #builder}.
+ */
+public class ServiceOptions {
+
+  /** How a {@link Microservice} serves incoming connections. */
+  public enum ServerEngineType {
+
+    /**
+     * Serves each connection with blocking I/O on a thread from a bounded worker pool. Suited to a
+     * modest number of connections.
+     */
+    WORKER_POOL,
+
+    /**
+     * Multiplexes all connections over a few non-blocking selector event loops that hand requests
+     * to a bounded worker pool. Suited to many concurrent connections.
+     */
+    NIO
+  }
+
+  /** How calls to a {@link Microservice} are encoded on the wire. */
+  public enum WireFormat {
+
+    /** Newline-separated text. Does not support {@code byte[]}, {@code null}, or newlines. */
+    TEXT,
+
+    /**
+     * Compact binary with typed, length-prefixed fields. Supports {@code int}, {@code long}, {@code
+     * double}, {@code boolean} (and their boxed types), {@code byte[]}, {@code String}, and {@code
+     * Class}.
+     */
+    BINARY
+  }
+
+  /** What a caller does when it makes a {@link OneWay} call while the send queue is full. */
+  public enum OverflowPolicy {
+
+    /** Waits until there is room in the queue. */
+    BLOCK,
+
+    /**
+     * Drops the call, and logs a warning in the {@code call} category with the number of calls
+     * dropped so far.
+     */
+    DROP,
+
+    /** Throws a {@link java.util.concurrent.RejectedExecutionException}. */
+    FAIL
+  }
+
+  /** Builds {@link ServiceOptions}. */
+  public static class Builder {
+
+    private ServerEngineType serverEngineType = ServerEngineType.WORKER_POOL;
+    private int workerThreads = DEFAULT_WORKER_THREADS;
+    private int eventLoopThreads = DEFAULT_EVENT_LOOP_THREADS;
+    private int maxQueuedTasks = DEFAULT_MAX_QUEUED_TASKS;
+    private WireFormat wireFormat = WireFormat.BINARY;
+    private final ImmutableSet.Builder<String> oneWayMethods = ImmutableSet.builder();
+    private int oneWayQueueCapacity = DEFAULT_ONE_WAY_QUEUE_CAPACITY;
+    private OverflowPolicy oneWayOverflowPolicy = OverflowPolicy.BLOCK;
+    private int maxBatchSize = 1;
+    private long batchLingerNanos = DEFAULT_BATCH_LINGER_NANOS;
+    private long combinerFlushIntervalNanos = DEFAULT_COMBINER_FLUSH_INTERVAL_NANOS;
+    private long combinerFlushThreshold = DEFAULT_COMBINER_FLUSH_THRESHOLD;
+    private long callTimeoutNanos = DEFAULT_CALL_TIMEOUT_NANOS;
+    private String group;
+    private int replicas = 1;
+    private int shards = 1;
+    private boolean prometheusEndpoint;
+
+    private Builder() {}
+
+    /**
+     * Sets the engine that serves incoming connections. Defaults to {@link
+     * ServerEngineType#WORKER_POOL}.
+     *
+     * @param serverEngineType the {@link ServerEngineType}
+     * @return this
+     */
+    public Builder setServerEngine(ServerEngineType serverEngineType) {
+      this.serverEngineType = Preconditions.checkNotNull(serverEngineType);
+      return this;
+    }
+
+    /**
+     * Sets the number of worker threads. With {@link ServerEngineType#WORKER_POOL}, this is also
+     * the number of connections that can be served at the same time.
+     *
+     * @param workerThreads the number of worker threads
+     * @return this
+     */
+    public Builder setWorkerThreads(int workerThreads) {
+      Preconditions.checkArgument(workerThreads > 0, "workerThreads must be positive");
+      this.workerThreads = workerThreads;
+      return this;
+    }
+
+    /**
+     * Sets the number of selector event loop threads used by {@link ServerEngineType#NIO}.
+     *
+     * @param eventLoopThreads the number of event loop threads
+     * @return this
+     */
+    public Builder setEventLoopThreads(int eventLoopThreads) {
+      Preconditions.checkArgument(eventLoopThreads > 0, "eventLoopThreads must be positive");
+      this.eventLoopThreads = eventLoopThreads;
+      return this;
+    }
+
+    /**
+     * Sets how many tasks (connections for {@link ServerEngineType#WORKER_POOL}, requests for
+     * {@link ServerEngineType#NIO}) may wait for a worker thread before new ones are rejected.
+     *
+     * @param maxQueuedTasks the maximum number of queued tasks
+     * @return this
+     */
+    public Builder setMaxQueuedTasks(int maxQueuedTasks) {
+      Preconditions.checkArgument(maxQueuedTasks >= 0, "maxQueuedTasks must not be negative");
+      this.maxQueuedTasks = maxQueuedTasks;
+      return this;
+    }
+
+    /**
+     * Sets how calls to the {@link Microservice} are encoded. Defaults to {@link
+     * WireFormat#BINARY}. The {@link Microservice} serves every {@link WireFormat} regardless.
+     *
+     * @param wireFormat the {@link WireFormat}
+     * @return this
+     */
+    public Builder setWireFormat(WireFormat wireFormat) {
+      this.wireFormat = Preconditions.checkNotNull(wireFormat);
+      return this;
+    }
+
+    /**
+     * Makes every method named {@code methodName} one-way, as if it were annotated with {@link
+     * OneWay}. The methods must return {@code void}.
+     *
+     * @param methodName the name of the method
+     * @return this
+     */
+    public Builder addOneWayMethod(String methodName) {
+      oneWayMethods.add(Preconditions.checkNotNull(methodName));
+      return this;
+    }
+
+    /**
+     * Sets how many {@link OneWay} calls to the {@link Microservice} may wait to be sent, per
+     * calling process.
+     *
+     * @param oneWayQueueCapacity the capacity of the send queue
+     * @return this
+     */
+    public Builder setOneWayQueueCapacity(int oneWayQueueCapacity) {
+      Preconditions.checkArgument(oneWayQueueCapacity > 0, "oneWayQueueCapacity must be positive");
+      this.oneWayQueueCapacity = oneWayQueueCapacity;
+      return this;
+    }
+
+    /**
+     * Sets what happens to {@link OneWay} calls made while the send queue is full. Defaults to
+     * {@link OverflowPolicy#BLOCK}.
+     *
+     * @param oneWayOverflowPolicy the {@link OverflowPolicy}
+     * @return this
+     */
+    public Builder setOneWayOverflowPolicy(OverflowPolicy oneWayOverflowPolicy) {
+      this.oneWayOverflowPolicy = Preconditions.checkNotNull(oneWayOverflowPolicy);
+      return this;
+    }
+
+    /**
+     * Sets the most calls to the {@link Microservice} that are sent together in a single batch.
+     * Defaults to {@code 1}, which turns batching off.
+     *
+     * <p>With batching on, a call waits up to the {@link #setBatchLinger linger time} for other
+     * calls to join its batch.
+     *
+     * @param maxBatchSize the maximum batch size
+     * @return this
+     */
+    public Builder setMaxBatchSize(int maxBatchSize) {
+      Preconditions.checkArgument(maxBatchSize > 0, "maxBatchSize must be positive");
+      this.maxBatchSize = maxBatchSize;
+      return this;
+    }
+
+    /**
+     * Sets how long a call may wait for other calls to join its batch. Defaults to 1 millisecond.
+     * Only applies with {@link #setMaxBatchSize batching} on.
+     *
+     * @param batchLinger the linger time
+     * @param unit the unit of {@code batchLinger}
+     * @return this
+     */
+    public Builder setBatchLinger(long batchLinger, TimeUnit unit) {
+      Preconditions.checkArgument(batchLinger >= 0, "batchLinger must not be negative");
+      this.batchLingerNanos = unit.toNanos(batchLinger);
+      return this;
+    }
+
+    /**
+     * Sets how often the calls added up for each {@link Combinable} method are sent. Defaults to
+     * 100 milliseconds.
+     *
+     * @param combinerFlushInterval the flush interval
+     * @param unit the unit of {@code combinerFlushInterval}
+     * @return this
+     */
+    public Builder setCombinerFlushInterval(long combinerFlushInterval, TimeUnit unit) {
+      Preconditions.checkArgument(
+          combinerFlushInterval > 0, "combinerFlushInterval must be positive");
+      this.combinerFlushIntervalNanos = unit.toNanos(combinerFlushInterval);
+      return this;
+    }
+
+    /**
+     * Sets how many calls to a {@link Combinable} method are added up before they are sent without
+     * waiting for the flush interval. Defaults to {@code 10000}.
+     *
+     * @param combinerFlushThreshold the number of calls
+     * @return this
+     */
+    public Builder setCombinerFlushThreshold(long combinerFlushThreshold) {
+      Preconditions.checkArgument(
+          combinerFlushThreshold > 0, "combinerFlushThreshold must be positive");
+      this.combinerFlushThreshold = combinerFlushThreshold;
+      return this;
+    }
+
+    /**
+     * Sets how long a call to the {@link Microservice} waits for its response. A call that times
+     * out fails with a {@link RemoteInvocationException}, and its request is cancelled so that the
+     * {@link Microservice} skips it if it has not started on it yet. Defaults to 30 seconds.
+     *
+     * @param callTimeout the call timeout
+     * @param unit the unit of {@code callTimeout}
+     * @return this
+     */
+    public Builder setCallTimeout(long callTimeout, TimeUnit unit) {
+      Preconditions.checkArgument(callTimeout > 0, "callTimeout must be positive");
+      this.callTimeoutNanos = unit.toNanos(callTimeout);
+      return this;
+    }
+
+    /**
+     * Co-locates the {@link Microservice} with every other {@link Microservice} in the same {@code
+     * group}. A group is deployed as a single pod running a single process, and calls between the
+     * {@link Microservice}s in a group are made directly on the local instance instead of over the
+     * network. Arguments and return values are then passed by reference rather than copied. By
+     * default, each {@link Microservice} is deployed alone.
+     *
+     * @param group the name of the group, which is also the name of its Kubernetes deployment
+     * @return this
+     */
+    public Builder setGroup(String group) {
+      Preconditions.checkArgument(!group.isEmpty(), "group must not be empty");
+      this.group = group.toLowerCase();
+      return this;
+    }
+
+    /**
+     * Sets how many replicas of the {@link Microservice} are deployed. Defaults to {@code 1}. With
+     * more than one, callers spread their calls across the replicas themselves, favoring the ones
+     * with the fewest calls in flight and the lowest latency. A group is deployed with as many
+     * replicas as its member with the most.
+     *
+     * @param replicas the number of replicas
+     * @return this
+     */
+    public Builder setReplicas(int replicas) {
+      Preconditions.checkArgument(replicas > 0, "replicas must be positive");
+      this.replicas = replicas;
+      return this;
+    }
+
+    /**
+     * Sets how many shards the {@link Microservice} is split into. Defaults to {@code 1}. Each
+     * shard is a separate instance with its own state, deployed as its own Kubernetes deployment.
+     * Calls go to the shard that owns their {@link ShardKey} argument, or to every shard if the
+     * method is a {@link Broadcast}, or to the first shard otherwise. Each shard is deployed with
+     * the {@link #setReplicas number of replicas}. A sharded {@link Microservice} cannot be in a
+     * {@link #setGroup group}.
+     *
+     * @param shards the number of shards
+     * @return this
+     */
+    public Builder setShards(int shards) {
+      Preconditions.checkArgument(shards > 0, "shards must be positive");
+      this.shards = shards;
+      return this;
+    }
+
+    /**
+     * Serves the metrics of the process that serves the {@link Microservice} to Prometheus, as HTTP
+     * {@code GET /metrics} requests on its service port. Off by default. The metrics are always
+     * served to the built-in {@code __metrics} method regardless.
+     *
+     * @param prometheusEndpoint whether or not to serve the metrics to Prometheus
+     * @return this
+     */
+    public Builder setPrometheusEndpoint(boolean prometheusEndpoint) {
+      this.prometheusEndpoint = prometheusEndpoint;
+      return this;
+    }
+
+    public ServiceOptions build() {
+      Preconditions.checkArgument(
+          shards == 1 || group == null, "A sharded microservice cannot be in a group");
+      return new ServiceOptions(this);
+    }
+  }
+
+  private static final int DEFAULT_WORKER_THREADS = 256;
+  private static final int DEFAULT_EVENT_LOOP_THREADS = Runtime.getRuntime().availableProcessors();
+  private static final int DEFAULT_MAX_QUEUED_TASKS = 1024;
+  private static final int DEFAULT_ONE_WAY_QUEUE_CAPACITY = 1024;
+  private static final long DEFAULT_BATCH_LINGER_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long DEFAULT_COMBINER_FLUSH_INTERVAL_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(100);
+  private static final long DEFAULT_COMBINER_FLUSH_THRESHOLD = 10_000;
+  private static final long DEFAULT_CALL_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+  private static final ServiceOptions DEFAULT_OPTIONS = builder().build();
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Gets the {@link ServiceOptions} used when none are given at registration. */
+  static ServiceOptions defaultOptions() {
+    return DEFAULT_OPTIONS;
+  }
+
+  private final ServerEngineType serverEngineType;
+  private final int workerThreads;
+  private final int eventLoopThreads;
+  private final int maxQueuedTasks;
+  private final WireFormat wireFormat;
+  private final ImmutableSet<String> oneWayMethods;
+  private final int oneWayQueueCapacity;
+  private final OverflowPolicy oneWayOverflowPolicy;
+  private final int maxBatchSize;
+  private final long batchLingerNanos;
+  private final long combinerFlushIntervalNanos;
+  private final long combinerFlushThreshold;
+  private final long callTimeoutNanos;
+  private final String group;
+  private final int replicas;
+  private final int shards;
+  private final boolean prometheusEndpoint;
+
+  private ServiceOptions(Builder builder) {
+    serverEngineType = builder.serverEngineType;
+    workerThreads = builder.workerThreads;
+    eventLoopThreads = builder.eventLoopThreads;
+    maxQueuedTasks = builder.maxQueuedTasks;
+    wireFormat = builder.wireFormat;
+    oneWayMethods = builder.oneWayMethods.build();
+    oneWayQueueCapacity = builder.oneWayQueueCapacity;
+    oneWayOverflowPolicy = builder.oneWayOverflowPolicy;
+    maxBatchSize = builder.maxBatchSize;
+    batchLingerNanos = builder.batchLingerNanos;
+    combinerFlushIntervalNanos = builder.combinerFlushIntervalNanos;
+    combinerFlushThreshold = builder.combinerFlushThreshold;
+    callTimeoutNanos = builder.callTimeoutNanos;
+    group = builder.group;
+    replicas = builder.replicas;
+    shards = builder.shards;
+    prometheusEndpoint = builder.prometheusEndpoint;
+  }
+
+  ServerEngineType getServerEngineType() {
+    return serverEngineType;
+  }
+
+  int getWorkerThreads() {
+    return workerThreads;
+  }
+
+  int getEventLoopThreads() {
+    return eventLoopThreads;
+  }
+
+  int getMaxQueuedTasks() {
+    return maxQueuedTasks;
+  }
+
+  WireFormat getWireFormat() {
+    return wireFormat;
+  }
+
+  Set<String> getOneWayMethods() {
+    return oneWayMethods;
+  }
+
+  int getOneWayQueueCapacity() {
+    return oneWayQueueCapacity;
+  }
+
+  OverflowPolicy getOneWayOverflowPolicy() {
+    return oneWayOverflowPolicy;
+  }
+
+  int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  long getBatchLingerNanos() {
+    return batchLingerNanos;
+  }
+
+  long getCombinerFlushIntervalNanos() {
+    return combinerFlushIntervalNanos;
+  }
+
+  long getCombinerFlushThreshold() {
+    return combinerFlushThreshold;
+  }
+
+  long getCallTimeoutNanos() {
+    return callTimeoutNanos;
+  }
+
+  /** Gets the co-location group, or {@code null} if the {@link Microservice} is deployed alone. */
+  String getGroup() {
+    return group;
+  }
+
+  int getReplicas() {
+    return replicas;
+  }
+
+  int getShards() {
+    return shards;
+  }
+
+  boolean isPrometheusEndpointEnabled() {
+    return prometheusEndpoint;
+  }
+}
@@ -16,12 +16,17 @@
 
 package coollog.experiments.oomicroservice.framework;
 
-import java.lang.reflect.Modifier;
+import com.google.common.cache.CacheStats;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import javassist.util.proxy.MethodHandler;
 import javassist.util.proxy.ProxyFactory;
 import javassist.util.proxy.ProxyObject;
 import org.objenesis.Objenesis;
@@ -30,20 +35,29 @@ import org.objenesis.ObjenesisStd;
 /** Registry for active microservices. */
 class ServiceRegistry {
 
+  private static final Logger LOGGER = Logger.get("registry");
+
   /** Holds information about a registered {@link Microservice}. */
   static class RegisteredMicroservice<T extends Microservice> {
 
     private final Class<T> clazz;
     private final String host;
     private final Callable<T> microserviceInstantiator;
+    private final ServiceOptions serviceOptions;
+    private final String group;
     private final MicroserviceMethodHandler<T> microserviceMethodHandler;
 
     private RegisteredMicroservice(
-        Class<T> clazz, String host, Callable<T> microserviceInstantiator) {
+        Class<T> clazz,
+        String host,
+        Callable<T> microserviceInstantiator,
+        ServiceOptions serviceOptions) {
       this.clazz = clazz;
       this.host = host;
       this.microserviceInstantiator = microserviceInstantiator;
-      this.microserviceMethodHandler = new MicroserviceMethodHandler<>(clazz, host);
+      this.serviceOptions = serviceOptions;
+      this.group = serviceOptions.getGroup() != null ? serviceOptions.getGroup() : host;
+      this.microserviceMethodHandler = new MicroserviceMethodHandler<>(clazz, host, serviceOptions);
     }
 
     Class<T> getClazz() {
@@ -53,36 +67,162 @@ class ServiceRegistry {
     String getHost() {
       return host;
     }
+
+    /** Gets the co-location group, which is the host if the microservice is deployed alone. */
+    String getGroup() {
+      return group;
+    }
+
+    int getReplicas() {
+      return serviceOptions.getReplicas();
+    }
+
+    int getShards() {
+      return serviceOptions.getShards();
+    }
   }
 
   private static final Objenesis OBJENESIS = new ObjenesisStd();
 
-  /** Maps from a {@link Microservice} class to a {@link Microservice} proxy instance. */
-  private static Map<Class<? extends Microservice>, Microservice> serviceProxyMap = new HashMap<>();
+  /**
+   * Appended to the name of a {@link Microservice} class to get the name of its {@link RemoteStub}.
+   */
+  private static final String REMOTE_STUB_SUFFIX = "_RemoteStub";
+
+  /**
+   * Holds the {@link Microservice} proxy instance for each {@link Microservice} class. Once a proxy
+   * is created, getting it does not take any locks.
+   */
+  private static final ClassValue<Microservice> serviceProxies =
+      new ClassValue<Microservice>() {
+        @Override
+        protected Microservice computeValue(Class<?> microserviceClass) {
+          synchronized (proxyLock) {
+            // Another thread may have created the proxy while this one waited for the lock.
+            Microservice proxy = createdProxies.get(microserviceClass);
+            if (proxy == null) {
+              proxy = createProxy(microserviceClass);
+              createdProxies.put(microserviceClass, proxy);
+            }
+            return proxy;
+          }
+        }
+      };
+
+  /**
+   * Guards {@link #createdProxies}. Separate from the locks on local instances so that creating a
+   * proxy never waits for a constructor.
+   */
+  private static final Object proxyLock = new Object();
+
+  /**
+   * The proxies created for {@link #serviceProxies}, so that threads racing to compute the same
+   * value generate its proxy class only once. Guarded by {@link #proxyLock}.
+   */
+  private static final Map<Class<?>, Microservice> createdProxies = new HashMap<>();
 
   /** Maps from a {@link Microservice} class to its registration information. */
-  private static Map<Class<? extends Microservice>, RegisteredMicroservice<? extends Microservice>>
-      registeredServiceMap = new HashMap<>();
+  private static final Map<
+          Class<? extends Microservice>, RegisteredMicroservice<? extends Microservice>>
+      registeredServiceMap = new ConcurrentHashMap<>();
+
+  /**
+   * Maps from a host to the address of each of its replicas when it runs in a {@link LocalCluster}.
+   */
+  private static final Map<String, List<InetSocketAddress>> localEndpoints =
+      new ConcurrentHashMap<>();
+
+  /** The co-location group served by this process, or {@code null} if there is none. */
+  private static volatile String localGroup;
+
+  /**
+   * Holds the instance of a {@link Microservice} class served by this process. Each holder is its
+   * own lock, so constructing one instance does not block constructing the others.
+   */
+  private static class LocalInstance {
+
+    private Microservice instance;
+    private boolean inConstruction;
+  }
+
+  /**
+   * Maps from a {@link Microservice} class to the holder of its instance served by this process.
+   */
+  private static final Map<Class<? extends Microservice>, LocalInstance> localInstances =
+      new ConcurrentHashMap<>();
 
   /** Gets the singleton for the {@link Microservice}. */
-  @SuppressWarnings("unchecked")
   static <T extends Microservice> T get(Class<T> microserviceClass) {
-    if (!registeredServiceMap.containsKey(microserviceClass)) {
+    return microserviceClass.cast(serviceProxies.get(microserviceClass));
+  }
+
+  /**
+   * Creates the proxies for every registered {@link Microservice} ahead of time, so that the first
+   * call to each one does not pay for generating its proxy class.
+   */
+  static void warmUp() {
+    for (Class<? extends Microservice> microserviceClass : registeredServiceMap.keySet()) {
+      get(microserviceClass);
+    }
+  }
+
+  /**
+   * Creates the proxy for a {@link Microservice}. Called with {@link #proxyLock} held.
+   *
+   * @param microserviceClass the {@link Microservice} class
+   * @return the proxy
+   * @throws IllegalArgumentException if {@code microserviceClass} is not registered
+   */
+  private static Microservice createProxy(Class<?> microserviceClass) {
+    RegisteredMicroservice<?> registeredMicroservice = registeredServiceMap.get(microserviceClass);
+    if (registeredMicroservice == null) {
       throw new IllegalArgumentException(
           "No registered class with name " + microserviceClass.getName());
     }
 
-    if (!serviceProxyMap.containsKey(microserviceClass)) {
-      // Adds a proxy for remote method calls to the microservice.
-      serviceProxyMap.put(
-          microserviceClass,
-          proxy(
-              microserviceClass,
-              (MicroserviceMethodHandler<T>)
-                  registeredServiceMap.get(microserviceClass).microserviceMethodHandler));
+    if (registeredMicroservice.group.equals(localGroup)) {
+      // Creates a proxy for direct method calls to the microservice in this process.
+      return proxy(
+          registeredMicroservice.clazz, new LocalMethodHandler<>(registeredMicroservice.clazz));
+    }
+    // Prefers a stub generated at build time for remote method calls to the microservice.
+    Microservice remoteStub = newRemoteStub(registeredMicroservice);
+    if (remoteStub != null) {
+      return remoteStub;
+    }
+    // Creates a proxy for remote method calls to the microservice.
+    return proxy(registeredMicroservice.clazz, registeredMicroservice.microserviceMethodHandler);
+  }
+
+  /**
+   * Creates the {@link RemoteStub} generated at build time for a {@link Microservice}, if any.
+   *
+   * @param registeredMicroservice the {@link Microservice}
+   * @return the {@link RemoteStub}, or {@code null} if there is none
+   */
+  private static Microservice newRemoteStub(RegisteredMicroservice<?> registeredMicroservice) {
+    Class<?> microserviceClass = registeredMicroservice.clazz;
+    Class<?> stubClass;
+    try {
+      stubClass =
+          Class.forName(
+              microserviceClass.getName() + REMOTE_STUB_SUFFIX,
+              true,
+              microserviceClass.getClassLoader());
+
+    } catch (ClassNotFoundException ex) {
+      return null;
+    }
+    if (stubClass.getSuperclass() != microserviceClass
+        || !RemoteStub.class.isAssignableFrom(stubClass)) {
+      return null;
     }
 
-    return microserviceClass.cast(serviceProxyMap.get(microserviceClass));
+    // Uses Objenesis because we don't want side effects from any constructors.
+    Object remoteStub = OBJENESIS.getInstantiatorOf(stubClass).newInstance();
+    ((RemoteStub) remoteStub)
+        .initRemoteStub(new StubCaller(registeredMicroservice.microserviceMethodHandler));
+    return (Microservice) remoteStub;
   }
 
   /**
@@ -94,22 +234,175 @@ class ServiceRegistry {
     return new ArrayList<>(registeredServiceMap.values());
   }
 
+  /**
+   * Gets the registered microservices by co-location group.
+   *
+   * @return the members of each group, by group name. The groups are sorted by name, and the
+   *     members of each group are sorted by host.
+   */
+  static Map<String, List<RegisteredMicroservice<?>>> getGroups() {
+    Map<String, List<RegisteredMicroservice<?>>> groups = new TreeMap<>();
+    for (RegisteredMicroservice<?> registeredMicroservice : registeredServiceMap.values()) {
+      groups
+          .computeIfAbsent(registeredMicroservice.group, group -> new ArrayList<>())
+          .add(registeredMicroservice);
+    }
+    for (List<RegisteredMicroservice<?>> members : groups.values()) {
+      members.sort(Comparator.comparing(RegisteredMicroservice::getHost));
+    }
+    return groups;
+  }
+
   /**
    * Registers the {@link Microservice} class with a {@code host} it's running on.
    *
    * @param microserviceClass the {@link Microservice} class
    * @param host the host
    * @param microserviceInstantiator instantiator for {@code microserviceClass}
+   * @param serviceOptions the {@link ServiceOptions} for {@code microserviceClass}
    * @param <T> the type of {@code microserviceClass}
    */
   static <T extends Microservice> void register(
-      Class<T> microserviceClass, String host, Callable<T> microserviceInstantiator) {
+      Class<T> microserviceClass,
+      String host,
+      Callable<T> microserviceInstantiator,
+      ServiceOptions serviceOptions) {
     host = host.toLowerCase();
-    System.err.println(
-        "Registering class with name " + microserviceClass.getName() + " at " + host);
+    LOGGER.info("Registering", "class", microserviceClass.getName(), "host", host);
     registeredServiceMap.put(
         microserviceClass,
-        new RegisteredMicroservice<>(microserviceClass, host, microserviceInstantiator));
+        new RegisteredMicroservice<>(
+            microserviceClass, host, microserviceInstantiator, serviceOptions));
+    // Drops any proxy made for an earlier registration.
+    synchronized (proxyLock) {
+      createdProxies.remove(microserviceClass);
+      serviceProxies.remove(microserviceClass);
+    }
+  }
+
+  /**
+   * Gets the {@link ServiceOptions} that {@code microserviceClass} was registered with.
+   *
+   * @param microserviceClass the {@link Microservice} class
+   * @return the {@link ServiceOptions}
+   */
+  static ServiceOptions getOptions(Class<? extends Microservice> microserviceClass) {
+    if (!registeredServiceMap.containsKey(microserviceClass)) {
+      throw new IllegalArgumentException(
+          "No registered class with name " + microserviceClass.getName());
+    }
+
+    return registeredServiceMap.get(microserviceClass).serviceOptions;
+  }
+
+  /**
+   * Gets the statistics of the results cached for the {@link Cacheable} methods of {@code
+   * microserviceClass}.
+   *
+   * @param microserviceClass the {@link Microservice} class
+   * @return the {@link CacheStats}
+   */
+  static CacheStats getCacheStats(Class<? extends Microservice> microserviceClass) {
+    if (!registeredServiceMap.containsKey(microserviceClass)) {
+      throw new IllegalArgumentException(
+          "No registered class with name " + microserviceClass.getName());
+    }
+
+    return registeredServiceMap.get(microserviceClass).microserviceMethodHandler.getCacheStats();
+  }
+
+  /**
+   * Serves the replicas of {@code host} at {@code addresses} instead of on the network, such as in
+   * a {@link LocalCluster}.
+   *
+   * @param host the host of a registered {@link Microservice}
+   * @param addresses the address of each replica of the {@link Microservice}
+   */
+  static void setLocalEndpoints(String host, List<InetSocketAddress> addresses) {
+    localEndpoints.put(host, new ArrayList<>(addresses));
+  }
+
+  /**
+   * Gets the addresses that the replicas of {@code host} are served at locally.
+   *
+   * @param host the host of a {@link Microservice}
+   * @return the address of each replica, or {@code null} if {@code host} is not served locally
+   */
+  static List<InetSocketAddress> getLocalEndpoints(String host) {
+    return localEndpoints.get(host);
+  }
+
+  /**
+   * Resolves the address to connect to for {@code host}.
+   *
+   * @param host the host of a {@link Microservice}
+   * @param port the port the {@link Microservice} is served on over the network
+   * @return the local address of the first replica of {@code host} if it is served locally, or
+   *     {@code host:port}
+   */
+  static InetSocketAddress resolve(String host, int port) {
+    List<InetSocketAddress> addresses = localEndpoints.get(host);
+    return addresses != null ? addresses.get(0) : new InetSocketAddress(host, port);
+  }
+
+  /**
+   * Gets the port that each replica of {@code microserviceClass} is served on inside its pod, which
+   * is where calls to a single replica go.
+   *
+   * @param microserviceClass the {@link Microservice} class
+   * @return the port
+   */
+  static int getReplicaPort(Class<? extends Microservice> microserviceClass) {
+    RegisteredMicroservice<?> registeredMicroservice = registeredServiceMap.get(microserviceClass);
+    if (registeredMicroservice == null) {
+      throw new IllegalArgumentException(
+          "No registered class with name " + microserviceClass.getName());
+    }
+
+    List<RegisteredMicroservice<?>> members = getGroups().get(registeredMicroservice.group);
+    return ServiceRunner.getGroupMemberPort(members.indexOf(registeredMicroservice));
+  }
+
+  /**
+   * Makes calls to the {@link Microservice}s in {@code group} go directly to their instances in
+   * this process. Must be called before any proxies are created.
+   *
+   * @param group the co-location group served by this process
+   */
+  static void setLocalGroup(String group) {
+    localGroup = group;
+  }
+
+  /**
+   * Gets the instance of {@code microserviceClass} served by this process, creating it if needed.
+   *
+   * @param microserviceClass the {@link Microservice} class
+   * @param <T> the type of {@code microserviceClass}
+   * @return the instance of {@code microserviceClass}
+   * @throws IllegalStateException if the constructor of {@code microserviceClass} calls itself,
+   *     directly or through other constructors
+   * @throws Exception if an exception occurs
+   */
+  static <T extends Microservice> T getLocalInstance(Class<T> microserviceClass) throws Exception {
+    LocalInstance localInstance =
+        localInstances.computeIfAbsent(microserviceClass, ignored -> new LocalInstance());
+    synchronized (localInstance) {
+      if (localInstance.instance == null) {
+        // Only the constructing thread can get here mid-construction, since the lock is reentrant.
+        if (localInstance.inConstruction) {
+          throw new IllegalStateException(
+              "Circular call while constructing " + microserviceClass.getName());
+        }
+        localInstance.inConstruction = true;
+        try {
+          localInstance.instance = newInstance(microserviceClass);
+
+        } finally {
+          localInstance.inConstruction = false;
+        }
+      }
+      return microserviceClass.cast(localInstance.instance);
+    }
   }
 
   /**
@@ -130,14 +423,20 @@ class ServiceRegistry {
         registeredServiceMap.get(microserviceClass).microserviceInstantiator.call());
   }
 
-  /** Creates a proxy for the {@link Microservice} to replace its public API with network calls. */
+  /**
+   * Creates a proxy for the {@link Microservice} to replace its public API with network calls.
+   *
+   * @param microserviceClass the {@link Microservice} class
+   * @param methodHandler handles the calls to the remote methods
+   * @param <T> the type of {@code microserviceClass}
+   * @return the proxy
+   */
   @SuppressWarnings("unchecked")
-  private static <T extends Microservice> T proxy(
-      Class<T> microserviceClass, MicroserviceMethodHandler<T> methodHandler) {
+  static <T extends Microservice> T proxy(Class<T> microserviceClass, MethodHandler methodHandler) {
     // Uses ProxyFactory because normal proxy can only be used on interfaces.
     ProxyFactory proxyFactory = new ProxyFactory();
     proxyFactory.setSuperclass(microserviceClass);
-    proxyFactory.setFilter(method -> Modifier.isPublic(method.getModifiers()));
+    proxyFactory.setFilter(MethodTable::isRemote);
 
     // Uses Objenesis because we don't want side effects from any constructors.
     Class<T> proxyClass = (Class<T>) proxyFactory.createClass();
@@ -16,31 +16,43 @@
 
 package coollog.experiments.oomicroservice.framework;
 
+import com.google.common.base.Throwables;
+import coollog.experiments.oomicroservice.framework.ServiceRegistry.RegisteredMicroservice;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
 
 /** Implement as runner for microservices. */
 public abstract class ServiceRunner {
 
-  private static final int SERVICE_PORT = 80;
+  private static final Logger LOGGER = Logger.get("server");
 
-  private static final MethodInvocationSerializer methodInvocationSerializer =
-      new BasicMethodInvocationSerializer();
+  static final int SERVICE_PORT = 80;
+
+  /** Runs every registered {@link Microservice} in a single process, as a {@link LocalCluster}. */
+  private static final String LOCAL_FLAG = "--local";
+
+  /** Serves every {@link Microservice} in the co-location group named by the next arg. */
+  static final String GROUP_FLAG = "--group";
+
+  /** Whether to create the proxies for every {@link Microservice} before serving. */
+  private static boolean eagerProxies = false;
 
   /**
    * Call this after registering the {@link Microservice}s.
    *
+   * <p>With no args, deploys every {@link Microservice} to Kubernetes. With {@code --local}, runs
+   * every {@link Microservice} in this process, each on its own loopback port. With {@code --group
+   * <group>}, serves every {@link Microservice} in the co-location group. Otherwise, serves the
+   * {@link Microservice} class named by the first arg.
+   *
    * @param serviceRunnerClass the {@link ServiceRunner}
    * @param args the args passed to main
    * @throws ClassNotFoundException if the class does not exist
@@ -57,11 +69,36 @@ public abstract class ServiceRunner {
       return;
     }
 
+    // With the local flag, runs every microservice in this process.
+    if (LOCAL_FLAG.equals(args[0])) {
+      warmUpIfEager();
+      LocalCluster.start();
+      return;
+    }
+
+    // With the group flag, runs every microservice in the group in this process.
+    if (GROUP_FLAG.equals(args[0])) {
+      if (args.length < 2) {
+        throw new IllegalArgumentException(GROUP_FLAG + " must be followed by a group name");
+      }
+      runGroup(args[1]);
+      return;
+    }
+
     // When there is an arg, runs as the corresponding microservice.
     String runClassName = args[0];
     run(runClassName);
   }
 
+  /**
+   * Call this before {@link #runMain} to create the proxies for calling every registered {@link
+   * Microservice} before serving, so that the first call to each one does not wait for its proxy
+   * class to be generated.
+   */
+  protected static void enableEagerProxies() {
+    eagerProxies = true;
+  }
+
   /**
    * Registers the {@link Microservice}.
    *
@@ -69,8 +106,32 @@ public abstract class ServiceRunner {
    * @param <T> the type of {@code microserviceClass}
    */
   protected static <T extends Microservice> void register(Class<T> microserviceClass) {
-    ServiceRegistry.register(
-        microserviceClass, microserviceClass.getSimpleName(), microserviceClass::newInstance);
+    register(microserviceClass, ServiceOptions.defaultOptions());
+  }
+
+  /**
+   * Registers the {@link Microservice} with {@code replicas} replicas, which callers balance their
+   * calls across.
+   *
+   * @param microserviceClass the {@link Microservice} implementation class
+   * @param replicas the number of replicas
+   * @param <T> the type of {@code microserviceClass}
+   */
+  protected static <T extends Microservice> void register(
+      Class<T> microserviceClass, int replicas) {
+    register(microserviceClass, ServiceOptions.builder().setReplicas(replicas).build());
+  }
+
+  /**
+   * Registers the {@link Microservice} with {@link ServiceOptions}.
+   *
+   * @param microserviceClass the {@link Microservice} implementation class
+   * @param serviceOptions the {@link ServiceOptions} for the {@link Microservice}
+   * @param <T> the type of {@code microserviceClass}
+   */
+  protected static <T extends Microservice> void register(
+      Class<T> microserviceClass, ServiceOptions serviceOptions) {
+    register(microserviceClass, microserviceClass::newInstance, serviceOptions);
   }
 
   /**
@@ -82,8 +143,26 @@ public abstract class ServiceRunner {
    */
   protected static <T extends Microservice> void register(
       Class<T> microserviceClass, Callable<T> microserviceInstantiator) {
+    register(microserviceClass, microserviceInstantiator, ServiceOptions.defaultOptions());
+  }
+
+  /**
+   * Registers the {@link Microservice} with {@link ServiceOptions}.
+   *
+   * @param microserviceClass the {@link Microservice} implementation class
+   * @param microserviceInstantiator instantiator for the {@link Microservice} implementation class
+   * @param serviceOptions the {@link ServiceOptions} for the {@link Microservice}
+   * @param <T> the type of {@code microserviceClass}
+   */
+  protected static <T extends Microservice> void register(
+      Class<T> microserviceClass,
+      Callable<T> microserviceInstantiator,
+      ServiceOptions serviceOptions) {
     ServiceRegistry.register(
-        microserviceClass, microserviceClass.getSimpleName(), microserviceInstantiator);
+        microserviceClass,
+        microserviceClass.getSimpleName(),
+        microserviceInstantiator,
+        serviceOptions);
   }
 
   /**
@@ -91,24 +170,77 @@ public abstract class ServiceRunner {
    *
    * @param localMicroserviceClassName the name of the microservice to run locally
    * @throws ClassNotFoundException if the class does not exist
-   * @throws InvocationTargetException if a remote call to this microservice fails
    * @throws IOException if an I/O exception occurs
    * @throws InstantiationException if the microservice fails to instantiate
    */
   @SuppressWarnings("unchecked")
   private static void run(String localMicroserviceClassName)
-      throws ClassNotFoundException, InvocationTargetException, IOException,
-          InstantiationException {
-    System.err.println("Serving " + localMicroserviceClassName);
+      throws ClassNotFoundException, IOException, InstantiationException {
+    LOGGER.info("Serving", "class", localMicroserviceClassName);
 
     Class<?> runClass = Class.forName(localMicroserviceClassName);
     if (!Microservice.class.isAssignableFrom(runClass)) {
       throw new IllegalArgumentException(localMicroserviceClassName + " must extend Microservice");
     }
 
+    Tracing.setProcessServiceName(Tracing.getServiceName(runClass));
+    warmUpIfEager();
     runServerForClass((Class<? extends Microservice>) runClass);
   }
 
+  /**
+   * Serves every {@link Microservice} in {@code group}, each on its {@link #getGroupMemberPort
+   * port}. Calls between them are made directly on their instances in this process.
+   *
+   * @param group the co-location group
+   * @throws IOException if an I/O exception occurs
+   */
+  private static void runGroup(String group) throws IOException {
+    List<RegisteredMicroservice<?>> members = ServiceRegistry.getGroups().get(group);
+    if (members == null) {
+      throw new IllegalArgumentException("No registered microservices in group " + group);
+    }
+    ServiceRegistry.setLocalGroup(group);
+    Tracing.setProcessServiceName(group);
+    warmUpIfEager();
+
+    // Binds every microservice before serving any, like LocalCluster.
+    List<ServerEngine> serverEngines = new ArrayList<>();
+    for (int memberIndex = 0; memberIndex < members.size(); memberIndex++) {
+      ServerEngine serverEngine =
+          ServerEngine.create(ServiceRegistry.getOptions(members.get(memberIndex).getClazz()));
+      serverEngine.bind(new InetSocketAddress(getGroupMemberPort(memberIndex)));
+      serverEngines.add(serverEngine);
+    }
+
+    List<CompletableFuture<RequestHandler>> requestHandlerFutures = new ArrayList<>();
+    for (int memberIndex = 0; memberIndex < members.size(); memberIndex++) {
+      Class<? extends Microservice> microserviceClass = members.get(memberIndex).getClazz();
+      LOGGER.info(
+          "Serving", "class", microserviceClass.getName(), "port", getGroupMemberPort(memberIndex));
+      requestHandlerFutures.add(
+          serveInBackground(serverEngines.get(memberIndex), microserviceClass));
+    }
+    awaitConstructed(requestHandlerFutures);
+  }
+
+  private static void warmUpIfEager() {
+    if (eagerProxies) {
+      ServiceRegistry.warmUp();
+    }
+  }
+
+  /**
+   * Gets the port that a member of a co-location group is served on inside its pod.
+   *
+   * @param memberIndex the index of the member in its group, as listed by {@link
+   *     ServiceRegistry#getGroups}
+   * @return the port
+   */
+  static int getGroupMemberPort(int memberIndex) {
+    return SERVICE_PORT + memberIndex;
+  }
+
   /**
    * Runs a server to handle remote method calls to the {@link Microservice}.
    *
@@ -116,111 +248,138 @@ public abstract class ServiceRunner {
    * @param <T> the type of {@code microserviceClass}
    * @throws InstantiationException if the {@code microserviceClass} fails to instantiate
    * @throws IOException if an I/O exception occurs
-   * @throws InvocationTargetException if a method call to the {@link Microservice} fails
    */
-  @SuppressWarnings("InfiniteLoopStatement")
   private static <T extends Microservice> void runServerForClass(Class<T> microserviceClass)
-      throws InstantiationException, IOException, InvocationTargetException {
-    try {
-      T runClassInstance = ServiceRegistry.newInstance(microserviceClass);
-
-      try (ServerSocket serverSocket = new ServerSocket(SERVICE_PORT)) {
-        while (true) {
-          try (Socket connectionSocket = serverSocket.accept();
-              InputStream inputStream = connectionSocket.getInputStream();
-              OutputStream outputStream = connectionSocket.getOutputStream()) {
-            handleConnection(runClassInstance, inputStream, outputStream);
-          }
-        }
-      }
-
-    } catch (IllegalAccessException ex) {
-      throw new IllegalArgumentException(microserviceClass + " must be public", ex);
-
-    } catch (Exception ex) {
-      throw new RuntimeException(ex);
-    }
+      throws InstantiationException, IOException {
+    ServerEngine serverEngine = ServerEngine.create(ServiceRegistry.getOptions(microserviceClass));
+    serverEngine.bind(new InetSocketAddress(SERVICE_PORT));
+    serverEngine.serve(createRequestHandler(microserviceClass));
   }
 
   /**
-   * Forwards a remote method call to the running {@link Microservice}.
+   * Serves the {@link Microservice} on its own thread. Serving starts before the instance is
+   * constructed, and requests wait until it is, so its constructor may call microservices that are
+   * served the same way.
    *
-   * @param serviceInstance the {@link Microservice} instance
-   * @param inputStream the {@link InputStream} for the incoming connection
-   * @param outputStream the {@link OutputStream} of the incoming connection
-   * @param <T> the type of the {@code serviceInstance}
-   * @throws IOException if an I/O exception occurs
-   * @throws InvocationTargetException if the invoked method fails
-   * @throws IllegalAccessException if the invoked method cannot be accessed
-   */
-  // TODO: Should not break the entire server if an invalid method call is received?
-  private static <T extends Microservice> void handleConnection(
-      T serviceInstance, InputStream inputStream, OutputStream outputStream)
-      throws IOException, InvocationTargetException, IllegalAccessException {
-    // Deserializes the remote method call.
-    MethodInvocation methodInvocation = methodInvocationSerializer.deserialize(inputStream);
-    String methodName = methodInvocation.getMethodName();
-    List<String> args = methodInvocation.getArgs();
-
-    //    System.err.println("GOT " + methodName + " , ARGS " + String.join(", ", args));
-
-    // Finds the matched method.
-    for (Method method : serviceInstance.getClass().getDeclaredMethods()) {
-      if (!method.getName().equals(methodName)) {
-        continue;
-      }
-      if (!Modifier.isPublic(method.getModifiers())) {
-        throw new UnsupportedOperationException("Method " + method.getName() + " is not public");
-      }
+   * @param serverEngine the bound {@link ServerEngine}
+   * @param microserviceClass the {@link Microservice} class
+   * @return completes once the instance is constructed, or fails if constructing it fails
+   */
+  static CompletableFuture<RequestHandler> serveInBackground(
+      ServerEngine serverEngine, Class<? extends Microservice> microserviceClass) {
+    return serveInBackground(
+        serverEngine, microserviceClass, () -> createRequestHandler(microserviceClass));
+  }
 
-      //      // Checks if method return type is supported.
-      //      if (method.getReturnType() != String.class) {
-      //        throw new UnsupportedOperationException(
-      //            "Method " + method.getName() + " has non-String return type");
-      //      }
-
-      if (method.getParameterCount() != args.size()) {
-        throw new IllegalArgumentException(
-            "Method "
-                + method.getName()
-                + " has "
-                + method.getParameterCount()
-                + " args, but received "
-                + args.size());
-      }
+  /**
+   * Serves another replica of the {@link Microservice} on its own thread, with a new instance
+   * rather than the one served by this process. Serving starts before the instance is constructed,
+   * like {@link #serveInBackground(ServerEngine, Class)}.
+   *
+   * @param serverEngine the bound {@link ServerEngine}
+   * @param microserviceClass the {@link Microservice} class
+   * @return completes once the instance is constructed, or fails if constructing it fails
+   */
+  static CompletableFuture<RequestHandler> serveReplicaInBackground(
+      ServerEngine serverEngine, Class<? extends Microservice> microserviceClass) {
+    return serveInBackground(
+        serverEngine, microserviceClass, () -> createReplicaRequestHandler(microserviceClass));
+  }
 
-      // Converts the raw string args to typed arguments.
-      List<Object> typedArgs = new ArrayList<>(args.size());
-      for (int argIndex = 0; argIndex < args.size(); argIndex++) {
-        Class<?> argClass = method.getParameterTypes()[argIndex];
-        String argValue = args.get(argIndex);
+  private static CompletableFuture<RequestHandler> serveInBackground(
+      ServerEngine serverEngine,
+      Class<? extends Microservice> microserviceClass,
+      Supplier<RequestHandler> requestHandlerFactory) {
+    CompletableFuture<RequestHandler> requestHandlerFuture = new CompletableFuture<>();
+    RequestHandler requestHandler =
+        new DeferredRequestHandler(Tracing.getServiceName(microserviceClass), requestHandlerFuture);
+    new Thread(
+            () -> {
+              try {
+                serverEngine.serve(requestHandler);
 
-        if (argClass.equals(String.class)) {
-          typedArgs.add(argValue);
+              } catch (IOException ex) {
+                LOGGER.error(
+                    "Failed to serve", "class", microserviceClass.getName(), "exception", ex);
+              }
+            },
+            "serve-" + microserviceClass.getSimpleName())
+        .start();
 
-        } else if (argClass.equals(Integer.TYPE)) {
-          typedArgs.add(Integer.valueOf(argValue));
+    // Constructs the instance on its own thread, since its constructor may wait on other services.
+    new Thread(
+            () -> {
+              try {
+                requestHandlerFuture.complete(requestHandlerFactory.get());
 
-        } else if (argClass.equals(Class.class)) {
-          try {
-            typedArgs.add(Class.forName(argValue));
+              } catch (RuntimeException | Error ex) {
+                requestHandlerFuture.completeExceptionally(ex);
+              }
+            },
+            "construct-" + microserviceClass.getSimpleName())
+        .start();
+    return requestHandlerFuture;
+  }
 
-          } catch (ClassNotFoundException ex) {
-            throw new IllegalArgumentException("Did not find class matching " + argValue, ex);
-          }
+  /**
+   * Waits until every instance served with {@link #serveInBackground(ServerEngine, Class)} or
+   * {@link #serveReplicaInBackground} is constructed.
+   *
+   * @param requestHandlerFutures the futures returned when serving them
+   * @throws RuntimeException if constructing any of them fails
+   */
+  static void awaitConstructed(List<CompletableFuture<RequestHandler>> requestHandlerFutures) {
+    for (CompletableFuture<RequestHandler> requestHandlerFuture : requestHandlerFutures) {
+      try {
+        requestHandlerFuture.join();
 
-        } else {
-          // TODO: Add more supported argument types.
-          throw new IllegalArgumentException("Unsupported argument type " + argClass);
-        }
+      } catch (CompletionException ex) {
+        Throwables.throwIfUnchecked(ex.getCause());
+        throw new RuntimeException(ex.getCause());
       }
-
-      String output = String.valueOf(method.invoke(serviceInstance, typedArgs.toArray()));
-      outputStream.write(output.getBytes(StandardCharsets.UTF_8));
-      //      System.err.println("SENT " + output);
-      return;
     }
+  }
+
+  /**
+   * Gets the instance of the {@link Microservice} served by this process and a {@link
+   * RequestHandler} that serves it.
+   *
+   * @param microserviceClass the {@link Microservice} class
+   * @param <T> the type of {@code microserviceClass}
+   * @return the {@link RequestHandler}
+   */
+  static <T extends Microservice> RequestHandler createRequestHandler(Class<T> microserviceClass) {
+    return createRequestHandler(
+        microserviceClass, () -> ServiceRegistry.getLocalInstance(microserviceClass));
+  }
+
+  /**
+   * Creates a new instance of the {@link Microservice} and a {@link RequestHandler} that serves it.
+   *
+   * @param microserviceClass the {@link Microservice} class
+   * @param <T> the type of {@code microserviceClass}
+   * @return the {@link RequestHandler}
+   */
+  private static <T extends Microservice> RequestHandler createReplicaRequestHandler(
+      Class<T> microserviceClass) {
+    return createRequestHandler(
+        microserviceClass, () -> ServiceRegistry.newInstance(microserviceClass));
+  }
+
+  private static <T extends Microservice> RequestHandler createRequestHandler(
+      Class<T> microserviceClass, Callable<T> microserviceInstantiator) {
+    try {
+      T runClassInstance = microserviceInstantiator.call();
+      return new MicroserviceRequestHandler<>(
+          microserviceClass,
+          runClassInstance,
+          ServiceRegistry.getOptions(microserviceClass).isPrometheusEndpointEnabled());
+
+    } catch (IllegalAccessException ex) {
+      throw new IllegalArgumentException(microserviceClass + " must be public", ex);
 
-    throw new UnsupportedOperationException("Method " + methodName + " not found");
+    } catch (Exception ex) {
+      throw new RuntimeException(ex);
+    }
   }
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+
+/** Names the shards of a {@link Microservice} and decides which shard owns a {@link ShardKey}. */
+class Shards {
+
+  private static final HashFunction KEY_HASH_FUNCTION = Hashing.murmur3_128();
+
+  /**
+   * Gets the host of a single shard, which is also the name of its Kubernetes deployment and
+   * service.
+   *
+   * @param host the host of the {@link Microservice}
+   * @param shard the index of the shard
+   * @param shardCount the number of shards
+   * @return the host of the shard, which is just {@code host} if there is a single shard
+   */
+  static String getHost(String host, int shard, int shardCount) {
+    return shardCount == 1 ? host : host + "-shard-" + shard;
+  }
+
+  /**
+   * Gets the shard that owns {@code key}. Keys are hashed by value rather than by their serialized
+   * form, so that callers agree on the shard whatever wire format they use. Uses jump consistent
+   * hashing, so that adding a shard only moves the keys that the new shard takes over.
+   *
+   * @param key the {@link ShardKey} argument
+   * @param shardCount the number of shards
+   * @return the index of the shard
+   */
+  static int getShard(Object key, int shardCount) {
+    return Hashing.consistentHash(hashKey(key), shardCount);
+  }
+
+  private static HashCode hashKey(Object key) {
+    if (key instanceof byte[]) {
+      return KEY_HASH_FUNCTION.hashBytes((byte[]) key);
+    }
+    if (key instanceof Class) {
+      return KEY_HASH_FUNCTION.hashString(((Class<?>) key).getName(), StandardCharsets.UTF_8);
+    }
+    return KEY_HASH_FUNCTION.hashString(String.valueOf(key), StandardCharsets.UTF_8);
+  }
+
+  private Shards() {}
+}
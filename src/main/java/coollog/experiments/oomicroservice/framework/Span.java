@@ -0,0 +1,174 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A timed operation in a distributed trace: a call made to another {@link Microservice}, a call
+ * served, or a call made directly on a co-located instance.
+ *
+ * <p>A call over the network is recorded twice with the same span ID, once by the caller and once
+ * by the callee, like Zipkin's shared spans. The spans of a trace are told apart by their kind and
+ * linked by their parent IDs.
+ */
+class Span {
+
+  /** What side of a call a {@link Span} was recorded on. */
+  enum Kind {
+
+    /** A call made to another {@link Microservice} over the network. */
+    CLIENT,
+
+    /** A call served to another {@link Microservice}, or to an outside caller. */
+    SERVER,
+
+    /** A call made directly on a co-located instance. */
+    LOCAL
+  }
+
+  /** Converts {@link System#nanoTime} to microseconds since the epoch. */
+  private static final long EPOCH_MICROS_MINUS_NANO_MICROS =
+      TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis())
+          - TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+
+  private final long traceId;
+  private final long spanId;
+  private final long parentId;
+  private final Kind kind;
+  private String name;
+  private final String localService;
+  private final String remoteService;
+  private final long startNanos;
+
+  /** Set once when finished, before the span is published to the {@link SpanBuffer}. */
+  private long durationNanos;
+
+  private boolean failed;
+
+  /** Whether a server span shares its ID with the client span of the same call. */
+  private boolean shared;
+
+  /** The position of the span in the {@link SpanBuffer}, set when it is published. */
+  private volatile long sequence = -1;
+
+  /**
+   * Starts a new {@link Span}.
+   *
+   * @param traceId the ID of the trace
+   * @param spanId the ID of the span
+   * @param parentId the ID of the parent span, or {@code 0} if the span is the root of its trace
+   * @param kind the {@link Kind}
+   * @param name the name of the called method, or {@code null} if not known yet
+   * @param localService the name of the {@link Microservice} that records the span
+   * @param remoteService the name of the other {@link Microservice} in the call, or {@code null}
+   */
+  Span(
+      long traceId,
+      long spanId,
+      long parentId,
+      Kind kind,
+      String name,
+      String localService,
+      String remoteService) {
+    this.traceId = traceId;
+    this.spanId = spanId;
+    this.parentId = parentId;
+    this.kind = kind;
+    this.name = name;
+    this.localService = localService;
+    this.remoteService = remoteService;
+    startNanos = System.nanoTime();
+  }
+
+  /**
+   * Finishes the span and publishes it to the {@link SpanBuffer}. Must be called only once.
+   *
+   * @param failed whether or not the call failed
+   */
+  void finish(boolean failed) {
+    durationNanos = System.nanoTime() - startNanos;
+    this.failed = failed;
+    SpanBuffer.publish(this);
+  }
+
+  long getTraceId() {
+    return traceId;
+  }
+
+  long getSpanId() {
+    return spanId;
+  }
+
+  long getParentId() {
+    return parentId;
+  }
+
+  Kind getKind() {
+    return kind;
+  }
+
+  String getName() {
+    return name;
+  }
+
+  /**
+   * Names the span after the called method, once it is known.
+   *
+   * @param name the name of the called method
+   */
+  void setName(String name) {
+    this.name = name;
+  }
+
+  boolean isShared() {
+    return shared;
+  }
+
+  void setShared(boolean shared) {
+    this.shared = shared;
+  }
+
+  String getLocalService() {
+    return localService;
+  }
+
+  /** Gets the name of the other {@link Microservice} in the call, or {@code null} if none. */
+  String getRemoteService() {
+    return remoteService;
+  }
+
+  long getStartEpochMicros() {
+    return EPOCH_MICROS_MINUS_NANO_MICROS + TimeUnit.NANOSECONDS.toMicros(startNanos);
+  }
+
+  long getDurationNanos() {
+    return durationNanos;
+  }
+
+  boolean isFailed() {
+    return failed;
+  }
+
+  long getSequence() {
+    return sequence;
+  }
+
+  void setSequence(long sequence) {
+    this.sequence = sequence;
+  }
+}
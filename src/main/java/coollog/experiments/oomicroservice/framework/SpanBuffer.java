@@ -0,0 +1,78 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free ring buffer of the finished {@link Span}s of this process, waiting to be exported.
+ * When the exporter falls behind, the oldest spans are overwritten and lost rather than blocking
+ * the calls that record them.
+ */
+class SpanBuffer {
+
+  /** The number of spans kept. Must be a power of two. */
+  private static final int CAPACITY = 1 << 13;
+
+  private static final AtomicReferenceArray<Span> slots = new AtomicReferenceArray<>(CAPACITY);
+
+  /** The sequence number of the next span to publish. */
+  private static final AtomicLong nextSequence = new AtomicLong();
+
+  /** The sequence number of the next span to drain. Guarded by {@code SpanBuffer.class}. */
+  private static long nextDrainSequence;
+
+  /**
+   * Publishes a finished {@link Span}, overwriting the oldest one if the buffer is full.
+   *
+   * @param span the finished {@link Span}
+   */
+  static void publish(Span span) {
+    long sequence = nextSequence.getAndIncrement();
+    span.setSequence(sequence);
+    slots.set((int) (sequence & (CAPACITY - 1)), span);
+  }
+
+  /**
+   * Takes the spans published since the last drain, leaving out the ones that were overwritten.
+   *
+   * @return the spans, in the order they were published
+   */
+  static synchronized List<Span> drain() {
+    long endSequence = nextSequence.get();
+    // Skips the spans that have been overwritten already.
+    nextDrainSequence = Math.max(nextDrainSequence, endSequence - CAPACITY);
+
+    List<Span> spans = new ArrayList<>();
+    for (; nextDrainSequence < endSequence; nextDrainSequence++) {
+      Span span = slots.get((int) (nextDrainSequence & (CAPACITY - 1)));
+      if (span == null || span.getSequence() < nextDrainSequence) {
+        // Not published yet, so is drained next time.
+        break;
+      }
+      if (span.getSequence() == nextDrainSequence) {
+        spans.add(span);
+      }
+    }
+    return spans;
+  }
+
+  private SpanBuffer() {}
+}
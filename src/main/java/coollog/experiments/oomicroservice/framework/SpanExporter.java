@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends {@link Span}s to a file as a <a href="https://zipkin.io/zipkin-api/#/default/post_spans">
+ * Zipkin v2</a> JSON array, which can be uploaded to Zipkin or read by {@code
+ * coollog.experiments.oomicroservice.tracing.CriticalPathAnalyzer}. The file is a complete JSON
+ * array after each export.
+ */
+class SpanExporter {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private final Path file;
+
+  /** Whether the array in the file is still empty. */
+  private boolean empty = true;
+
+  /**
+   * Creates the file with an empty array, replacing any existing file.
+   *
+   * @param file the file to export to
+   * @throws IOException if an I/O exception occurs
+   */
+  SpanExporter(Path file) throws IOException {
+    this.file = file;
+    Files.write(file, "[]".getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Appends spans to the array in the file.
+   *
+   * @param spans the finished spans
+   * @throws IOException if an I/O exception occurs
+   */
+  synchronized void export(List<Span> spans) throws IOException {
+    if (spans.isEmpty()) {
+      return;
+    }
+
+    StringWriter json = new StringWriter();
+    try (JsonGenerator jsonGenerator = JSON_FACTORY.createGenerator(json)) {
+      for (Span span : spans) {
+        jsonGenerator.writeRaw(empty ? "\n" : ",\n");
+        writeSpan(jsonGenerator, span);
+        empty = false;
+      }
+    }
+    json.append("\n]");
+
+    // Overwrites the closing bracket of the array.
+    try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      ByteBuffer bytes = StandardCharsets.UTF_8.encode(json.toString());
+      long position = fileChannel.size() - 1;
+      while (bytes.hasRemaining()) {
+        position += fileChannel.write(bytes, position);
+      }
+    }
+  }
+
+  private static void writeSpan(JsonGenerator jsonGenerator, Span span) throws IOException {
+    jsonGenerator.writeStartObject();
+    jsonGenerator.writeStringField("traceId", toHexId(span.getTraceId()));
+    jsonGenerator.writeStringField("id", toHexId(span.getSpanId()));
+    if (span.getParentId() != 0) {
+      jsonGenerator.writeStringField("parentId", toHexId(span.getParentId()));
+    }
+    // Zipkin leaves out the kind of local spans.
+    if (span.getKind() != Span.Kind.LOCAL) {
+      jsonGenerator.writeStringField("kind", span.getKind().name());
+    }
+    if (span.getName() != null) {
+      jsonGenerator.writeStringField("name", span.getName());
+    }
+    jsonGenerator.writeNumberField("timestamp", span.getStartEpochMicros());
+    jsonGenerator.writeNumberField(
+        "duration", Math.max(1, TimeUnit.NANOSECONDS.toMicros(span.getDurationNanos())));
+    if (span.isShared()) {
+      jsonGenerator.writeBooleanField("shared", true);
+    }
+    writeEndpoint(jsonGenerator, "localEndpoint", span.getLocalService());
+    if (span.getRemoteService() != null) {
+      writeEndpoint(jsonGenerator, "remoteEndpoint", span.getRemoteService());
+    }
+    if (span.isFailed()) {
+      jsonGenerator.writeObjectFieldStart("tags");
+      jsonGenerator.writeStringField("error", "true");
+      jsonGenerator.writeEndObject();
+    }
+    jsonGenerator.writeEndObject();
+  }
+
+  private static void writeEndpoint(
+      JsonGenerator jsonGenerator, String fieldName, String serviceName) throws IOException {
+    jsonGenerator.writeObjectFieldStart(fieldName);
+    jsonGenerator.writeStringField("serviceName", serviceName);
+    jsonGenerator.writeEndObject();
+  }
+
+  /** Formats an ID as the 16 lowercase hex digits that Zipkin expects. */
+  private static String toHexId(long id) {
+    return String.format("%016x", id);
+  }
+}
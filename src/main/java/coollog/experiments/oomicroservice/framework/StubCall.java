@@ -0,0 +1,384 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import coollog.experiments.oomicroservice.framework.MethodTable.RemoteMethod;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A single call made by a generated {@link RemoteStub}. Not for direct use.
+ *
+ * <p>With the {@link ServiceOptions.WireFormat#BINARY} format, the arguments are encoded straight
+ * into the request payload as they are put, and primitive return values are decoded without boxing.
+ * Otherwise, such as for the text format, a {@link Combinable} method, or a method whose shard
+ * depends on its arguments, the arguments are collected and the call is made like a call through a
+ * proxy.
+ *
+ * <p>Each thread reuses a single {@link StubCall} and its payload buffer, so a call allocates
+ * nothing to encode its arguments. The request payload is copied out only if it is still used after
+ * the call is sent, such as for a one-way, batched, or hedged call.
+ */
+public final class StubCall {
+
+  private static final int INITIAL_PAYLOAD_CAPACITY = 64;
+
+  /** The largest payload buffer kept for reuse, so a single large call does not pin its memory. */
+  private static final int MAX_REUSED_PAYLOAD_CAPACITY = 64 * 1024;
+
+  /** The {@link StubCall} reused by each thread. */
+  private static final ThreadLocal<StubCall> threadStubCall =
+      ThreadLocal.withInitial(StubCall::new);
+
+  private MicroserviceMethodHandler<?> microserviceMethodHandler;
+  private RemoteMethod remoteMethod;
+
+  /** The buffer that request payloads are encoded into, kept between calls. */
+  private ByteBuffer payloadBuffer = ByteBuffer.allocate(INITIAL_PAYLOAD_CAPACITY);
+
+  /** The request payload being encoded, or {@code null} if the arguments are collected instead. */
+  private ByteBuffer requestPayload;
+
+  /** The collected arguments, or {@code null} if they are encoded as they are put. */
+  private Object[] args;
+
+  private int argIndex;
+
+  /** Whether or not a call is being made with this {@link StubCall}. */
+  private boolean inUse;
+
+  private StubCall() {}
+
+  /**
+   * Starts a call with the {@link StubCall} of the current thread.
+   *
+   * @param microserviceMethodHandler makes the call
+   * @param remoteMethod the method to call
+   * @param encodeDirectly whether or not to encode the arguments as they are put
+   * @return the {@link StubCall}
+   */
+  static StubCall start(
+      MicroserviceMethodHandler<?> microserviceMethodHandler,
+      RemoteMethod remoteMethod,
+      boolean encodeDirectly) {
+    StubCall stubCall = threadStubCall.get();
+    if (stubCall.inUse) {
+      // Made while another call on this thread is still encoding or decoding, such as by a value's
+      // own serialization code.
+      stubCall = new StubCall();
+    }
+    stubCall.inUse = true;
+    stubCall.microserviceMethodHandler = microserviceMethodHandler;
+    stubCall.remoteMethod = remoteMethod;
+    stubCall.argIndex = 0;
+
+    int parameterCount = remoteMethod.getParameterCount();
+    if (encodeDirectly && parameterCount <= BinaryMethodInvocationSerializer.MAX_ARGS) {
+      // Writes the header as BinaryMethodInvocationSerializer does.
+      stubCall.requestPayload = stubCall.payloadBuffer;
+      stubCall.requestPayload.clear();
+      stubCall.requestPayload.putInt(remoteMethod.getId());
+      stubCall.requestPayload.put((byte) parameterCount);
+      stubCall.args = null;
+
+    } else {
+      stubCall.requestPayload = null;
+      stubCall.args = new Object[parameterCount];
+    }
+    return stubCall;
+  }
+
+  public StubCall putInt(int value) {
+    if (args != null) {
+      args[argIndex++] = value;
+      return this;
+    }
+    argIndex++;
+    ensureRemaining(1 + Integer.BYTES);
+    requestPayload.put(ValueCodec.INT.getTag());
+    requestPayload.putInt(value);
+    return this;
+  }
+
+  public StubCall putLong(long value) {
+    if (args != null) {
+      args[argIndex++] = value;
+      return this;
+    }
+    argIndex++;
+    ensureRemaining(1 + Long.BYTES);
+    requestPayload.put(ValueCodec.LONG.getTag());
+    requestPayload.putLong(value);
+    return this;
+  }
+
+  public StubCall putDouble(double value) {
+    if (args != null) {
+      args[argIndex++] = value;
+      return this;
+    }
+    argIndex++;
+    ensureRemaining(1 + Double.BYTES);
+    requestPayload.put(ValueCodec.DOUBLE.getTag());
+    requestPayload.putDouble(value);
+    return this;
+  }
+
+  public StubCall putBoolean(boolean value) {
+    if (args != null) {
+      args[argIndex++] = value;
+      return this;
+    }
+    argIndex++;
+    ensureRemaining(2);
+    requestPayload.put(ValueCodec.BOOLEAN.getTag());
+    requestPayload.put((byte) (value ? 1 : 0));
+    return this;
+  }
+
+  /**
+   * Puts an argument that is not an {@code int}, {@code long}, {@code double}, or {@code boolean}.
+   *
+   * @param value the argument
+   * @return this
+   */
+  public StubCall putObject(Object value) {
+    if (args != null) {
+      args[argIndex++] = value;
+      return this;
+    }
+    ValueCodec valueCodec = remoteMethod.getParameterCodec(argIndex++);
+    if (value == null) {
+      ensureRemaining(1);
+      requestPayload.put(BinaryMethodInvocationSerializer.NULL_TAG);
+      return this;
+    }
+    try {
+      ensureRemaining(1 + valueCodec.getMaxLength(value));
+      requestPayload.put(valueCodec.getTag());
+      valueCodec.write(requestPayload, value);
+      return this;
+
+    } catch (RuntimeException | Error ex) {
+      // The call is never invoked, so frees this StubCall for the next one.
+      finish();
+      throw ex;
+    }
+  }
+
+  public void invokeVoid() {
+    invokeObject();
+  }
+
+  public int invokeInt() {
+    try {
+      if (args != null) {
+        Object result = invokeWithArgs();
+        return result == null ? 0 : (Integer) result;
+      }
+      ByteBuffer responseBody = send();
+      if (responseBody == null) {
+        return 0;
+      }
+      try {
+        readTag(responseBody, ValueCodec.INT);
+        return responseBody.getInt();
+
+      } catch (BufferUnderflowException ex) {
+        throw rethrow(new IOException("Truncated return value", ex));
+      }
+
+    } finally {
+      finish();
+    }
+  }
+
+  public long invokeLong() {
+    try {
+      if (args != null) {
+        Object result = invokeWithArgs();
+        return result == null ? 0 : (Long) result;
+      }
+      ByteBuffer responseBody = send();
+      if (responseBody == null) {
+        return 0;
+      }
+      try {
+        readTag(responseBody, ValueCodec.LONG);
+        return responseBody.getLong();
+
+      } catch (BufferUnderflowException ex) {
+        throw rethrow(new IOException("Truncated return value", ex));
+      }
+
+    } finally {
+      finish();
+    }
+  }
+
+  public double invokeDouble() {
+    try {
+      if (args != null) {
+        Object result = invokeWithArgs();
+        return result == null ? 0 : (Double) result;
+      }
+      ByteBuffer responseBody = send();
+      if (responseBody == null) {
+        return 0;
+      }
+      try {
+        readTag(responseBody, ValueCodec.DOUBLE);
+        return responseBody.getDouble();
+
+      } catch (BufferUnderflowException ex) {
+        throw rethrow(new IOException("Truncated return value", ex));
+      }
+
+    } finally {
+      finish();
+    }
+  }
+
+  public boolean invokeBoolean() {
+    try {
+      if (args != null) {
+        Object result = invokeWithArgs();
+        return result != null && (Boolean) result;
+      }
+      ByteBuffer responseBody = send();
+      if (responseBody == null) {
+        return false;
+      }
+      try {
+        readTag(responseBody, ValueCodec.BOOLEAN);
+        return responseBody.get() != 0;
+
+      } catch (BufferUnderflowException ex) {
+        throw rethrow(new IOException("Truncated return value", ex));
+      }
+
+    } finally {
+      finish();
+    }
+  }
+
+  /**
+   * Invokes a method that returns something other than an {@code int}, {@code long}, {@code
+   * double}, or {@code boolean}.
+   *
+   * @return the return value
+   */
+  public Object invokeObject() {
+    try {
+      if (args != null) {
+        return invokeWithArgs();
+      }
+      ByteBuffer responseBody = send();
+      if (responseBody == null) {
+        return null;
+      }
+      try {
+        return microserviceMethodHandler
+            .getMethodInvocationSerializer()
+            .deserializeResult(remoteMethod, responseBody);
+
+      } catch (IOException ex) {
+        throw rethrow(ex);
+      }
+
+    } finally {
+      finish();
+    }
+  }
+
+  private Object invokeWithArgs() {
+    try {
+      return microserviceMethodHandler.invoke(remoteMethod, args);
+
+    } catch (IOException ex) {
+      throw rethrow(ex);
+    }
+  }
+
+  private ByteBuffer send() {
+    requestPayload.flip();
+    ByteBuffer sentPayload = requestPayload;
+    if (microserviceMethodHandler.retainsRequestPayload(remoteMethod)) {
+      // Sends a copy, since the payload buffer is reused by the next call.
+      sentPayload = ByteBuffer.allocate(requestPayload.remaining());
+      sentPayload.put(requestPayload).flip();
+    }
+    try {
+      return microserviceMethodHandler.send(remoteMethod, sentPayload);
+
+    } catch (IOException ex) {
+      throw rethrow(ex);
+    }
+  }
+
+  private void ensureRemaining(int length) {
+    if (requestPayload.remaining() < length) {
+      ByteBuffer grownPayload =
+          ByteBuffer.allocate(
+              Math.max(2 * requestPayload.capacity(), requestPayload.position() + length));
+      requestPayload.flip();
+      grownPayload.put(requestPayload);
+      requestPayload = grownPayload;
+    }
+  }
+
+  /** Ends the call, so that the next call on this thread may reuse this {@link StubCall}. */
+  private void finish() {
+    if (requestPayload != null && requestPayload.capacity() <= MAX_REUSED_PAYLOAD_CAPACITY) {
+      // Keeps the payload buffer if it grew, so later calls like this one need not grow it again.
+      payloadBuffer = requestPayload;
+    }
+    requestPayload = null;
+    args = null;
+    inUse = false;
+  }
+
+  /**
+   * Reads the tag of a primitive return value.
+   *
+   * @param responseBody the serialized return value
+   * @param valueCodec the codec of the return type
+   * @throws IOException if the return value is {@code null}
+   */
+  private void readTag(ByteBuffer responseBody, ValueCodec valueCodec) {
+    byte tag = responseBody.get();
+    if (tag == BinaryMethodInvocationSerializer.NULL_TAG) {
+      throw rethrow(
+          new IOException(
+              "Received null for return type " + remoteMethod.getMethod().getReturnType()));
+    }
+    if (tag != valueCodec.getTag()) {
+      throw new IllegalArgumentException(
+          "Expected a field of type " + valueCodec + ", got tag " + tag);
+    }
+  }
+
+  /**
+   * Rethrows {@code throwable} as is, even if it is a checked exception, just like a proxy created
+   * at runtime does.
+   */
+  @SuppressWarnings("unchecked")
+  private static <E extends Throwable> RuntimeException rethrow(Throwable throwable) throws E {
+    throw (E) throwable;
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+/** Makes the calls for a generated {@link RemoteStub}. Not for direct use. */
+public final class StubCaller {
+
+  private final MicroserviceMethodHandler<?> microserviceMethodHandler;
+
+  /** Whether or not calls are encoded directly in the {@link ServiceOptions.WireFormat#BINARY}. */
+  private final boolean binary;
+
+  StubCaller(MicroserviceMethodHandler<?> microserviceMethodHandler) {
+    this.microserviceMethodHandler = microserviceMethodHandler;
+    binary =
+        microserviceMethodHandler.getMethodInvocationSerializer()
+            instanceof BinaryMethodInvocationSerializer;
+  }
+
+  /**
+   * Gets the ID of a remote method, to pass to {@link #newCall}.
+   *
+   * @param microserviceClass the {@link Microservice} class
+   * @param methodName the name of the method
+   * @param parameterTypes the parameter types of the method
+   * @return the method ID
+   * @throws IllegalArgumentException if the method does not exist
+   */
+  public int getMethodId(
+      Class<? extends Microservice> microserviceClass,
+      String methodName,
+      Class<?>... parameterTypes) {
+    try {
+      return microserviceMethodHandler
+          .getMethodTable()
+          .get(microserviceClass.getMethod(methodName, parameterTypes))
+          .getId();
+
+    } catch (NoSuchMethodException ex) {
+      throw new IllegalArgumentException(
+          "Stub for " + microserviceClass.getName() + " is out of date", ex);
+    }
+  }
+
+  /**
+   * Starts a call. Put each argument in order, then invoke it.
+   *
+   * @param methodId the method ID from {@link #getMethodId}
+   * @return the {@link StubCall}
+   */
+  public StubCall newCall(int methodId) {
+    MethodTable.RemoteMethod remoteMethod =
+        microserviceMethodHandler.getMethodTable().get(methodId);
+    return StubCall.start(
+        microserviceMethodHandler,
+        remoteMethod,
+        binary
+            && !microserviceMethodHandler.isCombined(remoteMethod)
+            && !microserviceMethodHandler.isRoutedByArguments(remoteMethod));
+  }
+}
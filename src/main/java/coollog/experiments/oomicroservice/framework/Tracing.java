@@ -0,0 +1,238 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples calls into traces and keeps the {@link Span} of the call that the current thread is
+ * working on, so that the calls it makes in turn join the same trace.
+ *
+ * <p>Tracing is off unless the {@code TRACE_SAMPLE_RATE} environment variable is set to the
+ * fraction of calls that start a new trace, between {@code 0} and {@code 1}. Calls made as part of
+ * a sampled trace are always traced. The spans are exported every second to the file named by the
+ * {@code TRACE_FILE} environment variable, by default {@code traces-<pid>.json}.
+ */
+class Tracing {
+
+  private static final Logger LOGGER = Logger.get("tracing");
+
+  /** Marks a thread that is working on a call that was not sampled. */
+  static final Span UNSAMPLED = new Span(0, 0, 0, Span.Kind.LOCAL, null, null, null);
+
+  private static final double SAMPLE_RATE = parseSampleRate(System.getenv("TRACE_SAMPLE_RATE"));
+
+  private static final long EXPORT_INTERVAL_MILLIS = 1000;
+
+  private static final ThreadLocal<Span> currentSpan = new ThreadLocal<>();
+
+  /** The name of the calls made from outside any {@link Microservice}. */
+  private static volatile String processServiceName = "client";
+
+  static {
+    if (SAMPLE_RATE > 0) {
+      startExporting(getExportFile());
+    }
+  }
+
+  /**
+   * Gets the name that spans use for a {@link Microservice}, which is also its Kubernetes service
+   * name.
+   *
+   * @param microserviceClass the {@link Microservice} class
+   * @return the name of the {@link Microservice}
+   */
+  static String getServiceName(Class<?> microserviceClass) {
+    return microserviceClass.getSimpleName().toLowerCase();
+  }
+
+  /**
+   * Names the calls made from outside any {@link Microservice}, such as from a {@code main} method.
+   *
+   * @param name the name
+   */
+  static void setProcessServiceName(String name) {
+    processServiceName = name;
+  }
+
+  /**
+   * Starts the client span of a call to another {@link Microservice}, if the call is traced.
+   *
+   * @param name the name of the called method
+   * @param remoteService the name of the called {@link Microservice}
+   * @return the started {@link Span}, or {@code null} if the call is not traced
+   */
+  static Span startClientSpan(String name, String remoteService) {
+    return startSpan(Span.Kind.CLIENT, name, null, remoteService);
+  }
+
+  /**
+   * Starts the span of a call made directly on a co-located instance, if the call is traced.
+   *
+   * @param name the name of the called method
+   * @param localService the name of the called {@link Microservice}
+   * @return the started {@link Span}, or {@code null} if the call is not traced
+   */
+  static Span startLocalSpan(String name, String localService) {
+    return startSpan(Span.Kind.LOCAL, name, localService, null);
+  }
+
+  /**
+   * Starts the server span of a call from outside the framework, if it is sampled.
+   *
+   * @param name the name of the called method
+   * @param localService the name of the called {@link Microservice}
+   * @return the started {@link Span}, or {@code null} if the call is not sampled
+   */
+  static Span startRootServerSpan(String name, String localService) {
+    if (!isSampled()) {
+      return null;
+    }
+    return new Span(newId(), newId(), 0, Span.Kind.SERVER, name, localService, null);
+  }
+
+  /**
+   * Makes {@code span} the span of the current thread, until {@link #exit} is called.
+   *
+   * @param span the {@link Span}, or {@link #UNSAMPLED}
+   * @return the previous span of the current thread, to pass to {@link #exit}
+   */
+  static Span enter(Span span) {
+    Span previousSpan = currentSpan.get();
+    currentSpan.set(span);
+    return previousSpan;
+  }
+
+  /**
+   * Restores the span of the current thread from before {@link #enter}.
+   *
+   * @param previousSpan the span returned by {@link #enter}
+   */
+  static void exit(Span previousSpan) {
+    currentSpan.set(previousSpan);
+  }
+
+  /**
+   * Gets the span of the current thread, to carry over to another thread with {@link #enter}.
+   *
+   * @return the {@link Span}, {@link #UNSAMPLED}, or {@code null} if there is none
+   */
+  static Span getCurrentSpan() {
+    return currentSpan.get();
+  }
+
+  private static Span startSpan(
+      Span.Kind kind, String name, String localService, String remoteService) {
+    Span parentSpan = currentSpan.get();
+    if (parentSpan == UNSAMPLED) {
+      return null;
+    }
+    if (parentSpan == null) {
+      if (!isSampled()) {
+        return null;
+      }
+      return new Span(
+          newId(),
+          newId(),
+          0,
+          kind,
+          name,
+          localService == null ? processServiceName : localService,
+          remoteService);
+    }
+    return new Span(
+        parentSpan.getTraceId(),
+        newId(),
+        parentSpan.getSpanId(),
+        kind,
+        name,
+        localService == null ? parentSpan.getLocalService() : localService,
+        remoteService);
+  }
+
+  private static boolean isSampled() {
+    return SAMPLE_RATE > 0 && ThreadLocalRandom.current().nextDouble() < SAMPLE_RATE;
+  }
+
+  /** Generates a random ID, never {@code 0}, which stands for no parent. */
+  private static long newId() {
+    long id;
+    do {
+      id = ThreadLocalRandom.current().nextLong();
+    } while (id == 0);
+    return id;
+  }
+
+  private static double parseSampleRate(String sampleRate) {
+    if (sampleRate == null || sampleRate.isEmpty()) {
+      return 0;
+    }
+    try {
+      return Math.min(1, Math.max(0, Double.parseDouble(sampleRate)));
+    } catch (NumberFormatException ex) {
+      throw new IllegalArgumentException("Invalid TRACE_SAMPLE_RATE: " + sampleRate, ex);
+    }
+  }
+
+  private static Path getExportFile() {
+    String traceFile = System.getenv("TRACE_FILE");
+    if (traceFile != null && !traceFile.isEmpty()) {
+      return Paths.get(traceFile);
+    }
+    // The runtime name is <pid>@<hostname>.
+    String pid = ManagementFactory.getRuntimeMXBean().getName().split("@", 2)[0];
+    return Paths.get("traces-" + pid + ".json");
+  }
+
+  /** Exports the buffered spans every second, and once more when the process exits. */
+  private static void startExporting(Path file) {
+    SpanExporter spanExporter;
+    try {
+      spanExporter = new SpanExporter(file);
+    } catch (IOException ex) {
+      LOGGER.warn("Could not create trace file", "file", file, "exception", ex);
+      return;
+    }
+    ScheduledExecutorService exporterExecutorService =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("span-exporter").setDaemon(true).build());
+    exporterExecutorService.scheduleWithFixedDelay(
+        () -> export(spanExporter),
+        EXPORT_INTERVAL_MILLIS,
+        EXPORT_INTERVAL_MILLIS,
+        TimeUnit.MILLISECONDS);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> export(spanExporter)));
+  }
+
+  private static void export(SpanExporter spanExporter) {
+    try {
+      spanExporter.export(SpanBuffer.drain());
+    } catch (IOException ex) {
+      LOGGER.warn("Could not export spans", "exception", ex);
+    }
+  }
+
+  private Tracing() {}
+}
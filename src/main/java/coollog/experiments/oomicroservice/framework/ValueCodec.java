@@ -0,0 +1,438 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes and decodes the values of a supported argument or return type. The codec for each
+ * parameter of a remote method is looked up once when its {@link MethodTable} is built.
+ */
+enum ValueCodec {
+  STRING(6) {
+    @Override
+    Object fromText(String text) {
+      return text;
+    }
+
+    @Override
+    int getMaxLength(Object value) {
+      // A char takes at most 3 bytes in UTF-8 (surrogate pairs take 4 bytes for 2 chars).
+      return Integer.BYTES + 3 * ((String) value).length();
+    }
+
+    @Override
+    void write(ByteBuffer buffer, Object value) {
+      // Encodes in place, then goes back to fill in the length.
+      int lengthPosition = buffer.position();
+      buffer.position(lengthPosition + Integer.BYTES);
+      putUtf8(buffer, (String) value);
+      buffer.putInt(lengthPosition, buffer.position() - lengthPosition - Integer.BYTES);
+    }
+
+    @Override
+    Object read(ByteBuffer buffer) {
+      int length = readLength(buffer);
+      String value = getUtf8(buffer, buffer.position(), length);
+      buffer.position(buffer.position() + length);
+      return value;
+    }
+  },
+
+  INT(1) {
+    @Override
+    Object fromText(String text) {
+      return Integer.valueOf(text);
+    }
+
+    @Override
+    int getMaxLength(Object value) {
+      return Integer.BYTES;
+    }
+
+    @Override
+    void write(ByteBuffer buffer, Object value) {
+      buffer.putInt((Integer) value);
+    }
+
+    @Override
+    Object read(ByteBuffer buffer) {
+      return buffer.getInt();
+    }
+  },
+
+  LONG(2) {
+    @Override
+    Object fromText(String text) {
+      return Long.valueOf(text);
+    }
+
+    @Override
+    int getMaxLength(Object value) {
+      return Long.BYTES;
+    }
+
+    @Override
+    void write(ByteBuffer buffer, Object value) {
+      buffer.putLong((Long) value);
+    }
+
+    @Override
+    Object read(ByteBuffer buffer) {
+      return buffer.getLong();
+    }
+  },
+
+  DOUBLE(3) {
+    @Override
+    Object fromText(String text) {
+      return Double.valueOf(text);
+    }
+
+    @Override
+    int getMaxLength(Object value) {
+      return Double.BYTES;
+    }
+
+    @Override
+    void write(ByteBuffer buffer, Object value) {
+      buffer.putDouble((Double) value);
+    }
+
+    @Override
+    Object read(ByteBuffer buffer) {
+      return buffer.getDouble();
+    }
+  },
+
+  BOOLEAN(4) {
+    @Override
+    Object fromText(String text) {
+      return Boolean.valueOf(text);
+    }
+
+    @Override
+    int getMaxLength(Object value) {
+      return 1;
+    }
+
+    @Override
+    void write(ByteBuffer buffer, Object value) {
+      buffer.put((byte) ((Boolean) value ? 1 : 0));
+    }
+
+    @Override
+    Object read(ByteBuffer buffer) {
+      return buffer.get() != 0;
+    }
+  },
+
+  BYTES(5) {
+    @Override
+    Object fromText(String text) {
+      throw new UnsupportedOperationException("byte[] is not supported in the text format");
+    }
+
+    @Override
+    int getMaxLength(Object value) {
+      return Integer.BYTES + ((byte[]) value).length;
+    }
+
+    @Override
+    void write(ByteBuffer buffer, Object value) {
+      writeBytes(buffer, (byte[]) value);
+    }
+
+    @Override
+    Object read(ByteBuffer buffer) {
+      return readBytes(buffer);
+    }
+  },
+
+  CLASS(7) {
+    @Override
+    Object fromText(String text) {
+      try {
+        return Class.forName(text);
+
+      } catch (ClassNotFoundException ex) {
+        throw new IllegalArgumentException("Did not find class matching " + text, ex);
+      }
+    }
+
+    @Override
+    String toText(Object value) {
+      return ((Class<?>) value).getName();
+    }
+
+    @Override
+    int getMaxLength(Object value) {
+      return STRING.getMaxLength(toText(value));
+    }
+
+    @Override
+    void write(ByteBuffer buffer, Object value) {
+      STRING.write(buffer, toText(value));
+    }
+
+    @Override
+    Object read(ByteBuffer buffer) {
+      return fromText((String) STRING.read(buffer));
+    }
+  },
+
+  VOID(0) {
+    @Override
+    Object fromText(String text) {
+      return null;
+    }
+
+    @Override
+    int getMaxLength(Object value) {
+      return 0;
+    }
+
+    @Override
+    void write(ByteBuffer buffer, Object value) {}
+
+    @Override
+    Object read(ByteBuffer buffer) {
+      return null;
+    }
+  };
+
+  /**
+   * Gets the {@link ValueCodec} for a type.
+   *
+   * @param type the argument or return type
+   * @return the {@link ValueCodec}, or {@code null} if {@code type} is not supported
+   */
+  static ValueCodec of(Class<?> type) {
+    if (type == String.class) {
+      return STRING;
+    }
+    if (type == Integer.TYPE || type == Integer.class) {
+      return INT;
+    }
+    if (type == Long.TYPE || type == Long.class) {
+      return LONG;
+    }
+    if (type == Double.TYPE || type == Double.class) {
+      return DOUBLE;
+    }
+    if (type == Boolean.TYPE || type == Boolean.class) {
+      return BOOLEAN;
+    }
+    if (type == byte[].class) {
+      return BYTES;
+    }
+    if (type == Class.class) {
+      return CLASS;
+    }
+    if (type == Void.TYPE) {
+      return VOID;
+    }
+    return null;
+  }
+
+  private static void writeBytes(ByteBuffer buffer, byte[] bytes) {
+    buffer.putInt(bytes.length);
+    buffer.put(bytes);
+  }
+
+  private static byte[] readBytes(ByteBuffer buffer) {
+    byte[] bytes = new byte[readLength(buffer)];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  private static int readLength(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IllegalArgumentException("Invalid value length " + length);
+    }
+    return length;
+  }
+
+  /**
+   * Encodes a string as UTF-8 straight into a buffer, which takes at most 3 bytes per char. Like
+   * {@link String#getBytes}, encodes unpaired surrogates as {@code ?}.
+   *
+   * @param buffer the buffer to write to
+   * @param string the string
+   */
+  static void putUtf8(ByteBuffer buffer, String string) {
+    for (int charIndex = 0; charIndex < string.length(); charIndex++) {
+      char c = string.charAt(charIndex);
+      if (c < 0x80) {
+        buffer.put((byte) c);
+
+      } else if (c < 0x800) {
+        buffer.put((byte) (0xC0 | (c >> 6)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c)
+            && charIndex + 1 < string.length()
+            && Character.isLowSurrogate(string.charAt(charIndex + 1))) {
+          int codePoint = Character.toCodePoint(c, string.charAt(++charIndex));
+          buffer.put((byte) (0xF0 | (codePoint >> 18)));
+          buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+          buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+          buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+        } else {
+          buffer.put((byte) '?');
+        }
+
+      } else {
+        buffer.put((byte) (0xE0 | (c >> 12)));
+        buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+      }
+    }
+  }
+
+  /**
+   * Decodes a string from UTF-8 bytes in a buffer, without moving its position. Decodes straight
+   * from the buffer, so that only the string itself is allocated, unless the bytes are malformed.
+   *
+   * @param buffer the buffer to read from
+   * @param index the index of the first byte
+   * @param length the number of bytes
+   * @return the string
+   */
+  static String getUtf8(ByteBuffer buffer, int index, int length) {
+    // Each byte decodes to at most one char.
+    char[] chars = BufferPool.getScratchChars(length);
+    int charCount = 0;
+    int end = index + length;
+    for (int byteIndex = index; byteIndex < end; ) {
+      int b = buffer.get(byteIndex++);
+      if (b >= 0) {
+        chars[charCount++] = (char) b;
+        continue;
+      }
+
+      int continuationCount;
+      int codePoint;
+      int minCodePoint;
+      if ((b & 0xE0) == 0xC0) {
+        continuationCount = 1;
+        codePoint = b & 0x1F;
+        minCodePoint = 0x80;
+      } else if ((b & 0xF0) == 0xE0) {
+        continuationCount = 2;
+        codePoint = b & 0x0F;
+        minCodePoint = 0x800;
+      } else if ((b & 0xF8) == 0xF0) {
+        continuationCount = 3;
+        codePoint = b & 0x07;
+        minCodePoint = Character.MIN_SUPPLEMENTARY_CODE_POINT;
+      } else {
+        return getMalformedUtf8(buffer, index, length);
+      }
+      if (byteIndex + continuationCount > end) {
+        return getMalformedUtf8(buffer, index, length);
+      }
+      for (int continuationIndex = 0; continuationIndex < continuationCount; continuationIndex++) {
+        int continuation = buffer.get(byteIndex++);
+        if ((continuation & 0xC0) != 0x80) {
+          return getMalformedUtf8(buffer, index, length);
+        }
+        codePoint = (codePoint << 6) | (continuation & 0x3F);
+      }
+      if (codePoint < minCodePoint
+          || codePoint > Character.MAX_CODE_POINT
+          || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+        return getMalformedUtf8(buffer, index, length);
+      }
+
+      if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+        chars[charCount++] = Character.highSurrogate(codePoint);
+        chars[charCount++] = Character.lowSurrogate(codePoint);
+      } else {
+        chars[charCount++] = (char) codePoint;
+      }
+    }
+    return new String(chars, 0, charCount);
+  }
+
+  /**
+   * Decodes malformed UTF-8 bytes like {@link String#String(byte[], int, int,
+   * java.nio.charset.Charset)} does.
+   */
+  private static String getMalformedUtf8(ByteBuffer buffer, int index, int length) {
+    ByteBuffer bytes = buffer.duplicate();
+    bytes.limit(index + length);
+    bytes.position(index);
+    return StandardCharsets.UTF_8.decode(bytes).toString();
+  }
+
+  /** Identifies the type of a binary field. Tag {@code 0} marks a {@code null} (or void) value. */
+  private final byte tag;
+
+  ValueCodec(int tag) {
+    this.tag = (byte) tag;
+  }
+
+  byte getTag() {
+    return tag;
+  }
+
+  /**
+   * Parses a value from the text format.
+   *
+   * @param text the text
+   * @return the value
+   */
+  abstract Object fromText(String text);
+
+  /**
+   * Formats a non-null value for the text format.
+   *
+   * @param value the value
+   * @return the text
+   */
+  String toText(Object value) {
+    return String.valueOf(value);
+  }
+
+  /**
+   * Gets an upper bound on the number of bytes {@link #write} takes for {@code value}.
+   *
+   * @param value a non-null value
+   * @return the maximum number of bytes
+   */
+  abstract int getMaxLength(Object value);
+
+  /**
+   * Writes a non-null value in its binary encoding (without the tag).
+   *
+   * @param buffer the buffer to write to
+   * @param value the value
+   */
+  abstract void write(ByteBuffer buffer, Object value);
+
+  /**
+   * Reads a value in its binary encoding (without the tag).
+   *
+   * @param buffer the buffer to read from
+   * @return the value
+   */
+  abstract Object read(ByteBuffer buffer);
+}
@@ -0,0 +1,557 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import coollog.experiments.oomicroservice.framework.ServiceOptions.WireFormat;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The framed wire protocol spoken between {@link MicroserviceMethodHandler} and {@link
+ * ServiceRunner}.
+ *
+ * <p>A client starts a connection by sending a preamble byte that negotiates the {@link
+ * MethodInvocationSerializer} for that connection ({@link #TEXT_PREAMBLE} or {@link
+ * #BINARY_PREAMBLE}), and then sends any number of request frames over that same connection. Each
+ * request frame is answered by exactly one response frame carrying the same request ID. Many
+ * requests may be in flight on a connection at once, and their responses may come back in any
+ * order. A connection that does not start with a preamble byte is served as a one-shot text request
+ * (for example, {@code echo sayHello | nc}).
+ *
+ * <p>Each frame is laid out as:
+ *
+ * <pre>
+ *   int32   payload length
+ *   int32   request ID
+ *   byte    flags
+ *   byte[]  payload
+ * </pre>
+ *
+ * <p>The payload of a response frame starts with a status byte ({@link #STATUS_OK} or {@link
+ * #STATUS_ERROR}) followed by the serialized return value or the error message. A request frame
+ * with the {@link #FLAG_ONE_WAY} flag is not answered.
+ *
+ * <p>A request frame with the {@link #FLAG_BATCH} flag carries many method calls, which are run in
+ * order. Its payload and the payload of its response frame are laid out as:
+ *
+ * <pre>
+ *   int32   number of entries
+ *   for each entry:
+ *     int32   entry length
+ *     byte[]  entry (a request or response payload)
+ * </pre>
+ *
+ * <p>A client may send a frame with the {@link #FLAG_CANCEL} flag and an empty payload to cancel an
+ * earlier request with the same request ID that it no longer needs the response to. The server
+ * skips the request if it has not started on it yet. Either way, the client drops the response if
+ * it still arrives.
+ *
+ * <p>The server may also send a frame with the {@link #FLAG_PUSH} flag at any time. Its request ID
+ * is {@code 0}, and its payload is the UTF-8 name of a {@link Cacheable} method whose cached
+ * results are stale, or is empty if every cached result is stale.
+ *
+ * <p>A request frame with the {@link #FLAG_TRACED} flag belongs to a sampled trace. Its payload
+ * starts with a trace header, followed by the usual request payload:
+ *
+ * <pre>
+ *   int64   trace ID
+ *   int64   span ID of the call
+ *   int64   span ID of the caller, or 0 if the call starts the trace
+ * </pre>
+ */
+class WireProtocol {
+
+  /** Represents a single frame on the wire. */
+  static class Frame {
+
+    private final int requestId;
+    private final byte flags;
+    private final ByteBuffer payload;
+
+    /** Whether {@link #payload} came from the {@link BufferPool}. */
+    private final boolean pooled;
+
+    /** When the frame was created, which for a frame read from a connection is when it arrived. */
+    private final long createdNanos = System.nanoTime();
+
+    Frame(int requestId, byte flags, ByteBuffer payload) {
+      this(requestId, flags, payload, false);
+    }
+
+    private Frame(int requestId, byte flags, ByteBuffer payload, boolean pooled) {
+      this.requestId = requestId;
+      this.flags = flags;
+      this.payload = payload;
+      this.pooled = pooled;
+    }
+
+    int getRequestId() {
+      return requestId;
+    }
+
+    byte getFlags() {
+      return flags;
+    }
+
+    boolean hasFlag(byte flag) {
+      return (flags & flag) != 0;
+    }
+
+    ByteBuffer getPayload() {
+      return payload;
+    }
+
+    long getCreatedNanos() {
+      return createdNanos;
+    }
+
+    /**
+     * Hands the payload back to the {@link BufferPool} if it came from there. The frame must not be
+     * used after that.
+     */
+    void release() {
+      if (pooled) {
+        BufferPool.release(payload);
+      }
+    }
+  }
+
+  /**
+   * The first byte sent on a framed connection that uses {@link BasicMethodInvocationSerializer}.
+   */
+  static final byte TEXT_PREAMBLE = 0x01;
+
+  /**
+   * The first byte sent on a framed connection that uses {@link BinaryMethodInvocationSerializer}.
+   */
+  static final byte BINARY_PREAMBLE = 0x02;
+
+  static final BasicMethodInvocationSerializer TEXT_SERIALIZER =
+      new BasicMethodInvocationSerializer();
+  static final BinaryMethodInvocationSerializer BINARY_SERIALIZER =
+      new BinaryMethodInvocationSerializer();
+
+  /** Marks a request frame that must not be answered with a response frame. */
+  static final byte FLAG_ONE_WAY = 0x01;
+
+  /** Marks a request frame that carries a batch of method calls. */
+  static final byte FLAG_BATCH = 0x02;
+
+  /** Marks a frame that the server sends on its own rather than in response to a request. */
+  static final byte FLAG_PUSH = 0x04;
+
+  /** Marks a frame that cancels the request frame with the same request ID. */
+  static final byte FLAG_CANCEL = 0x08;
+
+  /** Marks a request frame whose payload starts with a trace header. */
+  static final byte FLAG_TRACED = 0x10;
+
+  /** The number of bytes in the trace header of a {@link #FLAG_TRACED} request payload. */
+  static final int TRACE_HEADER_LENGTH = 24;
+
+  static final ByteBuffer EMPTY_PAYLOAD = ByteBuffer.allocate(0);
+
+  static final byte STATUS_OK = 0;
+  static final byte STATUS_ERROR = 1;
+
+  /** The number of bytes before the payload of a frame. */
+  static final int HEADER_LENGTH = 9;
+
+  /** Upper bound on the payload length to guard against corrupt or hostile length prefixes. */
+  static final int MAX_PAYLOAD_LENGTH = 64 * 1024 * 1024;
+
+  /**
+   * Writes a frame. Does not flush {@code outputStream}.
+   *
+   * @param outputStream the stream to write to
+   * @param frame the frame to write
+   * @throws IOException if an I/O exception occurs
+   */
+  static void writeFrame(DataOutputStream outputStream, Frame frame) throws IOException {
+    ByteBuffer payload = frame.payload.duplicate();
+    outputStream.writeInt(payload.remaining());
+    outputStream.writeInt(frame.requestId);
+    outputStream.writeByte(frame.flags);
+    BufferPool.write(outputStream, payload);
+  }
+
+  /**
+   * Reads a frame.
+   *
+   * @param inputStream the stream to read from
+   * @return the frame, or {@code null} if the stream ended cleanly before a new frame
+   * @throws IOException if an I/O exception occurs or the frame is malformed
+   */
+  static Frame readFrame(DataInputStream inputStream) throws IOException {
+    return readFrame(inputStream, false);
+  }
+
+  /**
+   * Reads a frame, optionally into a pooled buffer.
+   *
+   * @param inputStream the stream to read from
+   * @param pooled whether to read the payload into a heap buffer from the {@link BufferPool}, in
+   *     which case the frame must be released with {@link Frame#release} once handled
+   * @return the frame, or {@code null} if the stream ended cleanly before a new frame
+   * @throws IOException if an I/O exception occurs or the frame is malformed
+   */
+  static Frame readFrame(DataInputStream inputStream, boolean pooled) throws IOException {
+    // Reads the first byte separately to tell a clean end of stream from a truncated frame.
+    int firstByte = inputStream.read();
+    if (firstByte == -1) {
+      return null;
+    }
+    int payloadLength = (firstByte << 24) | (inputStream.readUnsignedByte() << 16);
+    payloadLength |= (inputStream.readUnsignedByte() << 8) | inputStream.readUnsignedByte();
+    if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_LENGTH) {
+      throw new IOException("Invalid frame payload length " + payloadLength);
+    }
+    int requestId = inputStream.readInt();
+    byte flags = inputStream.readByte();
+    ByteBuffer payload =
+        pooled ? BufferPool.acquire(payloadLength, false) : ByteBuffer.allocate(payloadLength);
+    payload.limit(payloadLength);
+    try {
+      BufferPool.readFully(inputStream, payload);
+
+    } catch (EOFException ex) {
+      BufferPool.release(payload);
+      throw new IOException("Connection closed in the middle of a frame", ex);
+
+    } catch (Throwable ex) {
+      // Hands the buffer back on any other failure too, since the frame is never returned.
+      BufferPool.release(payload);
+      throw ex;
+    }
+    payload.flip();
+    return new Frame(requestId, flags, payload, pooled);
+  }
+
+  /**
+   * Encodes a frame into a new buffer.
+   *
+   * @param frame the frame to encode
+   * @return the encoded frame, ready to be read
+   */
+  static ByteBuffer encodeFrame(Frame frame) {
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + frame.payload.remaining());
+    buffer.putInt(frame.payload.remaining());
+    buffer.putInt(frame.requestId);
+    buffer.put(frame.flags);
+    buffer.put(frame.payload.duplicate());
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Decodes a frame from {@code buffer} if it contains a complete frame. Otherwise, leaves {@code
+   * buffer} untouched. The payload is copied into a buffer from the {@link BufferPool}, so the
+   * frame must be released with {@link Frame#release} once handled.
+   *
+   * @param buffer the buffer to read from
+   * @return the frame, or {@code null} if {@code buffer} does not contain a complete frame yet
+   * @throws IOException if the frame is malformed
+   */
+  static Frame decodeFrame(ByteBuffer buffer) throws IOException {
+    if (buffer.remaining() < HEADER_LENGTH) {
+      return null;
+    }
+    int payloadLength = buffer.getInt(buffer.position());
+    if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_LENGTH) {
+      throw new IOException("Invalid frame payload length " + payloadLength);
+    }
+    if (buffer.remaining() < HEADER_LENGTH + payloadLength) {
+      return null;
+    }
+
+    buffer.getInt();
+    int requestId = buffer.getInt();
+    byte flags = buffer.get();
+    ByteBuffer payload = BufferPool.acquire(payloadLength);
+    int limit = buffer.limit();
+    buffer.limit(buffer.position() + payloadLength);
+    payload.put(buffer);
+    buffer.limit(limit);
+    payload.flip();
+    return new Frame(requestId, flags, payload, true);
+  }
+
+  /**
+   * Starts encoding a frame straight into a buffer from the {@link BufferPool}, leaving room for
+   * the header. Once the payload is written, finish the frame with {@link #finishFrame}.
+   *
+   * @param payloadCapacity the expected length of the payload, which may be exceeded by growing the
+   *     buffer with {@link BufferPool#ensureRemaining}
+   * @param direct whether to encode into a direct buffer, for a channel, or a heap buffer, for a
+   *     stream
+   * @return the buffer, positioned at the start of the payload
+   */
+  static ByteBuffer startFrame(int payloadCapacity, boolean direct) {
+    ByteBuffer buffer = BufferPool.acquire(HEADER_LENGTH + payloadCapacity, direct);
+    buffer.position(HEADER_LENGTH);
+    return buffer;
+  }
+
+  /**
+   * Finishes a frame started with {@link #startFrame} by filling in its header.
+   *
+   * @param buffer the buffer, positioned at the end of the payload
+   * @param requestId the request ID of the frame
+   * @param flags the flags of the frame
+   * @return {@code buffer}, holding the encoded frame ready to be read
+   */
+  static ByteBuffer finishFrame(ByteBuffer buffer, int requestId, byte flags) {
+    buffer.flip();
+    buffer.putInt(0, buffer.limit() - HEADER_LENGTH);
+    buffer.putInt(Integer.BYTES, requestId);
+    buffer.put(2 * Integer.BYTES, flags);
+    return buffer;
+  }
+
+  /**
+   * Gets the total length of the frame starting at the position of {@code buffer}.
+   *
+   * @param buffer a buffer with at least {@link #HEADER_LENGTH} bytes remaining
+   * @return the length of the frame, including its header
+   */
+  static int frameLength(ByteBuffer buffer) {
+    return HEADER_LENGTH + buffer.getInt(buffer.position());
+  }
+
+  /**
+   * Gets the preamble byte for {@code wireFormat}.
+   *
+   * @param wireFormat the {@link WireFormat}
+   * @return the preamble byte
+   */
+  static byte getPreamble(WireFormat wireFormat) {
+    switch (wireFormat) {
+      case TEXT:
+        return TEXT_PREAMBLE;
+
+      case BINARY:
+        return BINARY_PREAMBLE;
+
+      default:
+        throw new IllegalArgumentException("Unknown wire format " + wireFormat);
+    }
+  }
+
+  /**
+   * Gets the {@link MethodInvocationSerializer} negotiated by a preamble byte.
+   *
+   * @param preamble the first byte received on a connection
+   * @return the {@link MethodInvocationSerializer}, or {@code null} if {@code preamble} is not a
+   *     preamble byte (and the connection carries a one-shot text request)
+   */
+  static MethodInvocationSerializer getSerializer(int preamble) {
+    switch (preamble) {
+      case TEXT_PREAMBLE:
+        return TEXT_SERIALIZER;
+
+      case BINARY_PREAMBLE:
+        return BINARY_SERIALIZER;
+
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Creates a response payload.
+   *
+   * @param status {@link #STATUS_OK} or {@link #STATUS_ERROR}
+   * @param body the serialized return value or error message
+   * @return the response payload, ready to be read
+   */
+  static ByteBuffer responsePayload(byte status, ByteBuffer body) {
+    ByteBuffer payload = ByteBuffer.allocate(1 + body.remaining());
+    payload.put(status);
+    payload.put(body);
+    payload.flip();
+    return payload;
+  }
+
+  /**
+   * Creates an error response payload for {@code request}. If {@code request} is a batch, every
+   * entry of the response reports the error.
+   *
+   * @param request the request that failed
+   * @param message the error message
+   * @return the response payload, ready to be read
+   */
+  static ByteBuffer errorResponsePayload(Frame request, String message) {
+    ByteBuffer errorPayload = responsePayload(STATUS_ERROR, StandardCharsets.UTF_8.encode(message));
+    if (!request.hasFlag(FLAG_BATCH)) {
+      return errorPayload;
+    }
+    ByteBuffer requestPayload = request.getPayload();
+    int entryCount =
+        requestPayload.remaining() < 4 ? 0 : requestPayload.getInt(requestPayload.position());
+    return batchPayload(Collections.nCopies(entryCount, errorPayload));
+  }
+
+  /**
+   * Encodes an error response frame for {@code request}. If {@code request} is a batch, every entry
+   * of the response reports the error.
+   *
+   * @param request the request that failed
+   * @param message the error message
+   * @return the encoded response frame, ready to be read
+   */
+  static ByteBuffer errorResponseFrame(Frame request, String message) {
+    return encodeFrame(
+        new Frame(request.getRequestId(), (byte) 0, errorResponsePayload(request, message)));
+  }
+
+  /**
+   * Prefixes a request payload with the trace header of {@code span}.
+   *
+   * @param span the client {@link Span} of the call
+   * @param payload the request payload
+   * @return the {@link #FLAG_TRACED} request payload, ready to be read
+   */
+  static ByteBuffer tracedPayload(Span span, ByteBuffer payload) {
+    ByteBuffer tracedPayload = ByteBuffer.allocate(TRACE_HEADER_LENGTH + payload.remaining());
+    tracedPayload.putLong(span.getTraceId());
+    tracedPayload.putLong(span.getSpanId());
+    tracedPayload.putLong(span.getParentId());
+    tracedPayload.put(payload.duplicate());
+    tracedPayload.flip();
+    return tracedPayload;
+  }
+
+  /**
+   * Reads the trace header off a {@link #FLAG_TRACED} request payload and starts the server {@link
+   * Span} of the call. Leaves {@code tracedPayload} positioned at the request payload.
+   *
+   * @param tracedPayload the {@link #FLAG_TRACED} request payload
+   * @param localService the name of the called {@link Microservice}
+   * @return the started server {@link Span}
+   * @throws IOException if the trace header is missing
+   */
+  static Span readTraceHeader(ByteBuffer tracedPayload, String localService) throws IOException {
+    if (tracedPayload.remaining() < TRACE_HEADER_LENGTH) {
+      throw new IOException("Traced payload is missing its trace header");
+    }
+    long traceId = tracedPayload.getLong();
+    long spanId = tracedPayload.getLong();
+    long parentId = tracedPayload.getLong();
+    Span span = new Span(traceId, spanId, parentId, Span.Kind.SERVER, null, localService, null);
+    span.setShared(true);
+    return span;
+  }
+
+  /**
+   * Joins request or response payloads into the payload of a batch.
+   *
+   * @param payloads the payloads to join
+   * @return the batch payload, ready to be read
+   */
+  static ByteBuffer batchPayload(List<ByteBuffer> payloads) {
+    int length = 4;
+    for (ByteBuffer payload : payloads) {
+      length += 4 + payload.remaining();
+    }
+    ByteBuffer batchPayload = ByteBuffer.allocate(length);
+    batchPayload.putInt(payloads.size());
+    for (ByteBuffer payload : payloads) {
+      batchPayload.putInt(payload.remaining());
+      batchPayload.put(payload.duplicate());
+    }
+    batchPayload.flip();
+    return batchPayload;
+  }
+
+  /**
+   * Checks that the payload of a batch is well-formed, so that its entries can then be read in
+   * place: an {@code int32} length, followed by that many bytes, for each entry.
+   *
+   * @param batchPayload the batch payload, which is left untouched
+   * @return the number of entries
+   * @throws IOException if the batch payload is malformed
+   */
+  static int checkBatchPayload(ByteBuffer batchPayload) throws IOException {
+    if (batchPayload.remaining() < 4) {
+      throw new IOException("Batch payload is missing its entry count");
+    }
+    int entryCount = batchPayload.getInt(batchPayload.position());
+    // Each entry takes at least 4 bytes for its length.
+    if (entryCount < 0 || entryCount > (batchPayload.remaining() - 4) / 4) {
+      throw new IOException("Invalid batch entry count " + entryCount);
+    }
+
+    int index = batchPayload.position() + 4;
+    for (int entryIndex = 0; entryIndex < entryCount; entryIndex++) {
+      if (batchPayload.limit() - index < 4) {
+        throw new IOException("Batch payload ended early");
+      }
+      int entryLength = batchPayload.getInt(index);
+      index += 4;
+      if (entryLength < 0 || entryLength > batchPayload.limit() - index) {
+        throw new IOException("Invalid batch entry length " + entryLength);
+      }
+      index += entryLength;
+    }
+    return entryCount;
+  }
+
+  /**
+   * Splits the payload of a batch into its entries. The entries share content with {@code
+   * batchPayload}.
+   *
+   * @param batchPayload the batch payload
+   * @return the entries, in order
+   * @throws IOException if the batch payload is malformed
+   */
+  static List<ByteBuffer> splitBatchPayload(ByteBuffer batchPayload) throws IOException {
+    ByteBuffer buffer = batchPayload.duplicate();
+    if (buffer.remaining() < 4) {
+      throw new IOException("Batch payload is missing its entry count");
+    }
+    int entryCount = buffer.getInt();
+    // Each entry takes at least 4 bytes for its length.
+    if (entryCount < 0 || entryCount > buffer.remaining() / 4) {
+      throw new IOException("Invalid batch entry count " + entryCount);
+    }
+
+    List<ByteBuffer> entries = new ArrayList<>(entryCount);
+    for (int entryIndex = 0; entryIndex < entryCount; entryIndex++) {
+      if (buffer.remaining() < 4) {
+        throw new IOException("Batch payload ended early");
+      }
+      int entryLength = buffer.getInt();
+      if (entryLength < 0 || entryLength > buffer.remaining()) {
+        throw new IOException("Invalid batch entry length " + entryLength);
+      }
+      ByteBuffer entry = buffer.slice();
+      entry.limit(entryLength);
+      entries.add(entry);
+      buffer.position(buffer.position() + entryLength);
+    }
+    return entries;
+  }
+
+  private WireProtocol() {}
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import coollog.experiments.oomicroservice.framework.WireProtocol.Frame;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ServerEngine} that serves each connection with blocking I/O on a thread from a bounded
+ * worker pool. Connections that arrive while every worker is busy wait in a bounded queue, and are
+ * closed if that queue is full.
+ *
+ * <p>Requests that arrive on the same connection are handled concurrently on a separate bounded
+ * request pool, and their responses are written back as they complete. When the request pool is
+ * saturated, the connection thread handles the request itself, which stops it from reading more
+ * requests until it is done. A request that is cancelled before it starts is skipped.
+ */
+class WorkerPoolServerEngine implements ServerEngine {
+
+  private static final Logger LOGGER = Logger.get("server");
+
+  /** Incoming connections that stay idle for longer than this are closed. */
+  private static final int CONNECTION_IDLE_TIMEOUT_MILLIS = 60_000;
+
+  private final ThreadPoolExecutor workerExecutorService;
+  private final ThreadPoolExecutor requestExecutorService;
+
+  private ServerSocket serverSocket;
+
+  /**
+   * Creates a new {@link WorkerPoolServerEngine}.
+   *
+   * @param workerThreads the number of connections that can be served at the same time, and the
+   *     number of requests that can be handled at the same time
+   * @param maxQueuedConnections the number of connections that may wait for a worker thread, and
+   *     the number of requests that may wait for a request thread
+   */
+  WorkerPoolServerEngine(int workerThreads, int maxQueuedConnections) {
+    workerExecutorService =
+        new ThreadPoolExecutor(
+            workerThreads,
+            workerThreads,
+            CONNECTION_IDLE_TIMEOUT_MILLIS,
+            TimeUnit.MILLISECONDS,
+            newQueue(maxQueuedConnections),
+            new ThreadFactoryBuilder().setNameFormat("worker-%d").setDaemon(true).build());
+    // Lets the pool shrink back down while idle.
+    workerExecutorService.allowCoreThreadTimeOut(true);
+
+    requestExecutorService =
+        new ThreadPoolExecutor(
+            workerThreads,
+            workerThreads,
+            CONNECTION_IDLE_TIMEOUT_MILLIS,
+            TimeUnit.MILLISECONDS,
+            newQueue(maxQueuedConnections),
+            new ThreadFactoryBuilder().setNameFormat("request-%d").setDaemon(true).build(),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    requestExecutorService.allowCoreThreadTimeOut(true);
+  }
+
+  private static BlockingQueue<Runnable> newQueue(int capacity) {
+    return capacity == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(capacity);
+  }
+
+  @Override
+  public int bind(InetSocketAddress address) throws IOException {
+    serverSocket = new ServerSocket();
+    serverSocket.bind(address);
+    return serverSocket.getLocalPort();
+  }
+
+  @Override
+  @SuppressWarnings("InfiniteLoopStatement")
+  public void serve(RequestHandler requestHandler) throws IOException {
+    Preconditions.checkState(serverSocket != null, "bind must be called before serve");
+    try (ServerSocket serverSocket = this.serverSocket) {
+      while (true) {
+        Socket connectionSocket = serverSocket.accept();
+        try {
+          workerExecutorService.execute(() -> serveConnection(requestHandler, connectionSocket));
+
+        } catch (RejectedExecutionException ex) {
+          LOGGER.warn(
+              "Too many connections; closing",
+              "address",
+              connectionSocket.getRemoteSocketAddress());
+          connectionSocket.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Serves a single incoming connection until the client closes it. The connection is served with
+   * the framed {@link WireProtocol} if it starts with a preamble byte, or as a single text request
+   * otherwise.
+   *
+   * @param requestHandler handles the incoming requests
+   * @param connectionSocket the incoming connection
+   */
+  private void serveConnection(RequestHandler requestHandler, Socket connectionSocket) {
+    try (Socket socket = connectionSocket;
+        InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+        OutputStream outputStream = new BufferedOutputStream(socket.getOutputStream())) {
+      socket.setSoTimeout(CONNECTION_IDLE_TIMEOUT_MILLIS);
+      socket.setTcpNoDelay(true);
+
+      inputStream.mark(1);
+      MethodInvocationSerializer serializer = WireProtocol.getSerializer(inputStream.read());
+      if (serializer != null) {
+        serveFrames(
+            requestHandler,
+            serializer,
+            new DataInputStream(inputStream),
+            new DataOutputStream(outputStream));
+
+      } else {
+        inputStream.reset();
+        requestHandler.handleText(inputStream, outputStream);
+      }
+
+    } catch (SocketTimeoutException ex) {
+      // Closes the idle connection.
+
+    } catch (IOException | RuntimeException ex) {
+      LOGGER.warn("Failed to serve connection", "exception", ex);
+    }
+  }
+
+  /**
+   * Serves {@link WireProtocol} frames until the client closes the connection. Responses are
+   * written in the order the requests complete.
+   *
+   * @param requestHandler handles the incoming requests
+   * @param serializer the {@link MethodInvocationSerializer} negotiated for the connection
+   * @param inputStream the {@link DataInputStream} for the incoming connection
+   * @param outputStream the {@link DataOutputStream} of the incoming connection
+   * @throws IOException if an I/O exception occurs
+   */
+  private void serveFrames(
+      RequestHandler requestHandler,
+      MethodInvocationSerializer serializer,
+      DataInputStream inputStream,
+      DataOutputStream outputStream)
+      throws IOException {
+    PushChannel pushChannel = frame -> writeFrame(outputStream, WireProtocol.encodeFrame(frame));
+    requestHandler.onConnectionOpened(pushChannel);
+    // Holds the IDs of the requests that have not started yet, so that they can be cancelled.
+    Set<Integer> pendingRequestIds = ConcurrentHashMap.newKeySet();
+    try {
+      Frame request;
+      while ((request = WireProtocol.readFrame(inputStream, true)) != null) {
+        if (request.hasFlag(WireProtocol.FLAG_CANCEL)) {
+          pendingRequestIds.remove(request.getRequestId());
+          request.release();
+          continue;
+        }
+
+        Frame currentRequest = request;
+        pendingRequestIds.add(currentRequest.getRequestId());
+        requestExecutorService.execute(
+            () -> {
+              if (pendingRequestIds.remove(currentRequest.getRequestId())) {
+                serveFrame(requestHandler, serializer, currentRequest, outputStream);
+              } else {
+                currentRequest.release();
+              }
+            });
+      }
+
+    } finally {
+      requestHandler.onConnectionClosed(pushChannel);
+    }
+  }
+
+  /**
+   * Handles a single request frame and writes its response frame, unless the request is one-way.
+   * Releases the request frame and the response buffer once done with them.
+   *
+   * @param requestHandler handles the request
+   * @param serializer the {@link MethodInvocationSerializer} negotiated for the connection
+   * @param request the request frame
+   * @param outputStream the {@link DataOutputStream} of the incoming connection, shared with the
+   *     other requests on the connection
+   */
+  private static void serveFrame(
+      RequestHandler requestHandler,
+      MethodInvocationSerializer serializer,
+      Frame request,
+      DataOutputStream outputStream) {
+    ByteBuffer responseFrame;
+    try {
+      responseFrame = requestHandler.handleFrame(serializer, request);
+
+    } finally {
+      request.release();
+    }
+    if (responseFrame != null) {
+      FlightEvents.ServerWrite writeEvent = FlightEvents.ServerWrite.start();
+      int responseBytes = responseFrame.remaining() - WireProtocol.HEADER_LENGTH;
+      writeFrame(outputStream, responseFrame);
+      writeEvent.commit(requestHandler.getServiceName(), responseBytes);
+      BufferPool.release(responseFrame);
+    }
+  }
+
+  /**
+   * Writes an encoded frame to a connection.
+   *
+   * @param outputStream the {@link DataOutputStream} of the incoming connection, shared with the
+   *     other requests on the connection
+   * @param encodedFrame the encoded frame to write
+   */
+  private static void writeFrame(DataOutputStream outputStream, ByteBuffer encodedFrame) {
+    try {
+      synchronized (outputStream) {
+        BufferPool.write(outputStream, encodedFrame);
+        outputStream.flush();
+      }
+
+    } catch (IOException ex) {
+      // The client is gone, so the connection thread will notice and close the connection.
+      LOGGER.warn("Failed to write response", "exception", ex);
+    }
+  }
+}
@@ -16,23 +16,152 @@
 
 package coollog.experiments.oomicroservice.framework.deployer;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
 import coollog.experiments.oomicroservice.command.Command;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 /** Deploys a container image as a microservice using {@code kubectl}. */
 public class KubectlDeployer {
 
   public static void deploy(String serviceName, String imageReference)
       throws IOException, InterruptedException {
+    deploy(serviceName, imageReference, ImmutableMap.of(serviceName, 80));
+  }
+
+  /**
+   * Deploys a container image that serves many microservices, with a Kubernetes service for each.
+   *
+   * @param deploymentName the name of the deployment
+   * @param imageReference the container image to run
+   * @param servicePorts the container port of each microservice, by service name. Each service is
+   *     exposed on port 80.
+   * @throws IOException if a {@code kubectl} command fails
+   * @throws InterruptedException if interrupted while running a {@code kubectl} command
+   */
+  public static void deploy(
+      String deploymentName, String imageReference, Map<String, Integer> servicePorts)
+      throws IOException, InterruptedException {
+    deploy(deploymentName, imageReference, servicePorts, 1, ImmutableMap.of());
+  }
+
+  /**
+   * Deploys replicas of a container image that serves many microservices, with a Kubernetes service
+   * for each. Microservices whose callers pick a replica themselves also get a headless service,
+   * which resolves to the address of every replica instead of balancing connections across them.
+   *
+   * @param deploymentName the name of the deployment
+   * @param imageReference the container image to run
+   * @param servicePorts the container port of each microservice, by service name. Each service is
+   *     exposed on port 80.
+   * @param replicas the number of replicas to run
+   * @param headlessServicePorts the container port of each microservice to also expose with a
+   *     headless service, by headless service name. Each headless service is exposed on its
+   *     container port.
+   * @throws IOException if a {@code kubectl} command fails
+   * @throws InterruptedException if interrupted while running a {@code kubectl} command
+   */
+  public static void deploy(
+      String deploymentName,
+      String imageReference,
+      Map<String, Integer> servicePorts,
+      int replicas,
+      Map<String, Integer> headlessServicePorts)
+      throws IOException, InterruptedException {
+    deploy(
+        deploymentName,
+        imageReference,
+        servicePorts,
+        replicas,
+        headlessServicePorts,
+        ImmutableList.of());
+  }
+
+  /**
+   * Deploys replicas of a container image that serves many microservices, like {@link
+   * #deploy(String, String, Map, int, Map)}, running the image's entrypoint with {@code args}. This
+   * lets deployments share one image and each pick the microservices to serve by their args.
+   *
+   * @param deploymentName the name of the deployment
+   * @param imageReference the container image to run
+   * @param servicePorts the container port of each microservice, by service name. Each service is
+   *     exposed on port 80.
+   * @param replicas the number of replicas to run
+   * @param headlessServicePorts the container port of each microservice to also expose with a
+   *     headless service, by headless service name. Each headless service is exposed on its
+   *     container port.
+   * @param args the args to append to the image's entrypoint, or empty to run it as is
+   * @throws IOException if a {@code kubectl} command fails
+   * @throws InterruptedException if interrupted while running a {@code kubectl} command
+   */
+  public static void deploy(
+      String deploymentName,
+      String imageReference,
+      Map<String, Integer> servicePorts,
+      int replicas,
+      Map<String, Integer> headlessServicePorts,
+      List<String> args)
+      throws IOException, InterruptedException {
+    deleteIgnoringErrors("service,deployment", deploymentName);
+    for (String serviceName :
+        Iterables.concat(servicePorts.keySet(), headlessServicePorts.keySet())) {
+      if (!serviceName.equals(deploymentName)) {
+        // Also deletes a deployment left over from when the microservice was deployed alone.
+        deleteIgnoringErrors("service,deployment", serviceName);
+      }
+    }
+
+    List<String> runCommand =
+        new ArrayList<>(
+            Arrays.asList(
+                "kubectl",
+                "run",
+                deploymentName,
+                "--image",
+                imageReference,
+                "--replicas=" + replicas));
+    if (!args.isEmpty()) {
+      // Passes the args to the container after the entrypoint, rather than to kubectl.
+      runCommand.add("--");
+      runCommand.addAll(args);
+    }
+    Command.runCommand(runCommand.toArray(new String[0]));
+    for (Map.Entry<String, Integer> servicePort : servicePorts.entrySet()) {
+      Command.runCommand(
+          "kubectl",
+          "expose",
+          "deployment",
+          deploymentName,
+          "--name=" + servicePort.getKey(),
+          "--port=80",
+          "--target-port=" + servicePort.getValue());
+    }
+    for (Map.Entry<String, Integer> headlessServicePort : headlessServicePorts.entrySet()) {
+      Command.runCommand(
+          "kubectl",
+          "expose",
+          "deployment",
+          deploymentName,
+          "--name=" + headlessServicePort.getKey(),
+          "--cluster-ip=None",
+          "--port=" + headlessServicePort.getValue(),
+          "--target-port=" + headlessServicePort.getValue());
+    }
+  }
+
+  private static void deleteIgnoringErrors(String resourceTypes, String name)
+      throws InterruptedException {
     try {
-      Command.runCommand("kubectl", "delete", "service,deployment", serviceName);
+      Command.runCommand("kubectl", "delete", resourceTypes, name);
 
     } catch (IOException ex) {
       // Ignores any exceptions.
     }
-    Command.runCommand("kubectl", "run", serviceName, "--image", imageReference);
-    Command.runCommand(
-        "kubectl", "expose", "deployment", serviceName, "--port=80", "--target-port=80");
   }
 
   private KubectlDeployer() {}
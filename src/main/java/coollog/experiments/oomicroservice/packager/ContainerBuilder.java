@@ -27,6 +27,7 @@ import com.google.cloud.tools.jib.image.ImageReference;
 import com.google.cloud.tools.jib.image.InvalidImageReferenceException;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
@@ -44,7 +45,7 @@ public class ContainerBuilder {
      * @param classpathFiles the classpath files
      * @param imageReference the image reference to containerize to
      * @param mainClass the main class to run
-     * @param arg the argument to pass to the main class
+     * @param args the arguments to pass to the main class
      * @param executorService the {@link ExecutorService} to run the containerization with
      * @return the digest of the built container image
      * @throws InvalidImageReferenceException if the image reference is invalid
@@ -57,14 +58,17 @@ public class ContainerBuilder {
         List<Path> classpathFiles,
         String imageReference,
         String mainClass,
-        String arg,
+        List<String> args,
         ExecutorService executorService)
         throws InvalidImageReferenceException, IOException, InterruptedException,
             ExecutionException, CacheDirectoryCreationException {
       ImageReference targetImageReference = ImageReference.parse(imageReference);
+      List<String> entrypoint = new ArrayList<>(Arrays.asList("java", "-cp", "/app/:/app/*"));
+      entrypoint.add(mainClass);
+      entrypoint.addAll(args);
       return Jib.from("gcr.io/distroless/java")
           .addLayer(classpathFiles, AbsoluteUnixPath.get("/app"))
-          .setEntrypoint(Arrays.asList("java", "-cp", "/app/:/app/*", mainClass, arg))
+          .setEntrypoint(entrypoint)
           .containerize(
               Containerizer.to(
                       RegistryImage.named(targetImageReference)
@@ -88,7 +92,7 @@ public class ContainerBuilder {
    * @param classpathFiles the classpath files
    * @param imageReference the image reference to containerize to
    * @param mainClass the main class to run
-   * @param arg the argument to pass to the main class
+   * @param args the arguments to pass to the main class
    * @param executorService the {@link ExecutorService} to run the containerization with
    * @return the digest of the built container image
    * @throws InvalidImageReferenceException if the image reference is invalid
@@ -101,12 +105,12 @@ public class ContainerBuilder {
       List<Path> classpathFiles,
       String imageReference,
       String mainClass,
-      String arg,
+      List<String> args,
       ExecutorService executorService)
       throws IOException, InterruptedException, ExecutionException, InvalidImageReferenceException,
           CacheDirectoryCreationException {
     return JibContainerizer.containerize(
-        classpathFiles, imageReference, mainClass, arg, executorService);
+        classpathFiles, imageReference, mainClass, args, executorService);
   }
 
   private ContainerBuilder() {}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.tracing;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Builds the call graph between microservices and the critical paths of traces from the trace files
+ * written by processes run with the {@code TRACE_SAMPLE_RATE} environment variable set.
+ *
+ * <p>The critical path of a trace is the chain of calls that its duration depends on: starting from
+ * the end of a span, it steps back through the child span that ended last, then through the child
+ * that ended last before that one started, and so on. Speeding up a call that is not on the
+ * critical path does not make the trace any faster.
+ *
+ * <p>Usage: {@code CriticalPathAnalyzer [--slowest <n>] [<file or directory>...]}. Directories are
+ * searched for {@code traces-*.json} files, and the default is the current directory.
+ */
+public class CriticalPathAnalyzer {
+
+  /** How many of the slowest traces to print the critical path of, by default. */
+  private static final int DEFAULT_SLOWEST_TRACES = 3;
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  /** A span on a critical path. */
+  private static class PathSegment {
+
+    private final TraceSpan span;
+    private final int depth;
+
+    /** The time on the critical path spent in the span itself, rather than in its children. */
+    private long selfMicros;
+
+    private PathSegment(TraceSpan span, int depth) {
+      this.span = span;
+      this.depth = depth;
+    }
+  }
+
+  /** The calls from one service to a method of another. */
+  private static class CallEdge {
+
+    private int calls;
+    private int errors;
+    private long totalMicros;
+    private long maxMicros;
+  }
+
+  public static void main(String[] args) throws IOException {
+    int slowestTraces = DEFAULT_SLOWEST_TRACES;
+    List<Path> paths = new ArrayList<>();
+    for (int argIndex = 0; argIndex < args.length; argIndex++) {
+      if ("--slowest".equals(args[argIndex]) && argIndex + 1 < args.length) {
+        slowestTraces = Integer.parseInt(args[++argIndex]);
+      } else {
+        paths.add(Paths.get(args[argIndex]));
+      }
+    }
+    if (paths.isEmpty()) {
+      paths.add(Paths.get("."));
+    }
+
+    analyze(paths, slowestTraces, System.out);
+  }
+
+  /**
+   * Prints the call graph and the critical paths of the traces in the trace files.
+   *
+   * @param paths the trace files, or directories to search for {@code traces-*.json} files
+   * @param slowestTraces how many of the slowest traces to print the critical path of
+   * @param out where to print to
+   * @throws IOException if a trace file cannot be read or is malformed
+   */
+  public static void analyze(List<Path> paths, int slowestTraces, PrintStream out)
+      throws IOException {
+    List<TraceSpan> spans = new ArrayList<>();
+    List<Path> traceFiles = findTraceFiles(paths);
+    for (Path traceFile : traceFiles) {
+      spans.addAll(readSpans(traceFile));
+    }
+    out.println("Read " + spans.size() + " spans from " + traceFiles.size() + " trace files");
+    if (spans.isEmpty()) {
+      return;
+    }
+
+    List<TraceSpan> rootSpans = link(spans);
+    printCallGraph(spans, out);
+    printCriticalPaths(rootSpans, slowestTraces, out);
+  }
+
+  private static List<Path> findTraceFiles(List<Path> paths) throws IOException {
+    List<Path> traceFiles = new ArrayList<>();
+    for (Path path : paths) {
+      if (!Files.isDirectory(path)) {
+        traceFiles.add(path);
+        continue;
+      }
+      try (DirectoryStream<Path> directoryStream =
+          Files.newDirectoryStream(path, "traces-*.json")) {
+        List<Path> directoryTraceFiles = new ArrayList<>();
+        directoryStream.forEach(directoryTraceFiles::add);
+        Collections.sort(directoryTraceFiles);
+        traceFiles.addAll(directoryTraceFiles);
+      }
+    }
+    return traceFiles;
+  }
+
+  private static List<TraceSpan> readSpans(Path traceFile) throws IOException {
+    JsonNode spansNode = OBJECT_MAPPER.readTree(traceFile.toFile());
+    if (spansNode == null || !spansNode.isArray()) {
+      throw new IOException(traceFile + " is not a JSON array of spans");
+    }
+    List<TraceSpan> spans = new ArrayList<>(spansNode.size());
+    for (JsonNode spanNode : spansNode) {
+      spans.add(TraceSpan.fromJson(spanNode));
+    }
+    return spans;
+  }
+
+  /**
+   * Links each span to the span that it was called from.
+   *
+   * @param spans the spans of every trace
+   * @return the spans that start a trace, or whose caller was not recorded
+   */
+  private static List<TraceSpan> link(List<TraceSpan> spans) {
+    Map<String, List<TraceSpan>> spansByTrace = new LinkedHashMap<>();
+    for (TraceSpan span : spans) {
+      spansByTrace.computeIfAbsent(span.getTraceId(), traceId -> new ArrayList<>()).add(span);
+    }
+
+    List<TraceSpan> rootSpans = new ArrayList<>();
+    for (List<TraceSpan> traceSpans : spansByTrace.values()) {
+      // The server span of a call shares its ID with the client span, so they are kept apart.
+      Map<String, TraceSpan> clientSpansById = new HashMap<>();
+      Map<String, TraceSpan> otherSpansById = new HashMap<>();
+      for (TraceSpan span : traceSpans) {
+        (span.getKind() == TraceSpan.Kind.CLIENT ? clientSpansById : otherSpansById)
+            .putIfAbsent(span.getId(), span);
+      }
+
+      for (TraceSpan span : traceSpans) {
+        TraceSpan parent = null;
+        if (span.isShared()) {
+          parent = clientSpansById.get(span.getId());
+        }
+        if (parent == null && span.getParentId() != null) {
+          // Calls are made from the server or local span that is running.
+          parent = otherSpansById.get(span.getParentId());
+          if (parent == null) {
+            parent = clientSpansById.get(span.getParentId());
+          }
+        }
+        if (parent == null || parent == span) {
+          rootSpans.add(span);
+        } else {
+          span.setParent(parent);
+        }
+      }
+    }
+    return rootSpans;
+  }
+
+  private static void printCallGraph(List<TraceSpan> spans, PrintStream out) {
+    Map<String, CallEdge> callEdges = new TreeMap<>();
+    for (TraceSpan span : spans) {
+      if (span.isShared() && span.getParent() != null) {
+        // Already counted by its client span.
+        continue;
+      }
+      CallEdge callEdge =
+          callEdges.computeIfAbsent(
+              span.getCaller() + " -> " + span.getCallee() + "#" + span.getName(),
+              edge -> new CallEdge());
+      callEdge.calls++;
+      callEdge.errors += span.isFailed() ? 1 : 0;
+      callEdge.totalMicros += span.getDurationMicros();
+      callEdge.maxMicros = Math.max(callEdge.maxMicros, span.getDurationMicros());
+    }
+
+    out.println();
+    out.println("Call graph:");
+    callEdges.entrySet().stream()
+        .sorted(Comparator.comparingLong(entry -> -entry.getValue().totalMicros))
+        .forEach(
+            entry ->
+                out.println(
+                    String.format(
+                        "  %s calls=%d errors=%d avg_ms=%.3f max_ms=%.3f total_ms=%.3f",
+                        entry.getKey(),
+                        entry.getValue().calls,
+                        entry.getValue().errors,
+                        toMillis(entry.getValue().totalMicros) / entry.getValue().calls,
+                        toMillis(entry.getValue().maxMicros),
+                        toMillis(entry.getValue().totalMicros))));
+  }
+
+  private static void printCriticalPaths(
+      List<TraceSpan> rootSpans, int slowestTraces, PrintStream out) {
+    List<TraceSpan> slowestRootSpans = new ArrayList<>(rootSpans);
+    slowestRootSpans.sort(Comparator.comparingLong(rootSpan -> -rootSpan.getDurationMicros()));
+
+    Map<String, Long> criticalMicrosBySpan = new HashMap<>();
+    long totalMicros = 0;
+    for (int rootIndex = 0; rootIndex < slowestRootSpans.size(); rootIndex++) {
+      TraceSpan rootSpan = slowestRootSpans.get(rootIndex);
+      List<PathSegment> criticalPath = new ArrayList<>();
+      addCriticalPath(rootSpan, 0, criticalPath);
+      for (PathSegment pathSegment : criticalPath) {
+        criticalMicrosBySpan.merge(pathSegment.span.toString(), pathSegment.selfMicros, Long::sum);
+      }
+      totalMicros += rootSpan.getDurationMicros();
+
+      if (rootIndex < slowestTraces) {
+        out.println();
+        out.println(
+            String.format(
+                "Critical path of trace %s (%.3f ms):",
+                rootSpan.getTraceId(), toMillis(rootSpan.getDurationMicros())));
+        out.println("  start_ms  duration_ms  self_ms  span");
+        for (PathSegment pathSegment : criticalPath) {
+          StringBuilder indent = new StringBuilder();
+          for (int level = 0; level < pathSegment.depth; level++) {
+            indent.append("  ");
+          }
+          out.println(
+              String.format(
+                  "  %8.3f  %11.3f  %7.3f  %s%s%s",
+                  toMillis(pathSegment.span.getStartMicros() - rootSpan.getStartMicros()),
+                  toMillis(pathSegment.span.getDurationMicros()),
+                  toMillis(pathSegment.selfMicros),
+                  indent,
+                  pathSegment.span,
+                  pathSegment.span.isFailed() ? " FAILED" : ""));
+        }
+      }
+    }
+
+    long criticalMicros = totalMicros;
+    out.println();
+    out.println(
+        String.format(
+            "Time on the critical path of %d traces (%.3f ms):",
+            slowestRootSpans.size(), toMillis(criticalMicros)));
+    criticalMicrosBySpan.entrySet().stream()
+        .sorted(Comparator.comparingLong(entry -> -entry.getValue()))
+        .forEach(
+            entry ->
+                out.println(
+                    String.format(
+                        "  %s %.3f ms (%.1f%%)",
+                        entry.getKey(),
+                        toMillis(entry.getValue()),
+                        criticalMicros == 0 ? 0 : 100.0 * entry.getValue() / criticalMicros)));
+  }
+
+  /**
+   * Adds {@code span} and the critical path through its children to {@code criticalPath}, in the
+   * order they started.
+   *
+   * @param span the span on the critical path
+   * @param depth how deep {@code span} is in the trace
+   * @param criticalPath the critical path so far
+   */
+  private static void addCriticalPath(TraceSpan span, int depth, List<PathSegment> criticalPath) {
+    PathSegment pathSegment = new PathSegment(span, depth);
+    criticalPath.add(pathSegment);
+
+    List<TraceSpan> children = new ArrayList<>(span.getChildren());
+    children.sort(Comparator.comparingLong(child -> -child.getEndMicros()));
+
+    // Steps back from the end of the span through the child that ended last before the cursor.
+    List<TraceSpan> criticalChildren = new ArrayList<>();
+    long cursorMicros = span.getEndMicros();
+    long childMicros = 0;
+    for (TraceSpan child : children) {
+      if (child.getStartMicros() >= cursorMicros) {
+        continue;
+      }
+      // Clamps the child to the span, in case the clocks of their processes disagree.
+      long startMicros = Math.max(child.getStartMicros(), span.getStartMicros());
+      long endMicros = Math.min(child.getEndMicros(), cursorMicros);
+      childMicros += Math.max(0, endMicros - startMicros);
+      criticalChildren.add(child);
+      cursorMicros = startMicros;
+    }
+    pathSegment.selfMicros = Math.max(0, span.getDurationMicros() - childMicros);
+
+    Collections.reverse(criticalChildren);
+    for (TraceSpan child : criticalChildren) {
+      addCriticalPath(child, depth + 1, criticalPath);
+    }
+  }
+
+  private static double toMillis(long micros) {
+    return micros / 1000.0;
+  }
+
+  private CriticalPathAnalyzer() {}
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.tracing;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/** A span read from a trace file, linked to the spans of the calls made while it was open. */
+class TraceSpan {
+
+  /** What side of a call the span was recorded on. */
+  enum Kind {
+    CLIENT,
+    SERVER,
+    LOCAL
+  }
+
+  /**
+   * Reads a span from its Zipkin v2 JSON object.
+   *
+   * @param spanNode the JSON object
+   * @return the span
+   * @throws IOException if the JSON object is not a span
+   */
+  static TraceSpan fromJson(JsonNode spanNode) throws IOException {
+    if (!spanNode.hasNonNull("traceId")
+        || !spanNode.hasNonNull("id")
+        || !spanNode.hasNonNull("timestamp")) {
+      throw new IOException("Span is missing its traceId, id, or timestamp: " + spanNode);
+    }
+    return new TraceSpan(
+        spanNode.get("traceId").asText(),
+        spanNode.get("id").asText(),
+        spanNode.path("parentId").asText(null),
+        spanNode.hasNonNull("kind") ? Kind.valueOf(spanNode.get("kind").asText()) : Kind.LOCAL,
+        spanNode.path("shared").asBoolean(false),
+        spanNode.path("name").asText("?"),
+        spanNode.path("localEndpoint").path("serviceName").asText("?"),
+        spanNode.path("remoteEndpoint").path("serviceName").asText(null),
+        spanNode.get("timestamp").asLong(),
+        spanNode.path("duration").asLong(0),
+        spanNode.path("tags").path("error").isTextual());
+  }
+
+  private final String traceId;
+  private final String id;
+  private final String parentId;
+  private final Kind kind;
+  private final boolean shared;
+  private final String name;
+  private final String localService;
+  private final String remoteService;
+  private final long startMicros;
+  private final long durationMicros;
+  private final boolean failed;
+
+  private TraceSpan parent;
+  private final List<TraceSpan> children = new ArrayList<>();
+
+  private TraceSpan(
+      String traceId,
+      String id,
+      String parentId,
+      Kind kind,
+      boolean shared,
+      String name,
+      String localService,
+      String remoteService,
+      long startMicros,
+      long durationMicros,
+      boolean failed) {
+    this.traceId = traceId;
+    this.id = id;
+    this.parentId = parentId;
+    this.kind = kind;
+    this.shared = shared;
+    this.name = name;
+    this.localService = localService;
+    this.remoteService = remoteService;
+    this.startMicros = startMicros;
+    this.durationMicros = durationMicros;
+    this.failed = failed;
+  }
+
+  String getTraceId() {
+    return traceId;
+  }
+
+  String getId() {
+    return id;
+  }
+
+  /** Gets the ID of the span the call was made from, or {@code null} if it started the trace. */
+  String getParentId() {
+    return parentId;
+  }
+
+  Kind getKind() {
+    return kind;
+  }
+
+  /** Whether this is a server span that shares its ID with the client span of the same call. */
+  boolean isShared() {
+    return shared;
+  }
+
+  String getName() {
+    return name;
+  }
+
+  String getLocalService() {
+    return localService;
+  }
+
+  String getRemoteService() {
+    return remoteService;
+  }
+
+  long getStartMicros() {
+    return startMicros;
+  }
+
+  long getEndMicros() {
+    return startMicros + durationMicros;
+  }
+
+  long getDurationMicros() {
+    return durationMicros;
+  }
+
+  boolean isFailed() {
+    return failed;
+  }
+
+  TraceSpan getParent() {
+    return parent;
+  }
+
+  List<TraceSpan> getChildren() {
+    return children;
+  }
+
+  /**
+   * Links this span under {@code parent}.
+   *
+   * @param parent the span this call was made from
+   */
+  void setParent(TraceSpan parent) {
+    this.parent = parent;
+    parent.children.add(this);
+  }
+
+  /**
+   * Gets the name of the {@link coollog.experiments.oomicroservice.framework.Microservice} that
+   * made the call, or {@code "outside"} if the call came from outside the traced services.
+   *
+   * @return the name of the calling service
+   */
+  String getCaller() {
+    if (kind == Kind.CLIENT) {
+      return localService;
+    }
+    return parent == null ? "outside" : parent.localService;
+  }
+
+  /**
+   * Gets the name of the called {@link coollog.experiments.oomicroservice.framework.Microservice}.
+   *
+   * @return the name of the called service
+   */
+  String getCallee() {
+    return kind == Kind.CLIENT && remoteService != null ? remoteService : localService;
+  }
+
+  @Override
+  public String toString() {
+    return getCallee() + "#" + name + " (" + kind.name().toLowerCase() + ")";
+  }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.stubgen;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a client stub for each {@code Microservice} at build time, so that calls do not go
+ * through a proxy generated at runtime. The stub for {@code FooService} is {@code
+ * FooService_RemoteStub} in the same package. It overrides each remote method to put the arguments
+ * into a {@code StubCall} with typed methods, which encodes them without boxing.
+ *
+ * <p>No stub is generated for a class that cannot be subclassed in its package, or that has a final
+ * or generic remote method. Such classes are called through a proxy generated at runtime, as
+ * before.
+ */
+@SupportedAnnotationTypes("*")
+public class RemoteStubProcessor extends AbstractProcessor {
+
+  private static final String MICROSERVICE_CLASS_NAME =
+      "coollog.experiments.oomicroservice.framework.Microservice";
+  private static final String FRAMEWORK_PACKAGE = "coollog.experiments.oomicroservice.framework";
+  private static final String REMOTE_STUB_CLASS_NAME = FRAMEWORK_PACKAGE + ".RemoteStub";
+  private static final String REMOTE_STUB_SUFFIX = "_RemoteStub";
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    for (TypeElement typeElement : ElementFilter.typesIn(roundEnv.getRootElements())) {
+      if (typeElement.getKind() == ElementKind.CLASS
+          && typeElement.getNestingKind() == NestingKind.TOP_LEVEL
+          && isMicroservice(typeElement.getSuperclass())
+          && !isRemoteStub(typeElement)) {
+        generateStub(typeElement);
+      }
+    }
+    // Does not claim any annotations.
+    return false;
+  }
+
+  /**
+   * Checks whether {@code type} is {@code Microservice} or a subclass of it.
+   *
+   * @param type the type
+   * @return {@code true} if {@code type} is a {@code Microservice}
+   */
+  private static boolean isMicroservice(TypeMirror type) {
+    while (type.getKind() == TypeKind.DECLARED) {
+      TypeElement typeElement = (TypeElement) ((DeclaredType) type).asElement();
+      if (typeElement.getQualifiedName().contentEquals(MICROSERVICE_CLASS_NAME)) {
+        return true;
+      }
+      type = typeElement.getSuperclass();
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether a class implements {@code RemoteStub}, such as the stubs generated in an earlier
+   * round, which need no stubs of their own.
+   *
+   * @param typeElement the class
+   * @return {@code true} if {@code typeElement} is a remote stub
+   */
+  private static boolean isRemoteStub(TypeElement typeElement) {
+    for (TypeMirror interfaceType : typeElement.getInterfaces()) {
+      if (interfaceType.getKind() == TypeKind.DECLARED
+          && ((TypeElement) ((DeclaredType) interfaceType).asElement())
+              .getQualifiedName()
+              .contentEquals(REMOTE_STUB_CLASS_NAME)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gets the remote methods of a {@code Microservice} class, matching {@code MethodTable}.
+   *
+   * @param typeElement the {@code Microservice} class
+   * @return the remote methods
+   */
+  private List<ExecutableElement> getRemoteMethods(TypeElement typeElement) {
+    List<ExecutableElement> methods =
+        ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(typeElement));
+    List<ExecutableElement> remoteMethods = new ArrayList<>();
+    for (ExecutableElement method : methods) {
+      TypeElement declaringClass = (TypeElement) method.getEnclosingElement();
+      if (method.getModifiers().contains(Modifier.PUBLIC)
+          && !method.getModifiers().contains(Modifier.STATIC)
+          && isMicroservice(declaringClass.asType())
+          && !declaringClass.getQualifiedName().contentEquals(MICROSERVICE_CLASS_NAME)
+          && !isOverridden(method, methods, typeElement)) {
+        remoteMethods.add(method);
+      }
+    }
+    // Sorts the methods so that the generated source is stable. Method IDs are looked up at
+    // runtime.
+    remoteMethods.sort(Comparator.comparing(method -> method.getSimpleName().toString()));
+    return remoteMethods;
+  }
+
+  private boolean isOverridden(
+      ExecutableElement method, List<ExecutableElement> methods, TypeElement typeElement) {
+    for (ExecutableElement otherMethod : methods) {
+      if (otherMethod != method
+          && processingEnv.getElementUtils().overrides(otherMethod, method, typeElement)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gets a constructor the stub can call from its own constructor. The stub is instantiated without
+   * calling any constructors, but it still needs one to compile.
+   *
+   * @param typeElement the {@code Microservice} class
+   * @return the constructor with the fewest parameters that is not private, or {@code null} if
+   *     there is none
+   */
+  private static ExecutableElement getSuperConstructor(TypeElement typeElement) {
+    return ElementFilter.constructorsIn(typeElement.getEnclosedElements()).stream()
+        .filter(constructor -> !constructor.getModifiers().contains(Modifier.PRIVATE))
+        .min(Comparator.comparingInt(constructor -> constructor.getParameters().size()))
+        .orElse(null);
+  }
+
+  /**
+   * Explains why no stub can be generated for a {@code Microservice} class.
+   *
+   * @param typeElement the {@code Microservice} class
+   * @param remoteMethods its remote methods
+   * @return the reason, or {@code null} if a stub can be generated
+   */
+  private static String getReasonNotToGenerate(
+      TypeElement typeElement, List<ExecutableElement> remoteMethods) {
+    if (typeElement.getModifiers().contains(Modifier.FINAL)) {
+      return "the class is final";
+    }
+    if (!typeElement.getTypeParameters().isEmpty()) {
+      return "the class is generic";
+    }
+    if (getSuperConstructor(typeElement) == null) {
+      return "the class has no constructor that is not private";
+    }
+    for (ExecutableElement method : remoteMethods) {
+      if (method.getModifiers().contains(Modifier.FINAL)) {
+        return method.getSimpleName() + " is final";
+      }
+      if (!method.getTypeParameters().isEmpty()
+          || method.getEnclosingElement() != typeElement
+              && !((TypeElement) method.getEnclosingElement()).getTypeParameters().isEmpty()) {
+        return method.getSimpleName() + " is generic";
+      }
+    }
+    return null;
+  }
+
+  private void generateStub(TypeElement typeElement) {
+    List<ExecutableElement> remoteMethods = getRemoteMethods(typeElement);
+    String reasonNotToGenerate = getReasonNotToGenerate(typeElement, remoteMethods);
+    if (reasonNotToGenerate != null) {
+      processingEnv
+          .getMessager()
+          .printMessage(
+              Diagnostic.Kind.NOTE,
+              "Not generating a remote stub because " + reasonNotToGenerate,
+              typeElement);
+      return;
+    }
+
+    String packageName =
+        ((PackageElement) typeElement.getEnclosingElement()).getQualifiedName().toString();
+    String className = typeElement.getSimpleName().toString();
+    String stubName = className + REMOTE_STUB_SUFFIX;
+    String qualifiedStubName = packageName.isEmpty() ? stubName : packageName + "." + stubName;
+
+    try (PrintWriter writer =
+        new PrintWriter(
+            processingEnv
+                .getFiler()
+                .createSourceFile(qualifiedStubName, typeElement)
+                .openWriter())) {
+      if (!packageName.isEmpty()) {
+        writer.println("package " + packageName + ";");
+        writer.println();
+      }
+      writer.println("/** Calls {@link " + className + "} remotely. Generated; do not edit. */");
+      writer.println(
+          "public class "
+              + stubName
+              + " extends "
+              + className
+              + " implements "
+              + REMOTE_STUB_CLASS_NAME
+              + " {");
+      writer.println();
+      writer.println("  private " + FRAMEWORK_PACKAGE + ".StubCaller stubCaller;");
+      writer.println("  private int[] methodIds;");
+      writer.println();
+      writeConstructor(writer, stubName, getSuperConstructor(typeElement));
+      writeInit(writer, className, remoteMethods);
+      for (int methodIndex = 0; methodIndex < remoteMethods.size(); methodIndex++) {
+        writeMethod(writer, methodIndex, remoteMethods.get(methodIndex));
+      }
+      writer.println("}");
+
+    } catch (IOException ex) {
+      processingEnv
+          .getMessager()
+          .printMessage(
+              Diagnostic.Kind.ERROR,
+              "Could not write " + qualifiedStubName + ": " + ex,
+              typeElement);
+    }
+  }
+
+  /** Writes a constructor that is never called, since stubs are instantiated without one. */
+  private static void writeConstructor(
+      PrintWriter writer, String stubName, ExecutableElement superConstructor) {
+    writer.println("  private " + stubName + "()" + getThrowsClause(superConstructor) + " {");
+    writer.println(
+        "    super("
+            + superConstructor.getParameters().stream()
+                .map(parameter -> getDefaultValue(parameter.asType()))
+                .collect(Collectors.joining(", "))
+            + ");");
+    writer.println("  }");
+    writer.println();
+  }
+
+  private void writeInit(
+      PrintWriter writer, String className, List<ExecutableElement> remoteMethods) {
+    writer.println("  @Override");
+    writer.println(
+        "  public void initRemoteStub(" + FRAMEWORK_PACKAGE + ".StubCaller stubCaller) {");
+    writer.println("    this.stubCaller = stubCaller;");
+    writer.println("    methodIds = new int[" + remoteMethods.size() + "];");
+    for (int methodIndex = 0; methodIndex < remoteMethods.size(); methodIndex++) {
+      ExecutableElement method = remoteMethods.get(methodIndex);
+      StringBuilder parameterTypes = new StringBuilder();
+      for (Element parameter : method.getParameters()) {
+        parameterTypes
+            .append(", ")
+            .append(processingEnv.getTypeUtils().erasure(parameter.asType()))
+            .append(".class");
+      }
+      writer.println(
+          "    methodIds["
+              + methodIndex
+              + "] = stubCaller.getMethodId("
+              + className
+              + ".class, \""
+              + method.getSimpleName()
+              + "\""
+              + parameterTypes
+              + ");");
+    }
+    writer.println("  }");
+  }
+
+  private static void writeMethod(PrintWriter writer, int methodIndex, ExecutableElement method) {
+    List<? extends Element> parameters = method.getParameters();
+    StringBuilder declaredParameters = new StringBuilder();
+    StringBuilder call = new StringBuilder("stubCaller.newCall(methodIds[" + methodIndex + "])");
+    for (int parameterIndex = 0; parameterIndex < parameters.size(); parameterIndex++) {
+      TypeMirror parameterType = parameters.get(parameterIndex).asType();
+      if (parameterIndex > 0) {
+        declaredParameters.append(", ");
+      }
+      declaredParameters.append(parameterType).append(" arg").append(parameterIndex);
+      call.append(".put")
+          .append(getTypedSuffix(parameterType))
+          .append("(arg")
+          .append(parameterIndex)
+          .append(")");
+    }
+
+    TypeMirror returnType = method.getReturnType();
+    String invocation = call + ".invoke" + getTypedSuffix(returnType) + "()";
+    String statement;
+    if (returnType.getKind() == TypeKind.VOID) {
+      statement = invocation.replace(".invokeObject()", ".invokeVoid()") + ";";
+    } else if (returnType.getKind().isPrimitive() && getTypedSuffix(returnType).equals("Object")) {
+      // Unboxes the other primitive types, which are not supported anyway.
+      statement = "return (" + getBoxedName(returnType) + ") " + invocation + ";";
+    } else if (getTypedSuffix(returnType).equals("Object")) {
+      statement = "return (" + returnType + ") " + invocation + ";";
+    } else {
+      statement = "return " + invocation + ";";
+    }
+
+    writer.println();
+    writer.println("  @Override");
+    writer.println(
+        "  public "
+            + returnType
+            + " "
+            + method.getSimpleName()
+            + "("
+            + declaredParameters
+            + ")"
+            + getThrowsClause(method)
+            + " {");
+    writer.println("    " + statement);
+    writer.println("  }");
+  }
+
+  /** Gets the suffix of the typed {@code StubCall} method for {@code type}. */
+  private static String getTypedSuffix(TypeMirror type) {
+    switch (type.getKind()) {
+      case INT:
+        return "Int";
+      case LONG:
+        return "Long";
+      case DOUBLE:
+        return "Double";
+      case BOOLEAN:
+        return "Boolean";
+      default:
+        return "Object";
+    }
+  }
+
+  private static String getBoxedName(TypeMirror primitiveType) {
+    switch (primitiveType.getKind()) {
+      case BYTE:
+        return "java.lang.Byte";
+      case SHORT:
+        return "java.lang.Short";
+      case CHAR:
+        return "java.lang.Character";
+      case FLOAT:
+        return "java.lang.Float";
+      default:
+        throw new IllegalArgumentException("Unexpected primitive type " + primitiveType);
+    }
+  }
+
+  private static String getDefaultValue(TypeMirror type) {
+    switch (type.getKind()) {
+      case BOOLEAN:
+        return "false";
+      case BYTE:
+      case SHORT:
+      case CHAR:
+      case INT:
+      case LONG:
+      case FLOAT:
+      case DOUBLE:
+        return "(" + type + ") 0";
+      default:
+        return "(" + type + ") null";
+    }
+  }
+
+  private static String getThrowsClause(ExecutableElement executable) {
+    if (executable.getThrownTypes().isEmpty()) {
+      return "";
+    }
+    return " throws "
+        + executable.getThrownTypes().stream()
+            .map(TypeMirror::toString)
+            .collect(Collectors.joining(", "));
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Tests for {@link BufferPool}. */
+public class BufferPoolTest {
+
+  /** The most free buffers of the 64 KiB size class, which is at most 1 MiB of them. */
+  private static final int MAX_FREE_LARGEST_BUFFERS = 16;
+
+  @Test
+  public void testAcquire_clearedDirectBuffer() {
+    ByteBuffer buffer = BufferPool.acquire(300);
+    try {
+      Assert.assertTrue(buffer.isDirect());
+      Assert.assertEquals(0, buffer.position());
+      Assert.assertEquals(512, buffer.capacity());
+      Assert.assertEquals(buffer.capacity(), buffer.limit());
+
+    } finally {
+      BufferPool.release(buffer);
+    }
+  }
+
+  @Test
+  public void testAcquire_reusesReleasedBuffer() {
+    ByteBuffer buffer = BufferPool.acquire(40_000);
+    buffer.putLong(42).flip();
+    BufferPool.release(buffer);
+
+    // Other buffers of the same size class may have been released first.
+    List<ByteBuffer> acquiredBuffers = new ArrayList<>();
+    try {
+      for (int acquireCount = 0; acquireCount < MAX_FREE_LARGEST_BUFFERS; acquireCount++) {
+        ByteBuffer acquiredBuffer = BufferPool.acquire(50_000);
+        acquiredBuffers.add(acquiredBuffer);
+        if (acquiredBuffer == buffer) {
+          Assert.assertEquals(0, acquiredBuffer.position());
+          Assert.assertEquals(acquiredBuffer.capacity(), acquiredBuffer.limit());
+          return;
+        }
+      }
+      Assert.fail("Released buffer was not reused");
+
+    } finally {
+      for (ByteBuffer acquiredBuffer : acquiredBuffers) {
+        BufferPool.release(acquiredBuffer);
+      }
+    }
+  }
+
+  @Test
+  public void testAcquire_largeBufferNotPooled() {
+    ByteBuffer buffer = BufferPool.acquire(64 * 1024 + 1);
+    Assert.assertFalse(buffer.isDirect());
+    Assert.assertEquals(64 * 1024 + 1, buffer.capacity());
+    BufferPool.release(buffer);
+    Assert.assertNotSame(buffer, BufferPool.acquire(64 * 1024 + 1));
+  }
+
+  @Test
+  public void testAcquire_keepsHeapAndDirectBuffersApart() {
+    ByteBuffer heapBuffer = BufferPool.acquire(1000, false);
+    Assert.assertFalse(heapBuffer.isDirect());
+    Assert.assertEquals(1024, heapBuffer.capacity());
+    BufferPool.release(heapBuffer);
+
+    ByteBuffer buffer = BufferPool.acquire(1000);
+    try {
+      Assert.assertTrue(buffer.isDirect());
+
+    } finally {
+      BufferPool.release(buffer);
+    }
+  }
+
+  @Test
+  public void testRelease_ignoresBufferNotOfSizeClass() {
+    ByteBuffer heapBuffer = ByteBuffer.allocate(1000);
+    BufferPool.release(heapBuffer);
+
+    ByteBuffer buffer = BufferPool.acquire(1000, false);
+    try {
+      Assert.assertNotSame(heapBuffer, buffer);
+      Assert.assertEquals(1024, buffer.capacity());
+
+    } finally {
+      BufferPool.release(buffer);
+    }
+  }
+
+  @Test
+  public void testEnsureRemaining_movesContentToLargerBuffer() {
+    ByteBuffer buffer = BufferPool.acquire(256);
+    buffer.put(new byte[250]).putInt(7);
+
+    ByteBuffer largerBuffer = BufferPool.ensureRemaining(buffer, 100);
+    try {
+      Assert.assertNotSame(buffer, largerBuffer);
+      Assert.assertTrue(largerBuffer.remaining() >= 100);
+      Assert.assertEquals(254, largerBuffer.position());
+      Assert.assertEquals(7, largerBuffer.getInt(250));
+      Assert.assertSame(largerBuffer, BufferPool.ensureRemaining(largerBuffer, 100));
+
+    } finally {
+      BufferPool.release(largerBuffer);
+    }
+  }
+
+  @Test
+  public void testReadFullyAndWrite_directBuffer() throws IOException {
+    // Longer than the scratch array, so that it is copied in more than one piece.
+    byte[] bytes = new byte[20_000];
+    for (int index = 0; index < bytes.length; index++) {
+      bytes[index] = (byte) index;
+    }
+
+    ByteBuffer buffer = BufferPool.acquire(bytes.length);
+    try {
+      buffer.limit(bytes.length);
+      BufferPool.readFully(new ByteArrayInputStream(bytes), buffer);
+      buffer.flip();
+
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      BufferPool.write(outputStream, buffer);
+      Assert.assertArrayEquals(bytes, outputStream.toByteArray());
+      Assert.assertEquals(0, buffer.position());
+
+    } finally {
+      BufferPool.release(buffer);
+    }
+  }
+
+  @Test(expected = EOFException.class)
+  public void testReadFully_streamEndsEarly() throws IOException {
+    ByteBuffer buffer = BufferPool.acquire(16);
+    try {
+      buffer.limit(16);
+      BufferPool.readFully(new ByteArrayInputStream(new byte[8]), buffer);
+
+    } finally {
+      BufferPool.release(buffer);
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import static coollog.experiments.oomicroservice.framework.FakeServer.payload;
+import static coollog.experiments.oomicroservice.framework.FakeServer.string;
+
+import coollog.experiments.oomicroservice.framework.WireProtocol.Frame;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link CallBatcher}. */
+public class CallBatcherTest {
+
+  private static final String HOST = "call-batcher-test";
+  private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+  /** Long enough that a batch is only sent once it is full. */
+  private static final long LONG_LINGER_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+  private final ConnectionPool connectionPool = new ConnectionPool();
+
+  /** How many entries the fake server leaves out of each batch response. */
+  private volatile int droppedResponseCount;
+
+  private FakeServer fakeServer;
+  private ReplicaBalancer replicaBalancer;
+
+  @Before
+  public void setUp() throws IOException {
+    // Answers each call with its own payload, and each batch with a batch of those.
+    fakeServer =
+        new FakeServer(
+            (connection, request) -> {
+              if (!request.hasFlag(WireProtocol.FLAG_BATCH)) {
+                connection.echo(request);
+                return;
+              }
+              List<ByteBuffer> entries = WireProtocol.splitBatchPayload(request.getPayload());
+              connection.respond(
+                  request.getRequestId(),
+                  WireProtocol.batchPayload(
+                      entries.subList(0, entries.size() - droppedResponseCount)));
+            });
+    ServiceRegistry.setLocalEndpoints(HOST, Collections.singletonList(fakeServer.getAddress()));
+    replicaBalancer =
+        new ReplicaBalancer(
+            connectionPool,
+            Microservice.class,
+            HOST,
+            WireProtocol.BINARY_PREAMBLE,
+            2,
+            TIMEOUT_NANOS);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    fakeServer.close();
+  }
+
+  @Test
+  public void testCall_fullBatchSplitIntoResponses() throws Exception {
+    CallBatcher callBatcher = new CallBatcher(replicaBalancer, 3, LONG_LINGER_NANOS);
+
+    List<CompletableFuture<ByteBuffer>> responseFutures = new ArrayList<>();
+    for (int callIndex = 0; callIndex < 3; callIndex++) {
+      responseFutures.add(callBatcher.call(payload("call " + callIndex)));
+    }
+
+    Frame request = fakeServer.takeFrame();
+    Assert.assertTrue(request.hasFlag(WireProtocol.FLAG_BATCH));
+    Assert.assertEquals(3, WireProtocol.splitBatchPayload(request.getPayload()).size());
+    for (int callIndex = 0; callIndex < 3; callIndex++) {
+      Assert.assertEquals(
+          "call " + callIndex,
+          string(ConnectionPool.awaitResponse(responseFutures.get(callIndex), HOST)));
+    }
+    Assert.assertEquals(0, fakeServer.getUntakenFrameCount());
+  }
+
+  @Test
+  public void testCall_responseCountMismatchFailsEveryCall() throws Exception {
+    droppedResponseCount = 1;
+    CallBatcher callBatcher = new CallBatcher(replicaBalancer, 3, LONG_LINGER_NANOS);
+
+    List<CompletableFuture<ByteBuffer>> responseFutures = new ArrayList<>();
+    for (int callIndex = 0; callIndex < 3; callIndex++) {
+      responseFutures.add(callBatcher.call(payload("call " + callIndex)));
+    }
+
+    for (CompletableFuture<ByteBuffer> responseFuture : responseFutures) {
+      try {
+        ConnectionPool.awaitResponse(responseFuture, HOST);
+        Assert.fail("Expected the call to fail");
+
+      } catch (IOException ex) {
+        Assert.assertTrue(
+            ex.getMessage(), ex.getMessage().contains("Expected 3 responses in batch"));
+      }
+    }
+  }
+
+  @Test
+  public void testCall_lingeringSingleCallSentWithoutBatch() throws Exception {
+    CallBatcher callBatcher =
+        new CallBatcher(replicaBalancer, 10, TimeUnit.MILLISECONDS.toNanos(10));
+
+    CompletableFuture<ByteBuffer> responseFuture = callBatcher.call(payload("alone"));
+
+    Assert.assertEquals("alone", string(ConnectionPool.awaitResponse(responseFuture, HOST)));
+    Assert.assertFalse(fakeServer.takeFrame().hasFlag(WireProtocol.FLAG_BATCH));
+  }
+
+  @Test
+  public void testCall_lingeringCallsSentTogether() throws Exception {
+    CallBatcher callBatcher =
+        new CallBatcher(replicaBalancer, 10, TimeUnit.MILLISECONDS.toNanos(200));
+
+    CompletableFuture<ByteBuffer> firstFuture = callBatcher.call(payload("first"));
+    CompletableFuture<ByteBuffer> secondFuture = callBatcher.call(payload("second"));
+
+    Assert.assertEquals("first", string(ConnectionPool.awaitResponse(firstFuture, HOST)));
+    Assert.assertEquals("second", string(ConnectionPool.awaitResponse(secondFuture, HOST)));
+    Frame request = fakeServer.takeFrame();
+    Assert.assertTrue(request.hasFlag(WireProtocol.FLAG_BATCH));
+    Assert.assertEquals(2, WireProtocol.splitBatchPayload(request.getPayload()).size());
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import static coollog.experiments.oomicroservice.framework.FakeServer.payload;
+import static coollog.experiments.oomicroservice.framework.FakeServer.string;
+
+import coollog.experiments.oomicroservice.framework.WireProtocol.Frame;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Tests for {@link ConnectionPool}. */
+public class ConnectionPoolTest {
+
+  private static final String HOST = "connection-pool-test";
+  private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+  /** Sends every request over a single connection. */
+  private final ConnectionPool connectionPool = new ConnectionPool(1, 100, 60_000, 1000);
+
+  private FakeServer fakeServer;
+
+  @After
+  public void tearDown() throws IOException {
+    if (fakeServer != null) {
+      fakeServer.close();
+    }
+  }
+
+  @Test
+  public void testCallAsync_responsesRoutedByRequestId() throws Exception {
+    // Holds the requests until both arrive, then answers them in reverse order.
+    List<Frame> heldRequests = new ArrayList<>();
+    fakeServer =
+        new FakeServer(
+            (connection, request) -> {
+              heldRequests.add(request);
+              if (heldRequests.size() == 2) {
+                connection.echo(heldRequests.get(1));
+                connection.echo(heldRequests.get(0));
+              }
+            });
+
+    CompletableFuture<ByteBuffer> firstFuture = callAsync("first", TIMEOUT_NANOS);
+    CompletableFuture<ByteBuffer> secondFuture = callAsync("second", TIMEOUT_NANOS);
+
+    Assert.assertEquals("first", string(ConnectionPool.awaitResponse(firstFuture, HOST)));
+    Assert.assertEquals("second", string(ConnectionPool.awaitResponse(secondFuture, HOST)));
+    Assert.assertNotEquals(
+        fakeServer.takeFrame().getRequestId(), fakeServer.takeFrame().getRequestId());
+    Assert.assertEquals(1, fakeServer.getConnectionCount());
+  }
+
+  @Test
+  public void testCallAsync_cancelSendsCancelFrame() throws Exception {
+    fakeServer =
+        new FakeServer(
+            (connection, frame) -> {
+              if (frame.hasFlag(WireProtocol.FLAG_CANCEL)) {
+                // Answers the cancelled request anyway, which the client must drop.
+                connection.respond(frame.getRequestId(), payload("late"));
+              } else if (!string(frame.getPayload()).equals("held")) {
+                connection.echo(frame);
+              }
+            });
+
+    CompletableFuture<ByteBuffer> heldFuture = callAsync("held", TIMEOUT_NANOS);
+    Frame request = fakeServer.takeFrame();
+    Assert.assertTrue(heldFuture.cancel(false));
+
+    Frame cancelFrame = fakeServer.takeFrame();
+    Assert.assertTrue(cancelFrame.hasFlag(WireProtocol.FLAG_CANCEL));
+    Assert.assertEquals(request.getRequestId(), cancelFrame.getRequestId());
+    Assert.assertEquals(0, cancelFrame.getPayload().remaining());
+
+    // The connection still works after the late response to the cancelled request.
+    Assert.assertEquals(
+        "next", string(ConnectionPool.awaitResponse(callAsync("next", TIMEOUT_NANOS), HOST)));
+    Assert.assertEquals(1, fakeServer.getConnectionCount());
+  }
+
+  @Test
+  public void testCallAsync_timesOutWithoutResponse() throws Exception {
+    fakeServer = new FakeServer((connection, frame) -> {});
+
+    long startNanos = System.nanoTime();
+    CompletableFuture<ByteBuffer> responseFuture =
+        callAsync("unanswered", TimeUnit.MILLISECONDS.toNanos(100));
+    try {
+      ConnectionPool.awaitResponse(responseFuture, HOST);
+      Assert.fail("Expected the call to time out");
+
+    } catch (RemoteInvocationException ex) {
+      Assert.assertTrue(ex.getMessage(), ex.getMessage().contains("within 100 ms"));
+    }
+    Assert.assertTrue(System.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(100));
+
+    Frame request = fakeServer.takeFrame();
+    Frame cancelFrame = fakeServer.takeFrame();
+    Assert.assertTrue(cancelFrame.hasFlag(WireProtocol.FLAG_CANCEL));
+    Assert.assertEquals(request.getRequestId(), cancelFrame.getRequestId());
+  }
+
+  @Test
+  public void testCallAsync_failsWhenConnectionClosedAndReconnects() throws Exception {
+    fakeServer =
+        new FakeServer(
+            (connection, request) -> {
+              if (string(request.getPayload()).equals("close")) {
+                connection.close();
+              } else {
+                connection.echo(request);
+              }
+            });
+
+    try {
+      ConnectionPool.awaitResponse(callAsync("close", TIMEOUT_NANOS), HOST);
+      Assert.fail("Expected the call to fail");
+
+    } catch (IOException ex) {
+      // The connection was closed before the response.
+    }
+
+    Assert.assertEquals(
+        "reopened",
+        string(ConnectionPool.awaitResponse(callAsync("reopened", TIMEOUT_NANOS), HOST)));
+    Assert.assertEquals(2, fakeServer.getConnectionCount());
+  }
+
+  @Test
+  public void testSendOneWay_sendsBatchFrame() throws Exception {
+    fakeServer = new FakeServer((connection, frame) -> {});
+
+    List<ByteBuffer> requestPayloads = new ArrayList<>();
+    requestPayloads.add(payload("one"));
+    requestPayloads.add(payload("two"));
+    connectionPool.sendOneWay(
+        HOST, fakeServer.getAddress(), WireProtocol.BINARY_PREAMBLE, requestPayloads);
+
+    Frame request = fakeServer.takeFrame();
+    Assert.assertTrue(request.hasFlag(WireProtocol.FLAG_ONE_WAY));
+    Assert.assertTrue(request.hasFlag(WireProtocol.FLAG_BATCH));
+    List<ByteBuffer> entries = WireProtocol.splitBatchPayload(request.getPayload());
+    Assert.assertEquals(2, entries.size());
+    Assert.assertEquals("one", string(entries.get(0)));
+    Assert.assertEquals("two", string(entries.get(1)));
+  }
+
+  private CompletableFuture<ByteBuffer> callAsync(String request, long timeoutNanos) {
+    return connectionPool.callAsync(
+        HOST,
+        fakeServer.getAddress(),
+        WireProtocol.BINARY_PREAMBLE,
+        (byte) 0,
+        payload(request),
+        timeoutNanos);
+  }
+}
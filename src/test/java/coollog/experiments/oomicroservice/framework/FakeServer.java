@@ -0,0 +1,227 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import coollog.experiments.oomicroservice.framework.WireProtocol.Frame;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A server on a loopback port that speaks {@link WireProtocol}, and answers each frame it receives
+ * as the test tells it to.
+ */
+class FakeServer implements Closeable {
+
+  /** How long to wait for a frame that a test expects. */
+  private static final long RECEIVE_TIMEOUT_MILLIS = 5000;
+
+  /** Handles a frame received by a {@link FakeServer}. */
+  @FunctionalInterface
+  interface FrameHandler {
+
+    /**
+     * Handles a frame. Runs on the thread that reads the connection the frame came in on.
+     *
+     * @param connection the connection the frame came in on
+     * @param frame the frame
+     * @throws Exception if an exception occurs, which closes the connection
+     */
+    void handle(Connection connection, Frame frame) throws Exception;
+  }
+
+  /** A connection accepted by a {@link FakeServer}. */
+  static class Connection {
+
+    private final Socket socket;
+    private final DataOutputStream outputStream;
+
+    private Connection(Socket socket) throws IOException {
+      this.socket = socket;
+      outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /**
+     * Sends a response frame.
+     *
+     * @param requestId the request ID of the request to answer
+     * @param payload the response payload
+     * @throws IOException if an I/O exception occurs
+     */
+    void respond(int requestId, ByteBuffer payload) throws IOException {
+      synchronized (outputStream) {
+        WireProtocol.writeFrame(outputStream, new Frame(requestId, (byte) 0, payload));
+        outputStream.flush();
+      }
+    }
+
+    /**
+     * Sends the payload of a request frame back as its response payload.
+     *
+     * @param request the request frame
+     * @throws IOException if an I/O exception occurs
+     */
+    void echo(Frame request) throws IOException {
+      respond(request.getRequestId(), request.getPayload().duplicate());
+    }
+
+    /** Closes the connection. */
+    void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  /**
+   * Encodes a string as a payload.
+   *
+   * @param string the string
+   * @return the UTF-8 encoded payload
+   */
+  static ByteBuffer payload(String string) {
+    return ByteBuffer.wrap(string.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Decodes a payload made by {@link #payload}.
+   *
+   * @param payload the payload, which is left untouched
+   * @return the string
+   */
+  static String string(ByteBuffer payload) {
+    return StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
+  }
+
+  private final FrameHandler frameHandler;
+  private final ServerSocket serverSocket;
+  private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+  private final BlockingQueue<Frame> receivedFrames = new LinkedBlockingQueue<>();
+
+  /**
+   * Starts a {@link FakeServer} on a free loopback port.
+   *
+   * @param frameHandler handles every frame received, including {@link WireProtocol#FLAG_CANCEL}
+   *     frames
+   * @throws IOException if an I/O exception occurs
+   */
+  FakeServer(FrameHandler frameHandler) throws IOException {
+    this.frameHandler = frameHandler;
+    serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    Thread acceptThread = new Thread(this::acceptConnections, "fake-server-accept");
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+  }
+
+  InetSocketAddress getAddress() {
+    return new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+  }
+
+  /**
+   * Gets the number of connections accepted so far.
+   *
+   * @return the number of connections
+   */
+  int getConnectionCount() {
+    return sockets.size();
+  }
+
+  /**
+   * Takes the next frame received, in the order they arrived.
+   *
+   * @return the frame
+   * @throws AssertionError if no frame arrives in time
+   * @throws InterruptedException if interrupted while waiting
+   */
+  Frame takeFrame() throws InterruptedException {
+    Frame frame = receivedFrames.poll(RECEIVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    if (frame == null) {
+      throw new AssertionError("No frame received within " + RECEIVE_TIMEOUT_MILLIS + " ms");
+    }
+    return frame;
+  }
+
+  /**
+   * Gets the number of frames received but not yet taken.
+   *
+   * @return the number of frames
+   */
+  int getUntakenFrameCount() {
+    return receivedFrames.size();
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    for (Socket socket : sockets) {
+      socket.close();
+    }
+  }
+
+  private void acceptConnections() {
+    try {
+      while (true) {
+        Socket socket = serverSocket.accept();
+        sockets.add(socket);
+        Thread readThread = new Thread(() -> readFrames(socket), "fake-server-read");
+        readThread.setDaemon(true);
+        readThread.start();
+      }
+
+    } catch (IOException ex) {
+      // The server socket was closed.
+    }
+  }
+
+  private void readFrames(Socket socket) {
+    try {
+      Connection connection = new Connection(socket);
+      DataInputStream inputStream =
+          new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      // Skips the preamble that negotiates the serializer.
+      inputStream.readByte();
+      Frame frame;
+      while ((frame = WireProtocol.readFrame(inputStream)) != null) {
+        receivedFrames.add(frame);
+        frameHandler.handle(connection, frame);
+      }
+
+    } catch (Exception ex) {
+      // The connection was closed.
+
+    } finally {
+      try {
+        socket.close();
+
+      } catch (IOException ex) {
+        // Ignores exceptions on close.
+      }
+    }
+  }
+}
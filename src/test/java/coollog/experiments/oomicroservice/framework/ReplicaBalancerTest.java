@@ -0,0 +1,288 @@
+/*
+ * Copyright 2019 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package coollog.experiments.oomicroservice.framework;
+
+import static coollog.experiments.oomicroservice.framework.FakeServer.payload;
+import static coollog.experiments.oomicroservice.framework.FakeServer.string;
+
+import coollog.experiments.oomicroservice.framework.WireProtocol.Frame;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link ReplicaBalancer}. */
+public class ReplicaBalancerTest {
+
+  private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+  /** Gives each test its own host, since the local endpoints are registered globally. */
+  private static final AtomicInteger hostCount = new AtomicInteger();
+
+  private final ConnectionPool connectionPool = new ConnectionPool();
+  private final String host = "replica-balancer-test-" + hostCount.incrementAndGet();
+
+  private FakeServer firstReplica;
+  private FakeServer secondReplica;
+
+  /** The requests received by either replica, in order, not counting cancel frames. */
+  private final BlockingQueue<Frame> requests = new LinkedBlockingQueue<>();
+
+  /** The cancel frames received by either replica. */
+  private final BlockingQueue<Frame> cancelFrames = new LinkedBlockingQueue<>();
+
+  /**
+   * The connection that each frame came in on, since request IDs are only unique per connection.
+   */
+  private final Map<Frame, FakeServer.Connection> frameConnections = new ConcurrentHashMap<>();
+
+  private static final long HEDGE_DELAY_MILLIS = 50;
+  private static final long SLOW_HEDGE_DELAY_MILLIS = 500;
+
+  /** Hedges shortly after the primary request if it has not been answered by then. */
+  @Hedged(delay = HEDGE_DELAY_MILLIS)
+  private static void hedgedMethod() {}
+
+  /** Hedges long after an immediate answer to the primary request, even on a loaded machine. */
+  @Hedged(delay = SLOW_HEDGE_DELAY_MILLIS)
+  private static void slowlyHedgedMethod() {}
+
+  @Before
+  public void setUp() {
+    // Refills the hedge budget shared by every test.
+    for (int callIndex = 0; callIndex < 100; callIndex++) {
+      HedgingPolicy.depositBudget();
+    }
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    firstReplica.close();
+    secondReplica.close();
+  }
+
+  @Test
+  public void testCallAsync_avoidsSlowReplica() throws Exception {
+    firstReplica = new FakeServer((connection, request) -> connection.echo(request));
+    secondReplica =
+        new FakeServer(
+            (connection, request) -> {
+              Thread.sleep(50);
+              connection.echo(request);
+            });
+    ReplicaBalancer replicaBalancer = newReplicaBalancer();
+
+    for (int callIndex = 0; callIndex < 40; callIndex++) {
+      Assert.assertEquals(
+          "call",
+          string(
+              ConnectionPool.awaitResponse(
+                  replicaBalancer.callAsync((byte) 0, payload("call")), host)));
+    }
+
+    // Each replica is tried once before its latency is known, and the slow one is avoided after.
+    Assert.assertTrue(
+        "Slow replica got " + secondReplica.getUntakenFrameCount() + " calls",
+        secondReplica.getUntakenFrameCount() <= 2);
+    Assert.assertEquals(
+        40, firstReplica.getUntakenFrameCount() + secondReplica.getUntakenFrameCount());
+  }
+
+  @Test
+  public void testCallAsync_spreadsCallsInFlight() throws Exception {
+    // Holds every call, so that each replica has its calls in flight.
+    firstReplica = new FakeServer((connection, request) -> {});
+    secondReplica = new FakeServer((connection, request) -> {});
+    ReplicaBalancer replicaBalancer = newReplicaBalancer();
+
+    CompletableFuture<ByteBuffer> firstFuture = replicaBalancer.callAsync((byte) 0, payload("1"));
+    CompletableFuture<ByteBuffer> secondFuture = replicaBalancer.callAsync((byte) 0, payload("2"));
+
+    // The replica without a call in flight is the cheaper of the two, so each gets one call.
+    String firstReplicaPayload = string(firstReplica.takeFrame().getPayload());
+    String secondReplicaPayload = string(secondReplica.takeFrame().getPayload());
+    Assert.assertNotEquals(firstReplicaPayload, secondReplicaPayload);
+    Assert.assertEquals(0, firstReplica.getUntakenFrameCount());
+    Assert.assertEquals(0, secondReplica.getUntakenFrameCount());
+    firstFuture.cancel(false);
+    secondFuture.cancel(false);
+  }
+
+  @Test
+  public void testCallHedged_noHedgeIfPrimaryAnswersInTime() throws Exception {
+    startReplicas((requestIndex, connection, request) -> connection.echo(request));
+    ReplicaBalancer replicaBalancer = newReplicaBalancer();
+
+    Assert.assertEquals(
+        "call",
+        string(
+            ConnectionPool.awaitResponse(
+                replicaBalancer.callHedged(
+                    (byte) 0, payload("call"), newHedgingPolicy("slowlyHedgedMethod")),
+                host)));
+
+    // Waits past the hedge delay, long after the primary request is answered.
+    Assert.assertNotNull(requests.poll(5, TimeUnit.SECONDS));
+    Assert.assertNull(
+        "Unexpected hedge", requests.poll(2 * SLOW_HEDGE_DELAY_MILLIS, TimeUnit.MILLISECONDS));
+    Assert.assertTrue(cancelFrames.isEmpty());
+  }
+
+  @Test
+  public void testCallHedged_hedgeWinsOverStalledPrimary() throws Exception {
+    // Holds the primary request, and answers the hedge right away.
+    startReplicas(
+        (requestIndex, connection, request) -> {
+          if (requestIndex > 0) {
+            connection.echo(request);
+          }
+        });
+    ReplicaBalancer replicaBalancer = newReplicaBalancer();
+
+    Assert.assertEquals(
+        "call",
+        string(
+            ConnectionPool.awaitResponse(
+                replicaBalancer.callHedged((byte) 0, payload("call"), newHedgingPolicy()), host)));
+
+    Frame primaryRequest = requests.take();
+    Assert.assertNotNull(requests.poll(5, TimeUnit.SECONDS));
+    assertCancelled(primaryRequest);
+  }
+
+  @Test
+  public void testCallHedged_primaryWinsOverLateHedge() throws Exception {
+    // Answers the primary request once the hedge arrives, and holds the hedge.
+    startReplicas(
+        (requestIndex, connection, request) -> {
+          if (requestIndex == 1) {
+            Frame primaryRequest = requests.peek();
+            frameConnections.get(primaryRequest).echo(primaryRequest);
+          }
+        });
+    ReplicaBalancer replicaBalancer = newReplicaBalancer();
+
+    Assert.assertEquals(
+        "call",
+        string(
+            ConnectionPool.awaitResponse(
+                replicaBalancer.callHedged((byte) 0, payload("call"), newHedgingPolicy()), host)));
+
+    requests.take();
+    Frame hedgeRequest = requests.poll(5, TimeUnit.SECONDS);
+    Assert.assertNotNull(hedgeRequest);
+    assertCancelled(hedgeRequest);
+  }
+
+  @Test
+  public void testCallHedged_noHedgeWithoutBudget() throws Exception {
+    while (HedgingPolicy.tryWithdrawBudget()) {
+      // Spends the whole hedge budget.
+    }
+    // Answers the primary request well after the hedge delay.
+    startReplicas(
+        (requestIndex, connection, request) -> {
+          Thread.sleep(3 * HEDGE_DELAY_MILLIS);
+          connection.echo(request);
+        });
+    ReplicaBalancer replicaBalancer = newReplicaBalancer();
+
+    Assert.assertEquals(
+        "call",
+        string(
+            ConnectionPool.awaitResponse(
+                replicaBalancer.callHedged((byte) 0, payload("call"), newHedgingPolicy()), host)));
+
+    Assert.assertNotNull(requests.poll(5, TimeUnit.SECONDS));
+    Assert.assertNull(
+        "Unexpected hedge", requests.poll(2 * HEDGE_DELAY_MILLIS, TimeUnit.MILLISECONDS));
+    Assert.assertTrue(cancelFrames.isEmpty());
+  }
+
+  /** Answers the requests received by either replica. */
+  @FunctionalInterface
+  private interface Responder {
+
+    /**
+     * Answers a request, or holds it by not answering. Runs on the thread that reads the connection
+     * the request came in on.
+     *
+     * @param requestIndex the order the request arrived in at either replica, from 0
+     * @param connection the connection the request came in on
+     * @param request the request
+     * @throws Exception if an exception occurs, which closes the connection
+     */
+    void respond(int requestIndex, FakeServer.Connection connection, Frame request)
+        throws Exception;
+  }
+
+  /**
+   * Starts two replicas that record their requests and cancel frames, and answer the requests with
+   * {@code responder}.
+   *
+   * @param responder answers the requests
+   * @throws IOException if an I/O exception occurs
+   */
+  private void startReplicas(Responder responder) throws IOException {
+    AtomicInteger requestCount = new AtomicInteger();
+    FakeServer.FrameHandler frameHandler =
+        (connection, frame) -> {
+          frameConnections.put(frame, connection);
+          if (frame.hasFlag(WireProtocol.FLAG_CANCEL)) {
+            cancelFrames.add(frame);
+            return;
+          }
+          requests.add(frame);
+          responder.respond(requestCount.getAndIncrement(), connection, frame);
+        };
+    firstReplica = new FakeServer(frameHandler);
+    secondReplica = new FakeServer(frameHandler);
+  }
+
+  private void assertCancelled(Frame request) throws InterruptedException {
+    Frame cancelFrame = cancelFrames.poll(5, TimeUnit.SECONDS);
+    Assert.assertNotNull("Expected a cancel frame", cancelFrame);
+    Assert.assertSame(frameConnections.get(request), frameConnections.get(cancelFrame));
+    Assert.assertEquals(request.getRequestId(), cancelFrame.getRequestId());
+  }
+
+  private static HedgingPolicy newHedgingPolicy() throws NoSuchMethodException {
+    return newHedgingPolicy("hedgedMethod");
+  }
+
+  private static HedgingPolicy newHedgingPolicy(String methodName) throws NoSuchMethodException {
+    return HedgingPolicy.of(
+        ReplicaBalancerTest.class.getDeclaredMethod(methodName).getAnnotation(Hedged.class));
+  }
+
+  private ReplicaBalancer newReplicaBalancer() {
+    ServiceRegistry.setLocalEndpoints(
+        host, Arrays.asList(firstReplica.getAddress(), secondReplica.getAddress()));
+    return new ReplicaBalancer(
+        connectionPool, Microservice.class, host, WireProtocol.BINARY_PREAMBLE, 2, TIMEOUT_NANOS);
+  }
+}